@@ -23,7 +23,15 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.util.Random;
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.ReceptionStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpListener;
+import net.majorkernelpanic.streaming.hw.EncoderPool;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.FecEncoder;
+import net.majorkernelpanic.streaming.rtp.Pacer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.SharedTransport;
+import net.majorkernelpanic.streaming.rtp.Subscriber;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -61,6 +69,9 @@ public abstract class MediaStream implements Stream {
 	/** Prefix that will be used for all shared preferences saved by libstreaming */
 	protected static final String PREF_PREFIX = "libstreaming-";
 
+	/** RTCP canonical name announced in the SDP, random (RFC 7022) and shared by the streams of the process. */
+	protected static final String CNAME = Long.toHexString(new Random().nextLong());
+
 	/** The packetizer that will read the output of the camera and send RTP packets over the networked. */
 	protected AbstractPacketizer mPacketizer = null;
 
@@ -77,6 +88,14 @@ public abstract class MediaStream implements Stream {
 	protected boolean mStreaming = false, mConfigured = false;
 	protected int mRtpPort = 0, mRtcpPort = 0; 
 	protected byte mChannelIdentifier = 0;
+	protected int mUdpTransport = RtpSocket.TRANSPORT_UDP;
+	protected int mRtxMode = RtpSocket.RTX_OFF, mRtxMaxBytes = 1024*1024;
+	protected long mRtxMaxAge = 1000;
+	protected int mFecColumns = 0, mFecRows = 1;
+	protected Pacer mPacer = null;
+	protected int mOverflow = RtpSocket.OVERFLOW_BLOCK, mQueueMaxBytes = 1024*1024;
+	protected long mQueueMaxLatency = 0;
+	protected boolean mPacerPriority = false;
 	protected OutputStream mOutputStream = null;
 	protected InetAddress mDestination;
 	
@@ -92,6 +111,7 @@ public abstract class MediaStream implements Stream {
 
 	protected MediaRecorder mMediaRecorder;
 	protected MediaCodec mMediaCodec;
+	protected boolean mAsyncEncoding = true;
 	
 	static {
 		// We determine whether or not the MediaCodec API should be used
@@ -165,8 +185,183 @@ public abstract class MediaStream implements Stream {
 		mOutputStream = stream;
 		mChannelIdentifier = channelIdentifier;
 	}
+
+	/**
+	 * Chooses how RTP packets are sent when UDP is used.
+	 * Changes will be taken into account the next time you call {@link #configure()}.
+	 * @param transport {@link RtpSocket#TRANSPORT_UDP} (default), {@link RtpSocket#TRANSPORT_UDP_BATCH} 
+	 * or {@link RtpSocket#TRANSPORT_UDP_SHARED}
+	 */
+	public void setUdpTransport(int transport) {
+		mUdpTransport = transport;
+	}
+
+	/**
+	 * Sends again the packets the receivers report lost with RTCP NACK messages.
+	 * Changes will be taken into account the next time you call {@link #configure()}.
+	 * @param mode {@link RtpSocket#RTX_OFF} (default), {@link RtpSocket#RTX_IN_PLACE} or {@link RtpSocket#RTX_SSRC}
+	 * @param maxAge Packets older than that in ms are not sent again
+	 * @param maxBytes Maximum memory used to keep the packets
+	 */
+	public void setRetransmission(int mode, long maxAge, int maxBytes) {
+		mRtxMode = mode;
+		mRtxMaxAge = maxAge;
+		mRtxMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Protects the stream with XOR based FEC packets (RFC 5109), useful when the round trip
+	 * is too long for retransmissions. Not used when the stream is sent over TCP.
+	 * Changes will be taken into account the next time you call {@link #configure()}.
+	 * @param columns Number of packets protected by a FEC packet of a row, 0 (default) to disable FEC
+	 * @param rows Number of rows of a block, a FEC packet is also generated for each column when it is greater than 1
+	 */
+	public void setForwardErrorCorrection(int columns, int rows) {
+		mFecColumns = columns;
+		mFecRows = rows;
+	}
+
+	/**
+	 * Smooths the packets of the stream with a token bucket. Give the same pacer to the streams 
+	 * of a session so that they share the same budget.
+	 * Changes will be taken into account the next time you call {@link #configure()}.
+	 * @param pacer The pacer, null (default) to disable pacing
+	 * @param priority The packets of the stream are never delayed, for an audio stream
+	 */
+	public void setPacer(Pacer pacer, boolean priority) {
+		mPacer = pacer;
+		mPacerPriority = priority;
+	}
+
+	/**
+	 * Sets the budget of the FIFO of the RTP socket and what happens when the network can't keep up.
+	 * With {@link RtpSocket#OVERFLOW_LATENCY_BOUNDED}, the encoder is never blocked: whole frames are dropped 
+	 * up to the next keyframe, fresh frames matter more than a complete history. Audio streams keep their own 
+	 * FIFO and should keep the default policy, they also go through the priority lane of a shared {@link Pacer}.
+	 * Changes will be taken into account the next time you call {@link #configure()}.
+	 * @param policy {@link RtpSocket#OVERFLOW_BLOCK} (default), {@link RtpSocket#OVERFLOW_DROP_OLDEST},
+	 * {@link RtpSocket#OVERFLOW_DROP_TO_KEYFRAME} or {@link RtpSocket#OVERFLOW_LATENCY_BOUNDED}
+	 * @param maxBytes Maximum size of the packets waiting to be sent
+	 * @param maxLatency Maximum time in ms a packet waits to be sent, 0 for no limit
+	 */
+	public void setOverflowPolicy(int policy, int maxBytes, long maxLatency) {
+		mOverflow = policy;
+		mQueueMaxBytes = maxBytes;
+		mQueueMaxLatency = maxLatency;
+	}
+
+	/** Returns the payload type of the FEC packets to append to the m-line of the SDP, or an empty string. */
+	protected String getFecPayloadType() {
+		return mPacketizer.getFecEncoder() != null ? " "+FecEncoder.PAYLOAD_TYPE : "";
+	}
+
+	/** 
+	 * Returns the SDP attributes announcing FEC, or an empty string.
+	 * The FEC stream is tied to the payload type it protects and, as it has its own SSRC, 
+	 * to the media stream with an FEC SSRC group (RFC 5576, section 4.2).
+	 * @param payloadType The payload type of the stream
+	 * @param clock The clock frequency of the stream
+	 */
+	protected String getFecDescription(int payloadType, long clock) {
+		FecEncoder fec = mPacketizer.getFecEncoder();
+		if (fec == null) return "";
+		long ssrc = getSSRC()&0xFFFFFFFFL, fecSsrc = fec.getRtpSocket().getSSRC()&0xFFFFFFFFL;
+		return "a=rtpmap:"+FecEncoder.PAYLOAD_TYPE+" ulpfec/"+clock+"\r\n" +
+				"a=fmtp:"+FecEncoder.PAYLOAD_TYPE+" apt="+payloadType+"\r\n" +
+				"a=ssrc-group:FEC "+ssrc+" "+fecSsrc+"\r\n" +
+				// Already announced with the RTX stream
+				(mRtxMode != RtpSocket.RTX_SSRC ? "a=ssrc:"+ssrc+" cname:"+CNAME+"\r\n" : "") +
+				"a=ssrc:"+fecSsrc+" cname:"+CNAME+"\r\n";
+	}
+
+	/** Returns the payload type of the RTX stream to append to the m-line of the SDP, or an empty string. */
+	protected String getRtxPayloadType() {
+		return mRtxMode == RtpSocket.RTX_SSRC ? " "+RtpSocket.RTX_PAYLOAD_TYPE : "";
+	}
+
+	/** 
+	 * Returns the SDP attributes announcing NACK and RTX (RFC 4588), or an empty string.
+	 * @param payloadType The payload type of the stream
+	 * @param clock The clock frequency of the stream
+	 */
+	protected String getRtxDescription(int payloadType, long clock) {
+		if (mRtxMode == RtpSocket.RTX_OFF) return "";
+		String sdp = "a=rtcp-fb:"+payloadType+" nack\r\n";
+		if (mRtxMode == RtpSocket.RTX_SSRC) {
+			// The receivers need the SSRC of the RTX stream to know which stream it repairs (RFC 4588, section 8.2)
+			long ssrc = getSSRC()&0xFFFFFFFFL, rtxSsrc = mPacketizer.getRtpSocket().getRtxSSRC()&0xFFFFFFFFL;
+			sdp += "a=rtpmap:"+RtpSocket.RTX_PAYLOAD_TYPE+" rtx/"+clock+"\r\n" +
+					"a=fmtp:"+RtpSocket.RTX_PAYLOAD_TYPE+" apt="+payloadType+";rtx-time="+mRtxMaxAge+"\r\n" +
+					"a=ssrc-group:FID "+ssrc+" "+rtxSsrc+"\r\n" +
+					"a=ssrc:"+ssrc+" cname:"+CNAME+"\r\n" +
+					"a=ssrc:"+rtxSsrc+" cname:"+CNAME+"\r\n";
+		}
+		return sdp;
+	}
 	
 	
+	/**
+	 * Sends the stream to one more destination with UDP. Call it after {@link #configure()}, 
+	 * it can be called while streaming, the encoder is not restarted.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @return The subscriber, pass it to {@link #removeSubscriber(Subscriber)} to stop sending it the stream
+	 */
+	public Subscriber addSubscriber(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+		Subscriber subscriber = Subscriber.createUdp(dest, rtpPort, rtcpPort, 
+				mUdpTransport == RtpSocket.TRANSPORT_UDP_SHARED ? SharedTransport.get() : null);
+		subscriber.setTimeToLive(mTTL);
+		return addSubscriber(subscriber);
+	}
+
+	/**
+	 * Sends the stream to a subscriber built by the caller, a multicast group with 
+	 * its own socket and time to live for instance.
+	 * @return The subscriber
+	 */
+	public Subscriber addSubscriber(Subscriber subscriber) {
+		mPacketizer.getRtpSocket().addSubscriber(subscriber);
+		onSubscriberAdded(subscriber);
+		return subscriber;
+	}
+
+	/**
+	 * Sends the stream to one more destination interleaved in an RTSP connection. Call it after 
+	 * {@link #configure()}, it can be called while streaming, the encoder is not restarted.
+	 * @param stream The output stream of the RTSP connection
+	 * @param channelIdentifier The channel used for RTP, RTCP uses the next one
+	 * @return The subscriber, pass it to {@link #removeSubscriber(Subscriber)} to stop sending it the stream
+	 */
+	public Subscriber addSubscriber(OutputStream stream, byte channelIdentifier) {
+		return addSubscriber(Subscriber.createTcp(stream, channelIdentifier));
+	}
+
+	/** Called when a subscriber is added to the stream. */
+	protected void onSubscriberAdded(Subscriber subscriber) {}
+
+	/** Stops sending the stream to a subscriber, the stream keeps running. */
+	public void removeSubscriber(Subscriber subscriber) {
+		mPacketizer.getRtpSocket().removeSubscriber(subscriber);
+	}
+
+	/**
+	 * Returns what the receivers of the stream report about it (loss, jitter, round trip time).
+	 * The statistics of each subscriber are given by {@link Subscriber#getReceptionStats()}.
+	 */
+	public ReceptionStats getReceptionStats() {
+		return mPacketizer.getRtpSocket().getReceptionStats();
+	}
+
+	/** The listener will be notified of the RTCP feedback sent by the receivers of the stream. */
+	public void addRtcpListener(RtcpListener listener) {
+		mPacketizer.getRtpSocket().addRtcpListener(listener);
+	}
+
+	public void removeRtcpListener(RtcpListener listener) {
+		mPacketizer.getRtpSocket().removeRtcpListener(listener);
+	}
+
 	/**
 	 * Sets the Time To Live of packets sent over the network.
 	 * @param ttl The time to live
@@ -213,6 +408,16 @@ public abstract class MediaStream implements Stream {
 		mRequestedMode = mode;
 	}
 
+	/**
+	 * With the MediaCodec API on Android 6.0 and later, the encoder is used in asynchronous mode by default: 
+	 * its buffers are handed over by callbacks instead of being polled, see 
+	 * {@link net.majorkernelpanic.streaming.rtp.AsyncMediaCodecInputStream}. 
+	 * Changes will be taken into account the next time the stream is started.
+	 */
+	public void setAsyncEncoding(boolean async) {
+		mAsyncEncoding = async;
+	}
+
 	/**
 	 * Returns the streaming method in use, call this after 
 	 * {@link #configure()} to get an accurate response. 
@@ -253,6 +458,16 @@ public abstract class MediaStream implements Stream {
 	public synchronized void configure() throws IllegalStateException, IOException {
 		if (mStreaming) throw new IllegalStateException("Can't be called while streaming.");
 		if (mPacketizer != null) {
+			mPacketizer.getRtpSocket().setUdpTransport(mUdpTransport);
+			mPacketizer.getRtpSocket().setRetransmission(mRtxMode, mRtxMaxAge, mRtxMaxBytes);
+			mPacketizer.getRtpSocket().setPacer(mPacer, mPacerPriority);
+			mPacketizer.getRtpSocket().setOverflowPolicy(mOverflow, mQueueMaxBytes, mQueueMaxLatency);
+			mPacketizer.setForwardErrorCorrection(mOutputStream == null ? mFecColumns : 0, mFecRows, 
+					mPacketizer.getRtpSocket().getClockFrequency());
+			if (mPacketizer.getFecEncoder() != null) {
+				mPacketizer.getFecEncoder().getRtpSocket().setUdpTransport(mUdpTransport);
+				mPacketizer.getFecEncoder().getRtpSocket().setPacer(mPacer, false);
+			}
 			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 			mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
 		}
@@ -263,11 +478,14 @@ public abstract class MediaStream implements Stream {
 	/** Starts the stream. */
 	public synchronized void start() throws IllegalStateException, IOException {
 		
-		if (mDestination==null)
-			throw new IllegalStateException("No destination ip address set for the stream !");
+		// A stream only sent to subscribers does not need a destination
+		if (!mPacketizer.getRtpSocket().hasSubscribers() && mOutputStream == null) {
+			if (mDestination==null)
+				throw new IllegalStateException("No destination ip address set for the stream !");
 
-		if (mRtpPort<=0 || mRtcpPort<=0)
-			throw new IllegalStateException("No destination ports set for the stream !");
+			if (mRtpPort<=0 || mRtcpPort<=0)
+				throw new IllegalStateException("No destination ports set for the stream !");
+		}
 
 		mPacketizer.setTimeToLive(mTTL);
 		
@@ -292,8 +510,8 @@ public abstract class MediaStream implements Stream {
 					mPacketizer.stop();
 				} else {
 					mPacketizer.stop();
-					mMediaCodec.stop();
-					mMediaCodec.release();
+					// The encoder is kept for the next time the stream is started
+					EncoderPool.get().release(mMediaCodec);
 					mMediaCodec = null;
 				}
 			} catch (Exception e) {
@@ -29,6 +29,7 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtp.Pacer;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -245,6 +246,17 @@ public class Session {
 		mTimeToLive = ttl;
 	}
 
+	/** 
+	 * Smooths the packets of the session with a token bucket shared by its tracks,
+	 * audio packets go through the priority lane and are never delayed. <br />
+	 * Changes will be taken into account the next time you configure the session.
+	 * @param pacer The pacer, null (default) to disable pacing
+	 */
+	public void setPacer(Pacer pacer) {
+		if (mAudioStream != null) mAudioStream.setPacer(pacer, true);
+		if (mVideoStream != null) mVideoStream.setPacer(pacer, false);
+	}
+
 	/** 
 	 * Sets the configuration of the stream. <br />
 	 * You can call this method at any time and changes will take 
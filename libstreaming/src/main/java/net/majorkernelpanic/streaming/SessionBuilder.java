@@ -26,8 +26,10 @@ import net.majorkernelpanic.streaming.audio.AMRNBStream;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.hw.CodecDatabase;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.H265Stream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
@@ -57,6 +59,11 @@ public class SessionBuilder {
      */
     public final static int VIDEO_H263 = 2;
 
+    /**
+     * Can be used with {@link #setVideoEncoder}.
+     */
+    public final static int VIDEO_H265 = 4;
+
     /**
      * Can be used with {@link #setAudioEncoder}.
      */
@@ -149,6 +156,13 @@ public class SessionBuilder {
 
                 session.addVideoTrack(stream);
                 break;
+            case VIDEO_H265:
+                H265Stream hevc = new H265Stream(cameraDelegate);
+                if (mContext != null)
+                    hevc.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
+
+                session.addVideoTrack(hevc);
+                break;
         }
 
         if (session.getVideoTrack() != null) {
@@ -171,11 +185,13 @@ public class SessionBuilder {
     }
 
     /**
-     * Access to the context is needed for the H264Stream class to store some stuff in the SharedPreferences.
+     * Access to the context is needed for the H264Stream class to store some stuff in the SharedPreferences,
+     * and for the {@link CodecDatabase} to keep what it knows about the codecs of the phone in a file.
      * Note that you should pass the Application context, not the context of an Activity.
      **/
     public SessionBuilder setContext(Context context) {
         mContext = context;
+        CodecDatabase.init(context);
         return this;
     }
 
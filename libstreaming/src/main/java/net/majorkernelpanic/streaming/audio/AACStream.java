@@ -20,20 +20,22 @@ package net.majorkernelpanic.streaming.audio;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.hw.EncoderPool;
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
+import net.majorkernelpanic.streaming.rtp.AsyncMediaCodecInputStream;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
@@ -196,7 +198,6 @@ public class AACStream extends AudioStream {
 		((AACLATMPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
 
 		mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
-		mMediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
 		MediaFormat format = new MediaFormat();
 		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
 		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
@@ -204,12 +205,13 @@ public class AACStream extends AudioStream {
 		format.setInteger(MediaFormat.KEY_SAMPLE_RATE, mQuality.samplingRate);
 		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
-		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		mMediaCodec = EncoderPool.get().acquire(null, format, false, mAsyncEncoding);
 		mAudioRecord.startRecording();
-		mMediaCodec.start();
 
-		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
-		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+		// In asynchronous mode, the buffers of the encoder come from its callbacks
+		final AsyncMediaCodecInputStream async = EncoderPool.get().getAsyncStream(mMediaCodec);
+		final InputStream inputStream = async != null ? async : new MediaCodecInputStream(mMediaCodec);
+		final ByteBuffer[] inputBuffers = async != null ? null : mMediaCodec.getInputBuffers();
 
 		mThread = new Thread(new Runnable() {
 			@Override
@@ -217,12 +219,15 @@ public class AACStream extends AudioStream {
 				int len = 0, bufferIndex = 0;
 				try {
 					while (!Thread.interrupted()) {
-						bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
+						bufferIndex = async != null ? async.dequeueInputBuffer(10000) : mMediaCodec.dequeueInputBuffer(10000);
 						if (bufferIndex>=0) {
-							inputBuffers[bufferIndex].clear();
-							len = mAudioRecord.read(inputBuffers[bufferIndex], bufferSize);
+							ByteBuffer input = async != null ? async.getInputBuffer(bufferIndex) : inputBuffers[bufferIndex];
+							input.clear();
+							len = mAudioRecord.read(input, bufferSize);
 							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
 								Log.e(TAG,"An error occured with the AudioRecord API !");
+							} else if (async != null) {
+								async.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
 							} else {
 								//Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
 								mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.hw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.majorkernelpanic.streaming.hw.CodecManager.Codec;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * What libstreaming knows about the codecs of the phone, kept in a small file between runs.
+ *
+ * It holds the codecs found in the MediaCodecList with all their color formats, and for each
+ * resolution tested by the {@link EncoderDebugger}: the encoder to use, its color format, the stride,
+ * slice height and padding quirks, the parameter sets and the measured encoding latency.
+ *
+ * The file is only valid for the build of the OS that wrote it, it is loaded the first time it
+ * is needed. The codecs may still change without a new build (updates of the media components),
+ * so after a load the MediaCodecList is scanned again in the background, and the results of a
+ * mime type whose codecs changed are forgotten.
+ * Call {@link #init(Context)} once, without it the database only lives in memory.
+ */
+public class CodecDatabase {
+
+	public final static String TAG = "CodecDatabase";
+
+	/** Name of the file in the files directory of the application. */
+	public final static String FILE_NAME = "libstreaming-codecs.db";
+
+	private final static int MAGIC = 0x4C534344;
+
+	/** Will be incremented every time the format of the file changes. */
+	private final static int VERSION = 2;
+
+	private static CodecDatabase sInstance = null;
+
+	private File mFile = null;
+	private boolean mLoaded = false, mValidating = false;
+	private final String mFingerprint = Build.FINGERPRINT+"/"+Build.VERSION.SDK_INT;
+
+	// Codecs by mime type, encoders and decoders separately
+	private final HashMap<String, Codec[]> mCodecs = new HashMap<String, Codec[]>();
+	private final HashMap<String, Result> mResults = new HashMap<String, Result>();
+
+	/** What the {@link EncoderDebugger} found out about an encoder at some resolution. */
+	public static class Result {
+		public String encoderName;
+		public int colorFormat;
+		public int stride, sliceHeight, padding;
+		public boolean planar, reversed;
+		public String sps, pps, vps;
+		/** Average time spent by a frame in the encoder in us, 0 if unknown. */
+		public int latency;
+	}
+
+	/** Returns the database shared by the whole application. */
+	public static synchronized CodecDatabase get() {
+		if (sInstance == null) sInstance = new CodecDatabase();
+		return sInstance;
+	}
+
+	/**
+	 * Gives the database a place to store its file. The file is not read until needed.
+	 * Note that you should pass the Application context, not the context of an Activity.
+	 */
+	public static void init(Context context) {
+		if (context == null) return;
+		CodecDatabase db = get();
+		synchronized (db) {
+			if (db.mFile == null) {
+				db.mFile = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+				db.mLoaded = false;
+			}
+		}
+	}
+
+	private CodecDatabase() {}
+
+	/**
+	 * Returns the codecs of the given mime type with all the color formats they support,
+	 * or null if the MediaCodecList has not been scanned yet.
+	 */
+	public synchronized Codec[] getCodecs(String mimeType, boolean encoders) {
+		load();
+		return mCodecs.get(key(mimeType, encoders));
+	}
+
+	/** Stores the codecs of a mime type found in the MediaCodecList. */
+	public synchronized void putCodecs(String mimeType, boolean encoders, Codec[] codecs) {
+		load();
+		mCodecs.put(key(mimeType, encoders), codecs);
+		save();
+	}
+
+	/** Returns the encoder to use at the given resolution, or null if it has not been tested. */
+	public synchronized Result getResult(String mimeType, int width, int height) {
+		load();
+		return mResults.get(key(mimeType, width, height));
+	}
+
+	/** Stores the encoder to use at the given resolution, or forgets it if result is null. */
+	public synchronized void putResult(String mimeType, int width, int height, Result result) {
+		load();
+		if (result != null) {
+			mResults.put(key(mimeType, width, height), result);
+		} else if (mResults.remove(key(mimeType, width, height)) == null) {
+			return;
+		}
+		save();
+	}
+
+	/** Forgets everything, the tests will be run again. */
+	public synchronized void clear() {
+		load();
+		mCodecs.clear();
+		mResults.clear();
+		save();
+	}
+
+	private static String key(String mimeType, boolean encoders) {
+		return mimeType+(encoders ? "/encoders" : "/decoders");
+	}
+
+	private static String key(String mimeType, int width, int height) {
+		return mimeType+"/"+width+"x"+height;
+	}
+
+	/** Reads the file the first time the database is used. */
+	private void load() {
+		if (mLoaded) return;
+		mLoaded = true;
+		if (mFile == null || !mFile.exists()) return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			// The results also depend on the way the encoders are tested
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != EncoderDebugger.VERSION) {
+				Log.d(TAG, "The codec database is outdated");
+				return;
+			}
+			if (!mFingerprint.equals(in.readUTF())) {
+				Log.d(TAG, "The OS of the phone changed, the codecs will be tested again");
+				return;
+			}
+			HashMap<String, Codec[]> codecs = new HashMap<String, Codec[]>();
+			for (int i=in.readInt();i>0;i--) {
+				String key = in.readUTF();
+				Codec[] list = new Codec[in.readInt()];
+				for (int j=0;j<list.length;j++) {
+					String name = in.readUTF();
+					Integer[] formats = new Integer[in.readInt()];
+					for (int k=0;k<formats.length;k++) formats[k] = in.readInt();
+					list[j] = new Codec(name, formats);
+				}
+				codecs.put(key, list);
+			}
+			HashMap<String, Result> results = new HashMap<String, Result>();
+			for (int i=in.readInt();i>0;i--) {
+				String key = in.readUTF();
+				Result result = new Result();
+				result.encoderName = in.readUTF();
+				result.colorFormat = in.readInt();
+				result.stride = in.readInt();
+				result.sliceHeight = in.readInt();
+				result.padding = in.readInt();
+				result.planar = in.readBoolean();
+				result.reversed = in.readBoolean();
+				result.sps = in.readUTF();
+				result.pps = in.readUTF();
+				result.vps = in.readBoolean() ? in.readUTF() : null;
+				result.latency = in.readInt();
+				results.put(key, result);
+			}
+			mCodecs.putAll(codecs);
+			mResults.putAll(results);
+			validate();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read the codec database: "+e.getMessage());
+		} finally {
+			if (in != null) try {
+				in.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/** Writes the whole database, it is a few kB at most. */
+	private void save() {
+		if (mFile == null) return;
+		File tmp = new File(mFile.getPath()+".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(EncoderDebugger.VERSION);
+			out.writeUTF(mFingerprint);
+			out.writeInt(mCodecs.size());
+			for (Map.Entry<String, Codec[]> entry : mCodecs.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				for (Codec codec : entry.getValue()) {
+					out.writeUTF(codec.name);
+					out.writeInt(codec.formats.length);
+					for (Integer format : codec.formats) out.writeInt(format);
+				}
+			}
+			out.writeInt(mResults.size());
+			for (Map.Entry<String, Result> entry : mResults.entrySet()) {
+				Result result = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeUTF(result.encoderName);
+				out.writeInt(result.colorFormat);
+				out.writeInt(result.stride);
+				out.writeInt(result.sliceHeight);
+				out.writeInt(result.padding);
+				out.writeBoolean(result.planar);
+				out.writeBoolean(result.reversed);
+				out.writeUTF(result.sps);
+				out.writeUTF(result.pps);
+				out.writeBoolean(result.vps != null);
+				if (result.vps != null) out.writeUTF(result.vps);
+				out.writeInt(result.latency);
+			}
+			out.close();
+			out = null;
+			// The old file is only replaced by a complete one
+			if (!tmp.renameTo(mFile)) throw new IOException("Could not rename "+tmp);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write the codec database: "+e.getMessage());
+			tmp.delete();
+		} finally {
+			if (out != null) try {
+				out.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/** Scans the MediaCodecList again in the background and forgets what is outdated. */
+	private void validate() {
+		if (mValidating) return;
+		mValidating = true;
+		final ArrayList<String> keys = new ArrayList<String>(mCodecs.keySet());
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (String key : keys) {
+					boolean encoders = key.endsWith("/encoders");
+					String mimeType = key.substring(0, key.lastIndexOf('/'));
+					Codec[] codecs = CodecManager.scan(mimeType, encoders);
+					synchronized (CodecDatabase.this) {
+						Codec[] known = mCodecs.get(key);
+						if (known != null && !same(known, codecs)) {
+							Log.d(TAG, "The "+(encoders ? "encoders" : "decoders")+" of type "+mimeType+" changed");
+							mCodecs.put(key, codecs);
+							Iterator<String> it = mResults.keySet().iterator();
+							while (it.hasNext()) {
+								if (it.next().startsWith(mimeType+"/")) it.remove();
+							}
+							save();
+						}
+					}
+				}
+			}
+		}, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static boolean same(Codec[] a, Codec[] b) {
+		if (a.length != b.length) return false;
+		for (int i=0;i<a.length;i++) {
+			if (!a[i].name.equals(b[i].name) || !Arrays.equals(a[i].formats, b[i].formats)) return false;
+		}
+		return true;
+	}
+
+}
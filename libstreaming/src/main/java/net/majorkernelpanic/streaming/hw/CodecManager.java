@@ -19,6 +19,7 @@
 package net.majorkernelpanic.streaming.hw;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import android.annotation.SuppressLint;
@@ -39,10 +40,12 @@ public class CodecManager {
 		MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar
 	};		
 
-	private static Codec[] sEncoders = null;
-	private static Codec[] sDecoders = null;
+	// Lists of codecs by mime type
+	private static HashMap<String, Codec[]> sEncoders = new HashMap<String, Codec[]>();
+	private static HashMap<String, Codec[]> sDecoders = new HashMap<String, Codec[]>();
 
-	static class Codec {
+	/** A codec and the color formats it supports. */
+	public static class Codec {
 		public Codec(String name, Integer[] formats) {
 			this.name = name;
 			this.formats = formats;
@@ -55,83 +58,91 @@ public class CodecManager {
 	 * Lists all encoders that claim to support a color format that we know how to use.
 	 * @return A list of those encoders
 	 */
-	@SuppressLint("NewApi")
 	public synchronized static Codec[] findEncodersForMimeType(String mimeType) {
-		if (sEncoders != null) return sEncoders;
+		Codec[] cached = sEncoders.get(mimeType);
+		if (cached != null) return cached;
 
-		ArrayList<Codec> encoders = new ArrayList<Codec>();
+		cached = filter(listCodecs(mimeType, true));
+		sEncoders.put(mimeType, cached);
+		return cached;
 
-		// We loop through the encoders, apparently this can take up to a sec (testes on a GS3)
-		for(int j = MediaCodecList.getCodecCount() - 1; j >= 0; j--){
-			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
-			if (!codecInfo.isEncoder()) continue;
+	}
 
-			String[] types = codecInfo.getSupportedTypes();
-			for (int i = 0; i < types.length; i++) {
-				if (types[i].equalsIgnoreCase(mimeType)) {
-					try {
-						MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-						Set<Integer> formats = new HashSet<Integer>();
+	/**
+	 * Lists all decoders that claim to support a color format that we know how to use.
+	 * @return A list of those decoders
+	 */
+	public synchronized static Codec[] findDecodersForMimeType(String mimeType) {
+		Codec[] cached = sDecoders.get(mimeType);
+		if (cached != null) return cached;
 
-						// And through the color formats supported
-						for (int k = 0; k < capabilities.colorFormats.length; k++) {
-							int format = capabilities.colorFormats[k];
+		cached = filter(listCodecs(mimeType, false));
 
-							for (int l=0;l<SUPPORTED_COLOR_FORMATS.length;l++) {
-								if (format == SUPPORTED_COLOR_FORMATS[l]) {
-									formats.add(format);
-								}
-							}
-						}
-						
-						Codec codec = new Codec(codecInfo.getName(), (Integer[]) formats.toArray(new Integer[formats.size()]));
-						encoders.add(codec);
-					} catch (Exception e) {
-						Log.wtf(TAG,e);
+		// We will use the decoder from google first, it seems to work properly on many phones
+		for (int i=0;i<cached.length;i++) {
+			if (cached[i].name.equalsIgnoreCase("omx.google.h264.decoder") || cached[i].name.equalsIgnoreCase("omx.google.hevc.decoder")) {
+				Codec codec = cached[0];
+				cached[0] = cached[i];
+				cached[i] = codec;
+			} 
+		}
+
+		sDecoders.put(mimeType, cached);
+		return cached;
+	}
+
+	/**
+	 * Lists the encoders or the decoders of a mime type with all the color formats they support.
+	 * The MediaCodecList is only scanned when the {@link CodecDatabase} does not know the codecs yet.
+	 */
+	public static Codec[] listCodecs(String mimeType, boolean encoders) {
+		CodecDatabase db = CodecDatabase.get();
+		Codec[] codecs = db.getCodecs(mimeType, encoders);
+		if (codecs == null) {
+			codecs = scan(mimeType, encoders);
+			db.putCodecs(mimeType, encoders, codecs);
+		}
+		return codecs;
+	}
+
+	/** Keeps the codecs supporting a color format that we know how to use, and only those formats. */
+	private static Codec[] filter(Codec[] codecs) {
+		ArrayList<Codec> list = new ArrayList<Codec>();
+		for (Codec codec : codecs) {
+			Set<Integer> formats = new HashSet<Integer>();
+			for (int k = 0; k < codec.formats.length; k++) {
+				for (int l=0;l<SUPPORTED_COLOR_FORMATS.length;l++) {
+					if (codec.formats[k] == SUPPORTED_COLOR_FORMATS[l]) {
+						formats.add(codec.formats[k]);
 					}
 				}
 			}
+			list.add(new Codec(codec.name, (Integer[]) formats.toArray(new Integer[formats.size()])));
 		}
-
-		sEncoders = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
-		return sEncoders;
-
+		return (Codec[]) list.toArray(new Codec[list.size()]);
 	}
 
 	/**
-	 * Lists all decoders that claim to support a color format that we know how to use.
-	 * @return A list of those decoders
+	 * Loops through the MediaCodecList, apparently this can take up to a sec (testes on a GS3).
 	 */
 	@SuppressLint("NewApi")
-	public synchronized static Codec[] findDecodersForMimeType(String mimeType) {
-		if (sDecoders != null) return sDecoders;
-		ArrayList<Codec> decoders = new ArrayList<Codec>();
+	static Codec[] scan(String mimeType, boolean encoders) {
+		ArrayList<Codec> codecs = new ArrayList<Codec>();
 
-		// We loop through the decoders, apparently this can take up to a sec (testes on a GS3)
 		for(int j = MediaCodecList.getCodecCount() - 1; j >= 0; j--){
 			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
-			if (codecInfo.isEncoder()) continue;
+			if (codecInfo.isEncoder() != encoders) continue;
 
 			String[] types = codecInfo.getSupportedTypes();
 			for (int i = 0; i < types.length; i++) {
 				if (types[i].equalsIgnoreCase(mimeType)) {
 					try {
 						MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-						Set<Integer> formats = new HashSet<Integer>();
-
-						// And through the color formats supported
-						for (int k = 0; k < capabilities.colorFormats.length; k++) {
-							int format = capabilities.colorFormats[k];
-
-							for (int l=0;l<SUPPORTED_COLOR_FORMATS.length;l++) {
-								if (format == SUPPORTED_COLOR_FORMATS[l]) {
-									formats.add(format);
-								}
-							}
+						Integer[] formats = new Integer[capabilities.colorFormats.length];
+						for (int k = 0; k < formats.length; k++) {
+							formats[k] = capabilities.colorFormats[k];
 						}
-
-						Codec codec = new Codec(codecInfo.getName(), (Integer[]) formats.toArray(new Integer[formats.size()]));
-						decoders.add(codec);
+						codecs.add(new Codec(codecInfo.getName(), formats));
 					} catch (Exception e) {
 						Log.wtf(TAG,e);
 					}
@@ -139,18 +150,7 @@ public class CodecManager {
 			}
 		}
 
-		sDecoders = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
-
-		// We will use the decoder from google first, it seems to work properly on many phones
-		for (int i=0;i<sDecoders.length;i++) {
-			if (sDecoders[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
-				Codec codec = sDecoders[0];
-				sDecoders[0] = sDecoders[i];
-				sDecoders[i] = codec;
-			} 
-		}
-
-		return sDecoders;
+		return (Codec[]) codecs.toArray(new Codec[codecs.size()]);
 	}
 
 }
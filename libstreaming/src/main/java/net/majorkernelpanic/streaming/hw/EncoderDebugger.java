@@ -66,7 +66,7 @@ public class EncoderDebugger {
 	private static final boolean VERBOSE = false;
 
 	/** Will be incremented every time this test is modified. */
-	private static final int VERSION = 3;
+	static final int VERSION = 3;
 
 	/** Bit rate that will be used with the encoder. */
 	private final static int BITRATE = 1000000;
@@ -74,7 +74,11 @@ public class EncoderDebugger {
 	/** Frame rate that will be used to test the encoder. */
 	private final static int FRAMERATE = 20;
 
-	private final static String MIME_TYPE = "video/avc";
+	/** The encoders of this type are tested by default. */
+	public final static String MIME_TYPE_AVC = "video/avc";
+
+	/** H.265 encoders, the VPS is also looked for. */
+	public final static String MIME_TYPE_HEVC = "video/hevc";
 
 	private final static int NB_DECODED = 34;
 	private final static int NB_ENCODED = 50;
@@ -83,19 +87,22 @@ public class EncoderDebugger {
 	private String mDecoderName, mEncoderName, mErrorLog;
 	private MediaCodec mEncoder, mDecoder;
 	private int mWidth, mHeight, mSize;
-	private byte[] mSPS, mPPS;
+	private String mMimeType;
+	private byte[] mVPS, mSPS, mPPS;
 	private byte[] mData, mInitialImage;
 	private MediaFormat mDecOutputFormat;
 	private NV21Convertor mNV21;
 	private SharedPreferences mPreferences;
 	private byte[][] mVideo, mDecodedVideo;
-	private String mB64PPS, mB64SPS;
+	private String mB64PPS, mB64SPS, mB64VPS;
+	private int mLatency;
 
 	public synchronized static void asyncDebug(final Context context, final int width, final int height) {
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
+					CodecDatabase.init(context);
 					SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 					debug(prefs, width, height);
 				} catch (Exception e) {}
@@ -104,12 +111,21 @@ public class EncoderDebugger {
 	}
 	
 	public synchronized static EncoderDebugger debug(Context context, int width, int height) {
+		CodecDatabase.init(context);
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		return debug(prefs, width, height);
 	}
 
 	public synchronized static EncoderDebugger debug(SharedPreferences prefs, int width, int height) {
-		EncoderDebugger debugger = new EncoderDebugger(prefs, width, height);
+		return debug(prefs, width, height, MIME_TYPE_AVC);
+	}
+
+	/**
+	 * Finds an encoder of the given type usable at the given resolution.
+	 * @param mimeType {@link #MIME_TYPE_AVC} or {@link #MIME_TYPE_HEVC}
+	 */
+	public synchronized static EncoderDebugger debug(SharedPreferences prefs, int width, int height, String mimeType) {
+		EncoderDebugger debugger = new EncoderDebugger(prefs, width, height, mimeType);
 		debugger.debug();
 		return debugger;
 	}
@@ -122,6 +138,11 @@ public class EncoderDebugger {
 		return mB64SPS;
 	}
 
+	/** Returns the VPS of an H.265 encoder, null for an H.264 encoder. */
+	public String getB64VPS() {
+		return mB64VPS;
+	}
+
 	public String getEncoderName() {
 		return mEncoderName;
 	}
@@ -130,6 +151,11 @@ public class EncoderDebugger {
 		return mEncoderColorFormat;
 	}
 
+	/** Returns the average time spent by a frame in the encoder during the test in us, 0 if unknown. */
+	public int getEncoderLatency() {
+		return mLatency;
+	}
+
 	/** This {@link NV21Convertor} will do the necessary work to feed properly the encoder. */
 	public NV21Convertor getNV21Convertor() {
 		return mNV21;
@@ -140,8 +166,9 @@ public class EncoderDebugger {
 		return mErrorLog;
 	}
 
-	private EncoderDebugger(SharedPreferences prefs, int width, int height) {
+	private EncoderDebugger(SharedPreferences prefs, int width, int height, String mimeType) {
 		mPreferences = prefs;
+		mMimeType = mimeType;
 		mWidth = width;
 		mHeight = height;
 		mSize = width*height;
@@ -154,15 +181,43 @@ public class EncoderDebugger {
 		mDecodedVideo = new byte[NB_DECODED][];
 		mErrorLog = "";
 		mPPS = null;
-		mSPS = null;		
+		mSPS = null;
+		mVPS = null;
+	}
+
+	private boolean isHevc() {
+		return MIME_TYPE_HEVC.equals(mMimeType);
+	}
+
+	/** Prefix of the keys of the shared preferences, the results of H.264 encoders keep their old keys. */
+	private String prefix() {
+		return mWidth+"x"+mHeight+"-"+(isHevc() ? "hevc-" : "");
 	}
 
 	private void debug() {
-		
+
+		// The result may be in the codec database
+		CodecDatabase.Result result = CodecDatabase.get().getResult(mMimeType, mWidth, mHeight);
+		if (!DEBUG && result != null) {
+			mNV21.setSize(mWidth, mHeight);
+			mNV21.setSliceHeigth(result.sliceHeight);
+			mNV21.setStride(result.stride);
+			mNV21.setYPadding(result.padding);
+			mNV21.setPlanar(result.planar);
+			mNV21.setColorPanesReversed(result.reversed);
+			mEncoderName = result.encoderName;
+			mEncoderColorFormat = result.colorFormat;
+			mB64PPS = result.pps;
+			mB64SPS = result.sps;
+			mB64VPS = result.vps;
+			mLatency = result.latency;
+			return;
+		}
+
 		// If testing the phone again is not needed, 
 		// we just restore the result from the shared preferences
 		if (!checkTestNeeded()) {
-			String resolution = mWidth+"x"+mHeight+"-";			
+			String resolution = prefix();
 
 			boolean success = mPreferences.getBoolean(PREF_PREFIX+resolution+"success",false);
 			if (!success) {
@@ -179,7 +234,10 @@ public class EncoderDebugger {
 			mEncoderColorFormat = mPreferences.getInt(PREF_PREFIX+resolution+"colorFormat", 0);
 			mB64PPS = mPreferences.getString(PREF_PREFIX+resolution+"pps", "");
 			mB64SPS = mPreferences.getString(PREF_PREFIX+resolution+"sps", "");
+			if (isHevc()) mB64VPS = mPreferences.getString(PREF_PREFIX+resolution+"vps", "");
 
+			// Results of older versions are moved to the codec database
+			CodecDatabase.get().putResult(mMimeType, mWidth, mHeight, toResult());
 			return;
 		}
 
@@ -187,8 +245,8 @@ public class EncoderDebugger {
 		
 		// Builds a list of available encoders and decoders we may be able to use
 		// because they support some nice color formats
-		Codec[] encoders = CodecManager.findEncodersForMimeType(MIME_TYPE);
-		Codec[] decoders = CodecManager.findDecodersForMimeType(MIME_TYPE);
+		Codec[] encoders = CodecManager.findEncodersForMimeType(mMimeType);
+		Codec[] decoders = CodecManager.findDecodersForMimeType(mMimeType);
 
 		int count = 0, n = 1;
 		for (int i=0;i<encoders.length;i++) {
@@ -212,7 +270,7 @@ public class EncoderDebugger {
 				mNV21.setYPadding(0);
 				mNV21.setEncoderColorFormat(mEncoderColorFormat);
 
-				// /!\ NV21Convertor can directly modify the input
+				// The converted frame is kept by the NV21Convertor
 				createTestImage();
 				mData = mNV21.convert(mInitialImage);
 
@@ -313,7 +371,7 @@ public class EncoderDebugger {
 	}
 
 	private boolean checkTestNeeded() {
-		String resolution = mWidth+"x"+mHeight+"-";
+		String resolution = prefix();
 
 		// Forces the test
 		if (DEBUG || mPreferences==null) return true; 
@@ -339,7 +397,10 @@ public class EncoderDebugger {
 	 * or if this test has been modified.
 	 */	
 	private void saveTestResult(boolean success) {
-		String resolution = mWidth+"x"+mHeight+"-";
+		CodecDatabase.get().putResult(mMimeType, mWidth, mHeight, success ? toResult() : null);
+		if (mPreferences == null) return;
+
+		String resolution = prefix();
 		Editor editor = mPreferences.edit();
 
 		editor.putBoolean(PREF_PREFIX+resolution+"success", success);
@@ -357,11 +418,28 @@ public class EncoderDebugger {
 			editor.putString(PREF_PREFIX+resolution+"encoderName", mEncoderName);
 			editor.putString(PREF_PREFIX+resolution+"pps", mB64PPS);
 			editor.putString(PREF_PREFIX+resolution+"sps", mB64SPS);
+			if (isHevc()) editor.putString(PREF_PREFIX+resolution+"vps", mB64VPS);
 		}
 
 		editor.commit();
 	}
 
+	private CodecDatabase.Result toResult() {
+		CodecDatabase.Result result = new CodecDatabase.Result();
+		result.encoderName = mEncoderName;
+		result.colorFormat = mEncoderColorFormat;
+		result.stride = mNV21.getStride();
+		result.sliceHeight = mNV21.getSliceHeigth();
+		result.padding = mNV21.getYPadding();
+		result.planar = mNV21.getPlanar();
+		result.reversed = mNV21.getUVPanesReversed();
+		result.sps = mB64SPS;
+		result.pps = mB64PPS;
+		result.vps = isHevc() ? mB64VPS : null;
+		result.latency = mLatency;
+		return result;
+	}
+
 	/**
 	 * Creates the test image that will be used to feed the encoder.
 	 */
@@ -523,7 +601,7 @@ public class EncoderDebugger {
 	 */
 	private void configureEncoder() throws IOException  {
 		mEncoder = MediaCodec.createByCodecName(mEncoderName);
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, BITRATE);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAMERATE);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mEncoderColorFormat);
@@ -549,15 +627,18 @@ public class EncoderDebugger {
 	 */	
 	private void configureDecoder() throws IOException {
 		byte[] prefix = new byte[] {0x00,0x00,0x00,0x01};
-
-		ByteBuffer csd0 = ByteBuffer.allocate(4+mSPS.length+4+mPPS.length);
-		csd0.put(new byte[] {0x00,0x00,0x00,0x01});
-		csd0.put(mSPS);
-		csd0.put(new byte[] {0x00,0x00,0x00,0x01});
-		csd0.put(mPPS);
+		byte[][] parameterSets = isHevc() ? new byte[][] {mVPS, mSPS, mPPS} : new byte[][] {mSPS, mPPS};
+
+		int size = 0;
+		for (byte[] nal : parameterSets) size += 4+nal.length;
+		ByteBuffer csd0 = ByteBuffer.allocate(size);
+		for (byte[] nal : parameterSets) {
+			csd0.put(prefix);
+			csd0.put(nal);
+		}
 
 		mDecoder = MediaCodec.createByCodecName(mDecoderName);
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
 		mediaFormat.setByteBuffer("csd-0", csd0);
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mDecoderColorFormat);
 		mDecoder.configure(mediaFormat, null, null, 0);
@@ -565,24 +646,16 @@ public class EncoderDebugger {
 
 		ByteBuffer[] decInputBuffers = mDecoder.getInputBuffers();
 
-		int decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
-		if (decInputIndex>=0) {
-			decInputBuffers[decInputIndex].clear();
-			decInputBuffers[decInputIndex].put(prefix);
-			decInputBuffers[decInputIndex].put(mSPS);
-			mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
-		} else {
-			if (VERBOSE) Log.e(TAG,"No buffer available !");
-		}
-
-		decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
-		if (decInputIndex>=0) {
-			decInputBuffers[decInputIndex].clear();
-			decInputBuffers[decInputIndex].put(prefix);
-			decInputBuffers[decInputIndex].put(mPPS);
-			mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
-		} else {
-			if (VERBOSE) Log.e(TAG,"No buffer available !");
+		for (byte[] nal : parameterSets) {
+			int decInputIndex = mDecoder.dequeueInputBuffer(1000000/FRAMERATE);
+			if (decInputIndex>=0) {
+				decInputBuffers[decInputIndex].clear();
+				decInputBuffers[decInputIndex].put(prefix);
+				decInputBuffers[decInputIndex].put(nal);
+				mDecoder.queueInputBuffer(decInputIndex, 0, decInputBuffers[decInputIndex].position(), timestamp(), 0);
+			} else {
+				if (VERBOSE) Log.e(TAG,"No buffer available !");
+			}
 		}
 
 
@@ -607,11 +680,11 @@ public class EncoderDebugger {
 		ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
 		ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
 		BufferInfo info = new BufferInfo();
-		byte[] csd = new byte[128];
-		int len = 0, p = 4, q = 4;
+		byte[] csd = new byte[256];
+		int len = 0;
 		long elapsed = 0, now = timestamp();
 
-		while (elapsed<3000000 && (mSPS==null || mPPS==null)) {
+		while (elapsed<3000000 && (mSPS==null || mPPS==null || (isHevc() && mVPS==null))) {
 
 			// Some encoders won't give us the SPS and PPS unless they receive something to encode first...
 			int bufferIndex = mEncoder.dequeueInputBuffer(1000000/FRAMERATE);
@@ -632,16 +705,17 @@ public class EncoderDebugger {
 
 			if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
 
-				// The PPS and PPS shoud be there
+				// The PPS and PPS shoud be there, H.265 encoders put the VPS, SPS and PPS in csd-0
 				MediaFormat format = mEncoder.getOutputFormat();
-				ByteBuffer spsb = format.getByteBuffer("csd-0");
-				ByteBuffer ppsb = format.getByteBuffer("csd-1");
-				mSPS = new byte[spsb.capacity()-4];
-				spsb.position(4);
-				spsb.get(mSPS,0,mSPS.length);
-				mPPS = new byte[ppsb.capacity()-4];
-				ppsb.position(4);
-				ppsb.get(mPPS,0,mPPS.length);
+				for (String key : new String[] {"csd-0", "csd-1"}) {
+					ByteBuffer csdb = format.getByteBuffer(key);
+					if (csdb != null) {
+						byte[] data = new byte[csdb.capacity()];
+						csdb.position(0);
+						csdb.get(data);
+						parseParameterSets(data, data.length);
+					}
+				}
 				break;
 
 			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -649,24 +723,13 @@ public class EncoderDebugger {
 			} else if (index>=0) {
 
 				len = info.size;
-				if (len<128) {
+				if (len<csd.length) {
+					outputBuffers[index].position(info.offset);
 					outputBuffers[index].get(csd,0,len);
-					if (len>0 && csd[0]==0 && csd[1]==0 && csd[2]==0 && csd[3]==1) {
+					if (len>4 && csd[0]==0 && csd[1]==0 && csd[2]==0 && csd[3]==1) {
 						// Parses the SPS and PPS, they could be in two different packets and in a different order 
 						//depending on the phone so we don't make any assumption about that
-						while (p<len) {
-							while (!(csd[p+0]==0 && csd[p+1]==0 && csd[p+2]==0 && csd[p+3]==1) && p+3<len) p++;
-							if (p+3>=len) p=len;
-							if ((csd[q]&0x1F)==7) {
-								mSPS = new byte[p-q];
-								System.arraycopy(csd, q, mSPS, 0, p-q);
-							} else {
-								mPPS = new byte[p-q];
-								System.arraycopy(csd, q, mPPS, 0, p-q);
-							}
-							p += 4;
-							q = p;
-						}
+						parseParameterSets(csd, len);
 					}					
 				}
 				mEncoder.releaseOutputBuffer(index, false);
@@ -678,13 +741,48 @@ public class EncoderDebugger {
 		check(mPPS != null && mSPS != null, "Could not determine the SPS & PPS.");
 		mB64PPS = Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP);
 		mB64SPS = Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP);
+		if (isHevc()) {
+			check(mVPS != null, "Could not determine the VPS.");
+			mB64VPS = Base64.encodeToString(mVPS, 0, mVPS.length, Base64.NO_WRAP);
+		}
 
 		return elapsed;
 	}
 
+	/**
+	 * Finds the parameter sets in NAL units preceded by start codes.
+	 */
+	private void parseParameterSets(byte[] data, int length) {
+		int start = -1;
+		for (int i=0;i+2<length;i++) {
+			if (data[i]==0 && data[i+1]==0 && data[i+2]==1) {
+				if (start>=0) setParameterSet(data, start, i);
+				start = i+3;
+				i += 2;
+			}
+		}
+		if (start>=0) setParameterSet(data, start, length);
+	}
+
+	private void setParameterSet(byte[] data, int start, int end) {
+		// Zeros of a 4 bytes start code
+		while (end>start && data[end-1]==0) end--;
+		if (end<=start) return;
+		byte[] nal = new byte[end-start];
+		System.arraycopy(data, start, nal, 0, nal.length);
+		int type = isHevc() ? (data[start]>>1)&0x3F : data[start]&0x1F;
+		if (isHevc() && type == 32) {
+			mVPS = nal;
+		} else if (type == (isHevc() ? 33 : 7)) {
+			mSPS = nal;
+		} else if (type == (isHevc() ? 34 : 8)) {
+			mPPS = nal;
+		}
+	}
+
 	private long encode() {
-		int n = 0;
-		long elapsed = 0, now = timestamp();
+		int n = 0, frames = 0;
+		long elapsed = 0, now = timestamp(), latency = 0;
 		int encOutputIndex = 0, encInputIndex = 0;
 		BufferInfo info = new BufferInfo();
 		ByteBuffer[] encInputBuffers = mEncoder.getInputBuffers();
@@ -707,11 +805,17 @@ public class EncoderDebugger {
 			if (encOutputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
 				encOutputBuffers = mEncoder.getOutputBuffers();
 			} else if (encOutputIndex>=0) {
+				// The timestamp of the frame is when it was given to the encoder
+				if ((info.flags&MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.presentationTimeUs>0) {
+					latency += timestamp()-info.presentationTimeUs;
+					frames++;
+				}
 				mVideo[n] = new byte[info.size];
 				encOutputBuffers[encOutputIndex].clear();
 				encOutputBuffers[encOutputIndex].get(mVideo[n++], 0, info.size);
 				mEncoder.releaseOutputBuffer(encOutputIndex, false);
 				if (n>=NB_ENCODED) {
+					mLatency = frames>0 ? (int) (latency/frames) : 0;
 					flushMediaCodec(mEncoder);
 					return elapsed;
 				}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.hw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.majorkernelpanic.streaming.rtp.AsyncMediaCodecInputStream;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Keeps the encoders of the streams that were stopped, configured and started, so that the next
+ * stream with the same configuration starts right away.
+ *
+ * Encoders are identified by their name, mime type, resolution, color format and bitrate: on
+ * Android 4.4 and later, a video encoder is reused for a bitrate within a factor of two of its
+ * own, the bitrate is then changed on the fly. Stopped encoders are flushed instead of released,
+ * and actually released when they have been idle for too long, when the memory they hold exceeds
+ * the budget of the pool, or when a new encoder can't be created because the phone has no more.
+ * Encoders in asynchronous mode keep their {@link AsyncMediaCodecInputStream}, they are started
+ * again right after being flushed.
+ */
+@SuppressLint({"InlinedApi", "NewApi"})
+public class EncoderPool {
+
+	public final static String TAG = "EncoderPool";
+
+	/** Encoders idle for longer than that are released, in ms. */
+	public final static long DEFAULT_MAX_IDLE_TIME = 30000;
+
+	/** Default estimate of the memory the idle encoders may hold, in bytes. */
+	public final static long DEFAULT_MAX_IDLE_BYTES = 32*1024*1024;
+
+	private static EncoderPool sInstance = null;
+	private static Handler sCallbacks = null;
+
+	private long mMaxIdleTime = DEFAULT_MAX_IDLE_TIME;
+	private long mMaxIdleBytes = DEFAULT_MAX_IDLE_BYTES;
+	private boolean mEnabled = true;
+
+	private final ArrayList<Encoder> mIdle = new ArrayList<Encoder>();
+	private final IdentityHashMap<MediaCodec, Encoder> mLent = new IdentityHashMap<MediaCodec, Encoder>();
+	private long mIdleBytes = 0;
+	private Timer mTimer = null;
+
+	/** An encoder, its configuration and the surface it was created with. */
+	private static class Encoder {
+		MediaCodec codec;
+		Surface surface;
+		AsyncMediaCodecInputStream stream;
+		String key;
+		int bitrate;
+		long bytes, idleSince;
+	}
+
+	/** Returns the pool shared by the whole application. */
+	public static synchronized EncoderPool get() {
+		if (sInstance == null) sInstance = new EncoderPool();
+		return sInstance;
+	}
+
+	/** Sets how long a stopped encoder is kept, in ms. */
+	public synchronized void setMaxIdleTime(long ms) {
+		mMaxIdleTime = ms;
+		evict(SystemClock.elapsedRealtime());
+	}
+
+	/** Sets an estimate of the memory the stopped encoders may hold, in bytes. */
+	public synchronized void setMaxIdleBytes(long bytes) {
+		mMaxIdleBytes = bytes;
+		evict(SystemClock.elapsedRealtime());
+	}
+
+	/** The pool is enabled by default, when disabled stopped encoders are released as before. */
+	public synchronized void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		if (!enabled) clear();
+	}
+
+	/** Returns the number of stopped encoders kept by the pool. */
+	public synchronized int getIdleCount() {
+		return mIdle.size();
+	}
+
+	/**
+	 * Returns a started encoder configured with the given format.
+	 * @param name The name of the encoder or null to pick one with the mime type of the format
+	 * @param format The format of the encoder, see {@link MediaCodec#configure}
+	 * @param surface The input of the encoder will be a surface, see {@link #getInputSurface(MediaCodec)}
+	 * @throws IOException The encoder could not be created
+	 */
+	public MediaCodec acquire(String name, MediaFormat format, boolean surface) throws IOException {
+		return acquire(name, format, surface, false);
+	}
+
+	/**
+	 * Same as {@link #acquire(String, MediaFormat, boolean)}, the encoder may be in asynchronous mode.
+	 * @param async The encoder is used through an {@link AsyncMediaCodecInputStream}, see {@link #getAsyncStream(MediaCodec)}.
+	 * Only on Android 6.0 and later, before that the callbacks can't be moved off the main thread.
+	 */
+	public synchronized MediaCodec acquire(String name, MediaFormat format, boolean surface, boolean async) throws IOException {
+		String mime = format.getString(MediaFormat.KEY_MIME);
+		boolean video = mime.startsWith("video/");
+		int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+		boolean adjustable = video && Build.VERSION.SDK_INT>=Build.VERSION_CODES.KITKAT;
+		async &= Build.VERSION.SDK_INT>=Build.VERSION_CODES.M;
+		String key = key(name, format, video, surface, adjustable ? -1 : bitrate)+(async ? "/async" : "");
+
+		for (int i=mIdle.size()-1;i>=0;i--) {
+			Encoder encoder = mIdle.get(i);
+			if (!encoder.key.equals(key)) continue;
+			if (adjustable && !close(bitrate, encoder.bitrate)) continue;
+			mIdle.remove(i);
+			mIdleBytes -= encoder.bytes;
+			try {
+				// Frames may have been queued after the encoder was stopped
+				if (!surface && encoder.stream == null) encoder.codec.flush();
+				if (encoder.stream != null) encoder.stream.open();
+				if (adjustable) {
+					Bundle params = new Bundle();
+					if (bitrate != encoder.bitrate) params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+					params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+					encoder.codec.setParameters(params);
+					encoder.bitrate = bitrate;
+				}
+				mLent.put(encoder.codec, encoder);
+				Log.d(TAG, "Reusing "+key);
+				return encoder.codec;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Could not reuse "+key+": "+e.getMessage());
+				destroy(encoder);
+			}
+		}
+
+		Encoder encoder = createOrEvict(name, format, surface, async);
+		encoder.key = key;
+		encoder.bitrate = bitrate;
+		encoder.bytes = estimate(encoder, format);
+		mLent.put(encoder.codec, encoder);
+		return encoder.codec;
+	}
+
+	/** Returns the input surface of an encoder acquired with a surface. */
+	public synchronized Surface getInputSurface(MediaCodec codec) {
+		Encoder encoder = mLent.get(codec);
+		return encoder != null ? encoder.surface : null;
+	}
+
+	/** Returns the stream of an encoder acquired in asynchronous mode, null if it is in synchronous mode. */
+	public synchronized AsyncMediaCodecInputStream getAsyncStream(MediaCodec codec) {
+		Encoder encoder = mLent.get(codec);
+		return encoder != null ? encoder.stream : null;
+	}
+
+	/**
+	 * Gives back an encoder that is not used anymore, it is flushed and kept for the next stream.
+	 * Encoders that did not come from the pool are stopped and released.
+	 */
+	public synchronized void release(MediaCodec codec) {
+		if (codec == null) return;
+		Encoder encoder = mLent.remove(codec);
+		if (encoder == null) {
+			encoder = new Encoder();
+			encoder.codec = codec;
+			destroy(encoder);
+			return;
+		}
+		if (!mEnabled) {
+			destroy(encoder);
+			return;
+		}
+		try {
+			if (encoder.stream != null) encoder.stream.close();
+			encoder.codec.flush();
+			if (encoder.stream != null) {
+				// The callbacks only resume once the encoder is started again
+				encoder.stream.flushed();
+				encoder.codec.start();
+			}
+		} catch (RuntimeException e) {
+			// Some encoders fed by a surface can't be flushed
+			Log.d(TAG, "Could not flush "+encoder.key+": "+e.getMessage());
+			destroy(encoder);
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		encoder.idleSince = now;
+		mIdle.add(encoder);
+		mIdleBytes += encoder.bytes;
+		evict(now);
+		schedule();
+	}
+
+	/** Releases an encoder that can't be used anymore, after an error for instance. */
+	public synchronized void discard(MediaCodec codec) {
+		Encoder encoder = mLent.remove(codec);
+		if (encoder == null) {
+			encoder = new Encoder();
+			encoder.codec = codec;
+		}
+		destroy(encoder);
+	}
+
+	/** Releases all the stopped encoders. */
+	public synchronized void clear() {
+		while (!mIdle.isEmpty()) destroy(mIdle.remove(0));
+		mIdleBytes = 0;
+	}
+
+	/** The bitrate is -1 when it can be changed on the fly, see {@link #close(int, int)}. */
+	private static String key(String name, MediaFormat format, boolean video, boolean surface, int bitrate) {
+		StringBuilder key = new StringBuilder();
+		key.append(name != null ? name : "").append('/').append(format.getString(MediaFormat.KEY_MIME));
+		String[] keys = video ?
+				new String[] {MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_COLOR_FORMAT, MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_I_FRAME_INTERVAL} :
+				new String[] {MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT, MediaFormat.KEY_AAC_PROFILE, MediaFormat.KEY_MAX_INPUT_SIZE};
+		for (String k : keys) {
+			key.append('/').append(format.containsKey(k) ? format.getInteger(k) : -1);
+		}
+		key.append('/').append(bitrate);
+		if (surface) key.append("/surface");
+		return key.toString();
+	}
+
+	/** Whether an encoder set to the second bitrate can be switched to the first one. */
+	private static boolean close(int bitrate, int current) {
+		if (bitrate<=0 || current<=0) return bitrate == current;
+		return (long)Math.max(bitrate, current)<=2L*Math.min(bitrate, current);
+	}
+
+	/** The phone may not have more encoders, the idle ones are then released and we try again. */
+	private Encoder createOrEvict(String name, MediaFormat format, boolean surface, boolean async) throws IOException {
+		try {
+			return create(name, format, surface, async);
+		} catch (IOException e) {
+			if (mIdle.isEmpty()) throw e;
+		} catch (RuntimeException e) {
+			if (mIdle.isEmpty()) throw e;
+		}
+		Log.d(TAG, "Releasing the idle encoders to create a new one");
+		clear();
+		return create(name, format, surface, async);
+	}
+
+	private Encoder create(String name, MediaFormat format, boolean surface, boolean async) throws IOException {
+		Encoder encoder = new Encoder();
+		encoder.codec = name != null ? MediaCodec.createByCodecName(name) : MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+		try {
+			if (async) {
+				encoder.stream = new AsyncMediaCodecInputStream();
+				encoder.codec.setCallback(encoder.stream.getCallback(), callbacks());
+			}
+			encoder.codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			if (surface) encoder.surface = encoder.codec.createInputSurface();
+			encoder.codec.start();
+		} catch (RuntimeException e) {
+			destroy(encoder);
+			throw e;
+		}
+		return encoder;
+	}
+
+	/** The memory held by the buffers of the encoder, roughly. */
+	private static long estimate(Encoder encoder, MediaFormat format) {
+		long bytes = 0;
+		try {
+			if (encoder.surface == null) {
+				for (ByteBuffer buffer : encoder.codec.getInputBuffers()) bytes += buffer.capacity();
+			}
+			for (ByteBuffer buffer : encoder.codec.getOutputBuffers()) bytes += buffer.capacity();
+		} catch (RuntimeException e) {
+			bytes = 0;
+		}
+		if (encoder.surface != null && format.containsKey(MediaFormat.KEY_WIDTH)) {
+			// The buffers behind the surface
+			bytes += 4L*format.getInteger(MediaFormat.KEY_WIDTH)*format.getInteger(MediaFormat.KEY_HEIGHT)*3/2;
+		}
+		return bytes;
+	}
+
+	/** Releases the encoders idle for too long, and the oldest ones while they hold too much memory. */
+	private void evict(long now) {
+		while (!mIdle.isEmpty() && (mIdleBytes>mMaxIdleBytes || now-mIdle.get(0).idleSince>=mMaxIdleTime)) {
+			Encoder encoder = mIdle.remove(0);
+			mIdleBytes -= encoder.bytes;
+			Log.d(TAG, "Releasing "+encoder.key);
+			destroy(encoder);
+		}
+	}
+
+	private void schedule() {
+		if (mTimer == null) mTimer = new Timer(TAG, true);
+		mTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				synchronized (EncoderPool.this) {
+					evict(SystemClock.elapsedRealtime());
+				}
+			}
+		}, Math.max(mMaxIdleTime, 0));
+	}
+
+	/** The thread on which the callbacks of all the encoders in asynchronous mode are called. */
+	private static synchronized Handler callbacks() {
+		if (sCallbacks == null) {
+			HandlerThread thread = new HandlerThread("EncoderCallbacks");
+			thread.start();
+			sCallbacks = new Handler(thread.getLooper());
+		}
+		return sCallbacks;
+	}
+
+	private static void destroy(Encoder encoder) {
+		if (encoder.stream != null) encoder.stream.close();
+		try {
+			encoder.codec.stop();
+		} catch (Exception ignore) {}
+		try {
+			encoder.codec.release();
+		} catch (Exception ignore) {}
+		if (encoder.surface != null) encoder.surface.release();
+	}
+
+}
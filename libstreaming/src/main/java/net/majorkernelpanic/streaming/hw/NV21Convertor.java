@@ -6,9 +6,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *     http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -19,22 +19,52 @@
 package net.majorkernelpanic.streaming.hw;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import android.media.MediaCodecInfo;
 import android.util.Log;
 
 /**
  * Converts from NV21 to YUV420 semi planar or planar.
- */		
+ *
+ * The frame is written directly in the input buffer of the encoder, the chroma plane is
+ * converted 8 bytes at a time and the rows of large frames can be split between a few worker threads.
+ * The stride, the slice height and the padding of the Y plane required by the encoder are honored.
+ */
 public class NV21Convertor {
 
+	public final static String TAG = "NV21Convertor";
+
+	// Frames smaller than that are converted by a single thread
+	private final static int MIN_PARALLEL_SIZE = 1280*720;
+	private final static long EVEN_BYTES = 0x00FF00FF00FF00FFL;
+
+	private static Executor sWorkers = null;
+	private static int sWorkerCount = 0;
+
 	private int mSliceHeight, mHeight;
 	private int mStride, mWidth;
 	private int mSize;
 	private boolean mPlanar, mPanesReversed = false;
 	private int mYPadding;
-	private byte[] mBuffer; 
+	private int mThreads = 0;
+	private byte[] mBuffer;
 	ByteBuffer mCopy;
-	
+
+	// The last camera buffer seen, camera buffers are recycled so the view is usually reused
+	private ByteBuffer mSource;
+	private Chunk[] mChunks;
+	private final AtomicInteger mPending = new AtomicInteger();
+	private volatile Thread mCaller;
+	private boolean mTooSmall = false;
+
 	public void setSize(int width, int height) {
 		mHeight = height;
 		mWidth = width;
@@ -42,45 +72,53 @@ public class NV21Convertor {
 		mStride = width;
 		mSize = mWidth*mHeight;
 	}
-	
+
 	public void setStride(int width) {
 		mStride = width;
 	}
-	
+
 	public void setSliceHeigth(int height) {
 		mSliceHeight = height;
 	}
-	
+
 	public void setPlanar(boolean planar) {
 		mPlanar = planar;
 	}
-	
+
 	public void setYPadding(int padding) {
 		mYPadding = padding;
 	}
-	
+
+	/**
+	 * Sets the number of threads converting a frame, the calling thread included.
+	 * 0, the default, uses a few threads for frames of 720p and above when the phone has several cores.
+	 */
+	public void setThreadCount(int threads) {
+		mThreads = threads;
+	}
+
 	public int getBufferSize() {
 		return 3*mSize/2;
 	}
-	
+
 	public void setEncoderColorFormat(int colorFormat) {
 		switch (colorFormat) {
 		case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
 		case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
 		case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
 			setPlanar(false);
-			break;	
+			break;
 		case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
 		case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
 			setPlanar(true);
 			break;
 		}
 	}
-	
+
 	public void setColorPanesReversed(boolean b) {
 		mPanesReversed = b;
 	}
-	
+
 	public int getStride() {
 		return mStride;
 	}
@@ -92,72 +130,227 @@ public class NV21Convertor {
 	public int getYPadding() {
 		return mYPadding;
 	}
-	
-	
+
+
 	public boolean getPlanar() {
 		return mPlanar;
 	}
-	
+
 	public boolean getUVPanesReversed() {
 		return mPanesReversed;
 	}
-	
+
+	/** Returns the size of a converted frame, with the stride, the slice height and the padding. */
+	public int getFrameSize() {
+		return chromaOffset()+(mPlanar ? 2*(stride()/2)*(sliceHeight()/2) : stride()*(sliceHeight()/2));
+	}
+
+	/**
+	 * Converts a frame of the camera in the input buffer of the encoder.
+	 * The position of the buffer is then the size of the frame.
+	 */
 	public void convert(byte[] data, ByteBuffer buffer) {
-		byte[] result = convert(data);
-		int min = buffer.capacity() < data.length?buffer.capacity() : data.length;
-		buffer.put(result, 0, min);
+		int size = getFrameSize();
+		if (buffer.capacity()<lastByte() || data.length<3*mSize/2) {
+			// The encoder or the camera does not use the layout we expect
+			if (!mTooSmall) Log.e(TAG, "Buffers too small: "+buffer.capacity()+"/"+size+", frame "+data.length+"/"+3*mSize/2);
+			mTooSmall = true;
+			buffer.put(data, 0, Math.min(buffer.remaining(), data.length));
+			return;
+		}
+
+		if (mSource == null || mSource.array() != data) {
+			mSource = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		int rows = mHeight/2;
+		int threads = threads();
+		if (threads>1) {
+			// The chroma plane is split between the workers while this thread copies the Y plane
+			prepareChunks(threads);
+			mCaller = Thread.currentThread();
+			mPending.set(threads);
+			for (int i=0;i<threads;i++) {
+				mChunks[i].set(mSource, buffer, i*rows/threads, (i+1)*rows/threads);
+				sWorkers.execute(mChunks[i]);
+			}
+			copyLuma(data, buffer);
+			boolean interrupted = false;
+			while (mPending.get()>0) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) interrupted = true;
+			}
+			for (int i=0;i<threads;i++) mChunks[i].set(null, null, 0, 0);
+			if (interrupted) Thread.currentThread().interrupt();
+		} else {
+			copyLuma(data, buffer);
+			convertChroma(mSource, buffer, 0, rows);
+		}
+
+		buffer.order(order);
+		buffer.position(size);
 	}
-	
+
+	/**
+	 * Converts a frame in a buffer owned by the convertor.
+	 * @return The converted frame, its length is {@link #getFrameSize()}
+	 */
 	public byte[] convert(byte[] data) {
+		int size = getFrameSize();
+		if (mBuffer==null || mBuffer.length != size) {
+			mBuffer = new byte[size];
+			mCopy = ByteBuffer.wrap(mBuffer);
+		}
+		mCopy.clear();
+		convert(data, mCopy);
+		return mBuffer;
+	}
+
+	private int stride() {
+		return Math.max(mStride, mWidth);
+	}
+
+	private int sliceHeight() {
+		return Math.max(mSliceHeight, mHeight);
+	}
 
-		// A buffer large enough for every case
-		if (mBuffer==null || mBuffer.length != 3*mSliceHeight*mStride/2+mYPadding) {
-			mBuffer = new byte[3*mSliceHeight*mStride/2+mYPadding];
+	private int chromaOffset() {
+		return stride()*sliceHeight()+mYPadding;
+	}
+
+	/** The end of the last byte written in the buffer of the encoder. */
+	private int lastByte() {
+		if (mPlanar) {
+			int stride = stride()/2;
+			return chromaOffset()+stride*(sliceHeight()/2)+stride*(mHeight/2-1)+mWidth/2;
+		} else {
+			return chromaOffset()+stride()*(mHeight/2-1)+mWidth;
+		}
+	}
+
+	private int threads() {
+		int threads = mThreads;
+		if (threads == 0) {
+			threads = mSize>=MIN_PARALLEL_SIZE ? Math.min(Runtime.getRuntime().availableProcessors(), 4) : 1;
+		}
+		if (threads>1) threads = Math.min(threads, workers());
+		return Math.max(Math.min(threads, mHeight/16), 1);
+	}
+
+	private void prepareChunks(int threads) {
+		if (mChunks == null || mChunks.length<threads) {
+			mChunks = new Chunk[threads];
+			for (int i=0;i<threads;i++) mChunks[i] = new Chunk();
+		}
+	}
+
+	private void copyLuma(byte[] data, ByteBuffer buffer) {
+		int stride = stride();
+		if (stride == mWidth) {
+			buffer.position(0);
+			buffer.put(data, 0, mSize);
+		} else {
+			for (int i=0;i<mHeight;i++) {
+				buffer.position(i*stride);
+				buffer.put(data, i*mWidth, mWidth);
+			}
 		}
-		
+	}
+
+	/** Converts the rows [from,to[ of the chroma plane. Only absolute gets and puts, it runs on several threads. */
+	private void convertChroma(ByteBuffer src, ByteBuffer dst, int from, int to) {
+		int width = mWidth, stride = stride(), offset = chromaOffset();
 		if (!mPlanar) {
-			if (mSliceHeight==mHeight && mStride==mWidth) {
-				// Swaps U and V
-				if (!mPanesReversed) {
-					for (int i = mSize; i < mSize+mSize/2; i += 2) {
-						mBuffer[0] = data[i+1];
-						data[i+1] = data[i];
-						data[i] = mBuffer[0]; 
-					}
+			// NV21 is VUVU..., the encoder expects UVUV... unless the panes are reversed
+			boolean swap = !mPanesReversed;
+			for (int r=from;r<to;r++) {
+				int s = mSize+r*width, d = offset+r*stride, i = 0;
+				for (;i<=width-8;i+=8) {
+					long x = src.getLong(s+i);
+					dst.putLong(d+i, swap ? ((x&EVEN_BYTES)<<8) | ((x>>>8)&EVEN_BYTES) : x);
 				}
-				if (mYPadding>0) {
-					System.arraycopy(data, 0, mBuffer, 0, mSize);
-					System.arraycopy(data, mSize, mBuffer, mSize+mYPadding, mSize/2);
-					return mBuffer;
+				for (;i<width;i+=2) {
+					byte v = src.get(s+i), u = src.get(s+i+1);
+					dst.put(d+i, swap ? u : v);
+					dst.put(d+i+1, swap ? v : u);
 				}
-				return data;
 			}
 		} else {
-			if (mSliceHeight==mHeight && mStride==mWidth) {
-				// De-interleave U and V
-				if (!mPanesReversed) {
-					for (int i = 0; i < mSize/4; i+=1) {
-						mBuffer[i] = data[mSize+2*i+1];
-						mBuffer[mSize/4+i] = data[mSize+2*i];
-					}
-				} else {
-					for (int i = 0; i < mSize/4; i+=1) {
-						mBuffer[i] = data[mSize+2*i];
-						mBuffer[mSize/4+i] = data[mSize+2*i+1];
-					}
+			// The U plane then the V plane, V comes first in NV21
+			int cstride = stride/2;
+			int first = offset, second = offset+cstride*(sliceHeight()/2);
+			boolean reversed = mPanesReversed;
+			for (int r=from;r<to;r++) {
+				int s = mSize+r*width, d1 = first+r*cstride, d2 = second+r*cstride, i = 0;
+				for (;i<=width-16;i+=16) {
+					long x0 = src.getLong(s+i), x1 = src.getLong(s+i+8);
+					long v = pack(x0) | pack(x1)<<32;
+					long u = pack(x0>>>8) | pack(x1>>>8)<<32;
+					dst.putLong(d1+i/2, reversed ? v : u);
+					dst.putLong(d2+i/2, reversed ? u : v);
 				}
-				if (mYPadding == 0) {
-					System.arraycopy(mBuffer, 0, data, mSize, mSize/2);
-				} else {
-					System.arraycopy(data, 0, mBuffer, 0, mSize);
-					System.arraycopy(mBuffer, 0, mBuffer, mSize+mYPadding, mSize/2);
-					return mBuffer;
+				for (;i<width;i+=2) {
+					byte v = src.get(s+i), u = src.get(s+i+1);
+					dst.put(d1+i/2, reversed ? v : u);
+					dst.put(d2+i/2, reversed ? u : v);
 				}
-				return data;
 			}
 		}
-		
-		return data;
-	}	
-	
+	}
+
+	/** Packs the even bytes of a little endian long in its 4 low bytes. */
+	private static long pack(long x) {
+		x &= EVEN_BYTES;
+		x = (x | x>>>8) & 0x0000FFFF0000FFFFL;
+		return (x | x>>>16) & 0x00000000FFFFFFFFL;
+	}
+
+	/** Starts the workers shared by all the convertors, returns the number of threads available. */
+	private static synchronized int workers() {
+		if (sWorkers == null) {
+			sWorkerCount = Math.max(Math.min(Runtime.getRuntime().availableProcessors(), 4), 1);
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(sWorkerCount, sWorkerCount, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private int mCount = 0;
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG+"-"+(mCount++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			sWorkers = executor;
+		}
+		return sWorkerCount;
+	}
+
+	/** Some rows of the chroma plane of a frame. */
+	private class Chunk implements Runnable {
+
+		private ByteBuffer mSrc, mDst;
+		private int mFrom, mTo;
+
+		void set(ByteBuffer src, ByteBuffer dst, int from, int to) {
+			mSrc = src;
+			mDst = dst;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		public void run() {
+			try {
+				convertChroma(mSrc, mDst, mFrom, mTo);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Conversion failed: "+e.getMessage());
+			} finally {
+				if (mPending.decrementAndGet() == 0) LockSupport.unpark(mCaller);
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Estimates the bitrate a stream can use from what its receivers report, in the spirit of
+ * Google Congestion Control (draft-ietf-rmcat-gcc).
+ *
+ * Two estimates are computed and the lowest one wins:
+ * <ul>
+ * <li>A loss based estimate, decreased when more than 10% of the packets are lost and increased when less than 2% are.</li>
+ * <li>A delay based estimate, decreased when the round trip time grows above its minimum (the queues of the path are filling up),
+ * increased otherwise.</li>
+ * </ul>
+ *
+ * With several receivers, the loss and the delay of each one are tracked apart, identified by the SSRC 
+ * of their report, and the estimates follow the worst of them.
+ *
+ * The class does not depend on Android, times are given by the caller.
+ */
+public class BitrateController {
+
+	/** The delay based estimate is increasing. */
+	public final static int STATE_INCREASE = 0x00;
+
+	/** The path was just congested, the delay based estimate waits for the queues to drain. */
+	public final static int STATE_HOLD = 0x01;
+
+	/** The delay based estimate has just been decreased. */
+	public final static int STATE_DECREASE = 0x02;
+
+	// Size of a packet in bits, used by the additive increase
+	private final static int PACKET_SIZE = 1200*8;
+
+	// Window in ms during which the minimum round trip time is remembered
+	private final static long RTT_WINDOW = 10000;
+
+	// Adaptive threshold: gains as in GCC, and the longest time step in ms taken into account.
+	// Reports are seconds apart, the step is capped so that a report moves the threshold by 10% at most
+	private final static double THRESHOLD_UP = 0.01, THRESHOLD_DOWN = 0.00018;
+	private final static long THRESHOLD_MAX_STEP = 10;
+
+	// The threshold does not adapt to a queuing delay that far above it, in ms
+	private final static double THRESHOLD_OUTLIER = 15;
+
+	private final static double THRESHOLD_INIT = 25, THRESHOLD_MIN = 6, THRESHOLD_MAX = 600;
+
+	// The delay is considered stable when its trend is smaller than that, in ms per report
+	private final static double TREND_EPSILON = 1;
+
+	// A receiver that has not reported for that long in ms is forgotten
+	private final static long RECEIVER_TIMEOUT = 15000;
+
+	/** What a receiver reports. */
+	private static class Receiver {
+
+		private long mLastReport = -1;
+		private float mFractionLost = 0;
+		private long mLastRtt = -1;
+		// The samples that may become the minimum of the window, {time, rtt}, increasing rtts
+		private final ArrayDeque<long[]> mMinRtts = new ArrayDeque<long[]>();
+		private long mQueuing = 0;
+		private double mTrend = 0;
+		private double mThreshold = THRESHOLD_INIT;
+		private int mOveruses = 0;
+		private boolean mOverusing = false;
+
+		private void updateDelay(long rtt, long dt, long now) {
+
+			// Minimum round trip time over the window: the path with empty queues
+			while (!mMinRtts.isEmpty() && mMinRtts.peekLast()[1]>=rtt) mMinRtts.pollLast();
+			mMinRtts.addLast(new long[] {now, rtt});
+			while (now-mMinRtts.peekFirst()[0]>RTT_WINDOW) mMinRtts.pollFirst();
+			mQueuing = rtt-mMinRtts.peekFirst()[1];
+			mTrend = mLastRtt<0 ? 0 : 0.9*mTrend+0.1*(rtt-mLastRtt);
+			mLastRtt = rtt;
+
+			// Compared to the threshold before it adapts to the sample, a single late report is not an overuse
+			mOveruses = mQueuing>mThreshold && mTrend>=0 ? mOveruses+1 : 0;
+			mOverusing = mOveruses>=2;
+
+			// Adaptive threshold, so that we don't starve against loss based flows
+			if (mQueuing-mThreshold<=THRESHOLD_OUTLIER) {
+				double k = mQueuing>mThreshold ? THRESHOLD_UP : THRESHOLD_DOWN;
+				mThreshold += k*Math.min(dt, THRESHOLD_MAX_STEP)*(mQueuing-mThreshold);
+				mThreshold = Math.min(Math.max(mThreshold, THRESHOLD_MIN), THRESHOLD_MAX);
+			}
+		}
+
+	}
+
+	private int mMin, mMax;
+	private double mLossEstimate, mDelayEstimate;
+	private int mState = STATE_INCREASE;
+
+	private long mLastUpdate = -1;
+	private final HashMap<Integer, Receiver> mReceivers = new HashMap<Integer, Receiver>();
+
+	// Average of the bitrates at which congestion was detected, in bps
+	private double mCongestionRate = -1, mCongestionVar = 0;
+
+	/**
+	 * @param min The minimum bitrate in bps
+	 * @param max The maximum bitrate in bps
+	 * @param start The initial bitrate in bps
+	 */
+	public BitrateController(int min, int max, int start) {
+		setBounds(min, max);
+		reset(start);
+	}
+
+	/** Sets the range of the estimate in bps. */
+	public synchronized void setBounds(int min, int max) {
+		if (min<=0 || max<min) throw new IllegalArgumentException("Invalid bounds: "+min+"-"+max);
+		mMin = min;
+		mMax = max;
+	}
+
+	/** Forgets the history of the stream. */
+	public synchronized void reset(int start) {
+		mLossEstimate = mDelayEstimate = clamp(start);
+		mState = STATE_INCREASE;
+		mLastUpdate = -1;
+		mReceivers.clear();
+		mCongestionRate = -1;
+		mCongestionVar = 0;
+	}
+
+	/** Same as {@link #update(int, float, long, long, long)} for a stream with a single receiver. */
+	public int update(float fractionLost, long rtt, long sendBitrate, long now) {
+		return update(0, fractionLost, rtt, sendBitrate, now);
+	}
+
+	/**
+	 * Updates the estimate with a receiver report.
+	 * @param ssrc Identifies the receiver, its reports are not mixed with those of the others
+	 * @param fractionLost Fraction of the packets lost since the previous report, between 0 and 1
+	 * @param rtt The round trip time in ms, or -1 if it is unknown
+	 * @param sendBitrate The bitrate at which the stream is currently sent, in bps, or 0 if unknown
+	 * @param now The current time in ms
+	 * @return The new estimate in bps
+	 */
+	public synchronized int update(int ssrc, float fractionLost, long rtt, long sendBitrate, long now) {
+		long dt = step(mLastUpdate, now);
+		mLastUpdate = now;
+
+		Receiver receiver = mReceivers.get(ssrc);
+		if (receiver == null) {
+			receiver = new Receiver();
+			mReceivers.put(ssrc, receiver);
+		}
+		long rdt = step(receiver.mLastReport, now);
+		receiver.mLastReport = now;
+		receiver.mFractionLost = fractionLost;
+		if (rtt>=0) receiver.updateDelay(rtt, rdt, now);
+
+		// The worst receivers, for the loss and for the delay
+		Receiver lossy = receiver, delayed = null;
+		for (Iterator<Receiver> it = mReceivers.values().iterator(); it.hasNext();) {
+			Receiver r = it.next();
+			if (now-r.mLastReport>RECEIVER_TIMEOUT) {
+				it.remove();
+				continue;
+			}
+			if (r.mFractionLost>lossy.mFractionLost) lossy = r;
+			if (r.mLastRtt>=0 && (delayed == null || r.mQueuing-r.mThreshold>delayed.mQueuing-delayed.mThreshold)) delayed = r;
+		}
+
+		updateLossEstimate(lossy.mFractionLost, dt, lossy == receiver);
+		if (delayed != null && rtt>=0) updateDelayEstimate(delayed, sendBitrate, dt, delayed == receiver);
+
+		// We don't increase much above what the encoder actually produces
+		if (sendBitrate>0) {
+			double limit = 1.5*sendBitrate+10000;
+			if (mLossEstimate>limit) mLossEstimate = Math.max(limit, mMin);
+			if (mDelayEstimate>limit) mDelayEstimate = Math.max(limit, mMin);
+		}
+		mLossEstimate = clamp(mLossEstimate);
+		mDelayEstimate = clamp(mDelayEstimate);
+		return getTargetBitrate();
+	}
+
+	/** Returns the current estimate in bps. */
+	public synchronized int getTargetBitrate() {
+		return (int) Math.min(mLossEstimate, mDelayEstimate);
+	}
+
+	/** Returns {@link #STATE_INCREASE}, {@link #STATE_HOLD} or {@link #STATE_DECREASE}. */
+	public synchronized int getState() {
+		return mState;
+	}
+
+	/** Returns the number of receivers that reported recently. */
+	public synchronized int getReceiverCount() {
+		return mReceivers.size();
+	}
+
+	/**
+	 * @param loss The loss of the worst receiver
+	 * @param decrease Whether the report comes from the worst receiver, the estimate is decreased once per report of that receiver
+	 */
+	private void updateLossEstimate(float loss, long dt, boolean decrease) {
+		if (loss>0.1f) {
+			if (decrease) mLossEstimate *= 1-0.5*loss;
+		} else if (loss<0.02f) {
+			mLossEstimate *= Math.pow(1.05, dt/1000.0);
+		}
+	}
+
+	/** 
+	 * Follows the receiver whose queuing delay is the furthest above its threshold.
+	 * @param decrease Whether the report comes from that receiver, the estimate keeps decreasing with its reports while the overuse lasts
+	 */
+	private void updateDelayEstimate(Receiver receiver, long sendBitrate, long dt, boolean decrease) {
+		double rate = sendBitrate>0 ? sendBitrate : mDelayEstimate;
+		if (receiver.mOverusing) {
+			// Overuse
+			if (mState != STATE_DECREASE || decrease) {
+				mDelayEstimate = Math.min(mDelayEstimate, 0.85*rate);
+				updateCongestionRate(rate);
+			}
+			mState = STATE_DECREASE;
+		} else if (mState == STATE_DECREASE || (mState == STATE_HOLD && receiver.mTrend<-TREND_EPSILON)) {
+			// The queues are draining, we wait before increasing again
+			mState = STATE_HOLD;
+		} else {
+			mState = STATE_INCREASE;
+			if (mCongestionRate>0 && Math.abs(mDelayEstimate-mCongestionRate)<=3*Math.sqrt(mCongestionVar)) {
+				// Close to the rate at which the path was congested before: additive increase
+				mDelayEstimate += Math.max(1000, (double)PACKET_SIZE*dt/Math.max(receiver.mLastRtt, 100));
+			} else {
+				mDelayEstimate *= Math.pow(1.08, dt/1000.0);
+			}
+		}
+	}
+
+	private void updateCongestionRate(double rate) {
+		if (mCongestionRate<0) {
+			mCongestionRate = rate;
+			mCongestionVar = rate*rate*0.01;
+		} else {
+			double d = rate-mCongestionRate;
+			mCongestionRate += 0.05*d;
+			mCongestionVar = 0.95*mCongestionVar+0.05*d*d;
+		}
+	}
+
+	/** Time since the previous report in ms, bounded. */
+	private static long step(long last, long now) {
+		return last<0 ? 1000 : Math.min(Math.max(now-last, 1), 5000);
+	}
+
+	private double clamp(double bitrate) {
+		return Math.min(Math.max(bitrate, mMin), mMax);
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import android.os.SystemClock;
+
+/**
+ * What the receivers of a stream report about it: loss, jitter, round trip time and feedback messages.
+ * Updated by the {@link RtcpReceiver}, may be read from any thread.
+ */
+public class ReceptionStats {
+
+	private final int mSsrc;
+	private long mClock = 90000;
+
+	private float mFractionLost = 0;
+	private int mCumulativeLost = 0;
+	private long mHighestSequence = 0;
+	private long mJitter = 0;
+	private long mRtt = -1;
+	private long mLastReport = 0;
+	private long mReports = 0, mNacks = 0, mPlis = 0, mFirs = 0;
+
+	public ReceptionStats(int ssrc) {
+		mSsrc = ssrc;
+	}
+
+	/** The SSRC of the stream the statistics are about. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Sets the clock frequency of the stream in Hz, used to convert the jitter in ms. */
+	public synchronized void setClockFrequency(long clock) {
+		if (clock>0) mClock = clock;
+	}
+
+	/** Fraction of the packets lost since the previous report, between 0 and 1. */
+	public synchronized float getFractionLost() {
+		return mFractionLost;
+	}
+
+	/** Total number of packets lost since the beginning of the reception. */
+	public synchronized int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Extended highest sequence number received. */
+	public synchronized long getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Interarrival jitter in ms. */
+	public synchronized long getJitter() {
+		return mJitter*1000/mClock;
+	}
+
+	/** Round trip time in ms, -1 if unknown. */
+	public synchronized long getRtt() {
+		return mRtt;
+	}
+
+	/** Time of the last receiver report given by {@link SystemClock#elapsedRealtime()}, 0 if none was received. */
+	public synchronized long getLastReport() {
+		return mLastReport;
+	}
+
+	public synchronized long getReportCount() {
+		return mReports;
+	}
+
+	public synchronized long getNackCount() {
+		return mNacks;
+	}
+
+	public synchronized long getPliCount() {
+		return mPlis;
+	}
+
+	public synchronized long getFirCount() {
+		return mFirs;
+	}
+
+	/**
+	 * Updates the statistics with a report block.
+	 * @param now The arrival time of the report in the compact NTP format, see {@link SenderReport#compactNtp(long)}
+	 */
+	synchronized void update(int fractionLost, int cumulativeLost, long highestSequence, long jitter, long lsr, long dlsr, long now) {
+		mFractionLost = fractionLost/256f;
+		mCumulativeLost = cumulativeLost;
+		mHighestSequence = highestSequence;
+		mJitter = jitter;
+		if (lsr != 0) {
+			// RFC 3550, 6.4.1, in units of 1/65536 seconds
+			long rtt = (now - lsr - dlsr) & 0xFFFFFFFFL;
+			if (rtt<0x80000000L) mRtt = rtt*1000/65536;
+		}
+		mLastReport = SystemClock.elapsedRealtime();
+		mReports++;
+	}
+
+	synchronized void countNack() {
+		mNacks++;
+	}
+
+	synchronized void countPli() {
+		mPlis++;
+	}
+
+	synchronized void countFir() {
+		mFirs++;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SSRC: "+Integer.toHexString(mSsrc)+" lost: "+(int)(mFractionLost*100)+"% ("+mCumulativeLost+") jitter: "+getJitter()+"ms rtt: "+mRtt+"ms";
+	}
+
+}
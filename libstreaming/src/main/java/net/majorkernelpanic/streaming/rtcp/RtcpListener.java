@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * Feedback sent by the receivers of a stream.
+ * Methods are called from the thread that receives the RTCP packets, they must return quickly.
+ */
+public interface RtcpListener {
+
+	/** A receiver report about the stream was received, the statistics have been updated. */
+	public void onReceiverReport(ReceptionStats stats);
+
+	/**
+	 * A generic NACK was received (RFC 4585).
+	 * @param ssrc The SSRC of the stream
+	 * @param pid The sequence number of the lost packet
+	 * @param blp A bitmask of the following lost packets
+	 */
+	public void onNack(int ssrc, int pid, int blp);
+
+	/** A Picture Loss Indication was received (RFC 4585). */
+	public void onPli(int ssrc);
+
+	/** A Full Intra Request was received (RFC 5104). */
+	public void onFir(int ssrc);
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * Parses compound RTCP packets (RFC 3550) and the feedback messages of RFC 4585 and RFC 5104.
+ * Only what a sender needs is parsed: report blocks of SR and RR packets, generic NACK, PLI and FIR.
+ */
+public class RtcpParser {
+
+	public static final int PT_SR = 200;
+	public static final int PT_RR = 201;
+	public static final int PT_RTPFB = 205;
+	public static final int PT_PSFB = 206;
+
+	public static final int FMT_NACK = 1;
+	public static final int FMT_PLI = 1;
+	public static final int FMT_FIR = 4;
+
+	/** Receives what the parser finds in a packet. */
+	public interface Callback {
+		public void onReportBlock(int ssrc, int fractionLost, int cumulativeLost, long highestSequence, long jitter, long lsr, long dlsr);
+		public void onNack(int ssrc, int pid, int blp);
+		public void onPli(int ssrc);
+		public void onFir(int ssrc);
+	}
+
+	private RtcpParser() {}
+
+	/**
+	 * Parses a compound RTCP packet, stops at the first malformed packet.
+	 * @return false if the packet is malformed
+	 */
+	public static boolean parse(byte[] buffer, int offset, int length, Callback callback) {
+		int end = offset+length;
+		while (offset+4<=end) {
+			int version = (buffer[offset]&0xFF)>>6;
+			int count = buffer[offset]&0x1F;
+			int type = buffer[offset+1]&0xFF;
+			int size = (getShort(buffer, offset+2)+1)*4;
+			if (version != 2 || offset+size>end) return false;
+			switch (type) {
+			case PT_SR:
+				parseReportBlocks(buffer, offset+28, count, offset+size, callback);
+				break;
+			case PT_RR:
+				parseReportBlocks(buffer, offset+8, count, offset+size, callback);
+				break;
+			case PT_RTPFB:
+				if (count == FMT_NACK && size>=16) {
+					int ssrc = getInt(buffer, offset+8);
+					for (int i=offset+12;i+4<=offset+size;i+=4) {
+						callback.onNack(ssrc, getShort(buffer, i), getShort(buffer, i+2));
+					}
+				}
+				break;
+			case PT_PSFB:
+				if (count == FMT_PLI && size>=12) {
+					callback.onPli(getInt(buffer, offset+8));
+				} else if (count == FMT_FIR) {
+					// The SSRC is in the FCI entries
+					for (int i=offset+12;i+8<=offset+size;i+=8) {
+						callback.onFir(getInt(buffer, i));
+					}
+				}
+				break;
+			}
+			offset += size;
+		}
+		return true;
+	}
+
+	private static void parseReportBlocks(byte[] buffer, int offset, int count, int end, Callback callback) {
+		for (int i=0;i<count && offset+24<=end;i++,offset+=24) {
+			int cumulative = (buffer[offset+5]&0xFF)<<16 | (buffer[offset+6]&0xFF)<<8 | (buffer[offset+7]&0xFF);
+			// 24 bits signed integer
+			if ((cumulative&0x800000) != 0) cumulative |= 0xFF000000;
+			callback.onReportBlock(
+					getInt(buffer, offset),
+					buffer[offset+4]&0xFF,
+					cumulative,
+					getInt(buffer, offset+8)&0xFFFFFFFFL,
+					getInt(buffer, offset+12)&0xFFFFFFFFL,
+					getInt(buffer, offset+16)&0xFFFFFFFFL,
+					getInt(buffer, offset+20)&0xFFFFFFFFL);
+		}
+	}
+
+	private static int getShort(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<8 | (buffer[offset+1]&0xFF);
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+	}
+
+}
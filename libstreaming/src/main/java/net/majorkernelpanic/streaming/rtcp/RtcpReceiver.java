@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.concurrent.ConcurrentHashMap;
+import android.util.Log;
+
+/**
+ * Dispatches the RTCP packets sent by the receivers of one or more streams to the
+ * {@link SenderReport} of each stream, chosen with the SSRC found in the packets.
+ *
+ * Packets either come from a UDP socket read by the thread of the receiver, see
+ * {@link #start(DatagramSocket)}, or are handed over with {@link #receive(byte[], int, int)}
+ * by whoever reads them (an RTSP connection with interleaved packets for example).
+ */
+public class RtcpReceiver implements RtcpParser.Callback, Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	private final ConcurrentHashMap<Integer, SenderReport> mReports = new ConcurrentHashMap<Integer, SenderReport>();
+	private DatagramSocket mSocket = null;
+	private Thread mThread = null;
+
+	/** Feedback about the SSRC of the report will be given to the report. */
+	public void register(SenderReport report) {
+		if (report.mRtcpReceiver != null && report.mRtcpReceiver != this) {
+			report.mRtcpReceiver.unregister(report);
+		}
+		report.mRtcpReceiver = this;
+		mReports.put(report.getSSRC(), report);
+	}
+
+	public void unregister(SenderReport report) {
+		mReports.remove(report.getSSRC());
+		if (report.mRtcpReceiver == this) report.mRtcpReceiver = null;
+	}
+
+	/** Starts a thread that reads the RTCP packets received by the socket, until it is closed. */
+	public synchronized void start(DatagramSocket socket) {
+		if (mThread == null) {
+			mSocket = socket;
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+	}
+
+	/** Parses an RTCP packet. */
+	public void receive(byte[] buffer, int offset, int length) {
+		if (!RtcpParser.parse(buffer, offset, length, this)) {
+			Log.w(TAG, "Malformed RTCP packet");
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[SenderReport.MTU];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			while (!mSocket.isClosed()) {
+				packet.setLength(buffer.length);
+				mSocket.receive(packet);
+				receive(buffer, 0, packet.getLength());
+			}
+		} catch (IOException ignore) {
+			// The socket was closed
+		} finally {
+			synchronized (this) {
+				mThread = null;
+			}
+		}
+	}
+
+	@Override
+	public void onReportBlock(int ssrc, int fractionLost, int cumulativeLost, long highestSequence, long jitter, long lsr, long dlsr) {
+		SenderReport report = mReports.get(ssrc);
+		if (report == null) return;
+		ReceptionStats stats = report.getReceptionStats();
+		stats.update(fractionLost, cumulativeLost, highestSequence, jitter, lsr, dlsr, SenderReport.compactNtp(System.nanoTime()));
+		RtcpListener listener = report.getRtcpListener();
+		if (listener != null) listener.onReceiverReport(stats);
+	}
+
+	@Override
+	public void onNack(int ssrc, int pid, int blp) {
+		SenderReport report = mReports.get(ssrc);
+		if (report == null) return;
+		report.getReceptionStats().countNack();
+		RtcpListener listener = report.getRtcpListener();
+		if (listener != null) listener.onNack(ssrc, pid, blp);
+	}
+
+	@Override
+	public void onPli(int ssrc) {
+		SenderReport report = mReports.get(ssrc);
+		if (report == null) return;
+		report.getReceptionStats().countPli();
+		RtcpListener listener = report.getRtcpListener();
+		if (listener != null) listener.onPli(ssrc);
+	}
+
+	@Override
+	public void onFir(int ssrc) {
+		SenderReport report = mReports.get(ssrc);
+		if (report == null) return;
+		report.getReceptionStats().countFir();
+		RtcpListener listener = report.getRtcpListener();
+		if (listener != null) listener.onFir(ssrc);
+	}
+
+}
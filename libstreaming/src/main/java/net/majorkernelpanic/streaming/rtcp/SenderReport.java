@@ -24,8 +24,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.nio.channels.IllegalSelectorException;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.SharedTransport;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -38,16 +41,25 @@ public class SenderReport {
 
 	private static final int PACKET_LENGTH = 28;
 	
-	private MulticastSocket usock;
+	private MulticastSocket usock = null;
 	private DatagramPacket upack;
+	private SharedTransport mShared = null;
+	private InetSocketAddress mAddress = null;
 
 	private int mTransport;
-	private OutputStream mOutputStream = null;
+	private InterleavedWriter mWriter = null;
+	private int mChannelIdentifier = 0;
 	private byte[] mBuffer = new byte[MTU];
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
-	private byte mTcpHeader[];
+
+	private ReceptionStats mStats = new ReceptionStats(0);
+	private long mClock = 0;
+	private volatile RtcpListener mListener = null;
+	private RtcpReceiver mUdpReceiver = null;
+	// The receiver the report is registered to, set by the receiver
+	RtcpReceiver mRtcpReceiver = null;
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -57,7 +69,6 @@ public class SenderReport {
 	public SenderReport() {
 
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
 		
 		/*							     Version(2)  Padding(0)					 					*/
 		/*									 ^		  ^			PT = 0	    						*/
@@ -81,12 +92,6 @@ public class SenderReport {
 		/* Byte 20,21,22,23  ->  packet count				 	 */
 		/* Byte 24,25,26,27  ->  octet count			         */
 
-		try {
-			usock = new MulticastSocket();
-		} catch (IOException e) {
-			// Very unlikely to happen. Means that all UDP ports are already being used
-			throw new RuntimeException(e.getMessage());
-		}
 		upack = new DatagramPacket(mBuffer, 1);
 
 		// By default we sent one report every 3 secconde
@@ -95,7 +100,21 @@ public class SenderReport {
 	}
 
 	public void close() {
-		usock.close();
+		if (mRtcpReceiver != null) mRtcpReceiver.unregister(this);
+		if (usock != null) usock.close();
+	}
+
+	/** The socket is only opened when it's needed. */
+	private MulticastSocket socket() {
+		if (usock == null) {
+			try {
+				usock = new MulticastSocket();
+			} catch (IOException e) {
+				// Very unlikely to happen. Means that all UDP ports are already being used
+				throw new RuntimeException(e.getMessage());
+			}
+		}
+		return usock;
 	}
 
 	/**
@@ -133,7 +152,12 @@ public class SenderReport {
 	}
 
 	public void setSSRC(int ssrc) {
+		RtcpReceiver receiver = mRtcpReceiver;
+		if (receiver != null) receiver.unregister(this);
 		this.mSSRC = ssrc; 
+		mStats = new ReceptionStats(ssrc);
+		mStats.setClockFrequency(mClock);
+		if (receiver != null) receiver.register(this);
 		setLong(ssrc,4,8);
 		mPacketCount = 0;
 		mOctetCount = 0;
@@ -142,10 +166,28 @@ public class SenderReport {
 	}
 
 	public void setDestination(InetAddress dest, int dport) {
+		setDestination(dest, dport, null);
+	}
+
+	/**
+	 * Sets the destination of the reports.
+	 * @param transport If not null, the reports are sent with the RTCP channel of the {@link SharedTransport}
+	 */
+	public void setDestination(InetAddress dest, int dport, SharedTransport transport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
+		mShared = transport;
+		mAddress = new InetSocketAddress(dest, dport);
 		upack.setPort(dport);
 		upack.setAddress(dest);
+		// Receivers send their reports to the port we send ours from
+		if (transport != null) {
+			transport.getRtcpReceiver().register(this);
+		} else {
+			if (mUdpReceiver == null) mUdpReceiver = new RtcpReceiver();
+			mUdpReceiver.register(this);
+			mUdpReceiver.start(socket());
+		}
 	}
 
 	/**
@@ -155,8 +197,8 @@ public class SenderReport {
 	 */ 
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
-		mOutputStream = os;
-		mTcpHeader[1] = channelIdentifier;
+		mWriter = InterleavedWriter.get(os);
+		mChannelIdentifier = channelIdentifier;
 	}	
 	
 	public int getPort() {
@@ -164,13 +206,44 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mShared != null ? mShared.getLocalPorts()[1] : socket().getLocalPort();
 	}
 
 	public int getSSRC() {
 		return mSSRC;
 	}
 
+	/** Sets the clock frequency of the stream in Hz, needed to give the jitter in ms. */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+		mStats.setClockFrequency(clock);
+	}
+
+	/** Returns what the receivers report about the stream. */
+	public ReceptionStats getReceptionStats() {
+		return mStats;
+	}
+
+	/** The listener is notified of the RTCP feedback about the stream, see {@link RtcpReceiver}. */
+	public void setRtcpListener(RtcpListener listener) {
+		mListener = listener;
+	}
+
+	public RtcpListener getRtcpListener() {
+		return mListener;
+	}
+
+	/**
+	 * Returns the middle 32 bits of the NTP timestamp we put in the reports, the unit is 1/65536 second. 
+	 * Receivers send it back in the LSR field of their reports (RFC 3550, 6.4.1).
+	 * @param ntpts The NTP timestamp in ns, same clock as the one given to the reports
+	 */
+	public static long compactNtp(long ntpts) {
+		long hb = ntpts/1000000000;
+		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+		return ((hb&0xFFFF)<<16 | (lb>>>16)) & 0xFFFFFFFFL;
+	}
+
 	/**
 	 * Resets the reports (total number of bytes sent, number of packets sent, etc.)
 	 */
@@ -204,15 +277,14 @@ public class SenderReport {
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
-		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
+			if (mShared != null) {
+				mShared.sendRtcp(mBuffer, PACKET_LENGTH, mAddress);
+			} else {
+				upack.setLength(PACKET_LENGTH);
+				socket().send(upack);
 			}
+		} else {
+			mWriter.write(mChannelIdentifier, mBuffer, 0, PACKET_LENGTH);
 		}
 	}
 		
@@ -126,6 +126,8 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				sum = 0;
 				while (sum<frameLength) {
 
+					// A decoder can start with any AAC frame
+					if (sum == 0) socket.markKeyframe();
 					buffer = socket.requestBuffer();
 					socket.updateTimestamp(ts);
 
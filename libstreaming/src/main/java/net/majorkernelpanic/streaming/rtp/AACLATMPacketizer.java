@@ -79,12 +79,14 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 		try {
 			while (!Thread.interrupted()) {
+				// A decoder can start with any AAC frame
+				socket.markKeyframe();
 				buffer = socket.requestBuffer();
 				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
 				
 				if (length>0) {
 					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
+					bufferInfo = ((AccessUnitSource)is).getLastBufferInfo();
 					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
 					oldts = ts;
 					ts = bufferInfo.presentationTimeUs*1000;
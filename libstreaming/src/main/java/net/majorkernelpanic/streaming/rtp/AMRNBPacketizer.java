@@ -85,6 +85,8 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 			while (!Thread.interrupted()) {
 
+				// Each AMR frame can be decoded on its own, a receiver can start with any packet
+				socket.markKeyframe();
 				buffer = socket.requestBuffer();
 				buffer[rtphl] = (byte) 0xF0;
 				
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 
@@ -38,6 +39,7 @@ abstract public class AbstractPacketizer {
 	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
 
 	protected RtpSocket socket = null;
+	protected FecEncoder fec = null;
 	protected InputStream is = null;
 	protected byte[] buffer;
 	
@@ -68,6 +70,27 @@ abstract public class AbstractPacketizer {
 	
 	public void setTimeToLive(int ttl) throws IOException {
 		socket.setTimeToLive(ttl);
+		if (fec != null) fec.getRtpSocket().setTimeToLive(ttl);
+	}
+
+	/**
+	 * Protects the stream with FEC packets (RFC 5109), see {@link FecEncoder}.
+	 * @param columns Number of packets in a row, 0 to disable FEC
+	 * @param rows Number of rows in a block
+	 * @param clock The clock frequency of the stream
+	 */
+	public void setForwardErrorCorrection(int columns, int rows, long clock) {
+		if (columns<=0) {
+			fec = null;
+			return;
+		}
+		if (fec == null) fec = new FecEncoder(clock);
+		fec.setParameters(columns, rows, FecEncoder.PROTECT_ROWS|FecEncoder.PROTECT_COLUMNS);
+	}
+
+	/** Returns the FEC encoder of the stream or null if FEC is disabled. */
+	public FecEncoder getFecEncoder() {
+		return fec;
 	}
 
 	/**
@@ -78,6 +101,7 @@ abstract public class AbstractPacketizer {
 	 */
 	public void setDestination(InetAddress dest, int rtpPort, int rtcpPort) {
 		socket.setDestination(dest, rtpPort, rtcpPort);		
+		if (fec != null) fec.getRtpSocket().setDestination(dest, rtpPort, rtcpPort);
 	}
 
 	/** Starts the packetizer. */
@@ -86,11 +110,33 @@ abstract public class AbstractPacketizer {
 	/** Stops the packetizer. */
 	public abstract void stop();
 
-	/** Updates data for RTCP SR and sends the packet. */
+	/** Updates data for RTCP SR and sends the packet, and the FEC packets it completes. */
 	protected void send(int length) throws IOException {
+		// Once committed, the buffer belongs to the sending thread
+		if (fec != null && !socket.isDiscardingPacket()) fec.protect(buffer, length, socket.getNextSequenceNumber(), ts);
 		socket.commitBuffer(length);
 	}
 
+	/**
+	 * Looks for a start code (0x000001).
+	 * @return The position of the NAL unit that follows the start code or -1
+	 */
+	protected static int findNalUnit(ByteBuffer buffer, int from, int end) {
+		int i = from+2;
+		while (i<end) {
+			int b = buffer.get(i)&0xFF;
+			if (b>1) {
+				i += 3;
+			} else if (b == 0) {
+				i++;
+			} else {
+				if (buffer.get(i-1) == 0 && buffer.get(i-2) == 0) return i+1;
+				i += 3;
+			}
+		}
+		return -1;
+	}
+
 	/** For debugging purposes. */
 	protected static String printBuffer(byte[] buffer, int start,int end) {
 		String str = "";
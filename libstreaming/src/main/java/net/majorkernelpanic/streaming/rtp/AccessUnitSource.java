@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import android.media.MediaCodec.BufferInfo;
+
+/**
+ * Gives the output of an encoder one access unit (one output buffer) at a time, 
+ * without copying it. Packetizers that know this interface read the buffers of 
+ * the encoder directly instead of going through an InputStream.
+ */
+public interface AccessUnitSource {
+
+	/**
+	 * Waits for the next access unit.
+	 * @return The buffer of the encoder, the access unit lies between its position and its limit. 
+	 * It must not be used after {@link #release()}.
+	 * @throws IOException The source was closed
+	 */
+	public ByteBuffer take() throws IOException;
+
+	/** Returns the timestamp and the flags of the access unit returned by {@link #take()}. */
+	public BufferInfo getLastBufferInfo();
+
+	/** Gives the buffer of the last access unit back to the encoder. */
+	public void release();
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodec.CodecException;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * The input and the output of a MediaCodec in asynchronous mode (Android 5.0 and later).
+ *
+ * It must be set as the callback of the encoder before the encoder is configured. The indices of
+ * the buffers given by the encoder go through two lock-free rings: the output buffers are read by
+ * the packetizer, as with {@link MediaCodecInputStream} but without polling the encoder, and the
+ * input buffers are taken by the thread feeding the encoder with {@link #dequeueInputBuffer(long)}.
+ * The number of frames in the encoder can be bounded: a camera frame is then dropped instead of
+ * making the frames that follow wait. The encoder does not give exactly one output per input, so
+ * the frames in the encoder are tracked by presentation timestamp: an output retires all the
+ * frames queued up to its timestamp.
+ *
+ * The output may be read by one thread and the input fed by one thread.
+ */
+@SuppressLint("NewApi")
+public class AsyncMediaCodecInputStream extends InputStream implements AccessUnitSource {
+
+	public final static String TAG = "AsyncMediaCodecInputStream";
+
+	// Encoders have a few buffers of each kind, far less than that, a power of 2
+	private final static int CAPACITY = 64;
+
+	private final RingBuffer mInputRing = new RingBuffer(CAPACITY);
+	private final int[] mInputIndices = new int[CAPACITY];
+	private int mInputIn = 0, mInputOut = 0;
+
+	private final RingBuffer mOutputRing = new RingBuffer(CAPACITY);
+	private final int[] mOutputIndices = new int[CAPACITY];
+	private final BufferInfo[] mOutputInfos = new BufferInfo[CAPACITY];
+	private int mOutputIn = 0, mOutputOut = 0;
+
+	private final MediaCodec.Callback mCallback = new Callback();
+	// Timestamps of the frames in the encoder, oldest first, guarded by itself
+	private final long[] mInFlight = new long[CAPACITY];
+	private int mInFlightIn = 0, mInFlightOut = 0;
+	private volatile int mMaxInFlight = Integer.MAX_VALUE;
+	private volatile boolean mClosed = false;
+	private volatile CodecException mError = null;
+	private volatile MediaCodec mMediaCodec = null;
+
+	private final BufferInfo mBufferInfo = new BufferInfo();
+	private ByteBuffer mBuffer = null;
+	private int mIndex = -1;
+
+	public MediaFormat mMediaFormat;
+
+	public AsyncMediaCodecInputStream() {
+		for (int i=0;i<CAPACITY;i++) mOutputInfos[i] = new BufferInfo();
+	}
+
+	/** The callback to give to {@link MediaCodec#setCallback} before the encoder is configured. */
+	public MediaCodec.Callback getCallback() {
+		return mCallback;
+	}
+
+	/**
+	 * Sets how many frames can be in the encoder at once, not bounded by default.
+	 * When the bound is reached, {@link #dequeueInputBuffer(long)} does not return any buffer.
+	 */
+	public void setMaxInFlight(int frames) {
+		mMaxInFlight = frames>0 ? frames : Integer.MAX_VALUE;
+	}
+
+	/** Returns the number of frames given to the encoder that did not come out yet. */
+	public int getInFlight() {
+		synchronized (mInFlight) {
+			return mInFlightIn-mInFlightOut;
+		}
+	}
+
+	/** Lets the stream be read again after {@link #close()}, when the encoder is reused. */
+	public void open() {
+		mClosed = false;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	/**
+	 * Forgets the buffers of the encoder, to be called once the encoder was flushed,
+	 * and before it is started again. The stream must be closed.
+	 */
+	public void flushed() {
+		synchronized (mInputRing) {
+			while (mInputRing.available()>0) {
+				mInputOut++;
+				mInputRing.release();
+			}
+		}
+		while (mOutputRing.available()>0) {
+			mOutputOut++;
+			mOutputRing.release();
+		}
+		mBuffer = null;
+		mError = null;
+		synchronized (mInFlight) {
+			mInFlightOut = mInFlightIn;
+		}
+	}
+
+	/**
+	 * Returns the index of an input buffer of the encoder.
+	 * @param timeoutUs How long to wait for a buffer in us, 0 to return right away
+	 * @return The index of the buffer or -1 if none is available
+	 */
+	public int dequeueInputBuffer(long timeoutUs) {
+		synchronized (mInputRing) {
+			if (mClosed || getInFlight()>=mMaxInFlight) return -1;
+			try {
+				if (!mInputRing.poll(TimeUnit.MICROSECONDS.toNanos(timeoutUs))) return -1;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+			int index = mInputIndices[mInputOut++&(CAPACITY-1)];
+			mInputRing.release();
+			return index;
+		}
+	}
+
+	/** Returns the input buffer of the encoder with the given index, cleared. */
+	public ByteBuffer getInputBuffer(int index) {
+		return mMediaCodec.getInputBuffer(index);
+	}
+
+	/** Gives a frame to the encoder. */
+	public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+		queued(presentationTimeUs);
+		mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+	}
+
+	/** Counts a frame given to the encoder, the oldest one is forgotten if too many are counted. */
+	void queued(long presentationTimeUs) {
+		synchronized (mInFlight) {
+			if (mInFlightIn-mInFlightOut == CAPACITY) mInFlightOut++;
+			mInFlight[mInFlightIn++&(CAPACITY-1)] = presentationTimeUs;
+		}
+	}
+
+	/**
+	 * Retires the frames queued up to the timestamp of an output, or at least the oldest one:
+	 * the timestamps of the output may be shifted, by the priming of an audio encoder for instance.
+	 */
+	private void retire(long presentationTimeUs) {
+		synchronized (mInFlight) {
+			if (mInFlightOut != mInFlightIn) mInFlightOut++;
+			while (mInFlightOut != mInFlightIn && mInFlight[mInFlightOut&(CAPACITY-1)]<=presentationTimeUs) {
+				mInFlightOut++;
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return 0;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (mBuffer == null) take();
+		int min = length < mBuffer.remaining() ? length : mBuffer.remaining();
+		mBuffer.get(buffer, offset, min);
+		if (!mBuffer.hasRemaining()) {
+			release();
+		}
+		return min;
+	}
+
+	public int available() {
+		if (mBuffer != null)
+			return mBuffer.remaining();
+		else
+			return 0;
+	}
+
+	@Override
+	public ByteBuffer take() throws IOException {
+		while (mBuffer == null) {
+			try {
+				while (!mOutputRing.poll(TimeUnit.MILLISECONDS.toNanos(100))) {
+					check();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			check();
+			int slot = mOutputOut++&(CAPACITY-1);
+			BufferInfo info = mOutputInfos[slot];
+			mIndex = mOutputIndices[slot];
+			mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+			mOutputRing.release();
+			try {
+				mBuffer = mMediaCodec.getOutputBuffer(mIndex);
+			} catch (IllegalStateException e) {
+				// A buffer given before the encoder was flushed
+				mBuffer = null;
+				continue;
+			}
+			if (mBuffer != null) {
+				mBuffer.position(mBufferInfo.offset);
+				mBuffer.limit(mBufferInfo.offset+mBufferInfo.size);
+			}
+		}
+		return mBuffer;
+	}
+
+	@Override
+	public void release() {
+		if (mBuffer != null) {
+			mBuffer = null;
+			try {
+				mMediaCodec.releaseOutputBuffer(mIndex, false);
+			} catch (IllegalStateException ignore) {}
+		}
+	}
+
+	@Override
+	public BufferInfo getLastBufferInfo() {
+		return mBufferInfo;
+	}
+
+	private void check() throws IOException {
+		if (mClosed) throw new IOException("This InputStream was closed");
+		if (mError != null) throw new IOException("Encoder error: "+mError.getDiagnosticInfo());
+	}
+
+	/** Called on the thread of the callbacks, the producer of both rings. */
+	private class Callback extends MediaCodec.Callback {
+
+		@Override
+		public void onInputBufferAvailable(MediaCodec codec, int index) {
+			mMediaCodec = codec;
+			if (!mInputRing.tryClaim()) {
+				Log.e(TAG, "Too many input buffers !");
+				return;
+			}
+			mInputIndices[mInputIn++&(CAPACITY-1)] = index;
+			mInputRing.publish();
+		}
+
+		@Override
+		public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+			mMediaCodec = codec;
+			if ((info.flags&MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) retire(info.presentationTimeUs);
+			if (!mOutputRing.tryClaim()) {
+				Log.e(TAG, "Too many output buffers !");
+				codec.releaseOutputBuffer(index, false);
+				return;
+			}
+			int slot = mOutputIn++&(CAPACITY-1);
+			mOutputIndices[slot] = index;
+			mOutputInfos[slot].set(info.offset, info.size, info.presentationTimeUs, info.flags);
+			mOutputRing.publish();
+		}
+
+		@Override
+		public void onError(MediaCodec codec, CodecException e) {
+			Log.e(TAG, "Encoder error: "+e.getDiagnosticInfo());
+			mError = e;
+		}
+
+		@Override
+		public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+			mMediaCodec = codec;
+			mMediaFormat = format;
+			Log.i(TAG, format.toString());
+		}
+
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * The buffers of the packets, shared by all the {@link RtpSocket}.
+ *
+ * Buffers are allocated by slabs of {@link #SLAB_SIZE} when the pool is empty, and the memory
+ * lent to the sockets can't exceed the size of the pool. A socket only gets buffers from the
+ * pool when its FIFO grows and gives them back when it shrinks, most packets reuse the
+ * buffers the socket already holds.
+ */
+public class BufferPool {
+
+	public final static String TAG = "BufferPool";
+
+	/** Number of buffers allocated at once. */
+	public final static int SLAB_SIZE = 32;
+
+	/** Default size of the pool shared by the application, in bytes. */
+	public final static long DEFAULT_SIZE = 16*1024*1024;
+
+	private static BufferPool sInstance = null;
+
+	private final int mBufferSize;
+	private final long mMaxBytes;
+	private byte[][] mFree = new byte[SLAB_SIZE][];
+	private int mFreeCount = 0, mLent = 0, mPeak = 0;
+
+	/** Returns the pool shared by the whole application. */
+	public static synchronized BufferPool get() {
+		if (sInstance == null) sInstance = new BufferPool(RtpSocket.MTU, DEFAULT_SIZE);
+		return sInstance;
+	}
+
+	/**
+	 * @param bufferSize The size of each buffer
+	 * @param maxBytes The memory the buffers lent can't exceed
+	 */
+	public BufferPool(int bufferSize, long maxBytes) {
+		mBufferSize = bufferSize;
+		mMaxBytes = maxBytes;
+	}
+
+	/** Returns the size of the buffers of the pool. */
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/** Returns a buffer, or null if all the memory of the pool is lent. */
+	public synchronized byte[] acquire() {
+		if ((long)(mLent+1)*mBufferSize>mMaxBytes) return null;
+		if (mFreeCount == 0) {
+			// A new slab
+			int n = (int) Math.min(SLAB_SIZE, mMaxBytes/mBufferSize-mLent);
+			for (int i=0;i<n;i++) mFree[mFreeCount++] = new byte[mBufferSize];
+		}
+		mLent++;
+		if (mLent>mPeak) mPeak = mLent;
+		return mFree[--mFreeCount];
+	}
+
+	/** Gives a buffer back to the pool. */
+	public synchronized void release(byte[] buffer) {
+		if (buffer == null || buffer.length != mBufferSize) return;
+		if (mLent>0) mLent--;
+		// Spare buffers beyond a few slabs are left to the garbage collector
+		if (mFreeCount<4*SLAB_SIZE) {
+			if (mFreeCount == mFree.length) {
+				byte[][] free = new byte[mFree.length*2][];
+				System.arraycopy(mFree, 0, free, 0, mFreeCount);
+				mFree = free;
+			}
+			mFree[mFreeCount++] = buffer;
+		}
+	}
+
+	/** Frees the spare buffers of the pool. */
+	public synchronized void trim() {
+		while (mFreeCount>0) mFree[--mFreeCount] = null;
+	}
+
+	/** Returns the memory currently lent to the sockets in bytes. */
+	public synchronized long getUsedBytes() {
+		return (long)mLent*mBufferSize;
+	}
+
+	/** Returns the highest amount of memory lent at once in bytes. */
+	public synchronized long getPeakBytes() {
+		return (long)mPeak*mBufferSize;
+	}
+
+	/** Returns the memory of the spare buffers in bytes. */
+	public synchronized long getFreeBytes() {
+		return (long)mFreeCount*mBufferSize;
+	}
+
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Protects the packets of a stream with XOR based FEC packets (ULPFEC, RFC 5109).
+ *
+ * The packets are grouped in blocks of columns*rows packets. A FEC packet is generated for
+ * each row (consecutive packets, protects against isolated losses) and, when rows>1, for each
+ * column (packets spaced by the number of columns, protects against bursts of losses).
+ * FEC packets are sent by their own {@link RtpSocket}, with their own SSRC and
+ * the payload type {@link #PAYLOAD_TYPE}, to the destination of the stream.
+ *
+ * Called by the thread of the packetizer, nothing is allocated once the encoder is configured.
+ */
+public class FecEncoder {
+
+	public final static String TAG = "FecEncoder";
+
+	/** Payload type of the FEC packets. */
+	public final static int PAYLOAD_TYPE = 127;
+
+	/** One FEC packet per row. */
+	public final static int PROTECT_ROWS = 0x01;
+
+	/** One FEC packet per column. */
+	public final static int PROTECT_COLUMNS = 0x02;
+
+	// Length of the FEC header, followed by the ULP level 0 header
+	private final static int FEC_HEADER_LENGTH = 10;
+	private final static int WORDS = (RtpSocket.MTU+7)/8;
+
+	private final RtpSocket mSocket;
+	private int mColumns, mRows, mFlags;
+	private Group mRow;
+	private Group[] mColumnGroups;
+	private int mBase = -1;
+	private long mFecPackets = 0;
+
+	/**
+	 * @param clock The clock frequency of the protected stream
+	 */
+	public FecEncoder(long clock) {
+		mSocket = new RtpSocket();
+		mSocket.setSSRC(new Random().nextInt());
+		mSocket.setPayloadType(PAYLOAD_TYPE);
+		mSocket.setClockFrequency(clock);
+		// Unlike those of the encoder, the first FEC packets are as good as the next ones
+		mSocket.setWarmup(0);
+		setParameters(10, 1, PROTECT_ROWS);
+	}
+
+	/** Returns the socket that sends the FEC packets. */
+	public RtpSocket getRtpSocket() {
+		return mSocket;
+	}
+
+	/**
+	 * Sets the size of the blocks and the kind of protection.
+	 * A column spans columns*(rows-1)+1 packets and can't exceed 48 packets.
+	 * @param columns Number of packets in a row
+	 * @param rows Number of rows in a block
+	 * @param flags {@link #PROTECT_ROWS} and/or {@link #PROTECT_COLUMNS}
+	 */
+	public synchronized void setParameters(int columns, int rows, int flags) {
+		if (columns<1 || rows<1 || columns>48 || columns*(rows-1)+1>48 || (flags&(PROTECT_ROWS|PROTECT_COLUMNS)) == 0) {
+			throw new IllegalArgumentException("Invalid FEC parameters: "+columns+"x"+rows);
+		}
+		mColumns = columns;
+		mRows = rows;
+		mFlags = rows>1 ? flags : PROTECT_ROWS;
+		mRow = new Group();
+		mColumnGroups = new Group[columns];
+		for (int i=0;i<columns;i++) mColumnGroups[i] = new Group();
+		mBase = -1;
+	}
+
+	/** Returns the number of FEC packets generated per media packet. */
+	public synchronized float getOverhead() {
+		float overhead = 0;
+		if ((mFlags&PROTECT_ROWS) != 0) overhead += 1f/mColumns;
+		if ((mFlags&PROTECT_COLUMNS) != 0) overhead += 1f/mRows;
+		return overhead;
+	}
+
+	/** Returns the number of FEC packets generated since the encoder was created. */
+	public long getFecPacketCount() {
+		return mFecPackets;
+	}
+
+	/**
+	 * Adds a packet of the stream to the current block, FEC packets are sent when a row or a column is complete.
+	 * @param packet The RTP packet, before it's committed
+	 * @param length The length of the packet
+	 * @param seq The sequence number of the packet
+	 * @param ts The timestamp of the packet in ns
+	 */
+	public synchronized void protect(byte[] packet, int length, int seq, long ts) throws IOException {
+		seq &= 0xFFFF;
+		int index = mBase<0 ? -1 : (seq-mBase)&0xFFFF;
+		if (index<0 || index>=mColumns*mRows) {
+			// New block, or the sequence was restarted
+			mRow.clear();
+			for (Group group : mColumnGroups) group.clear();
+			mBase = seq;
+			index = 0;
+		}
+		int row = index/mColumns, column = index%mColumns;
+		if ((mFlags&PROTECT_ROWS) != 0) {
+			mRow.add(packet, length, index);
+			if (column == mColumns-1) send(mRow, ts);
+		}
+		if ((mFlags&PROTECT_COLUMNS) != 0) {
+			Group group = mColumnGroups[column];
+			group.add(packet, length, index);
+			if (row == mRows-1) send(group, ts);
+		}
+	}
+
+	private void send(Group group, long ts) throws IOException {
+		int base = (mBase+group.mFirst)&0xFFFF;
+		boolean longMask = group.mSpan>16;
+		int maskLength = longMask ? 6 : 2;
+		int payload = RtpSocket.RTP_HEADER_LENGTH+FEC_HEADER_LENGTH;
+		byte[] buffer;
+		try {
+			buffer = mSocket.requestBuffer();
+		} catch (InterruptedException e) {
+			// The packetizer is being stopped
+			Thread.currentThread().interrupt();
+			group.clear();
+			return;
+		}
+
+		// FEC header
+		buffer[payload-10] = (byte) ((longMask ? 0x40 : 0x00) | (group.mByte0&0x3F));
+		buffer[payload-9] = (byte) group.mByte1;
+		buffer[payload-8] = (byte) (base>>8);
+		buffer[payload-7] = (byte) base;
+		putInt(buffer, payload-6, group.mTimestamp);
+		buffer[payload-2] = (byte) (group.mLength>>8);
+		buffer[payload-1] = (byte) group.mLength;
+
+		// ULP level 0 header: protection length and mask
+		buffer[payload] = (byte) (group.mProtection>>8);
+		buffer[payload+1] = (byte) group.mProtection;
+		for (int i=0;i<maskLength;i++) {
+			buffer[payload+2+i] = (byte) (group.mMask>>>(40-8*i));
+		}
+		payload += 2+maskLength;
+
+		putWords(group.mWords, buffer, payload, group.mProtection);
+		mSocket.updateTimestamp(ts);
+		mSocket.commitBuffer(payload+group.mProtection);
+		mFecPackets++;
+		group.clear();
+	}
+
+	/** XOR of a few packets of the block. */
+	private static class Group {
+
+		private final long[] mWords = new long[WORDS];
+		private int mByte0, mByte1, mTimestamp, mLength, mProtection;
+		// Protected packets, bit 47 is the first packet of the group
+		private long mMask;
+		private int mFirst = -1, mSpan;
+
+		/** @param index Position of the packet in the block */
+		public void add(byte[] packet, int length, int index) {
+			int payload = length-RtpSocket.RTP_HEADER_LENGTH;
+			mByte0 ^= packet[0]&0xFF;
+			mByte1 ^= packet[1]&0xFF;
+			mTimestamp ^= getInt(packet, 4);
+			mLength ^= payload;
+			mProtection = Math.max(mProtection, payload);
+			xor(mWords, packet, RtpSocket.RTP_HEADER_LENGTH, payload);
+			if (mFirst<0) mFirst = index;
+			mSpan = index-mFirst+1;
+			mMask |= 1L<<(48-mSpan);
+		}
+
+		public void clear() {
+			for (int i=0;i<(mProtection+7)/8;i++) mWords[i] = 0;
+			mByte0 = mByte1 = mTimestamp = mLength = mProtection = mSpan = 0;
+			mFirst = -1;
+			mMask = 0;
+		}
+
+	}
+
+	/** XORs length bytes of the source with the words, 8 bytes at a time. */
+	static void xor(long[] words, byte[] src, int offset, int length) {
+		int i = 0, w = 0;
+		for (;i+8<=length;i+=8,w++) {
+			int o = offset+i;
+			words[w] ^= (src[o]&0xFFL)<<56 | (src[o+1]&0xFFL)<<48 | (src[o+2]&0xFFL)<<40 | (src[o+3]&0xFFL)<<32 |
+					(src[o+4]&0xFFL)<<24 | (src[o+5]&0xFFL)<<16 | (src[o+6]&0xFFL)<<8 | (src[o+7]&0xFFL);
+		}
+		if (i<length) {
+			long v = 0;
+			for (int k=0;k<8;k++) {
+				v <<= 8;
+				if (i+k<length) v |= src[offset+i+k]&0xFFL;
+			}
+			words[w] ^= v;
+		}
+	}
+
+	/** Writes the first length bytes of the words in the buffer. */
+	static void putWords(long[] words, byte[] dest, int offset, int length) {
+		int i = 0, w = 0;
+		for (;i+8<=length;i+=8,w++) {
+			long v = words[w];
+			int o = offset+i;
+			dest[o] = (byte) (v>>>56);
+			dest[o+1] = (byte) (v>>>48);
+			dest[o+2] = (byte) (v>>>40);
+			dest[o+3] = (byte) (v>>>32);
+			dest[o+4] = (byte) (v>>>24);
+			dest[o+5] = (byte) (v>>>16);
+			dest[o+6] = (byte) (v>>>8);
+			dest[o+7] = (byte) v;
+		}
+		for (;i<length;i++) {
+			dest[offset+i] = (byte) (words[w]>>>(56-8*(i&7)));
+		}
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int n) {
+		buffer[offset] = (byte) (n>>24);
+		buffer[offset+1] = (byte) (n>>16);
+		buffer[offset+2] = (byte) (n>>8);
+		buffer[offset+3] = (byte) n;
+	}
+
+}
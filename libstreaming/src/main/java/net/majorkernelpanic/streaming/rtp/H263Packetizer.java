@@ -34,6 +34,7 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H263Packetizer";
 	private Statistics stats = new Statistics();
+	private byte[] nextFrame = new byte[MAXPACKETSIZE];
 
 	private Thread t;
 
@@ -66,7 +67,6 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 		long time, duration = 0;
 		int i = 0, j = 0, tr;
 		boolean firstFragment = true;
-		byte[] nextBuffer;
 		stats.reset();
 
 		try { 
@@ -108,10 +108,13 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 					//Log.d(TAG,"End of frame ! duration: "+stats.average());
 					// The last fragment of a frame has to be marked
 					socket.markNextPacket();
+					// The beginning of the next frame is saved, once committed the buffer belongs to the socket
+					System.arraycopy(buffer,j+2,nextFrame,0,MAXPACKETSIZE-j-2);
 					send(j);
-					nextBuffer = socket.requestBuffer();
-					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
-					buffer = nextBuffer;
+					// A decoder can start with the next frame if it is an I picture
+					if (isIntraPicture(nextFrame, MAXPACKETSIZE-j-2)) socket.markKeyframe();
+					buffer = socket.requestBuffer();
+					System.arraycopy(nextFrame,0,buffer,rtphl+2,MAXPACKETSIZE-j-2);
 					j = MAXPACKETSIZE-j-2;
 					firstFragment = true;
 				} else {
@@ -127,6 +130,27 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/**
+	 * Parses the picture header (H.263 section 5.1.3 and annex Q of H.263 version 2).
+	 * @param picture The picture, the two zero bytes of its start code excluded
+	 * @param length The number of bytes available
+	 * @return True if it is an I picture
+	 */
+	static boolean isIntraPicture(byte[] picture, int length) {
+		if (length<6 || (picture[0]&0xFC) != 0x80) return false;
+		// The bits of PTYPE that follow the temporal reference, from bit 3
+		int bits = (picture[2]&0xFF)<<24 | (picture[3]&0xFF)<<16 | (picture[4]&0xFF)<<8 | (picture[5]&0xFF);
+		int format = bits>>>26&0x07;
+		if (format != 7) {
+			// Picture coding type: 0 for INTRA
+			return (bits&0x02000000) == 0;
+		}
+		// PLUSPTYPE: the optional part is only there if UFEP is 001, then comes the picture type
+		int ufep = bits>>>23&0x07;
+		int type = ufep == 1 ? bits>>>2&0x07 : bits>>>20&0x07;
+		return type == 0;
+	}
+
 	private int fill(int offset,int length) throws IOException {
 
 		int sum = 0, len;
@@ -19,7 +19,9 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.util.Log;
 
 /**
@@ -31,6 +33,9 @@ import android.util.Log;
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
+ *   When the InputStream is an {@link AccessUnitSource} (the output of a MediaCodec), the NAL units 
+ *   are found by looking for their start codes directly in the buffers of the encoder.
+ *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
@@ -43,7 +48,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private byte[] sps = null, pps = null, stapa = null;
 	byte[] header = new byte[5];	
 	private int count = 0;
-	private int streamType = 1;
+	private AccessUnitSource source = null;
+
+	// STAP-A being filled with small NAL units
+	private boolean aggregate = false;
+	private byte[] stap = null;
+	private int stapLength = 0, stapCount = 0, stapNri = 0;
 
 
 	public H264Packetizer() {
@@ -71,6 +81,14 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Packs the small NAL units of an access unit (SEI, AUD, small slices...) in STAP-A packets (RFC 6184). 
+	 * Only used when the packetizer is fed by an {@link AccessUnitSource}. Disabled by default.
+	 */
+	public void setAggregation(boolean aggregate) {
+		this.aggregate = aggregate;
+	}
+
 	public void setStreamParameters(byte[] pps, byte[] sps) {
 		this.pps = pps;
 		this.sps = sps;
@@ -102,12 +120,13 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		Log.d(TAG,"H264 packetizer started !");
 		stats.reset();
 		count = 0;
+		stapLength = 0;
 
-		if (is instanceof MediaCodecInputStream) {
-			streamType = 1;
+		if (is instanceof AccessUnitSource) {
+			source = (AccessUnitSource) is;
 			socket.setCacheSize(0);
 		} else {
-			streamType = 0;	
+			source = null;
 			socket.setCacheSize(400);
 		}
 
@@ -116,7 +135,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
-				send();
+				if (source != null) sendAccessUnit(); 
+				else send();
 				// We measure how long it took to receive NAL units from the phone
 				duration = System.nanoTime() - oldtime;
 
@@ -134,46 +154,133 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	/**
-	 * Reads a NAL unit in the FIFO and sends it.
-	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 * Reads an access unit from the encoder and sends its NAL units.
+	 * The marker bit is set on the last packet of the access unit.
 	 */
 	@SuppressLint("NewApi")
-	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
+	private void sendAccessUnit() throws IOException, InterruptedException {
+		ByteBuffer au = source.take();
+		try {
+			ts = source.getLastBufferInfo().presentationTimeUs*1000L;
+			int flags = source.getLastBufferInfo().flags;
+			boolean config = (flags&MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+			// A decoder can start with this access unit, parameter sets included
+			if (!config && (flags&MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) socket.markKeyframe();
+			int end = au.limit();
+			int start = findNalUnit(au, au.position(), end);
+			if (start<0) {
+				// Nothing precedes the NAL unit
+				start = au.position();
+			}
+			while (start<end) {
+				int next = findNalUnit(au, start, end);
+				int nalEnd = next<0 ? end : next-3;
+				// Zeros of a 4 bytes start code
+				while (nalEnd>start && au.get(nalEnd-1)==0) nalEnd--;
+				if (nalEnd>start) sendNalUnit(au, start, nalEnd, next<0 && !config);
+				if (next<0) break;
+				start = next;
+			}
+			// NAL units of different access units don't share a STAP-A
+			flushAggregate(!config);
+		} finally {
+			source.release();
+		}
+	}
 
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
+	/** 
+	 * Sends a NAL unit found in a buffer of the encoder, in one packet or in FU-A units. 
+	 * @param last True if it is the last NAL unit of the access unit
+	 */
+	private void sendNalUnit(ByteBuffer au, int start, int end, boolean last) throws IOException, InterruptedException {
+		byte nal = au.get(start);
+		int type = nal&0x1F, length = end-start;
+
+		checkParameterSets(type);
+		if (type == 5 && sps != null && pps != null) {
+			flushAggregate(false);
+			sendParameterSets(false);
+		}
+
+		if (aggregate && length+3<=MAXPACKETSIZE-rtphl-2) {
+			if (stapLength>0 && stapLength+2+length>MAXPACKETSIZE-rtphl-2) {
+				flushAggregate(false);
 			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+			if (stapLength == 0) {
+				stap = socket.requestBuffer();
+				stapLength = 1;
+				stapCount = 0;
+				stapNri = 0;
+			}
+			// NAL unit size, then the NAL unit
+			stap[rtphl+stapLength] = (byte) (length>>8);
+			stap[rtphl+stapLength+1] = (byte) length;
+			au.position(start);
+			au.get(stap, rtphl+stapLength+2, length);
+			stapLength += 2+length;
+			stapCount++;
+			stapNri = Math.max(stapNri, nal&0x60);
+			return;
 		}
+		flushAggregate(false);
 
-		// Parses the NAL unit type
-		type = header[4]&0x1F;
+		if (length<=MAXPACKETSIZE-rtphl-2) {
+			buffer = socket.requestBuffer();
+			au.position(start);
+			au.get(buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			if ((nal&0x60) == 0) socket.markDiscardable();
+			super.send(rtphl+length);
+		} else {
+			byte indicator = (byte) ((nal&0x60) | 28);
+			byte fu = (byte) (0x80 | type);
+			int sum = start+1;
+			while (sum<end) {
+				int len = Math.min(end-sum, MAXPACKETSIZE-rtphl-2);
+				buffer = socket.requestBuffer();
+				buffer[rtphl] = indicator;
+				buffer[rtphl+1] = fu;
+				au.position(sum);
+				au.get(buffer, rtphl+2, len);
+				sum += len;
+				socket.updateTimestamp(ts);
+				if (sum>=end) {
+					// End bit on
+					buffer[rtphl+1] |= 0x40;
+					if (last) socket.markNextPacket();
+				}
+				if ((nal&0x60) == 0) socket.markDiscardable();
+				super.send(len+rtphl+2);
+				// Switch start bit
+				fu &= 0x7F;
+			}
+		}
+	}
 
+	/** Sends the STAP-A being filled, as a single NAL unit packet if it only contains one NAL unit. */
+	private void flushAggregate(boolean marker) throws IOException {
+		if (stapLength == 0) return;
+		int length;
+		if (stapCount == 1) {
+			length = stapLength-3;
+			System.arraycopy(stap, rtphl+3, stap, rtphl, length);
+		} else {
+			// STAP-A NAL header is 24, NRI is the highest NRI of the NAL units
+			stap[rtphl] = (byte) (stapNri | 24);
+			length = stapLength;
+		}
+		buffer = stap;
+		stapLength = 0;
+		socket.updateTimestamp(ts);
+		if (marker) socket.markNextPacket();
+		// Only NAL units with a NRI of 0 in the STAP-A, nothing refers to them
+		if (stapNri == 0) socket.markDiscardable();
+		super.send(rtphl+length);
+	}
 
-		// The stream already contains NAL unit type 7 or 8, we don't need 
-		// to add them to the stream ourselves
+	/** The stream already contains NAL unit type 7 or 8, we don't need to add them to the stream ourselves. */
+	private void checkParameterSets(int type) {
 		if (type == 7 || type == 8) {
 			Log.v(TAG,"SPS or PPS present in the stream.");
 			count++;
@@ -182,15 +289,40 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				pps = null;
 			}
 		}
+	}
+
+	/**
+	 * We send two packets containing NALU type 7 (SPS) and 8 (PPS)
+	 * Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+	 */
+	private void sendParameterSets(boolean marker) throws IOException, InterruptedException {
+		buffer = socket.requestBuffer();
+		if (marker) socket.markNextPacket();
+		socket.updateTimestamp(ts);
+		System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
+		super.send(rtphl+stapa.length);
+	}
 
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+	/**
+	 * Reads a NAL unit in the FIFO and sends it.
+	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 */
+	private void send() throws IOException, InterruptedException {
+		int sum = 1, len = 0, type;
+
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		ts += delay;
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>100000 || naluLength<0) resync();
+
+		// Parses the NAL unit type
+		type = header[4]&0x1F;
+
+		checkParameterSets(type);
+		if (type == 5) socket.markKeyframe();
 		if (type == 5 && sps != null && pps != null) {
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
-			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
+			sendParameterSets(true);
 		}
 
 		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
@@ -202,6 +334,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			len = fill(buffer, rtphl+1,  naluLength-1);
 			socket.updateTimestamp(ts);
 			socket.markNextPacket();
+			if ((header[4]&0x60) == 0) socket.markDiscardable();
 			super.send(naluLength+rtphl);
 			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
 		}
@@ -227,6 +360,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 					buffer[rtphl+1] += 0x40;
 					socket.markNextPacket();
 				}
+				if ((header[0]&0x60) == 0) socket.markDiscardable();
 				super.send(len+rtphl+2);
 				// Switch start bit
 				header[1] = (byte) (header[1] & 0x7F); 
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ *
+ *   RFC 7798.
+ *
+ *   H.265 streaming over RTP.
+ *
+ *   Must be fed with an {@link AccessUnitSource} (the output of a MediaCodec), NAL units
+ *   preceded by start codes. Small NAL units of an access unit are packed in aggregation
+ *   packets, large ones are split in fragmentation units.
+ *
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "H265Packetizer";
+
+	// Types of the payload headers
+	private final static int AP = 48;
+	private final static int FU = 49;
+
+	private Thread t = null;
+	private AccessUnitSource source = null;
+	private byte[] vps = null, sps = null, pps = null, parameters = null;
+	private int count = 0;
+
+	// Aggregation packet being filled with small NAL units
+	private boolean aggregate = true;
+	private byte[] ap = null;
+	private int apLength = 0, apCount = 0, apLayer = 0, apTid = 0;
+	private boolean apDiscardable = true;
+
+	public H265Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			try {
+				is.close();
+			} catch (IOException e) {}
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** Packs the small NAL units of an access unit in aggregation packets. Enabled by default. */
+	public void setAggregation(boolean aggregate) {
+		this.aggregate = aggregate;
+	}
+
+	/**
+	 * The parameter sets are sent in an aggregation packet before each IRAP picture,
+	 * unless the encoder already puts them in the stream.
+	 */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+
+		if (vps != null && sps != null && pps != null) {
+			// Payload header + the size of each NAL unit
+			parameters = new byte[2+vps.length+sps.length+pps.length+6];
+			parameters[0] = (byte) (AP<<1);
+			parameters[1] = 1;
+			int i = 2;
+			for (byte[] nal : new byte[][] {vps, sps, pps}) {
+				parameters[i] = (byte) (nal.length>>8);
+				parameters[i+1] = (byte) nal.length;
+				System.arraycopy(nal, 0, parameters, i+2, nal.length);
+				i += 2+nal.length;
+			}
+		} else {
+			parameters = null;
+		}
+	}
+
+	public void run() {
+		Log.d(TAG,"H265 packetizer started !");
+		count = 0;
+		apLength = 0;
+
+		if (!(is instanceof AccessUnitSource)) {
+			Log.e(TAG,"The H265 packetizer must be fed with an AccessUnitSource");
+			return;
+		}
+		source = (AccessUnitSource) is;
+		socket.setCacheSize(0);
+
+		try {
+			while (!Thread.interrupted()) {
+				sendAccessUnit();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"H265 packetizer stopped !");
+	}
+
+	/**
+	 * Reads an access unit from the encoder and sends its NAL units.
+	 * The marker bit is set on the last packet of the access unit.
+	 */
+	@SuppressLint("NewApi")
+	private void sendAccessUnit() throws IOException, InterruptedException {
+		ByteBuffer au = source.take();
+		try {
+			ts = source.getLastBufferInfo().presentationTimeUs*1000L;
+			int flags = source.getLastBufferInfo().flags;
+			boolean config = (flags&MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+			// A decoder can start with this access unit, parameter sets included
+			if (!config && (flags&MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) socket.markKeyframe();
+			int end = au.limit();
+			int start = findNalUnit(au, au.position(), end);
+			if (start<0) start = au.position();
+			while (start<end) {
+				int next = findNalUnit(au, start, end);
+				int nalEnd = next<0 ? end : next-3;
+				// Zeros of a 4 bytes start code
+				while (nalEnd>start && au.get(nalEnd-1)==0) nalEnd--;
+				if (nalEnd-start>2) sendNalUnit(au, start, nalEnd, next<0 && !config);
+				if (next<0) break;
+				start = next;
+			}
+			// NAL units of different access units don't share an aggregation packet
+			flushAggregate(!config);
+		} finally {
+			source.release();
+		}
+	}
+
+	/** 
+	 * Sends a NAL unit in a single NAL unit packet, in an aggregation packet or in fragmentation units.
+	 * @param last True if it is the last NAL unit of the access unit 
+	 */
+	private void sendNalUnit(ByteBuffer au, int start, int end, boolean last) throws IOException, InterruptedException {
+		byte h0 = au.get(start), h1 = au.get(start+1);
+		int type = (h0>>1)&0x3F, length = end-start;
+		// Sub-layer non-reference pictures, no other picture of the sub-layer refers to them
+		boolean discardable = type<=14 && type%2 == 0;
+
+		// The stream already contains the VPS, SPS and PPS, we don't need to add them ourselves
+		if (type>=32 && type<=34) {
+			count++;
+			if (count>6) parameters = null;
+		}
+
+		// IRAP pictures
+		if (type>=16 && type<=21 && parameters != null) {
+			flushAggregate(false);
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			System.arraycopy(parameters, 0, buffer, rtphl, parameters.length);
+			super.send(rtphl+parameters.length);
+		}
+
+		if (aggregate && length+4<=MAXPACKETSIZE-rtphl-3) {
+			if (apLength>0 && apLength+2+length>MAXPACKETSIZE-rtphl-3) {
+				flushAggregate(false);
+			}
+			int layer = (h0&0x01)<<5 | (h1>>3)&0x1F, tid = h1&0x07;
+			if (apLength == 0) {
+				ap = socket.requestBuffer();
+				apLength = 2;
+				apCount = 0;
+				apLayer = layer;
+				apTid = tid;
+				apDiscardable = true;
+			}
+			ap[rtphl+apLength] = (byte) (length>>8);
+			ap[rtphl+apLength+1] = (byte) length;
+			au.position(start);
+			au.get(ap, rtphl+apLength+2, length);
+			apLength += 2+length;
+			apCount++;
+			apDiscardable &= discardable;
+			// LayerId and TID of the payload header are the lowest of the NAL units
+			apLayer = Math.min(apLayer, layer);
+			apTid = Math.min(apTid, tid);
+			return;
+		}
+		flushAggregate(false);
+
+		if (length<=MAXPACKETSIZE-rtphl-3) {
+			buffer = socket.requestBuffer();
+			au.position(start);
+			au.get(buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			if (discardable) socket.markDiscardable();
+			super.send(rtphl+length);
+			return;
+		}
+
+		// Payload header of the FU, the type of the NAL unit goes in the FU header
+		byte p0 = (byte) ((h0&0x81) | FU<<1);
+		byte fu = (byte) (0x80 | type);
+		int sum = start+2;
+		while (sum<end) {
+			int len = Math.min(end-sum, MAXPACKETSIZE-rtphl-3);
+			buffer = socket.requestBuffer();
+			buffer[rtphl] = p0;
+			buffer[rtphl+1] = h1;
+			buffer[rtphl+2] = fu;
+			au.position(sum);
+			au.get(buffer, rtphl+3, len);
+			sum += len;
+			socket.updateTimestamp(ts);
+			if (sum>=end) {
+				// End bit on
+				buffer[rtphl+2] |= 0x40;
+				if (last) socket.markNextPacket();
+			}
+			if (discardable) socket.markDiscardable();
+			super.send(len+rtphl+3);
+			// Switch start bit
+			fu &= 0x7F;
+		}
+	}
+
+	/** Sends the aggregation packet being filled, as a single NAL unit packet if it only contains one NAL unit. */
+	private void flushAggregate(boolean marker) throws IOException {
+		if (apLength == 0) return;
+		int length;
+		if (apCount == 1) {
+			length = apLength-4;
+			System.arraycopy(ap, rtphl+4, ap, rtphl, length);
+		} else {
+			ap[rtphl] = (byte) (AP<<1 | apLayer>>5);
+			ap[rtphl+1] = (byte) ((apLayer&0x1F)<<3 | apTid);
+			length = apLength;
+		}
+		buffer = ap;
+		apLength = 0;
+		socket.updateTimestamp(ts);
+		if (marker) socket.markNextPacket();
+		if (apDiscardable) socket.markDiscardable();
+		super.send(rtphl+length);
+	}
+
+}
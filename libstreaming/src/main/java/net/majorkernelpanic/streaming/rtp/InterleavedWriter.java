@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.LockSupport;
+import android.util.Log;
+
+/**
+ * Writes RTP and RTCP packets interleaved in an RTSP connection (RFC 2326, section 10.12).
+ *
+ * One writer is shared by all the tracks sending on the same connection, get it with
+ * {@link #get(OutputStream)} or {@link #get(WritableByteChannel)}. Packets are framed with
+ * the '$' header and appended to a buffer that a thread flushes with a single write when
+ * it is big enough or when the oldest packet has waited for too long.
+ * When the connection can't keep up, {@link #write(int, byte[], int, int)} blocks, and
+ * when the connection fails, it throws the IOException.
+ * The owner of the connection must call {@link #release(OutputStream)} or {@link #release(WritableByteChannel)}
+ * when it is closed, the writer is registered until then.
+ */
+public class InterleavedWriter implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Default size of the buffers in bytes. */
+	public final static int DEFAULT_CAPACITY = 64*1024;
+
+	/** Default size of a batch in bytes, the buffer is flushed when it reaches this size. */
+	public final static int DEFAULT_BATCH_SIZE = 8*1024;
+
+	/** Default maximum time in ns a packet waits in the buffer. */
+	public final static long DEFAULT_FLUSH_DELAY = 2000000;
+
+	/** Maximum time in ms a packet waits for some room in the buffer before we give up. */
+	private final static long WRITE_TIMEOUT = 5000;
+
+	/** The thread stops after that time in ms without packets, the next packet starts it again. */
+	private final static long IDLE_TIMEOUT = 10000;
+
+	private final static WeakHashMap<Object, InterleavedWriter> sWriters = new WeakHashMap<Object, InterleavedWriter>();
+
+	private final OutputStream mOutputStream;
+	private final WritableByteChannel mChannel;
+	private ByteBuffer mFilling, mWriting;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private long mFlushDelay = DEFAULT_FLUSH_DELAY;
+	private long mOldest = 0;
+	private IOException mError = null;
+	private Thread mThread = null;
+	private boolean mClosed = false;
+
+	/** Returns the writer associated with the output stream of an RTSP connection. */
+	public static InterleavedWriter get(OutputStream outputStream) {
+		synchronized (sWriters) {
+			InterleavedWriter writer = sWriters.get(outputStream);
+			if (writer == null || writer.mError != null || writer.mClosed) {
+				writer = new InterleavedWriter(outputStream, null);
+				sWriters.put(outputStream, writer);
+			}
+			return writer;
+		}
+	}
+
+	/**
+	 * Returns the writer associated with the channel of an RTSP connection.
+	 * The channel may be in non-blocking mode.
+	 */
+	public static InterleavedWriter get(WritableByteChannel channel) {
+		synchronized (sWriters) {
+			InterleavedWriter writer = sWriters.get(channel);
+			if (writer == null || writer.mError != null || writer.mClosed) {
+				writer = new InterleavedWriter(null, channel);
+				sWriters.put(channel, writer);
+			}
+			return writer;
+		}
+	}
+
+	/** Closes the writer of the output stream of an RTSP connection, if there is one. */
+	public static void release(OutputStream outputStream) {
+		release((Object) outputStream);
+	}
+
+	/** Closes the writer of the channel of an RTSP connection, if there is one. */
+	public static void release(WritableByteChannel channel) {
+		release((Object) channel);
+	}
+
+	private static void release(Object connection) {
+		InterleavedWriter writer;
+		synchronized (sWriters) {
+			// The writer references its connection, the entry would never be collected
+			writer = sWriters.remove(connection);
+		}
+		if (writer != null) writer.close();
+	}
+
+	private InterleavedWriter(OutputStream outputStream, WritableByteChannel channel) {
+		mOutputStream = outputStream;
+		mChannel = channel;
+		if (channel != null) {
+			mFilling = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+			mWriting = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+		} else {
+			// We need an array to write in an OutputStream
+			mFilling = ByteBuffer.allocate(DEFAULT_CAPACITY);
+			mWriting = ByteBuffer.allocate(DEFAULT_CAPACITY);
+		}
+	}
+
+	/**
+	 * Sets the size of a batch, the buffer is written as soon as it contains that many bytes.
+	 * @param size The size in bytes
+	 */
+	public synchronized void setBatchSize(int size) {
+		mBatchSize = Math.min(size, mFilling.capacity());
+	}
+
+	/**
+	 * Sets the maximum time a packet waits in the buffer before the buffer is written.
+	 * @param delay The delay in ns
+	 */
+	public synchronized void setFlushDelay(long delay) {
+		mFlushDelay = delay;
+	}
+
+	/**
+	 * Frames a packet and appends it to the buffer.
+	 * @param channel The interleaved channel identifier
+	 * @throws IOException The connection has failed or was closed
+	 */
+	public synchronized void write(int channel, byte[] buffer, int offset, int length) throws IOException {
+		if (length+4>mFilling.capacity()) throw new IOException("Packet too big: "+length);
+		long deadline = System.currentTimeMillis()+WRITE_TIMEOUT;
+		while (mError == null && !mClosed && mFilling.remaining()<length+4) {
+			// Backpressure, the connection is too slow
+			long wait = deadline - System.currentTimeMillis();
+			if (wait<=0) throw new IOException("Interleaved connection is stalled");
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+		append(channel, buffer, offset, length);
+	}
+
+	/**
+	 * Same as {@link #write(int, byte[], int, int)} but returns false
+	 * instead of blocking when the connection can't keep up.
+	 * @throws IOException The connection has failed or was closed
+	 */
+	public synchronized boolean offer(int channel, byte[] buffer, int offset, int length) throws IOException {
+		if (mError == null && !mClosed && mFilling.remaining()<length+4) return false;
+		append(channel, buffer, offset, length);
+		return true;
+	}
+
+	private void append(int channel, byte[] buffer, int offset, int length) throws IOException {
+		if (mError != null) throw mError;
+		if (mClosed) throw new IOException("Connection closed");
+		if (mFilling.position()==0) mOldest = System.nanoTime();
+		mFilling.put((byte)'$');
+		mFilling.put((byte)channel);
+		mFilling.put((byte)(length>>8));
+		mFilling.put((byte)(length&0xFF));
+		mFilling.put(buffer, offset, length);
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+		if (mFilling.position()>=mBatchSize || mFilling.position()==length+4) {
+			// The writing thread is either waiting for a full batch or for a new deadline
+			notifyAll();
+		}
+	}
+
+	/** Stops the writer, pending packets are written first. */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+		unregister();
+	}
+
+	/** Returns the IOException that stopped the writer, or null. */
+	public synchronized IOException getError() {
+		return mError;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				synchronized (this) {
+					boolean idle = false;
+					while (true) {
+						int pending = mFilling.position();
+						if (pending>0) {
+							long wait = mOldest + mFlushDelay - System.nanoTime();
+							if (pending>=mBatchSize || wait<=0 || mClosed) break;
+							wait(wait/1000000, (int)(wait%1000000));
+						} else {
+							if (mClosed) return;
+							if (idle) {
+								// Started again by the next packet
+								mThread = null;
+								return;
+							}
+							wait(IDLE_TIMEOUT);
+							idle = mFilling.position()==0;
+						}
+					}
+					ByteBuffer buffer = mWriting;
+					mWriting = mFilling;
+					mFilling = buffer;
+					notifyAll();
+				}
+				mWriting.flip();
+				flush(mWriting);
+				mWriting.clear();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Interleaved connection failed: "+e.getMessage());
+			synchronized (this) {
+				mError = e;
+				notifyAll();
+			}
+			unregister();
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				mError = new IOException("Interrupted");
+				notifyAll();
+			}
+			unregister();
+		}
+	}
+
+	/** A writer that was closed or failed is replaced by the next call to get(). */
+	private void unregister() {
+		synchronized (sWriters) {
+			Object connection = mChannel != null ? mChannel : mOutputStream;
+			if (sWriters.get(connection) == this) sWriters.remove(connection);
+		}
+	}
+
+	private void flush(ByteBuffer buffer) throws IOException {
+		if (mChannel != null) {
+			while (buffer.hasRemaining()) {
+				if (mChannel.write(buffer)==0) {
+					// Non-blocking channel whose send buffer is full
+					LockSupport.parkNanos(100000);
+				}
+			}
+		} else {
+			// Other threads may write RTSP messages on the same stream
+			synchronized (mOutputStream) {
+				mOutputStream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+				mOutputStream.flush();
+			}
+		}
+	}
+
+}
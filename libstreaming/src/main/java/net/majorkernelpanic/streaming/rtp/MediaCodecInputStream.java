@@ -30,10 +30,12 @@ import android.util.Log;
 /**
  * An InputStream that uses data from a MediaCodec.
  * The purpose of this class is to interface existing RTP packetizers of
- * libstreaming with the new MediaCodec API. This class is not thread safe !  
+ * libstreaming with the new MediaCodec API. The output buffers can also be
+ * read directly with {@link AccessUnitSource}. This class is not thread safe !  
+ * On Android 6.0 and later, {@link AsyncMediaCodecInputStream} is used instead of polling the encoder.
  */
 @SuppressLint("NewApi")
-public class MediaCodecInputStream extends InputStream {
+public class MediaCodecInputStream extends InputStream implements AccessUnitSource {
 
 	public final String TAG = "MediaCodecInputStream"; 
 
@@ -66,36 +68,14 @@ public class MediaCodecInputStream extends InputStream {
 		int min = 0;
 
 		try {
-			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
-					}
-				}			
-			}
+			if (mBuffer==null) dequeue();
 			
 			if (mClosed) throw new IOException("This InputStream was closed");
 			
-			min = length < mBufferInfo.size - mBuffer.position() ? length : mBufferInfo.size - mBuffer.position(); 
+			min = length < mBuffer.remaining() ? length : mBuffer.remaining(); 
 			mBuffer.get(buffer, offset, min);
-			if (mBuffer.position()>=mBufferInfo.size) {
-				mMediaCodec.releaseOutputBuffer(mIndex, false);
-				mBuffer = null;
+			if (!mBuffer.hasRemaining()) {
+				release();
 			}
 			
 		} catch (RuntimeException e) {
@@ -107,13 +87,57 @@ public class MediaCodecInputStream extends InputStream {
 	
 	public int available() {
 		if (mBuffer != null) 
-			return mBufferInfo.size - mBuffer.position();
+			return mBuffer.remaining();
 		else 
 			return 0;
 	}
 
+	@Override
+	public ByteBuffer take() throws IOException {
+		try {
+			if (mBuffer==null) dequeue();
+		} catch (RuntimeException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (mClosed || mBuffer==null) throw new IOException("This InputStream was closed");
+		return mBuffer;
+	}
+
+	@Override
+	public void release() {
+		if (mBuffer != null) {
+			mBuffer = null;
+			mMediaCodec.releaseOutputBuffer(mIndex, false);
+		}
+	}
+
+	@Override
 	public BufferInfo getLastBufferInfo() {
 		return mBufferInfo;
 	}
 
+	/** Waits for an output buffer, its position and limit are set to the data. */
+	private void dequeue() {
+		while (!Thread.interrupted() && !mClosed) {
+			mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (mIndex>=0 ){
+				//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+				mBuffer = mBuffers[mIndex];
+				mBuffer.clear();
+				mBuffer.position(mBufferInfo.offset);
+				mBuffer.limit(mBufferInfo.offset+mBufferInfo.size);
+				break;
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mBuffers = mMediaCodec.getOutputBuffers();
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mMediaFormat = mMediaCodec.getOutputFormat();
+				Log.i(TAG,mMediaFormat.toString());
+			} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				// Nothing yet, we poll the encoder again
+			} else {
+				Log.e(TAG,"Message: "+mIndex);
+			}
+		}
+	}
+
 }
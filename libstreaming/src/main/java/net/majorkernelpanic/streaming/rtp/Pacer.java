@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket that smooths the packets sent by one or more {@link RtpSocket}.
+ *
+ * The bucket is refilled at the rate of the stream times the pacing multiplier, and faster
+ * when the FIFOs hold more than the queue target: what waits in the FIFOs is then spread
+ * over one frame interval. A large access unit, an I-frame, leaves in evenly spaced packets
+ * instead of one burst that overflows the queues of the routers.
+ *
+ * Packets of the priority lane (audio, retransmissions) are never delayed, they
+ * only take their tokens from the bucket so that paced packets leave room for them.
+ * A pacer can be shared by the streams of a session, they then share the same budget.
+ */
+public class Pacer {
+
+	public final static String TAG = "Pacer";
+
+	/** Default pacing multiplier. */
+	public final static float DEFAULT_MULTIPLIER = 2.5f;
+
+	// The input rate is measured over windows of 200 ms
+	private final static long WINDOW = TimeUnit.MILLISECONDS.toNanos(200);
+	private final static long DEFAULT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(33);
+	private final static long MAX_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+	// 100 kbit/s in bytes per ns, so that the bucket is never stuck
+	private final static double MIN_RATE = 100000d/8/1000000000d;
+
+	private float mMultiplier;
+	private int mBurst = 2*RtpSocket.MTU;
+	private long mTarget = 0;
+
+	private double mTokens = 0, mInputRate = 0, mRate = MIN_RATE;
+	private long mLast = 0, mQueued = 0, mInterval = DEFAULT_INTERVAL;
+	private long mWindowStart = 0, mWindowBytes = 0;
+
+	public Pacer() {
+		this(DEFAULT_MULTIPLIER);
+	}
+
+	/** @param multiplier How much faster than the stream the bucket is refilled */
+	public Pacer(float multiplier) {
+		setMultiplier(multiplier);
+	}
+
+	/** Sets how much faster than the stream the bucket is refilled, at least 1. */
+	public synchronized void setMultiplier(float multiplier) {
+		if (multiplier<1) throw new IllegalArgumentException("The pacing multiplier can't be lower than 1");
+		mMultiplier = multiplier;
+	}
+
+	public synchronized float getMultiplier() {
+		return mMultiplier;
+	}
+
+	/** Sets the number of bytes that can leave back to back, two packets by default. */
+	public synchronized void setBurst(int bytes) {
+		mBurst = Math.max(bytes, RtpSocket.MTU);
+	}
+
+	/**
+	 * Sets how much of the stream, in ms, the FIFOs may hold before the pacer hurries to empty them.
+	 * 0 by default, it is the cache size of the socket when the stream comes from a MediaRecorder.
+	 */
+	public synchronized void setQueueTarget(long ms) {
+		mTarget = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	/** Returns the rate at which the bucket is currently refilled in bits per second. */
+	public synchronized long getRate() {
+		return (long) (mRate*8*1000000000d);
+	}
+
+	/** Returns the number of bytes waiting in the FIFOs of the paced sockets. */
+	public synchronized long getQueuedBytes() {
+		return mQueued;
+	}
+
+	/** Resets the state of the bucket, the measures of the stream are kept. */
+	public synchronized void reset() {
+		mTokens = 0;
+		mQueued = 0;
+		mLast = 0;
+	}
+
+	/** Called by the packetizer when a packet is committed to the FIFO of a socket. */
+	synchronized void queued(int length, long now) {
+		mQueued += length;
+		if (mWindowStart == 0) mWindowStart = now;
+		mWindowBytes += length;
+		long elapsed = now-mWindowStart;
+		if (elapsed>=WINDOW) {
+			double rate = (double)mWindowBytes/elapsed;
+			mInputRate = mInputRate == 0 ? rate : (mInputRate*3+rate)/4;
+			mWindowStart = now;
+			mWindowBytes = 0;
+		}
+	}
+
+	/** Called by the sending thread with the time between two access units of a paced stream, in ns. */
+	synchronized void frame(long interval) {
+		if (interval>0 && interval<MAX_INTERVAL) {
+			mInterval = (mInterval*7+interval)/8;
+		}
+	}
+
+	/**
+	 * Takes the tokens for a packet of the FIFO.
+	 * @param priority The packet is not delayed
+	 * @return 0 if the packet can be sent now, or the time to wait in ns before trying again
+	 */
+	synchronized long reserve(int length, boolean priority, long now) {
+		refill(now);
+		if (!priority && mTokens<0) {
+			return Math.max((long) (-mTokens/mRate), 1000);
+		}
+		mTokens -= length;
+		mQueued = Math.max(mQueued-length, 0);
+		return 0;
+	}
+
+	/** Called by the sending thread when a packet of the FIFO is dropped instead of being sent. */
+	synchronized void dropped(int length) {
+		mQueued = Math.max(mQueued-length, 0);
+	}
+
+	/** Takes the tokens for a packet that was not in a FIFO, a retransmission, never delayed. */
+	synchronized void consume(int length, long now) {
+		refill(now);
+		mTokens -= length;
+	}
+
+	/**
+	 * Blocks the sending thread until the packet can be sent.
+	 * @throws InterruptedException The thread was interrupted while waiting
+	 */
+	void pace(int length, boolean priority) throws InterruptedException {
+		long wait;
+		while ((wait = reserve(length, priority, System.nanoTime()))>0) {
+			LockSupport.parkNanos(this, wait);
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	private void refill(long now) {
+		double backlog = mQueued-mInputRate*mTarget;
+		mRate = Math.max(Math.max(mInputRate*mMultiplier, backlog/mInterval), MIN_RATE);
+		if (mLast != 0) {
+			mTokens = Math.min(mTokens+mRate*(now-mLast), mBurst);
+		}
+		mLast = now;
+	}
+
+}
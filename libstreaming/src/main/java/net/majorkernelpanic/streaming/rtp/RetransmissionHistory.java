@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * The packets recently sent by an {@link RtpSocket}, indexed by sequence number.
+ *
+ * The history does not copy the packets: the buffer of a packet that was just sent is stored
+ * and the FIFO of the socket gets another buffer in exchange, an expired one or one from the
+ * {@link BufferPool}. Packets expire when they are too old or when the history holds too many bytes.
+ * Only used by the sending thread of the socket.
+ */
+class RetransmissionHistory {
+
+	private final int mMask;
+	private final long mMaxAge;
+	private final BufferPool mPool;
+	private final byte[][] mBuffers;
+	private final int[] mLengths;
+	private final int[] mSeqs;
+	private final long[] mTimes;
+	private final long[] mResent;
+
+	// Expired buffers, given back to the FIFO
+	private final byte[][] mFree;
+	private int mFreeCount = 0;
+
+	// The window of sequence numbers ends at mNewest, the slots of the packets that were not stored are empty
+	private int mNewest = 0, mCount = 0;
+
+	/**
+	 * @param maxAge Packets older than that are forgotten, in ns
+	 * @param maxBytes Maximum size of the history in bytes
+	 * @param pool The pool of the buffers of the FIFO
+	 */
+	public RetransmissionHistory(long maxAge, int maxBytes, BufferPool pool) {
+		int bufferSize = pool.getBufferSize();
+		int capacity = 16;
+		while (capacity<32768 && capacity*2*bufferSize<=maxBytes) capacity *= 2;
+		mMask = capacity-1;
+		mMaxAge = maxAge;
+		mPool = pool;
+		mBuffers = new byte[capacity][];
+		mLengths = new int[capacity];
+		mSeqs = new int[capacity];
+		mTimes = new long[capacity];
+		mResent = new long[capacity];
+		mFree = new byte[capacity][];
+	}
+
+	/** Returns the maximum number of packets in the history. */
+	public int getCapacity() {
+		return mMask+1;
+	}
+
+	/**
+	 * Stores a packet that has just been sent.
+	 * @param packet The buffer of the packet, it now belongs to the history
+	 * @param now The time in ns
+	 * @return A buffer to use in place of the one stored, its content is undefined, 
+	 * or null if the pool is empty, the packet is then not stored
+	 */
+	public byte[] store(byte[] packet, int length, long now) {
+		int seq = (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+		int gap = (seq-mNewest)&0xFFFF;
+		if (mCount>0 && (gap == 0 || gap>mMask)) {
+			// The sequence went back or jumped past the whole history, the socket was probably restarted
+			clear();
+		} else if (mCount>0) {
+			// Packets dropped by the socket, or not stored: the window moves over their slots
+			for (int k=1;k<gap;k++) {
+				if (mCount>mMask) evict();
+				mNewest = (mNewest+1)&0xFFFF;
+				mCount++;
+			}
+		}
+		while (mCount>0 && (mCount>mMask || mBuffers[oldest()] == null || now-mTimes[oldest()]>mMaxAge)) {
+			evict();
+		}
+		byte[] spare = mFreeCount>0 ? mFree[--mFreeCount] : mPool.acquire();
+		if (spare == null) return null;
+		int i = seq&mMask;
+		mBuffers[i] = packet;
+		mLengths[i] = length;
+		mSeqs[i] = seq;
+		mTimes[i] = now;
+		mResent[i] = 0;
+		mNewest = seq;
+		mCount++;
+		return spare;
+	}
+
+	/**
+	 * Looks for a packet.
+	 * @return The index of the packet or -1 if it is not in the history anymore
+	 */
+	public int find(int seq, long now) {
+		int i = seq&mMask;
+		if (mCount == 0 || mBuffers[i] == null || mSeqs[i] != seq) return -1;
+		if (((mNewest-seq)&0xFFFF)>=mCount || now-mTimes[i]>mMaxAge) return -1;
+		return i;
+	}
+
+	public byte[] getBuffer(int index) {
+		return mBuffers[index];
+	}
+
+	public int getLength(int index) {
+		return mLengths[index];
+	}
+
+	/** Time in ns of the last retransmission of the packet, 0 if it was never retransmitted. */
+	public long getResent(int index) {
+		return mResent[index];
+	}
+
+	public void setResent(int index, long now) {
+		mResent[index] = now;
+	}
+
+	/** Forgets every packet. */
+	public void clear() {
+		while (mCount>0) evict();
+	}
+
+	/** Forgets every packet and gives the buffers back to the pool. */
+	public void recycle() {
+		clear();
+		while (mFreeCount>0) {
+			mPool.release(mFree[--mFreeCount]);
+			mFree[mFreeCount] = null;
+		}
+	}
+
+	private int oldest() {
+		return (mNewest-mCount+1)&mMask;
+	}
+
+	private void evict() {
+		int i = oldest();
+		if (mBuffers[i] == null) {
+			// The slot of a packet that was not stored
+		} else if (mFreeCount<mFree.length) {
+			mFree[mFreeCount++] = mBuffers[i];
+		} else {
+			mPool.release(mBuffers[i]);
+		}
+		mBuffers[i] = null;
+		mCount--;
+	}
+
+}
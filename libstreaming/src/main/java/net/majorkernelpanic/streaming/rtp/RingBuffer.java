@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single-producer/single-consumer ring used as the FIFO of the {@link RtpSocket}.
+ * The ring only hands out the right to use a slot, the slots themselves (buffers, packets...)
+ * belong to the caller. The producer calls {@link #claim()} then {@link #publish()},
+ * the consumer calls {@link #poll(long)} then {@link #release()}.
+ * Only one thread may produce and only one thread may consume at any given time.
+ */
+public class RingBuffer {
+
+	public final static String TAG = "RingBuffer";
+
+	/** The waiting thread spins on the counters, lowest latency but it keeps a core busy. */
+	public final static int WAIT_BUSY_SPIN = 0x00;
+
+	/** The waiting thread calls Thread.yield() between two checks of the counters. */
+	public final static int WAIT_YIELD = 0x01;
+
+	/** The waiting thread is parked and woken up by the other side. */
+	public final static int WAIT_PARK = 0x02;
+
+	// Upper bound of a park, in case the other side misses the waiter
+	private final static long PARK_NANOS = 200000;
+
+	private final int mCapacity;
+	private final Sequence mHead = new Sequence();
+	private final Sequence mTail = new Sequence();
+
+	// Producer side, never read by the consumer
+	private long mCachedTail = 0;
+	// Consumer side, never read by the producer
+	private long mCachedHead = 0;
+
+	private volatile Thread mParkedProducer, mParkedConsumer;
+	private volatile int mWaitStrategy = WAIT_PARK;
+
+	public RingBuffer(int capacity) {
+		if (capacity<=0) throw new IllegalArgumentException("Capacity must be positive");
+		mCapacity = capacity;
+	}
+
+	/** Sets the wait strategy, can be {@link #WAIT_BUSY_SPIN}, {@link #WAIT_YIELD} or {@link #WAIT_PARK}. */
+	public void setWaitStrategy(int strategy) {
+		mWaitStrategy = strategy;
+	}
+
+	public int getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/** Returns the number of slots published and not yet released. */
+	public int size() {
+		return (int) (mHead.get()-mTail.get());
+	}
+
+	/**
+	 * Blocks the producer until a slot is free.
+	 * Calling it twice without calling {@link #publish()} does not claim a second slot.
+	 */
+	public void claim() throws InterruptedException {
+		long head = mHead.get();
+		if (head-mCachedTail<mCapacity) return;
+		mCachedTail = mTail.get();
+		int tries = 0;
+		while (head-mCachedTail>=mCapacity) {
+			tries = await(tries, true);
+			// The ring may have been reset by the consumer
+			head = mHead.get();
+			mCachedTail = mTail.get();
+		}
+		mParkedProducer = null;
+	}
+
+	/**
+	 * Same as {@link #claim()} but the producer does not wait.
+	 * @return false if the ring is full
+	 */
+	public boolean tryClaim() {
+		long head = mHead.get();
+		if (head-mCachedTail<mCapacity) return true;
+		mCachedTail = mTail.get();
+		return head-mCachedTail<mCapacity;
+	}
+
+	/** Hands the slot claimed by the producer over to the consumer. */
+	public void publish() {
+		mHead.lazySet(mHead.get()+1);
+		Thread consumer = mParkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Waits until a slot has been published.
+	 * @param timeout The maximum time to wait in nanoseconds
+	 * @return false if nothing was published before the timeout expired
+	 */
+	public boolean poll(long timeout) throws InterruptedException {
+		long tail = mTail.get();
+		if (mCachedHead>tail) return true;
+		mCachedHead = mHead.get();
+		if (mCachedHead>tail) return true;
+		long deadline = System.nanoTime()+timeout;
+		int tries = 0;
+		while (mCachedHead<=tail) {
+			if (System.nanoTime()-deadline>=0) {
+				mParkedConsumer = null;
+				return false;
+			}
+			tries = await(tries, false);
+			mCachedHead = mHead.get();
+		}
+		mParkedConsumer = null;
+		return true;
+	}
+
+	/** Returns the number of slots the consumer can take without waiting. */
+	public int available() {
+		mCachedHead = mHead.get();
+		return (int) (mCachedHead-mTail.get());
+	}
+
+	/** Gives the slot back to the producer. */
+	public void release() {
+		mTail.lazySet(mTail.get()+1);
+		Thread producer = mParkedProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+	/** Empties the ring, neither side must be using it. */
+	public void reset() {
+		mHead.set(0);
+		mTail.set(0);
+		mCachedHead = 0;
+		mCachedTail = 0;
+		mParkedProducer = null;
+		mParkedConsumer = null;
+	}
+
+	private int await(int tries, boolean producer) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		switch (mWaitStrategy) {
+		case WAIT_BUSY_SPIN:
+			break;
+		case WAIT_YIELD:
+			Thread.yield();
+			break;
+		default:
+			// We spin a little before parking, most of the time the other side is almost done
+			if (tries<100) break;
+			if (producer) mParkedProducer = Thread.currentThread();
+			else mParkedConsumer = Thread.currentThread();
+			LockSupport.parkNanos(this, PARK_NANOS);
+			break;
+		}
+		return tries+1;
+	}
+
+	/** Fields preceding the counter so that it does not share a cache line with something else. */
+	static class LeftPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	static class Value extends LeftPadding {
+		protected static final AtomicLongFieldUpdater<Value> UPDATER = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+		protected volatile long value = 0;
+	}
+
+	/** A counter padded on both sides. */
+	static class Sequence extends Value {
+
+		protected long p9, p10, p11, p12, p13, p14, p15;
+
+		public long get() {
+			return value;
+		}
+
+		public void set(long v) {
+			value = v;
+		}
+
+		/** Ordered store, cheaper than a volatile write and enough for a single writer. */
+		public void lazySet(long v) {
+			UPDATER.lazySet(this, v);
+		}
+
+		/** Prevents the padding from being optimized away. */
+		long sumPaddingToPreventOptimisation() {
+			return p1+p2+p3+p4+p5+p6+p7+value+p9+p10+p11+p12+p13+p14+p15;
+		}
+
+	}
+
+}
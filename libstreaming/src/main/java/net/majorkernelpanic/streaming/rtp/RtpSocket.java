@@ -22,10 +22,26 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import net.majorkernelpanic.streaming.rtcp.ReceptionStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpListener;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -34,6 +50,8 @@ import android.util.Log;
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The buffers come from a {@link BufferPool} shared by the sockets, the FIFO grows and
+ * shrinks with the stream within a budget of bytes and of latency.
  */
 public class RtpSocket implements Runnable {
 
@@ -44,32 +62,162 @@ public class RtpSocket implements Runnable {
 	
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = 0x01;	
+
+	/** 
+	 * Use this to use UDP for the transport protocol, packets waiting in the FIFO 
+	 * are sent in bursts through a non-blocking DatagramChannel. 
+	 * Before Android 7.0, multicast destinations fall back to {@link #TRANSPORT_UDP}: the TTL of the channel can't be set.
+	 */
+	public final static int TRANSPORT_UDP_BATCH = 0x02;
+
+	/** 
+	 * Use this to use UDP for the transport protocol, packets are sent by the thread 
+	 * and the channels of the {@link SharedTransport}, common to all the streams.
+	 */
+	public final static int TRANSPORT_UDP_SHARED = 0x03;
 	
+	/** Lost packets are not retransmitted. */
+	public final static int RTX_OFF = 0x00;
+
+	/** Lost packets are sent again as they were, same SSRC and sequence number. */
+	public final static int RTX_IN_PLACE = 0x01;
+
+	/** Lost packets are sent again in an RTX stream (RFC 4588), with its own SSRC and payload type. */
+	public final static int RTX_SSRC = 0x02;
+
+	/** Number of packets dropped by default when the stream starts. */
+	public final static int DEFAULT_WARMUP = 31;
+
+	/** Payload type of the RTX stream. */
+	public final static int RTX_PAYLOAD_TYPE = 97;
+
+	/** The packetizer waits when the FIFO exceeds its budget. */
+	public final static int OVERFLOW_BLOCK = 0x00;
+
+	/** The oldest packets marked as discardable (non-reference data) are dropped when the FIFO exceeds its budget. */
+	public final static int OVERFLOW_DROP_OLDEST = 0x01;
+
+	/** Every packet before the most recent keyframe is dropped when the FIFO exceeds its budget. */
+	public final static int OVERFLOW_DROP_TO_KEYFRAME = 0x02;
+
+	/** 
+	 * Latency bounded mode, the packetizer never waits. When the oldest packet of the FIFO is older than the
+	 * latency budget, whole frames are dropped up to the next keyframe and a keyframe is requested.
+	 */
+	public final static int OVERFLOW_LATENCY_BOUNDED = 0x03;
+
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
-	private MulticastSocket mSocket;
+	/** Maximum number of packets in the FIFO. */
+	public static final int MAX_PACKETS = 1024;
+
+	// Flags of the packets of the FIFO
+	private final static byte FLAG_KEYFRAME = 0x01;
+	private final static byte FLAG_DISCARDABLE = 0x02;
+	private final static byte FLAG_EMPTY = 0x04;
+
+	// Buffers kept by the socket when the FIFO shrinks, the peak occupancy is measured over 5 s
+	private final static int MIN_SPARE = 16;
+	private final static long PEAK_WINDOW = 5000000000L;
+	private final static long PARK_NANOS = 200000;
+	// Minimum time between two keyframe requests of the latency bounded mode
+	private final static long KEYFRAME_REQUEST_NANOS = 250000000L;
+
+	private MulticastSocket mSocket = null;
+	private int mTTL = 64;
 	private DatagramPacket[] mPackets;
 	private byte[][] mBuffers;
 	private long[] mTimestamps;
+	private long[] mCommitTimes;
+	private byte[] mFlags;
+	private boolean[] mDrop;
+
+	private DatagramChannel mChannel;
+	private Selector mSelector;
+	private ByteBuffer mDirectBuffer;
+	private InetSocketAddress mSocketAddress;
+	private SharedTransport mShared = null;
+	private volatile boolean mRegistered = false;
+	private long mLastDrain = 0;
 
 	private SenderReport mReport;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+	private RingBuffer mFifo;
+	private volatile Thread mThread;
+	// Set by the sending thread when it stops, the packetizer resets the FIFO before its next packet
+	private volatile boolean mIdle = false;
 
-	private int mTransport;
+	private int mTransport, mUdpTransport = TRANSPORT_UDP;
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
-	private int mSsrc, mSeq = 0, mPort = -1;
+	private int mSsrc, mSeq = 0, mPort = -1, mPayloadType = 96;
 	private int mBufferCount, mBufferIn, mBufferOut;
-	private int mCount = 0;
-	private byte mTcpHeader[];
+	private int mCount = 0, mWarmup = DEFAULT_WARMUP;
+	private int mChannelIdentifier = 0;
+	private InterleavedWriter mWriter = null;
+	private volatile IOException mError = null;
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
 
+	// Token bucket pacing the packets, the one of the cache is used when none is given
+	private Pacer mPacer = null, mCachePacer = null;
+	private boolean mPriority = false;
+
+	// Additional destinations, added and removed while the socket is running
+	private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final CopyOnWriteArrayList<RtcpListener> mRtcpListeners = new CopyOnWriteArrayList<RtcpListener>();
+
+	// Retransmissions, only used by the sending thread except the NACK queue
+	private int mRtxMode = RTX_OFF;
+	private RetransmissionHistory mHistory = null;
+	// Chosen upfront, the session description announces it before the stream starts
+	private final int mRtxSsrc = new Random().nextInt();
+	private int mRtxSeq = 0;
+	private byte[] mRtxBuffer = null;
+	private DatagramPacket mRtxPacket = null;
+	private AverageBitrate mRtxBitrate = new AverageBitrate();
+	private long mRetransmissions = 0;
+	private final int[] mNacks = new int[256];
+	private final Subscriber[] mNackTargets = new Subscriber[256];
+	private int mNackHead = 0, mNackTail = 0;
+
+	// Statistics of the sending thread
+	private long mBursts = 0, mBurstPackets = 0, mSendLatency = 0;
+
+	// Memory of the FIFO: buffers given back by the sending thread are reused by the packetizer
+	private BufferPool mPool = BufferPool.get();
+	private byte[][] mSpares;
+	private RingBuffer mSpareRing;
+	private int mSpareIn = 0, mSpareOut = 0;
+	private final AtomicInteger mAllocated = new AtomicInteger();
+	private final AtomicLong mQueuedBytes = new AtomicLong();
+	private volatile long mHeadTime = 0;
+	private int mNextFlags = 0;
+	private int mPeak = 0, mKeep = MIN_SPARE, mScanned = 0;
+	private long mPeakStart = 0;
+
+	// Budget of the FIFO and what happens when it's exceeded
+	private int mOverflow = OVERFLOW_BLOCK;
+	private int mMaxBytes = 1024*1024;
+	private long mMaxLatency = 0;
+	private boolean mAwaitKeyframe = false;
+	private volatile long mDroppedPackets = 0, mDroppedBytes = 0;
+
+	// Latency bounded mode, packets discarded by the packetizer never enter the FIFO
+	private byte[] mScratch = null;
+	private boolean mDiscarding = false, mDiscardPacket = false, mFrameOpen = false, mFrameSending = false;
+	private long mLastKeyframeRequest = 0;
+	private volatile long mDiscardedPackets = 0, mDiscardedBytes = 0, mDiscardedFrames = 0;
+	private KeyframeListener mKeyframeListener = null;
+
+	/** Notified when the socket drops frames and the encoder should produce a keyframe. */
+	public interface KeyframeListener {
+		public void onKeyframeNeeded();
+	}
+
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
 	 * @throws IOException
@@ -77,45 +225,49 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
+		mBufferCount = MAX_PACKETS;
 		mBuffers = new byte[mBufferCount][];
 		mPackets = new DatagramPacket[mBufferCount];
+		mFlags = new byte[mBufferCount];
+		mDrop = new boolean[mBufferCount];
+		mFifo = new RingBuffer(mBufferCount);
+		mSpares = new byte[mBufferCount][];
+		mSpareRing = new RingBuffer(mBufferCount);
 		mReport = new SenderReport();
+		mReport.setRtcpListener(new Feedback(null));
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
-		mTcpHeader = new byte[] {'$',0,0,0};
-		
-		resetFifo();
 
+		// Buffers are only taken from the pool when the packetizer needs them
+		byte[] none = new byte[0];
 		for (int i=0; i<mBufferCount; i++) {
+			mPackets[i] = new DatagramPacket(none, 0);
+		}
 
-			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
+		resetFifo();
+		
+	}
 
-			/*							     Version(2)  Padding(0)					 					*/
-			/*									 ^		  ^			Extension(0)						*/
-			/*									 |		  |				^								*/
-			/*									 | --------				|								*/
-			/*									 | |---------------------								*/
-			/*									 | ||  -----------------------> Source Identifier(0)	*/
-			/*									 | ||  |												*/
-			mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
+	/** Writes the fields of the RTP header that don't change from one packet to the next. */
+	private void initHeader(byte[] buffer) {
 
-			/* Payload Type */
-			mBuffers[i][1] = (byte) 96;
+		/*							     Version(2)  Padding(0)					 					*/
+		/*									 ^		  ^			Extension(0)						*/
+		/*									 |		  |				^								*/
+		/*									 | --------				|								*/
+		/*									 | |---------------------								*/
+		/*									 | ||  -----------------------> Source Identifier(0)	*/
+		/*									 | ||  |												*/
+		buffer[0] = (byte) Integer.parseInt("10000000",2);
 
-			/* Byte 2,3        ->  Sequence Number                   */
-			/* Byte 4,5,6,7    ->  Timestamp                         */
-			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		/* Payload Type */
+		buffer[1] = (byte) (mPayloadType&0x7F);
 
-		}
+		/* Byte 2,3        ->  Sequence Number                   */
+		/* Byte 4,5,6,7    ->  Timestamp                         */
+		/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		setLong(buffer, mSsrc, 8, 12);
 
-		try {
-		mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
-		}
-		
 	}
 
 	private void resetFifo() {
@@ -123,22 +275,108 @@ public class RtpSocket implements Runnable {
 		mBufferIn = 0;
 		mBufferOut = 0;
 		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
+		mCommitTimes = new long[mBufferCount];
+		mFifo.reset();
 		mReport.reset();
 		mAverageBitrate.reset();
+		mRtxBitrate.reset();
+		if (mCachePacer != null) mCachePacer.reset();
+
+		// The FIFO is idle, its memory goes back to the pool
+		for (int i=0;i<mBufferCount;i++) {
+			if (mBuffers[i] != null) {
+				mPool.release(mBuffers[i]);
+				mAllocated.decrementAndGet();
+				mBuffers[i] = null;
+			}
+			mFlags[i] = 0;
+			mDrop[i] = false;
+		}
+		while (mSpareRing.available()>0) {
+			mPool.release(mSpares[mSpareOut]);
+			mAllocated.decrementAndGet();
+			mSpares[mSpareOut] = null;
+			if (++mSpareOut>=mBufferCount) mSpareOut = 0;
+			mSpareRing.release();
+		}
+		mSpareRing.reset();
+		mSpareIn = mSpareOut = 0;
+		mQueuedBytes.set(0);
+		mHeadTime = 0;
+		mAwaitKeyframe = false;
+		mFrameSending = false;
+		mNextFlags = 0;
+		mScanned = 0;
 	}
 	
-	/** Closes the underlying socket. */
+	/** Closes the underlying socket and the subscribers. */
 	public void close() {
-		mSocket.close();
+		for (Subscriber subscriber : mSubscribers) {
+			subscriber.close();
+		}
+		mSubscribers.clear();
+		if (mSocket != null) mSocket.close();
+		if (mShared != null) {
+			mRegistered = false;
+			mShared.unregister(this);
+		}
+		closeChannel();
+		mReport.close();
+	}
+
+	/** 
+	 * Adds a destination to the RTP stream, it can be called while the socket is sending packets.
+	 * The subscriber gets the packets committed after this call.
+	 */
+	public void addSubscriber(Subscriber subscriber) {
+		subscriber.getSenderReport().setClockFrequency(mClock);
+		subscriber.getSenderReport().setRtcpListener(new Feedback(subscriber));
+		mSubscribers.addIfAbsent(subscriber);
+	}
+
+	/** Removes a destination from the RTP stream and closes it. */
+	public void removeSubscriber(Subscriber subscriber) {
+		mSubscribers.remove(subscriber);
+		subscriber.close();
+	}
+
+	/** Returns the destinations added with {@link #addSubscriber(Subscriber)}. */
+	public List<Subscriber> getSubscribers() {
+		return Collections.unmodifiableList(mSubscribers);
+	}
+
+	/** Returns true if at least one subscriber was added to the socket. */
+	public boolean hasSubscribers() {
+		return !mSubscribers.isEmpty();
+	}
+
+	/** Returns the Sender Report of the stream. */
+	public SenderReport getSenderReport() {
+		return mReport;
+	}
+
+	/** Returns what the receivers report about the stream sent to the destination of the socket. */
+	public ReceptionStats getReceptionStats() {
+		return mReport.getReceptionStats();
+	}
+
+	/** 
+	 * The listener will be notified of the RTCP feedback sent by the receivers of the stream,
+	 * those of the subscribers included. The sequence numbers of NACKs are those of the socket.
+	 */
+	public void addRtcpListener(RtcpListener listener) {
+		mRtcpListeners.addIfAbsent(listener);
+	}
+
+	public void removeRtcpListener(RtcpListener listener) {
+		mRtcpListeners.remove(listener);
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
 		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+			if (mBuffers[i] != null) setLong(mBuffers[i], ssrc,8,12);
 		}
 		mReport.setSSRC(mSsrc);
 	}
@@ -148,31 +386,183 @@ public class RtpSocket implements Runnable {
 		return mSsrc;
 	}
 
+	/** Sets the payload type of the packets, 96 by default. */
+	public void setPayloadType(int payloadType) {
+		mPayloadType = payloadType;
+		for (int i=0;i<mBufferCount;i++) {
+			if (mBuffers[i] != null) mBuffers[i][1] = (byte) (payloadType&0x7F);
+		}
+	}
+
+	/**
+	 * Sets the number of packets dropped when the stream starts, the first packets of an encoder are often garbage.
+	 * {@link #DEFAULT_WARMUP} by default.
+	 */
+	public void setWarmup(int packets) {
+		mWarmup = packets;
+	}
+
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
 		mClock = clock;
+		mReport.setClockFrequency(clock);
+	}
+
+	/**
+	 * Keeps the packets recently sent so that the packets reported lost by the receivers
+	 * in a NACK can be sent again. Must be called before the stream is started.
+	 * @param mode {@link #RTX_OFF}, {@link #RTX_IN_PLACE} or {@link #RTX_SSRC}
+	 * @param maxAge Packets older than that in ms are not sent again
+	 * @param maxBytes Maximum memory used by the packets kept
+	 */
+	public void setRetransmission(int mode, long maxAge, int maxBytes) {
+		mRtxMode = mode;
+		if (mHistory != null) mHistory.recycle();
+		if (mode == RTX_OFF) {
+			mHistory = null;
+			return;
+		}
+		mHistory = new RetransmissionHistory(TimeUnit.MILLISECONDS.toNanos(maxAge), maxBytes, mPool);
+		if (mode == RTX_SSRC && mRtxBuffer == null) {
+			mRtxSeq = new Random().nextInt(0x10000);
+			mRtxBuffer = new byte[MTU+2];
+		}
+		if (mRtxPacket == null) mRtxPacket = new DatagramPacket(new byte[1], 1);
+	}
+
+	/** Returns the retransmission mode of the socket. */
+	public int getRetransmission() {
+		return mRtxMode;
 	}
 
-	/** Sets the size of the FIFO in ms. */
+	/** Returns the SSRC of the RTX stream, only used with {@link #RTX_SSRC}. */
+	public int getRtxSSRC() {
+		return mRtxSsrc;
+	}
+
+	/** Returns the number of packets sent again since the socket was created. */
+	public long getRetransmissionCount() {
+		return mRetransmissions;
+	}
+
+	/** Returns the clock frequency of the stream in Hz. */
+	public long getClockFrequency() {
+		return mClock;
+	}
+
+	/** 
+	 * Sets the size of the FIFO in ms. When it's not 0 the packets are paced 
+	 * so that the FIFO holds about that much of the stream.
+	 */
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
+		if (cacheSize>0) {
+			if (mCachePacer == null) mCachePacer = new Pacer(1);
+			mCachePacer.setQueueTarget(cacheSize);
+		} else {
+			mCachePacer = null;
+		}
+	}
+
+	/**
+	 * Paces the packets with a token bucket, must be called before the stream is started.
+	 * Give the same pacer to the sockets of a session so that they share the same budget.
+	 * @param pacer The pacer or null, the packets are then only paced when the cache size is not 0
+	 * @param priority The packets of the socket go through the priority lane, they are never delayed
+	 */
+	public void setPacer(Pacer pacer, boolean priority) {
+		mPacer = pacer;
+		mPriority = priority;
+	}
+
+	/** Returns the pacer of the socket, or null. */
+	public Pacer getPacer() {
+		return mPacer != null ? mPacer : mCachePacer;
 	}
 	
+	/**
+	 * Sets the pool the buffers of the FIFO come from, {@link BufferPool#get()} by default.
+	 * Must be called before the stream is started and before {@link #setRetransmission(int, long, int)}.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		if (pool.getBufferSize()<MTU) throw new IllegalArgumentException("The buffers of the pool are too small");
+		mPool = pool;
+	}
+
+	/**
+	 * Sets the budget of the FIFO and what happens when it's exceeded.
+	 * @param policy {@link #OVERFLOW_BLOCK} (default), {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_DROP_TO_KEYFRAME} 
+	 * or {@link #OVERFLOW_LATENCY_BOUNDED}
+	 * @param maxBytes Maximum size of the packets waiting in the FIFO, 1 MB by default
+	 * @param maxLatency Maximum time in ms a packet waits in the FIFO, 0 (default) for no limit.
+	 * In the latency bounded mode, it should be longer than the time needed to send a keyframe.
+	 */
+	public void setOverflowPolicy(int policy, int maxBytes, long maxLatency) {
+		mOverflow = policy;
+		if (policy == OVERFLOW_LATENCY_BOUNDED && mScratch == null) mScratch = new byte[MTU];
+		mMaxBytes = Math.max(maxBytes, 2*MTU);
+		mMaxLatency = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+	}
+
+	/** The listener is told when the latency bounded mode drops frames, it should ask the encoder for a keyframe. */
+	public void setKeyframeListener(KeyframeListener listener) {
+		mKeyframeListener = listener;
+	}
+
+	/** Returns the overflow policy of the FIFO. */
+	public int getOverflowPolicy() {
+		return mOverflow;
+	}
+
+	/** 
+	 * Sets how the packetizer and the sending thread wait for each other when the FIFO is full or empty.
+	 * @param strategy {@link RingBuffer#WAIT_PARK} (default), {@link RingBuffer#WAIT_YIELD} or {@link RingBuffer#WAIT_BUSY_SPIN}
+	 */
+	public void setWaitStrategy(int strategy) {
+		mFifo.setWaitStrategy(strategy);
+	}
+
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
-		mSocket.setTimeToLive(ttl);
+		mTTL = ttl;
+		if (mSocket != null) mSocket.setTimeToLive(ttl);
+		if (mChannel != null) applyTimeToLive();
+	}
+
+	/**
+	 * Chooses how packets are sent when UDP is used, changes will be taken into account 
+	 * the next time {@link #setDestination(InetAddress, int, int)} is called.
+	 * @param transport {@link #TRANSPORT_UDP} (default), {@link #TRANSPORT_UDP_BATCH} or {@link #TRANSPORT_UDP_SHARED} 
+	 */
+	public void setUdpTransport(int transport) throws IOException {
+		mUdpTransport = transport;
+		if (transport == TRANSPORT_UDP_SHARED && mShared == null) {
+			mShared = SharedTransport.get();
+		}
+		// A stream sent only to subscribers has no destination
+		if (mTransport != TRANSPORT_TCP && mPort<=0) mTransport = transport;
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		if (dport != 0 && rtcpPort != 0) {
-			mTransport = TRANSPORT_UDP;
+			mTransport = mUdpTransport;
 			mPort = dport;
+			mError = null;
+			mSocketAddress = new InetSocketAddress(dest, dport);
+			if (mTransport == TRANSPORT_UDP_BATCH && dest.isMulticastAddress() && Build.VERSION.SDK_INT<Build.VERSION_CODES.N) {
+				// The TTL of a channel can't be set before Android 7.0, it would stay at 1
+				Log.w(TAG, "Multicast destination, packets are sent one by one");
+				mTransport = TRANSPORT_UDP;
+			}
+			if (mTransport == TRANSPORT_UDP_BATCH) {
+				openChannel();
+			}
 			for (int i=0;i<mBufferCount;i++) {
 				mPackets[i].setPort(dport);
 				mPackets[i].setAddress(dest);
 			}
-			mReport.setDestination(dest, rtcpPort);
+			mReport.setDestination(dest, rtcpPort, mTransport == TRANSPORT_UDP_SHARED ? mShared : null);
 		}
 	}
 	
@@ -185,7 +575,9 @@ public class RtpSocket implements Runnable {
 		if (outputStream != null) {
 			mTransport = TRANSPORT_TCP;
 			mOutputStream = outputStream;
-			mTcpHeader[1] = channelIdentifier;
+			mWriter = InterleavedWriter.get(outputStream);
+			mChannelIdentifier = channelIdentifier;
+			mError = null;
 			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
 		}
 	}
@@ -195,12 +587,28 @@ public class RtpSocket implements Runnable {
 	}
 
 	public int[] getLocalPorts() {
+		if (mTransport == TRANSPORT_UDP_SHARED) {
+			return mShared.getLocalPorts();
+		}
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannel != null ? mChannel.socket().getLocalPort() : socket().getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
 	}
+
+	/** The socket is only opened when it's needed. */
+	private MulticastSocket socket() {
+		if (mSocket == null) {
+			try {
+				mSocket = new MulticastSocket();
+				mSocket.setTimeToLive(mTTL);
+			} catch (Exception e) {
+				throw new RuntimeException(e.getMessage());
+			}
+		}
+		return mSocket;
+	}
 	
 	/** 
 	 * Returns an available buffer from the FIFO, it can then be modified. 
@@ -208,44 +616,178 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
-		return mBuffers[mBufferIn];
+		if (mIdle) {
+			// No packet is being written and no thread is sending, the FIFO can start over
+			mIdle = false;
+			resetFifo();
+		}
+		if (mOverflow == OVERFLOW_LATENCY_BOUNDED) return requestBufferNow();
+		mFifo.claim();
+		byte[] buffer = mBuffers[mBufferIn];
+		if (buffer == null) {
+			waitForRoom();
+			buffer = takeBuffer();
+			initHeader(buffer);
+			mBuffers[mBufferIn] = buffer;
+			mPackets[mBufferIn].setData(buffer);
+		}
+		buffer[1] = (byte) (mPayloadType&0x7F);
+		return buffer;
+	}
+
+	/** 
+	 * Same as {@link #requestBuffer()} in the latency bounded mode, but the packetizer never waits.
+	 * When the packet can't or should not go in the FIFO, a scratch buffer is returned and the packet is discarded.
+	 */
+	private byte[] requestBufferNow() {
+		boolean slot = mFifo.tryClaim();
+		byte[] buffer = slot ? mBuffers[mBufferIn] : null;
+		if (buffer == null && slot && !discard(System.nanoTime())) {
+			buffer = pollBuffer();
+			if (buffer != null) {
+				initHeader(buffer);
+				mBuffers[mBufferIn] = buffer;
+				mPackets[mBufferIn].setData(buffer);
+			}
+		}
+		if (buffer == null) {
+			// The FIFO or the pool is full, the frame is lost anyway
+			if (!mDiscarding) startDiscarding(System.nanoTime());
+			mDiscardPacket = true;
+			return mScratch;
+		}
+		mDiscardPacket = false;
+		buffer[1] = (byte) (mPayloadType&0x7F);
+		return buffer;
+	}
+
+	/** 
+	 * Decides if a new packet goes in the FIFO in the latency bounded mode. Once the budget is exceeded, 
+	 * the frame being written is completed and the following ones are discarded until a keyframe.
+	 */
+	private boolean discard(long now) {
+		boolean late = isFull(mHeadTime, now);
+		if (mDiscarding) {
+			if ((mNextFlags&FLAG_KEYFRAME) != 0 && !late) {
+				mDiscarding = false;
+				return false;
+			}
+			requestKeyframe(now);
+			return true;
+		}
+		if (late && !mFrameOpen) {
+			startDiscarding(now);
+			return true;
+		}
+		return false;
+	}
+
+	private void startDiscarding(long now) {
+		mDiscarding = true;
+		mDiscardedFrames++;
+		mLastKeyframeRequest = 0;
+		requestKeyframe(now);
+	}
+
+	private void requestKeyframe(long now) {
+		KeyframeListener listener = mKeyframeListener;
+		if (listener == null || now-mLastKeyframeRequest<KEYFRAME_REQUEST_NANOS) return;
+		mLastKeyframeRequest = now;
+		listener.onKeyframeNeeded();
+	}
+
+	/** Returns true if the packet being written was discarded, it will not be sent. */
+	public boolean isDiscardingPacket() {
+		return mDiscardPacket;
 	}
 
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
-
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
+		if (mError != null) throw mError;
+		if (mDiscardPacket) {
+			mDiscardPacket = false;
+			return;
 		}
-		
+
+		mFlags[mBufferIn] = FLAG_EMPTY;
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
+
+		startSending();
 
 	}	
 	
-	/** Sends the RTP packet over the network. */
+	/** 
+	 * Sends the RTP packet over the network. 
+	 * @throws IOException The sending thread has stopped because the connection failed
+	 */
 	public void commitBuffer(int length) throws IOException {
+		if (mError != null) throw mError;
+		if (mDiscardPacket) {
+			mDiscardPacket = false;
+			mNextFlags = 0;
+			mDiscardedPackets++;
+			mDiscardedBytes += length;
+			return;
+		}
 		updateSequence();
+		mFrameOpen = (mBuffers[mBufferIn][1]&0x80) == 0;
 		mPackets[mBufferIn].setLength(length);
+		mCommitTimes[mBufferIn] = System.nanoTime();
+		mFlags[mBufferIn] = (byte) mNextFlags;
+		mNextFlags = 0;
+		mQueuedBytes.addAndGet(length);
 
 		mAverageBitrate.push(length);
+		Pacer pacer = getPacer();
+		if (pacer != null) pacer.queued(length, mCommitTimes[mBufferIn]);
 
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
 
-		if (mThread == null) {
+		startSending();
+		
+	}
+
+	private void startSending() {
+		if (mTransport == TRANSPORT_UDP_SHARED) {
+			if (!mRegistered) {
+				mRegistered = true;
+				mShared.register(this);
+			}
+			mShared.wakeUp();
+		} else if (mThread == null) {
+			// The FIFO was not reset, the new thread goes on with it
+			mIdle = false;
 			mThread = new Thread(this);
 			mThread.start();
-		}		
-		
+		}
 	}
 
-	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
+	/** 
+	 * Returns an approximation of the bitrate of the RTP stream in bits per second.
+	 * Retransmissions are included, they use the same link.
+	 */
 	public long getBitrate() {
-		return mAverageBitrate.average();
+		return mAverageBitrate.average()+(mHistory != null ? mRtxBitrate.average() : 0);
+	}
+
+	/** 
+	 * Returns the average number of packets sent each time the sending thread wakes up. 
+	 * Always 1 with {@link #TRANSPORT_UDP} and {@link #TRANSPORT_TCP}.
+	 */
+	public float getPacketsPerBurst() {
+		return mBursts>0 ? (float)mBurstPackets/mBursts : 0;
+	}
+
+	/** Returns the average time in ns between the commit of a packet and the moment it is sent. */
+	public long getSendLatency() {
+		return mSendLatency;
+	}
+
+	/** Returns the sequence number of the next packet committed. */
+	public int getNextSequenceNumber() {
+		return (mSeq+1)&0xFFFF;
 	}
 
 	/** Increments the sequence number. */
@@ -258,74 +800,537 @@ public class RtpSocket implements Runnable {
 	 * @param timestamp The new timestamp in ns.
 	 **/
 	public void updateTimestamp(long timestamp) {
+		if (mDiscardPacket) return;
 		mTimestamps[mBufferIn] = timestamp;
 		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
 	}
 
 	/** Sets the marker in the RTP packet. */
 	public void markNextPacket() {
+		if (mDiscardPacket) return;
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/** 
+	 * The next packet committed is the first one of a keyframe, a point where a decoder can start.
+	 * Call it before {@link #requestBuffer()}, the latency bounded mode decides there if the packet is kept.
+	 */
+	public void markKeyframe() {
+		mNextFlags |= FLAG_KEYFRAME;
+	}
+
+	/** The next packet committed only holds non-reference data, it can be dropped when the FIFO is full. */
+	public void markDiscardable() {
+		mNextFlags |= FLAG_DISCARDABLE;
+	}
+
+	/** Returns the size in bytes of the packets waiting in the FIFO. */
+	public long getQueuedBytes() {
+		return mQueuedBytes.get();
+	}
+
+	/** Returns the number of packets waiting in the FIFO. */
+	public int getQueuedPackets() {
+		return mFifo.size();
+	}
+
+	/** Returns the number of buffers the socket currently holds, in the FIFO or kept for later. */
+	public int getAllocatedBuffers() {
+		return mAllocated.get();
+	}
+
+	/** Returns the number of packets dropped because the FIFO exceeded its budget. */
+	public long getDroppedPackets() {
+		return mDroppedPackets+mDiscardedPackets;
+	}
+
+	/** Returns the size in bytes of the packets dropped because the FIFO exceeded its budget. */
+	public long getDroppedBytes() {
+		return mDroppedBytes+mDiscardedBytes;
+	}
+
+	/** Returns how many times the latency bounded mode started to drop frames up to a keyframe. */
+	public long getDroppedFrameRuns() {
+		return mDiscardedFrames;
+	}
+
+	/** 
+	 * Blocks the packetizer while the FIFO exceeds its budget. The sending thread makes room by 
+	 * sending packets, or by dropping them if the overflow policy allows it.
+	 */
+	private void waitForRoom() throws InterruptedException {
+		while (isFull(mHeadTime, System.nanoTime())) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+	}
+
+	/** @param headTime The commit time of the oldest packet of the FIFO, 0 if it's empty */
+	private boolean isFull(long headTime, long now) {
+		return mQueuedBytes.get()+MTU>mMaxBytes || 
+				(mMaxLatency>0 && headTime != 0 && now-headTime>mMaxLatency);
+	}
+
+	/** Takes a buffer given back by the sending thread, or one from the pool when the FIFO grows. */
+	private byte[] takeBuffer() throws InterruptedException {
+		byte[] buffer;
+		while ((buffer = pollBuffer()) == null) {
+			// The pool is empty, the sending thread will give buffers back
+			if (Thread.interrupted()) throw new InterruptedException();
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		return buffer;
+	}
+
+	/** Same as {@link #takeBuffer()} without waiting, returns null if the pool is empty. */
+	private byte[] pollBuffer() {
+		if (mSpareRing.available()>0) {
+			byte[] buffer = mSpares[mSpareOut];
+			mSpares[mSpareOut] = null;
+			if (++mSpareOut>=mBufferCount) mSpareOut = 0;
+			mSpareRing.release();
+			return buffer;
+		}
+		byte[] buffer = mPool.acquire();
+		if (buffer != null) mAllocated.incrementAndGet();
+		return buffer;
+	}
+
+	/** The Thread sends the packets in the FIFO one by one, they are smoothed by the pacer if there is one. */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
+			Pacer pacer = getPacer();
+			if (mTransport == TRANSPORT_UDP_BATCH) {
+				sendBursts(pacer);
+				return;
+			}
+			while (mFifo.poll(TimeUnit.SECONDS.toNanos(4))) {
+				processNacks();
+				if (shed(System.nanoTime())) continue;
+				int length = mPackets[mBufferOut].getLength();
 				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
+					// The difference between two timestamps is the time lapse between two access units
+					long interval = mTimestamps[mBufferOut]-mOldTimestamp;
+					if (interval>0) {
+						if (pacer != null && !mPriority) pacer.frame(interval);
+					} else if (interval<0) {
 						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
 					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
+				if (pacer != null) pacer.pace(length, mPriority);
+				long rtpts = (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L;
+				if (hasDestination()) mReport.update(length, rtpts);
 				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
+				if (mCount++>=mWarmup) {
+					if (!hasDestination()) {
+						// Only subscribers
+					} else if (mTransport == TRANSPORT_UDP) {
+						socket().send(mPackets[mBufferOut]);
 					} else {
 						sendTCP();
 					}
+					sendSubscribers(rtpts);
+					archive(System.nanoTime());
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				long now = System.nanoTime();
+				updateLatency(now, 1);
+				release(now);
 			}
+		} catch (IOException e) {
+			// The packetizer will get the exception the next time it commits a buffer
+			Log.e(TAG, "The RTP socket failed: "+e.getMessage());
+			mError = e;
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			// The packetizer may be writing a packet, it resets the FIFO itself
+			mIdle = true;
+			mThread = null;
 		}
-		mThread = null;
-		resetFifo();
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
+	/** 
+	 * Every packet available in the FIFO is sent in a tight loop, and we only 
+	 * wait between two bursts. With a pacer, the packets of a burst are spread by the token bucket.
+	 */
+	private void sendBursts(Pacer pacer) throws IOException, InterruptedException {
+		while (mFifo.poll(TimeUnit.SECONDS.toNanos(4))) {
+			processNacks();
+			int n = mFifo.available();
+			long now = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				if (shed(now)) continue;
+				int length = mPackets[mBufferOut].getLength();
+				if (pacer != null) {
+					long interval = mTimestamps[mBufferOut]-mOldTimestamp;
+					if (mOldTimestamp != 0 && interval>0 && !mPriority) pacer.frame(interval);
+					pacer.pace(length, mPriority);
+				}
+				long rtpts = (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L;
+				if (hasDestination()) mReport.update(length, rtpts);
+				if (mCount++>=mWarmup) {
+					if (hasDestination()) sendChannel(mBuffers[mBufferOut], length);
+					sendSubscribers(rtpts);
+					archive(now);
+				}
+				updateLatency(now, i==0 ? n : 0);
+				mOldTimestamp = mTimestamps[mBufferOut];
+				release(now);
+			}
+		}
+	}
+
+	private void sendChannel(byte[] buffer, int length) throws IOException {
+		mDirectBuffer.clear();
+		mDirectBuffer.put(buffer, 0, length);
+		mDirectBuffer.flip();
+		while (mChannel.send(mDirectBuffer, mSocketAddress) == 0) {
+			// The send buffer of the socket is full
+			mSelector.select(10);
+			mSelector.selectedKeys().clear();
+		}
+	}
+
+	private void updateLatency(long now, int burst) {
+		long latency = now - mCommitTimes[mBufferOut];
+		mSendLatency = mSendLatency == 0 ? latency : (mSendLatency*15+latency)/16;
+		if (burst>0) {
+			mBursts++;
+			mBurstPackets += burst;
+		}
+	}
+
+	private void openChannel() {
+		if (mChannel != null) return;
+		try {
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(new InetSocketAddress(0));
+			mChannel.configureBlocking(false);
+			applyTimeToLive();
+			mSelector = Selector.open();
+			mChannel.register(mSelector, SelectionKey.OP_WRITE);
+			mDirectBuffer = ByteBuffer.allocateDirect(MTU);
+		} catch (IOException e) {
+			closeChannel();
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	/** Multicast packets sent by the channel would not get past the first router with the default TTL of 1. */
+	@TargetApi(Build.VERSION_CODES.N)
+	private void applyTimeToLive() throws IOException {
+		if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.N) {
+			mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, mTTL);
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			if (mSelector != null) mSelector.close();
+		} catch (IOException ignore) {}
+		try {
+			if (mChannel != null) mChannel.close();
+		} catch (IOException ignore) {}
+		mSelector = null;
+		mChannel = null;
+	}
+
+	private boolean hasDestination() {
+		return mTransport == TRANSPORT_TCP || mPort>0;
+	}
+
+	/**
+	 * Called by the thread of the {@link SharedTransport}, sends at most max packets.
+	 * @return The number of packets sent
+	 */
+	int drain(SharedTransport transport, int max) throws IOException {
+		processNacks();
+		int n = Math.min(mFifo.available(), max);
+		long now = System.nanoTime();
+		if (n == 0) {
+			if (mLastDrain != 0 && now-mLastDrain>TimeUnit.SECONDS.toNanos(4)) {
+				// Same as the sending thread, we stop after 4 seconds without packets
+				mRegistered = false;
+				transport.unregister(this);
+				mLastDrain = 0;
+				if (mFifo.available()>0) startSending();
+			}
+			return 0;
+		}
+		Pacer pacer = getPacer();
+		for (int i=0;i<n;i++) {
+			if (shed(now)) continue;
+			int length = mPackets[mBufferOut].getLength();
+			if (pacer != null) {
+				// The shared thread can't wait for the tokens, it comes back when they are there
+				long wait = pacer.reserve(length, mPriority, now);
+				if (wait>0) {
+					transport.wakeUpIn(wait);
+					n = i;
+					break;
+				}
+				long interval = mTimestamps[mBufferOut]-mOldTimestamp;
+				if (mOldTimestamp != 0 && interval>0 && !mPriority) pacer.frame(interval);
+			}
+			long rtpts = (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L;
+			if (hasDestination()) mReport.update(length, rtpts);
+			if (mCount++>=mWarmup) {
+				if (hasDestination()) transport.send(mBuffers[mBufferOut], length, mSocketAddress);
+				sendSubscribers(rtpts);
+				archive(now);
+			}
+			updateLatency(now, i==0 ? n : 0);
+			mOldTimestamp = mTimestamps[mBufferOut];
+			release(now);
+		}
+		mLastDrain = now;
+		return n;
+	}
+
+	/** 
+	 * Gives the slot at the head of the FIFO back to the packetizer. Its buffer is kept 
+	 * for the next packets, or goes back to the pool when the FIFO shrinks.
+	 */
+	private void release(long now) {
+		int i = mBufferOut;
+		byte[] buffer = mBuffers[i];
+		if (!mDrop[i]) mQueuedBytes.addAndGet(-mPackets[i].getLength());
+		// A frame is being sent until its last packet, the one with the marker bit
+		mFrameSending = buffer != null && !mDrop[i] && (buffer[1]&0x80) == 0;
+		mDrop[i] = false;
+		mBuffers[i] = null;
+		if (++mBufferOut>=mBufferCount) mBufferOut = 0;
+		mFifo.release();
+		if (mScanned>0) mScanned--;
+		mHeadTime = mFifo.available()>0 ? mCommitTimes[mBufferOut] : 0;
+		if (buffer == null) return;
+
+		// The socket keeps as many buffers as the FIFO needed during the last few seconds
+		int size = mFifo.size();
+		if (size>mPeak) mPeak = size;
+		if (now-mPeakStart>PEAK_WINDOW) {
+			mKeep = Math.max(mPeak, MIN_SPARE);
+			mPeak = 0;
+			mPeakStart = now;
+		}
+		if (mSpareRing.size()<mKeep) {
 			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+				// There is room in the ring, it does not wait
+				mSpareRing.claim();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mSpares[mSpareIn] = buffer;
+			if (++mSpareIn>=mBufferCount) mSpareIn = 0;
+			mSpareRing.publish();
+		} else {
+			mPool.release(buffer);
+			mAllocated.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Applies the overflow policy to the packet at the head of the FIFO.
+	 * @return True if the packet was dropped, the next one is then at the head of the FIFO
+	 */
+	private boolean shed(long now) {
+		int i = mBufferOut;
+		if ((mFlags[i]&FLAG_EMPTY) != 0) {
+			// Committed without a length, nothing to send
+			mDrop[i] = true;
+			release(now);
+			return true;
+		}
+		if (!mDrop[i] && mOverflow != OVERFLOW_BLOCK) {
+			if (mAwaitKeyframe) {
+				if ((mFlags[i]&FLAG_KEYFRAME) != 0) mAwaitKeyframe = false;
+				else drop(i);
+			} else if (isFull(mCommitTimes[i], now) || mFifo.size()>=mBufferCount) {
+				if (mOverflow == OVERFLOW_DROP_OLDEST) dropDiscardable(now);
+				// In the latency bounded mode, the frame being sent is not cut
+				else if (mOverflow != OVERFLOW_LATENCY_BOUNDED || !mFrameSending) dropToKeyframe();
+			}
+		}
+		if (!mDrop[i]) return false;
+		release(now);
+		return true;
+	}
+
+	/** Drops the oldest discardable packets until the FIFO is within its budget again. */
+	private void dropDiscardable(long now) {
+		int n = mFifo.available(), k = mScanned;
+		for (int j=(mBufferOut+k)%mBufferCount;k<n;k++) {
+			if (!mDrop[j] && (mFlags[j]&FLAG_DISCARDABLE) != 0) {
+				if (!isFull(mCommitTimes[j], now)) break;
+				drop(j);
+			}
+			if (++j>=mBufferCount) j = 0;
+		}
+		// Packets already looked at are not looked at again
+		mScanned = k;
+	}
+
+	/** 
+	 * Drops every packet before the most recent keyframe of the FIFO. Without one, 
+	 * the packets are dropped until the next keyframe is committed.
+	 */
+	private void dropToKeyframe() {
+		int n = mFifo.available(), last = -1;
+		for (int k=1,j=(mBufferOut+1)%mBufferCount;k<n;k++) {
+			if ((mFlags[j]&FLAG_KEYFRAME) != 0) last = k;
+			if (++j>=mBufferCount) j = 0;
+		}
+		// The keyframe itself is at the head of the FIFO, it goes through
+		if (last<0 && (mFlags[mBufferOut]&FLAG_KEYFRAME) != 0) return;
+		for (int k=0,j=mBufferOut;k<(last<0 ? n : last);k++) {
+			if (!mDrop[j]) drop(j);
+			if (++j>=mBufferCount) j = 0;
+		}
+		if (last<0) {
+			mAwaitKeyframe = true;
+			KeyframeListener listener = mKeyframeListener;
+			if (listener != null) listener.onKeyframeNeeded();
+		}
+	}
+
+	private void drop(int i) {
+		int length = mPackets[i].getLength();
+		mDrop[i] = true;
+		mQueuedBytes.addAndGet(-length);
+		mDroppedPackets++;
+		mDroppedBytes += length;
+		Pacer pacer = getPacer();
+		if (pacer != null) pacer.dropped(length);
+	}
+
+	/** Called by the {@link SharedTransport} when it could not send a packet. */
+	void fail(IOException e) {
+		mRegistered = false;
+		mError = e;
+	}
+
+	private void sendSubscribers(long rtpts) {
+		if (mSubscribers.isEmpty()) return;
+		int length = mPackets[mBufferOut].getLength();
+		for (Subscriber subscriber : mSubscribers) {
+			if (subscriber.isActive()) {
+				subscriber.send(mBuffers[mBufferOut], length, rtpts);
+			} else {
+				mSubscribers.remove(subscriber);
+			}
+		}
+	}
+
+	/** 
+	 * Keeps the packet that was just sent in the history, the slot of the FIFO gets
+	 * a buffer the history no longer needs, with the same RTP header.
+	 */
+	private void archive(long now) {
+		if (mHistory == null) return;
+		byte[] buffer = mBuffers[mBufferOut];
+		byte[] spare = mHistory.store(buffer, mPackets[mBufferOut].getLength(), now);
+		if (spare == null) return;
+		System.arraycopy(buffer, 0, spare, 0, RTP_HEADER_LENGTH);
+		mBuffers[mBufferOut] = spare;
+		mPackets[mBufferOut].setData(spare);
+	}
+
+	/** Called by the RTCP thread, the packets are sent again by the sending thread. */
+	private void queueNack(int pid, int blp, Subscriber target) {
+		synchronized (mNacks) {
+			for (int i=-1;i<16;i++) {
+				if (i>=0 && (blp&(1<<i)) == 0) continue;
+				int next = (mNackTail+1)%mNacks.length;
+				if (next == mNackHead) return; // Full, the receiver will ask again
+				mNacks[mNackTail] = (pid+i+1)&0xFFFF;
+				mNackTargets[mNackTail] = target;
+				mNackTail = next;
+			}
+		}
+	}
+
+	/** Sends again the packets requested by the receivers, called by the sending thread between two packets. */
+	private void processNacks() throws IOException {
+		if (mHistory == null) return;
+		while (true) {
+			int seq;
+			Subscriber target;
+			synchronized (mNacks) {
+				if (mNackHead == mNackTail) return;
+				seq = mNacks[mNackHead];
+				target = mNackTargets[mNackHead];
+				mNackTargets[mNackHead] = null;
+				mNackHead = (mNackHead+1)%mNacks.length;
+			}
+			long now = System.nanoTime();
+			int i = mHistory.find(seq, now);
+			if (i<0) continue;
+
+			// The same packet is not sent twice during one round trip
+			long rtt = (target != null ? target.getReceptionStats() : mReport.getReceptionStats()).getRtt();
+			long resent = mHistory.getResent(i);
+			if (resent != 0 && now-resent<TimeUnit.MILLISECONDS.toNanos(rtt>0 ? rtt : 100)) continue;
+			mHistory.setResent(i, now);
+
+			byte[] buffer = mHistory.getBuffer(i);
+			int length = mHistory.getLength(i);
+			if (target != null) {
+				// Subscribers already have their own SSRC, we don't open an RTX stream for each of them
+				target.resend(buffer, length);
+			} else if (mTransport != TRANSPORT_TCP && hasDestination()) {
+				if (mRtxMode == RTX_SSRC) {
+					buffer = toRtx(buffer, length);
+					length += 2;
+				}
+				sendRaw(buffer, length);
+			} else {
+				continue;
+			}
+			// Retransmissions go through the priority lane of the pacer
+			Pacer pacer = getPacer();
+			if (pacer != null) pacer.consume(length, now);
+			mRtxBitrate.push(length);
+			mRetransmissions++;
 		}
 	}
 
+	/** Wraps a packet in an RTX packet (RFC 4588): own SSRC and sequence, original sequence number before the payload. */
+	private byte[] toRtx(byte[] packet, int length) {
+		byte[] rtx = mRtxBuffer;
+		rtx[0] = packet[0];
+		rtx[1] = (byte) ((packet[1]&0x80) | RTX_PAYLOAD_TYPE);
+		setLong(rtx, ++mRtxSeq&0xFFFF, 2, 4);
+		System.arraycopy(packet, 4, rtx, 4, 4);
+		setLong(rtx, mRtxSsrc&0xFFFFFFFFL, 8, 12);
+		rtx[12] = packet[2];
+		rtx[13] = packet[3];
+		System.arraycopy(packet, RTP_HEADER_LENGTH, rtx, RTP_HEADER_LENGTH+2, length-RTP_HEADER_LENGTH);
+		return rtx;
+	}
+
+	/** Sends a packet that is not in the FIFO to the destination of the socket. */
+	private void sendRaw(byte[] buffer, int length) throws IOException {
+		switch (mTransport) {
+		case TRANSPORT_UDP_BATCH:
+			sendChannel(buffer, length);
+			break;
+		case TRANSPORT_UDP_SHARED:
+			mShared.send(buffer, length, mSocketAddress);
+			break;
+		default:
+			mRtxPacket.setData(buffer, 0, length);
+			mRtxPacket.setSocketAddress(mSocketAddress);
+			socket().send(mRtxPacket);
+		}
+	}
+
+	private void sendTCP() throws IOException {
+		mWriter.write(mChannelIdentifier, mBuffers[mBufferOut], 0, mPackets[mBufferOut].getLength());
+	}
+
 	private void setLong(byte[] buffer, long n, int begin, int end) {
 		for (end--; end >= begin; end--) {
 			buffer[end] = (byte) (n % 256);
@@ -334,8 +1339,43 @@ public class RtpSocket implements Runnable {
 	}
 
 	/** 
-	 * Computes an average bit rate. 
-	 **/
+	 * Forwards the RTCP feedback about the stream or about a subscriber to the listeners of the socket. 
+	 * The sequence numbers of the subscribers are shifted back by their offset.
+	 */
+	private class Feedback implements RtcpListener {
+
+		private final Subscriber mSubscriber;
+		private final int mOffset;
+
+		public Feedback(Subscriber subscriber) {
+			mSubscriber = subscriber;
+			mOffset = subscriber != null ? subscriber.getSequenceOffset() : 0;
+		}
+
+		@Override
+		public void onReceiverReport(ReceptionStats stats) {
+			for (RtcpListener listener : mRtcpListeners) listener.onReceiverReport(stats);
+		}
+
+		@Override
+		public void onNack(int ssrc, int pid, int blp) {
+			pid = (pid - mOffset) & 0xFFFF;
+			if (mHistory != null) queueNack(pid, blp, mSubscriber);
+			for (RtcpListener listener : mRtcpListeners) listener.onNack(mSsrc, pid, blp);
+		}
+
+		@Override
+		public void onPli(int ssrc) {
+			for (RtcpListener listener : mRtcpListeners) listener.onPli(mSsrc);
+		}
+
+		@Override
+		public void onFir(int ssrc) {
+			for (RtcpListener listener : mRtcpListeners) listener.onFir(mSsrc);
+		}
+
+	}
+
 	protected static class AverageBitrate {
 
 		private final static long RESOLUTION = 200;
@@ -395,54 +1435,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.util.Log;
+
+/**
+ * One pair of UDP channels (RTP and RTCP) and one thread shared by all the
+ * {@link RtpSocket} that use {@link RtpSocket#TRANSPORT_UDP_SHARED}.
+ *
+ * The thread visits the FIFO of the registered sockets in turn and sends at most
+ * {@link #BATCH_SIZE} packets from each of them, so a busy video track can't starve
+ * the others. The number of threads and file descriptors no longer grows with the
+ * number of tracks and viewers.
+ */
+public class SharedTransport implements Runnable {
+
+	public final static String TAG = "SharedTransport";
+
+	/** Maximum number of packets sent from one socket before the next one gets its turn. */
+	public final static int BATCH_SIZE = 16;
+
+	/** Maximum time in ns the thread sleeps when no socket has anything to send. */
+	private final static long IDLE_NANOS = 10000000;
+
+	private static SharedTransport sInstance = null;
+
+	private final CopyOnWriteArrayList<RtpSocket> mSockets = new CopyOnWriteArrayList<RtpSocket>();
+	private DatagramChannel mRtpChannel, mRtcpChannel;
+	private Selector mSelector;
+	private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(RtpSocket.MTU);
+	private final ByteBuffer mRtcpBuffer = ByteBuffer.allocateDirect(RtpSocket.MTU);
+	private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(SenderReport.MTU);
+	private final RtcpReceiver mRtcpReceiver = new RtcpReceiver();
+	private volatile Thread mThread = null;
+	private volatile boolean mPending = false;
+	private int mNext = 0;
+	private long mWait = IDLE_NANOS;
+
+	/** Returns the transport shared by the whole application, its channels are opened the first time. */
+	public static synchronized SharedTransport get() throws IOException {
+		if (sInstance == null) {
+			SharedTransport transport = new SharedTransport();
+			transport.open();
+			sInstance = transport;
+		}
+		return sInstance;
+	}
+
+	private SharedTransport() {}
+
+	private void open() throws IOException {
+		try {
+			mSelector = Selector.open();
+			mRtpChannel = DatagramChannel.open();
+			mRtpChannel.socket().bind(new InetSocketAddress(0));
+			mRtpChannel.configureBlocking(false);
+			mRtpChannel.register(mSelector, SelectionKey.OP_WRITE);
+			mRtcpChannel = DatagramChannel.open();
+			mRtcpChannel.socket().bind(new InetSocketAddress(0));
+			mRtcpChannel.configureBlocking(false);
+			mRtcpChannel.register(mSelector, SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void close() {
+		try {
+			if (mSelector != null) mSelector.close();
+		} catch (IOException ignore) {}
+		try {
+			if (mRtpChannel != null) mRtpChannel.close();
+		} catch (IOException ignore) {}
+		try {
+			if (mRtcpChannel != null) mRtcpChannel.close();
+		} catch (IOException ignore) {}
+	}
+
+	/** Returns the local ports used for RTP and RTCP, the same for every stream. */
+	public int[] getLocalPorts() {
+		return new int[] {
+			mRtpChannel.socket().getLocalPort(),
+			mRtcpChannel.socket().getLocalPort()
+		};
+	}
+
+	/** Returns the receiver of the RTCP packets sent to the RTCP channel. */
+	public RtcpReceiver getRtcpReceiver() {
+		return mRtcpReceiver;
+	}
+
+	/** Returns the number of sockets currently served by the thread. */
+	public int getSocketCount() {
+		return mSockets.size();
+	}
+
+	/** The thread starts to drain the FIFO of the socket. */
+	synchronized void register(RtpSocket socket) {
+		if (mSockets.addIfAbsent(socket) && mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/** The thread stops when no socket is left. */
+	synchronized void unregister(RtpSocket socket) {
+		mSockets.remove(socket);
+		wakeUp();
+	}
+
+	/** Called by the packetizers when they commit a packet. */
+	void wakeUp() {
+		mPending = true;
+		Thread thread = mThread;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/** Called by a socket waiting for the tokens of its {@link Pacer}, the thread sleeps at most that long in ns. */
+	void wakeUpIn(long nanos) {
+		if (nanos<mWait) mWait = nanos;
+	}
+
+	/** Sends an RTP packet from the sending thread. */
+	void send(byte[] buffer, int length, SocketAddress address) throws IOException {
+		send(mRtpChannel, mBuffer, buffer, length, address);
+	}
+
+	/** Sends an RTCP packet, may be called from any thread. */
+	public void sendRtcp(byte[] buffer, int length, SocketAddress address) throws IOException {
+		synchronized (mRtcpBuffer) {
+			send(mRtcpChannel, mRtcpBuffer, buffer, length, address);
+		}
+	}
+
+	private void send(DatagramChannel channel, ByteBuffer direct, byte[] buffer, int length, SocketAddress address) throws IOException {
+		direct.clear();
+		direct.put(buffer, 0, length);
+		direct.flip();
+		while (channel.send(direct, address) == 0) {
+			// The send buffer of the socket is full
+			synchronized (mSelector) {
+				mSelector.select(10);
+				mSelector.selectedKeys().clear();
+			}
+		}
+	}
+
+	/** Reads the RTCP packets waiting in the channel, it never blocks. */
+	private void receiveRtcp() {
+		try {
+			while (true) {
+				mReceiveBuffer.clear();
+				if (mRtcpChannel.receive(mReceiveBuffer) == null) break;
+				mRtcpReceiver.receive(mReceiveBuffer.array(), 0, mReceiveBuffer.position());
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to receive RTCP packets: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (mSockets.isEmpty()) {
+					mThread = null;
+					return;
+				}
+			}
+			mPending = false;
+			mWait = IDLE_NANOS;
+			Object[] sockets = mSockets.toArray();
+			int sent = 0, n = sockets.length;
+			if (mNext>=n) mNext = 0;
+			for (int i=0;i<n;i++) {
+				RtpSocket socket = (RtpSocket) sockets[(mNext+i)%n];
+				try {
+					sent += socket.drain(this, BATCH_SIZE);
+				} catch (IOException e) {
+					Log.e(TAG, "Failed to send a packet: "+e.getMessage());
+					mSockets.remove(socket);
+					socket.fail(e);
+				}
+			}
+			mNext++;
+			receiveRtcp();
+			if (sent == 0 && !mPending) {
+				LockSupport.parkNanos(this, mWait);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.Random;
+import net.majorkernelpanic.streaming.rtcp.ReceptionStats;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.util.Log;
+
+/**
+ * An additional destination of an {@link RtpSocket}.
+ *
+ * Every packet sent by the RTP socket is copied, the copy gets the SSRC of the subscriber
+ * and a sequence number shifted by a constant offset, and is sent with UDP or interleaved
+ * in an RTSP connection. Each subscriber has its own RTCP Sender Reports.
+ * Subscribers can be added to and removed from a running {@link RtpSocket}.
+ */
+public class Subscriber {
+
+	public final static String TAG = "Subscriber";
+
+	private final int mSsrc;
+	private final int mSeqOffset;
+	private final int mTransport;
+	private final SenderReport mReport;
+	private final byte[] mBuffer = new byte[RtpSocket.MTU];
+
+	private MulticastSocket mSocket = null;
+	private SharedTransport mShared = null;
+	private InetSocketAddress mAddress = null;
+	private DatagramPacket mPacket = null;
+	private InterleavedWriter mWriter = null;
+	private int mChannelIdentifier = 0;
+	private int mRtpPort = -1, mRtcpPort = -1;
+	private InetAddress mDestination = null;
+	private volatile boolean mClosed = false;
+	private volatile boolean mPaused = false;
+	private long mDropped = 0;
+
+	private Subscriber(int transport) {
+		Random random = new Random();
+		mSsrc = random.nextInt();
+		mSeqOffset = random.nextInt(0x10000);
+		mTransport = transport;
+		mReport = new SenderReport();
+		mReport.setSSRC(mSsrc);
+	}
+
+	/**
+	 * Creates a subscriber that receives the packets with UDP.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public static Subscriber createUdp(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+		return createUdp(dest, rtpPort, rtcpPort, null);
+	}
+
+	/**
+	 * Creates a subscriber that receives the packets with UDP.
+	 * @param transport If not null, packets are sent with the channels of the {@link SharedTransport}, 
+	 * only use it for subscribers of an {@link RtpSocket} in {@link RtpSocket#TRANSPORT_UDP_SHARED} mode
+	 */
+	public static Subscriber createUdp(InetAddress dest, int rtpPort, int rtcpPort, SharedTransport transport) throws IOException {
+		Subscriber subscriber = new Subscriber(RtpSocket.TRANSPORT_UDP);
+		subscriber.mDestination = dest;
+		subscriber.mRtpPort = rtpPort;
+		subscriber.mRtcpPort = rtcpPort;
+		subscriber.mShared = transport;
+		if (transport != null) {
+			subscriber.mAddress = new InetSocketAddress(dest, rtpPort);
+		} else {
+			subscriber.mSocket = new MulticastSocket();
+			subscriber.mPacket = new DatagramPacket(subscriber.mBuffer, 1, dest, rtpPort);
+		}
+		subscriber.mReport.setDestination(dest, rtcpPort, transport);
+		return subscriber;
+	}
+
+	/**
+	 * Creates a subscriber that receives the packets interleaved in an RTSP connection.
+	 * @param outputStream The output stream of the RTSP connection
+	 * @param channelIdentifier The channel used for RTP, RTCP uses the next one
+	 */
+	public static Subscriber createTcp(OutputStream outputStream, byte channelIdentifier) {
+		Subscriber subscriber = new Subscriber(RtpSocket.TRANSPORT_TCP);
+		subscriber.mWriter = InterleavedWriter.get(outputStream);
+		subscriber.mChannelIdentifier = channelIdentifier;
+		subscriber.mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+		return subscriber;
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the offset added to the sequence numbers of the {@link RtpSocket}. */
+	public int getSequenceOffset() {
+		return mSeqOffset;
+	}
+
+	public int getTransport() {
+		return mTransport;
+	}
+
+	public InetAddress getDestination() {
+		return mDestination;
+	}
+
+	/** Returns the pair of destination ports, RTP first and RTCP second. */
+	public int[] getDestinationPorts() {
+		return new int[] {mRtpPort, mRtcpPort};
+	}
+
+	/** Returns the pair of source ports, RTP first and RTCP second. */
+	public int[] getLocalPorts() {
+		if (mShared != null) return mShared.getLocalPorts();
+		return new int[] {
+			mSocket != null ? mSocket.getLocalPort() : -1,
+			mReport.getLocalPort()
+		};
+	}
+
+	/** Returns the number of packets dropped because the RTSP connection of the subscriber was too slow. */
+	public long getDroppedPackets() {
+		return mDropped;
+	}
+
+	/** Returns what the subscriber reports about the stream it receives. */
+	public ReceptionStats getReceptionStats() {
+		return mReport.getReceptionStats();
+	}
+
+	/** Returns the Sender Report of the subscriber. */
+	public SenderReport getSenderReport() {
+		return mReport;
+	}
+
+	public void setTimeToLive(int ttl) throws IOException {
+		if (mSocket != null) mSocket.setTimeToLive(ttl);
+	}
+
+	/** Returns false once the subscriber was closed or failed to send a packet. */
+	public boolean isActive() {
+		return !mClosed;
+	}
+
+	/** While paused, the packets of the stream are not sent to the subscriber, its sockets are kept. */
+	public void setPaused(boolean paused) {
+		mPaused = paused;
+	}
+
+	public boolean isPaused() {
+		return mPaused;
+	}
+
+	/** Stops sending packets to the subscriber and releases its sockets. */
+	public void close() {
+		mClosed = true;
+		if (mSocket != null) mSocket.close();
+		mReport.close();
+	}
+
+	/** Sends again a packet of the stream, the sender report is left untouched. */
+	void resend(byte[] packet, int length) {
+		send(packet, length, -1);
+	}
+
+	/**
+	 * Called by the sending thread of the {@link RtpSocket} for every packet.
+	 * Errors are not thrown, a subscriber that can't be reached is closed
+	 * and must not stop the other destinations.
+	 */
+	void send(byte[] packet, int length, long rtpts) {
+		if (mClosed || mPaused) return;
+		System.arraycopy(packet, 0, mBuffer, 0, length);
+		int seq = (((packet[2]&0xFF)<<8 | (packet[3]&0xFF)) + mSeqOffset) & 0xFFFF;
+		mBuffer[2] = (byte) (seq>>8);
+		mBuffer[3] = (byte) seq;
+		mBuffer[8] = (byte) (mSsrc>>24);
+		mBuffer[9] = (byte) (mSsrc>>16);
+		mBuffer[10] = (byte) (mSsrc>>8);
+		mBuffer[11] = (byte) mSsrc;
+		try {
+			if (mTransport == RtpSocket.TRANSPORT_TCP) {
+				// A slow viewer loses packets but does not slow down the others
+				if (!mWriter.offer(mChannelIdentifier, mBuffer, 0, length)) {
+					mDropped++;
+					return;
+				}
+			} else if (mShared != null) {
+				mShared.send(mBuffer, length, mAddress);
+			} else {
+				mPacket.setLength(length);
+				mSocket.send(mPacket);
+			}
+			if (rtpts>=0) mReport.update(length, rtpts);
+		} catch (IOException e) {
+			if (!mClosed) Log.e(TAG, "Subscriber "+Integer.toHexString(mSsrc)+" failed: "+e.getMessage());
+			close();
+		}
+	}
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.majorkernelpanic.streaming.MediaStream;
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtp.Subscriber;
+import android.util.Log;
+
+/**
+ * The live sources of the {@link RtspServer}: one session per source, shared by all its clients.
+ *
+ * A source is named after the URI requested by the clients: the same parameters in any order give
+ * the same source. The session of a source is configured once, by the first DESCRIBE, and its
+ * description is kept for the DESCRIBEs that follow. The clients are then added to the running streams
+ * as {@link Subscriber}s, a stream runs as long as it has one. A source that no client uses anymore is
+ * kept configured for a while, then released.
+ *
+ * Sources sent to a multicast group are shared too, the streams are then sent to the group.
+ * URIs that choose where the stream is sent with "unicast" can't be shared.
+ *
+ * The clients of other sources can ask for multicast in SETUP: the source is then given a group
+ * of the source-specific multicast range (232/8, RFC 4607), and each track is sent once to
+ * that group for all the clients that joined it, its first client adds it, its last one removes it.
+ */
+public class LiveSourceRegistry {
+
+	public final static String TAG = "LiveSourceRegistry";
+
+	/** Sources that no client uses are released after that time, in ms. */
+	public final static long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	/** Port of the audio track in the multicast group of a source, the video track uses the next pair. */
+	public final static int DEFAULT_MULTICAST_PORT = 5004;
+
+	/** Time to live of the packets sent to multicast groups, enough for a LAN. */
+	public final static int DEFAULT_MULTICAST_TTL = 16;
+
+	/** Creates the session of a source. */
+	public interface Factory {
+		Session create(String uri) throws IllegalStateException, IOException;
+	}
+
+	/** A session shared by the clients that requested the same URI. */
+	public class LiveSource {
+
+		private final String mName;
+		private final Session mSession;
+		private final int[] mAttached = new int[2];
+		private final Subscriber[] mGroups = new Subscriber[2];
+		private final int[] mMembers = new int[2];
+		private InetAddress mGroup = null;
+		private String mDescription = null;
+		private boolean mMulticast = false;
+		private int mClients = 0;
+		private TimerTask mExpiry = null;
+
+		private LiveSource(String name, Session session) {
+			mName = name;
+			mSession = session;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public Session getSession() {
+			return mSession;
+		}
+
+		/** Returns the description of the session, computed once. */
+		public String getSessionDescription() {
+			return mDescription;
+		}
+
+		/** Returns true if the streams are sent to a multicast group rather than to each client. */
+		public boolean isMulticast() {
+			return mMulticast;
+		}
+
+		/** Returns true if a stream of the source is running. */
+		public boolean isStreaming() {
+			return mSession.isStreaming();
+		}
+
+		/** Configures the session, done once by the first client, the others wait for it. */
+		private synchronized void configure(String origin) throws IllegalStateException, IOException {
+			if (mDescription != null) return;
+			mSession.setOrigin(origin);
+			String destination = mSession.getDestination();
+			mMulticast = destination != null && InetAddress.getByName(destination).isMulticastAddress();
+			if (!mMulticast) {
+				// No client in particular, each one is a subscriber
+				mSession.setDestination("0.0.0.0");
+				for (int i=0;i<2;i++) {
+					if (mSession.trackExists(i)) mSession.getTrack(i).setDestinationPorts(0, 0);
+				}
+			}
+			long now = System.nanoTime();
+			mSession.syncConfigure();
+			mDescription = mSession.getSessionDescription();
+			Log.d(TAG, "Source "+mName+" configured in "+(System.nanoTime()-now)/1000000+" ms");
+		}
+
+		/**
+		 * Sends a track to a client, and starts it if it is not running yet.
+		 * @return The subscriber of the client, or null if the track is sent to a multicast group
+		 */
+		public synchronized Subscriber attach(int trackId, InetAddress destination, int rtpPort, int rtcpPort) throws IOException {
+			Subscriber subscriber = null;
+			if (!mMulticast) {
+				Stream stream = mSession.getTrack(trackId);
+				if (!(stream instanceof MediaStream)) throw new IllegalStateException("The track can't be shared");
+				subscriber = ((MediaStream) stream).addSubscriber(destination, rtpPort, rtcpPort);
+			}
+			try {
+				mSession.syncStart(trackId);
+			} catch (IOException e) {
+				if (subscriber != null) ((MediaStream) mSession.getTrack(trackId)).removeSubscriber(subscriber);
+				throw e;
+			} catch (RuntimeException e) {
+				if (subscriber != null) ((MediaStream) mSession.getTrack(trackId)).removeSubscriber(subscriber);
+				throw e;
+			}
+			mAttached[trackId]++;
+			return subscriber;
+		}
+
+		/** Stops sending a track to a client, the track is stopped if it was the last one. */
+		public synchronized void detach(int trackId, Subscriber subscriber) {
+			if (subscriber != null) ((MediaStream) mSession.getTrack(trackId)).removeSubscriber(subscriber);
+			if (mAttached[trackId]>0 && --mAttached[trackId] == 0) {
+				mSession.getTrack(trackId).stop();
+				Log.d(TAG, "Track "+trackId+" of "+mName+" stopped");
+			}
+		}
+
+		/**
+		 * Sends a track to the multicast group of the source, and starts it if it is not running yet.
+		 * The group is allocated by the first client, the track is sent to it once for all its clients.
+		 * @return The subscriber of the group, shared by its clients
+		 */
+		public synchronized Subscriber join(int trackId) throws IOException {
+			if (mMulticast) throw new IllegalStateException("The source is already sent to a multicast group");
+			Stream stream = mSession.getTrack(trackId);
+			if (!(stream instanceof MediaStream)) throw new IllegalStateException("The track can't be shared");
+			boolean added = mGroups[trackId] == null;
+			if (added) {
+				if (mGroup == null) mGroup = allocateGroup();
+				int port = mMulticastPort + 2*trackId;
+				Subscriber group = Subscriber.createUdp(mGroup, port, port+1);
+				group.setTimeToLive(mMulticastTtl);
+				mGroups[trackId] = ((MediaStream) stream).addSubscriber(group);
+				Log.d(TAG, "Track "+trackId+" of "+mName+" sent to "+mGroup.getHostAddress()+":"+port);
+			}
+			try {
+				mSession.syncStart(trackId);
+			} catch (IOException e) {
+				if (added) leaveGroup(trackId);
+				throw e;
+			} catch (RuntimeException e) {
+				if (added) leaveGroup(trackId);
+				throw e;
+			}
+			mMembers[trackId]++;
+			mAttached[trackId]++;
+			return mGroups[trackId];
+		}
+
+		/** A client leaves the multicast group, the group stops receiving the track after its last client. */
+		public synchronized void leave(int trackId) {
+			if (mMembers[trackId] == 0) return;
+			if (--mMembers[trackId] == 0) leaveGroup(trackId);
+			detach(trackId, null);
+		}
+
+		/** Returns the time to live of the packets sent to the multicast group. */
+		public int getMulticastTimeToLive() {
+			return mMulticastTtl;
+		}
+
+		private void leaveGroup(int trackId) {
+			((MediaStream) mSession.getTrack(trackId)).removeSubscriber(mGroups[trackId]);
+			mGroups[trackId] = null;
+		}
+
+	}
+
+	private final Factory mFactory;
+	private final HashMap<String, LiveSource> mSources = new HashMap<String, LiveSource>();
+	private final HashSet<InetAddress> mAllocated = new HashSet<InetAddress>();
+	private final Random mRandom = new Random();
+	private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private Timer mTimer = null;
+	private int mMulticastPort = DEFAULT_MULTICAST_PORT;
+	private int mMulticastTtl = DEFAULT_MULTICAST_TTL;
+
+	public LiveSourceRegistry(Factory factory) {
+		mFactory = factory;
+	}
+
+	/** Sets how long a source no client uses stays configured, in ms. */
+	public synchronized void setIdleTimeout(long ms) {
+		mIdleTimeout = ms;
+	}
+
+	/** 
+	 * Sets the ports of the tracks in the multicast groups: the audio track uses that port and the next one,
+	 * the video track the two after. Every source has its own group, they all use the same ports.
+	 */
+	public synchronized void setMulticastPort(int port) {
+		mMulticastPort = port;
+	}
+
+	/** Sets the time to live of the packets sent to the multicast groups. */
+	public synchronized void setMulticastTimeToLive(int ttl) {
+		mMulticastTtl = ttl;
+	}
+
+	/**
+	 * Returns the name of the source of a URI, or null if the URI can't be shared.
+	 * The scheme, the host and the port don't matter, neither does the order of the parameters.
+	 */
+	public static String getName(String uri) {
+		URI parsed = URI.create(uri);
+		String path = parsed.getRawPath();
+		String query = parsed.getRawQuery();
+		if (path == null) path = "";
+		while (path.endsWith("/")) path = path.substring(0, path.length()-1);
+		if (query == null || query.length() == 0) return path;
+		String[] params = query.split("&");
+		for (int i=0;i<params.length;i++) {
+			int eq = params[i].indexOf('=');
+			String name = (eq<0 ? params[i] : params[i].substring(0, eq)).toLowerCase(Locale.US);
+			if (name.equals("unicast")) return null;
+			params[i] = eq<0 ? name : name+params[i].substring(eq);
+		}
+		Arrays.sort(params);
+		StringBuilder name = new StringBuilder(path).append('?');
+		for (int i=0;i<params.length;i++) {
+			if (params[i].length() == 0) continue;
+			if (name.charAt(name.length()-1) != '?') name.append('&');
+			name.append(params[i]);
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Returns the source of a URI, configured, created if needed.
+	 * Must be given back with {@link #release(LiveSource)}.
+	 * @param uri The URI requested
+	 * @param origin The address of the server, for the session description
+	 * @return The source or null if the URI can't be shared
+	 */
+	public LiveSource acquire(String uri, String origin) throws IllegalStateException, IOException {
+		String name = getName(uri);
+		if (name == null) return null;
+
+		LiveSource source;
+		synchronized (this) {
+			source = mSources.get(name);
+			if (source == null) {
+				source = new LiveSource(name, mFactory.create(uri));
+				mSources.put(name, source);
+				Log.i(TAG, "New source: "+name);
+			}
+			source.mClients++;
+			if (source.mExpiry != null) {
+				source.mExpiry.cancel();
+				source.mExpiry = null;
+			}
+		}
+
+		try {
+			source.configure(origin);
+		} catch (IOException e) {
+			discard(source);
+			throw e;
+		} catch (RuntimeException e) {
+			discard(source);
+			throw e;
+		}
+		return source;
+	}
+
+	/** A client does not use the source anymore. */
+	public void release(final LiveSource source) {
+		synchronized (this) {
+			if (--source.mClients>0) return;
+			if (mSources.get(source.mName) == source) {
+				if (mTimer == null) mTimer = new Timer(TAG, true);
+				source.mExpiry = new TimerTask() {
+					@Override
+					public void run() {
+						synchronized (LiveSourceRegistry.this) {
+							if (source.mClients>0 || source.mExpiry != this) return;
+							mSources.remove(source.mName);
+						}
+						Log.i(TAG, "Source released: "+source.mName);
+						destroy(source);
+					}
+				};
+				mTimer.schedule(source.mExpiry, mIdleTimeout);
+				return;
+			}
+		}
+		// The source was removed from the registry
+		destroy(source);
+	}
+
+	/** Stops and releases all the sources. */
+	public void clear() {
+		ArrayList<LiveSource> sources;
+		synchronized (this) {
+			sources = new ArrayList<LiveSource>(mSources.values());
+			mSources.clear();
+			if (mTimer != null) {
+				mTimer.cancel();
+				mTimer = null;
+			}
+		}
+		for (LiveSource source : sources) {
+			destroy(source);
+		}
+	}
+
+	/**
+	 * Picks a group of the source-specific multicast range at random, that no other source uses.
+	 * Picking at random makes it unlikely that two devices of the same network use the same group.
+	 */
+	private synchronized InetAddress allocateGroup() throws IOException {
+		InetAddress group;
+		do {
+			byte[] address = new byte[] {(byte) 232, (byte) (1+mRandom.nextInt(255)), 
+					(byte) mRandom.nextInt(256), (byte) (1+mRandom.nextInt(254))};
+			group = InetAddress.getByAddress(address);
+		} while (mAllocated.contains(group));
+		mAllocated.add(group);
+		return group;
+	}
+
+	/** Stops and releases the session of a source, and its multicast group. */
+	private void destroy(LiveSource source) {
+		source.mSession.syncStop();
+		source.mSession.release();
+		synchronized (this) {
+			if (source.mGroup != null) mAllocated.remove(source.mGroup);
+		}
+	}
+
+	/** A source that could not be configured, the clients waiting for it will try again. */
+	private void discard(LiveSource source) {
+		synchronized (this) {
+			if (mSources.get(source.mName) == source) mSources.remove(source.mName);
+		}
+		release(source);
+	}
+
+}
@@ -18,11 +18,20 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.Locale;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import android.util.Log;
 
+/**
+ * Separates the RTSP messages from the RTP and RTCP packets interleaved in the input stream 
+ * of an RTSP connection (RFC 2326, section 10.12). RTCP packets are given to an {@link RtcpReceiver}, 
+ * RTP packets are dropped and RTSP messages can be read from the deinterleaver.
+ */
 class RtcpDeinterleaver extends InputStream implements Runnable {
 	
 	public final static String TAG = "RtcpDeinterleaver";
@@ -31,30 +40,89 @@ class RtcpDeinterleaver extends InputStream implements Runnable {
 	private InputStream mInputStream;
 	private PipedInputStream mPipedInputStream;
 	private PipedOutputStream mPipedOutputStream;
+	private RtcpReceiver mReceiver;
 	private byte[] mBuffer;
 	
-	public RtcpDeinterleaver(InputStream inputStream) {
-		mInputStream = inputStream;
+	public RtcpDeinterleaver(InputStream inputStream, RtcpReceiver receiver) {
+		mInputStream = new BufferedInputStream(inputStream);
+		mReceiver = receiver;
 		mPipedInputStream = new PipedInputStream(4096);
 		try {
 			mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
 		} catch (IOException e) {}
-		mBuffer = new byte[1024];
-		new Thread(this).start();
+		mBuffer = new byte[65536];
+		new Thread(this, TAG).start();
 	}
 
 	@Override
 	public void run() {
 		try {
 			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+				int c = readByte();
+				if (c == '$') {
+					// An interleaved RTP or RTCP packet
+					int channel = readByte();
+					int len = readByte()<<8 | readByte();
+					readFully(len);
+					if ((channel&1) == 1) {
+						mReceiver.receive(mBuffer, 0, len);
+					}
+				} else {
+					readMessage(c);
+				}
 			}
 		} catch (IOException e) {
+			mIOException = e;
+		} finally {
 			try {
-				mPipedInputStream.close();
+				mPipedOutputStream.close();
 			} catch (IOException ignore) {}
-			mIOException = e;
+		}
+	}
+
+	/** Copies an RTSP message in the pipe, the headers line by line then the body. */
+	private void readMessage(int c) throws IOException {
+		int length = 0, contentLength = 0;
+		while (true) {
+			mBuffer[length++] = (byte) c;
+			if (c == '\n') {
+				String line = new String(mBuffer, 0, length, "UTF-8").trim();
+				mPipedOutputStream.write(mBuffer, 0, length);
+				length = 0;
+				if (line.length() == 0) break;
+				if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+					try {
+						contentLength = Integer.parseInt(line.substring(15).trim());
+					} catch (NumberFormatException e) {
+						Log.e(TAG, "Invalid header: "+line);
+					}
+				}
+			} else if (length == mBuffer.length) {
+				throw new IOException("RTSP header too long");
+			}
+			c = readByte();
+		}
+		while (contentLength>0) {
+			int len = Math.min(contentLength, mBuffer.length);
+			readFully(len);
+			mPipedOutputStream.write(mBuffer, 0, len);
+			contentLength -= len;
+		}
+		mPipedOutputStream.flush();
+	}
+
+	private int readByte() throws IOException {
+		int c = mInputStream.read();
+		if (c<0) throw new IOException("Connection closed");
+		return c;
+	}
+
+	private void readFully(int length) throws IOException {
+		int offset = 0;
+		while (offset<length) {
+			int len = mInputStream.read(mBuffer, offset, length-offset);
+			if (len<0) throw new IOException("Connection closed");
+			offset += len;
 		}
 	}
 
@@ -18,24 +18,30 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Locale;
 import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Headers;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Method;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Reader;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Transport;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Writer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -62,6 +68,12 @@ public class RtspClient {
 	
 	/** Use this to use TCP for the transport protocol. */
 	public final static int TRANSPORT_TCP = RtpSocket.TRANSPORT_TCP;	
+
+	/** Use this to use UDP for the transport protocol, packets are sent in bursts. */
+	public final static int TRANSPORT_UDP_BATCH = RtpSocket.TRANSPORT_UDP_BATCH;
+
+	/** Use this to use UDP for the transport protocol, all the streams share the same sockets and thread. */
+	public final static int TRANSPORT_UDP_SHARED = RtpSocket.TRANSPORT_UDP_SHARED;
 	
 	/** 
 	 * Message sent when the connection with the RTSP server has been lost for 
@@ -114,8 +126,10 @@ public class RtspClient {
 	private Socket mSocket;
 	private String mSessionID;
 	private String mAuthorization;
-	private BufferedReader mBufferedReader;
+	private Reader mReader;
+	private final Writer mWriter = new Writer();
 	private OutputStream mOutputStream;
+	private RtcpReceiver mRtcpReceiver;
 	private Callback mCallback;
 	private Handler mMainHandler;
 	private Handler mHandler;
@@ -202,8 +216,8 @@ public class RtspClient {
 	}
 
 	/**
-	 * Call this with {@link #TRANSPORT_TCP} or {@value #TRANSPORT_UDP} to choose the 
-	 * transport protocol that will be used to send RTP/RTCP packets.
+	 * Call this with {@link #TRANSPORT_TCP}, {@link #TRANSPORT_UDP}, {@link #TRANSPORT_UDP_BATCH} or {@link #TRANSPORT_UDP_SHARED} 
+	 * to choose the transport protocol that will be used to send RTP/RTCP packets.
 	 * Not ready yet !
 	 */
 	public void setTransportMode(int mode) {
@@ -234,6 +248,12 @@ public class RtspClient {
 				// If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted
 				mParameters = mTmpParameters.clone();
 				mParameters.session.setDestination(mTmpParameters.host);
+				for (int i=0;i<2;i++) {
+					Stream stream = mParameters.session.getTrack(i);
+					if (stream instanceof MediaStream) {
+						((MediaStream)stream).setUdpTransport(mParameters.transport != TRANSPORT_TCP ? mParameters.transport : TRANSPORT_UDP);
+					}
+				}
 				
 				try {
 					mParameters.session.syncConfigure();
@@ -254,8 +274,15 @@ public class RtspClient {
 				try {
 					mParameters.session.syncStart();
 					mState = STATE_STARTED;
-					if (mParameters.transport == TRANSPORT_UDP) {
+					if (mParameters.transport != TRANSPORT_TCP) {
 						mHandler.post(mConnectionMonitor);
+					} else {
+						for (int i=0;i<2;i++) {
+							Stream stream = mParameters.session.getTrack(i);
+							if (stream instanceof MediaStream) {
+								mRtcpReceiver.register(((MediaStream)stream).getPacketizer().getRtpSocket().getSenderReport());
+							}
+						}
 					}
 				} catch (Exception e) {
 					abort();
@@ -293,6 +320,10 @@ public class RtspClient {
 		try {
 			sendRequestTeardown();
 		} catch (Exception ignore) {}
+		if (mOutputStream != null) {
+			// Stops the thread writing the interleaved packets
+			InterleavedWriter.release(mOutputStream);
+		}
 		try {
 			mSocket.close();
 		} catch (Exception ignore) {}
@@ -304,7 +335,13 @@ public class RtspClient {
 	private void tryConnection() throws IOException {
 		mCSeq = 0;
 		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		InputStream inputStream = mSocket.getInputStream();
+		if (mParameters.transport == TRANSPORT_TCP) {
+			// The server may send RTCP packets interleaved with its responses
+			mRtcpReceiver = new RtcpReceiver();
+			inputStream = new RtcpDeinterleaver(inputStream, mRtcpReceiver);
+		}
+		mReader = new Reader(new BufferedInputStream(inputStream));
 		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
 		sendRequestAnnounce();
 		sendRequestSetup();
@@ -316,30 +353,25 @@ public class RtspClient {
 	 */
 	private void sendRequestAnnounce() throws IllegalStateException, SocketException, IOException {
 
-		String body = mParameters.session.getSessionDescription();
-		String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-				"CSeq: " + (++mCSeq) + "\r\n" +
-				"Content-Length: " + body.length() + "\r\n" +
-				"Content-Type: application/sdp\r\n\r\n" +
-				body;
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+		byte[] body = mParameters.session.getSessionDescription().getBytes("UTF-8");
+		String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
+		mWriter.request(Method.ANNOUNCE, uri, ++mCSeq)
+				.header("Content-Type", "application/sdp")
+				.end(body);
+		Log.i(TAG,"ANNOUNCE "+uri);
 
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
+		write();
+		Response response = Response.parseResponse(mReader);
 
-		if (response.headers.containsKey("server")) {
+		if (response.headers.contains("server")) {
 			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
 		} else {
 			Log.v(TAG,"RTSP server name unknown");
 		}
 
-		if (response.headers.containsKey("session")) {
-			try {
-				Matcher m = Response.rexegSession.matcher(response.headers.get("session"));
-				m.find();
-				mSessionID = m.group(1);
-			} catch (Exception e) {
+		if (response.headers.contains("session")) {
+			mSessionID = RtspCodec.parseSessionId(response.headers.get("session"));
+			if (mSessionID.length() == 0) {
 				throw new IOException("Invalid response from server. Session id: "+mSessionID);
 			}
 		}
@@ -358,26 +390,22 @@ public class RtspClient {
 				throw new IOException("Invalid response from server");
 			}
 
-			String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
 			String hash1 = computeMd5Hash(mParameters.username+":"+m.group(1)+":"+mParameters.password);
 			String hash2 = computeMd5Hash("ANNOUNCE"+":"+uri);
 			String hash3 = computeMd5Hash(hash1+":"+m.group(2)+":"+hash2);
 
 			mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
 
-			request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-					"CSeq: " + (++mCSeq) + "\r\n" +
-					"Content-Length: " + body.length() + "\r\n" +
-					"Authorization: " + mAuthorization + "\r\n" +
-					"Session: " + mSessionID + "\r\n" +
-					"Content-Type: application/sdp\r\n\r\n" +
-					body;
+			mWriter.request(Method.ANNOUNCE, uri, ++mCSeq)
+					.header("Authorization", mAuthorization)
+					.header("Session", String.valueOf(mSessionID))
+					.header("Content-Type", "application/sdp")
+					.end(body);
 
-			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+			Log.i(TAG,"ANNOUNCE "+uri);
 
-			mOutputStream.write(request.getBytes("UTF-8"));
-			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
+			write();
+			response = Response.parseResponse(mReader);
 
 			if (response.status == 401) throw new RuntimeException("Bad credentials !");
 
@@ -396,34 +424,33 @@ public class RtspClient {
 			if (stream != null) {
 				String params = mParameters.transport==TRANSPORT_TCP ? 
 						("TCP;interleaved="+2*i+"-"+(2*i+1)) : ("UDP;unicast;client_port="+(5000+2*i)+"-"+(5000+2*i+1)+";mode=receive");
-				String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i+" RTSP/1.0\r\n" +
-						"Transport: RTP/AVP/"+params+"\r\n" +
-						addHeaders();
+				String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i;
+				addHeaders(mWriter.request(Method.SETUP, uri, ++mCSeq)
+						.header("Transport", "RTP/AVP/"+params));
 
-				Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
+				Log.i(TAG,"SETUP "+uri);
 
-				mOutputStream.write(request.getBytes("UTF-8"));
-				mOutputStream.flush();
-				Response response = Response.parseResponse(mBufferedReader);
-				Matcher m;
+				write();
+				Response response = Response.parseResponse(mReader);
 				
-				if (response.headers.containsKey("session")) {
-					try {
-						m = Response.rexegSession.matcher(response.headers.get("session"));
-						m.find();
-						mSessionID = m.group(1);
-					} catch (Exception e) {
+				if (response.headers.contains("session")) {
+					mSessionID = RtspCodec.parseSessionId(response.headers.get("session"));
+					if (mSessionID.length() == 0) {
 						throw new IOException("Invalid response from server. Session id: "+mSessionID);
 					}
 				}
 				
-				if (mParameters.transport == TRANSPORT_UDP) {
+				if (mParameters.transport != TRANSPORT_TCP) {
+					Transport transport = null;
 					try {
-						m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
-						stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
-						Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
-					} catch (Exception e) {
-						e.printStackTrace();
+						transport = Transport.parse(response.headers.get("transport"));
+					} catch (IllegalStateException e) {
+						Log.e(TAG, "Invalid Transport header: "+e.getMessage());
+					}
+					if (transport != null && transport.serverPort != null) {
+						stream.setDestinationPorts(transport.serverPort[0], transport.serverPort[1]);
+						Log.d(TAG, "Setting destination ports: "+transport.serverPort[0]+", "+transport.serverPort[1]);
+					} else {
 						int[] ports = stream.getDestinationPorts();
 						Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 					}
@@ -438,42 +465,48 @@ public class RtspClient {
 	 * Forges and sends the RECORD request 
 	 */
 	private void sendRequestRecord() throws IllegalStateException, SocketException, IOException {
-		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-				"Range: npt=0.000-\r\n" +
-				addHeaders();
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
+		addHeaders(mWriter.request(Method.RECORD, uri, ++mCSeq)
+				.header("Range", "npt=0.000-"));
+		Log.i(TAG,"RECORD "+uri);
+		write();
+		Response.parseResponse(mReader);
 	}
 
 	/**
 	 * Forges and sends the TEARDOWN request 
 	 */
 	private void sendRequestTeardown() throws IOException {
-		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
+		String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
+		addHeaders(mWriter.request(Method.TEARDOWN, uri, ++mCSeq));
+		Log.i(TAG,"TEARDOWN "+uri);
+		write();
 	}
 	
 	/**
 	 * Forges and sends the OPTIONS request 
 	 */
 	private void sendRequestOption() throws IOException {
-		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
-		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
-	}	
+		String uri = "rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path;
+		addHeaders(mWriter.request(Method.OPTIONS, uri, ++mCSeq));
+		Log.i(TAG,"OPTIONS "+uri);
+		write();
+		Response.parseResponse(mReader);
+	}
+
+	/** RTP and RTCP packets may be interleaved in the same stream when TCP is used. */
+	private void write() throws IOException {
+		synchronized (mOutputStream) {
+			mWriter.writeTo(mOutputStream);
+			mOutputStream.flush();
+		}
+	}
 
-	private String addHeaders() {
-		return "CSeq: " + (++mCSeq) + "\r\n" +
-				"Content-Length: 0\r\n" +
-				"Session: " + mSessionID + "\r\n" +
-				// For some reason you may have to remove last "\r\n" in the next line to make the RTSP client work with your wowza server :/
-				(mAuthorization != null ? "Authorization: " + mAuthorization + "\r\n":"") + "\r\n";
+	/** Ends a request with the headers common to all requests. */
+	private void addHeaders(Writer writer) {
+		writer.header("Session", String.valueOf(mSessionID));
+		if (mAuthorization != null) writer.header("Authorization", mAuthorization);
+		writer.end();
 	}
 
 	/**
@@ -569,44 +602,30 @@ public class RtspClient {
 
 	static class Response {
 
-		// Parses method & uri
-		public static final Pattern regexStatus = Pattern.compile("RTSP/\\d.\\d (\\d+) (\\w+)",Pattern.CASE_INSENSITIVE);
-		// Parses a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
 		// Parses a WWW-Authenticate header
 		public static final Pattern rexegAuthenticate = Pattern.compile("realm=\"(.+)\",\\s+nonce=\"(\\w+)\"",Pattern.CASE_INSENSITIVE);
-		// Parses a Session header
-		public static final Pattern rexegSession = Pattern.compile("(\\d+)",Pattern.CASE_INSENSITIVE);
-		// Parses a Transport header
-		public static final Pattern rexegTransport = Pattern.compile("client_port=(\\d+)-(\\d+).+server_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
 
+		// Responses and their headers are not supposed to be that large
+		private static final int MAX_HEAD_SIZE = 16384;
 
 		public int status;
-		public HashMap<String,String> headers = new HashMap<String,String>();
+		public Headers headers;
 
-		/** Parse the method, URI & headers of a RTSP request */
-		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		/** Parses the status & headers of a RTSP response, its content is skipped. */
+		public static Response parseResponse(Reader input) throws IOException, IllegalStateException, SocketException {
 			Response response = new Response();
-			String line;
-			Matcher matcher;
-			// Parsing request method & URI
-			if ((line = input.readLine())==null) throw new SocketException("Connection lost");
-			matcher = regexStatus.matcher(line);
-			matcher.find();
-			response.status = Integer.parseInt(matcher.group(1));
-
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null) {
-				//Log.e(TAG,"l: "+line.length()+", c: "+line);
-				if (line.length()>3) {
-					matcher = rexegHeader.matcher(line);
-					matcher.find();
-					response.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-				} else {
-					break;
-				}
-			}
-			if (line==null) throw new SocketException("Connection lost");
+			int length = input.readHead(MAX_HEAD_SIZE);
+
+			// The headers keep the bytes, which will be overwritten by the next response
+			byte[] head = new byte[length];
+			System.arraycopy(input.array(), 0, head, 0, length);
+
+			int end = RtspCodec.lineEnd(head, 0, length);
+			response.status = RtspCodec.parseStatus(head, 0, end);
+			response.headers = Headers.parse(head, end+2, length);
+
+			int contentLength = response.headers.getInt("content-length", 0);
+			if (contentLength>0) input.readContent(contentLength);
 
 			Log.d(TAG, "Response from server: "+response.status);
 
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes RTSP/1.0 messages (RFC 2326), used by the {@link RtspServer} and the {@link RtspClient}.
+ *
+ * Messages are parsed straight from the bytes received: the method is looked up in a table,
+ * and the headers are only located, a value is decoded when it is asked for. Messages are
+ * written in a buffer that is reused from one message to the next.
+ */
+final class RtspCodec {
+
+	private RtspCodec() {}
+
+	/** The methods of RTSP. */
+	enum Method {
+		OPTIONS, DESCRIBE, ANNOUNCE, SETUP, PLAY, PAUSE, RECORD, TEARDOWN, GET_PARAMETER, SET_PARAMETER, REDIRECT,
+		/** Anything else. */
+		UNKNOWN;
+
+		private final static Method[] METHODS = values();
+
+		/** Looks up the method in data[start,end), case is ignored. */
+		public static Method parse(byte[] data, int start, int end) {
+			for (int i=0;i<METHODS.length-1;i++) {
+				if (equalsIgnoreCase(data, start, end, METHODS[i].name())) return METHODS[i];
+			}
+			return UNKNOWN;
+		}
+
+	}
+
+	/**
+	 * The headers of a message, the names are not case sensitive.
+	 * Only the offsets of the names and values are kept until a value is asked for.
+	 */
+	static final class Headers {
+
+		private byte[] mData;
+		private int[] mFields = new int[4*16];
+		private int mCount = 0;
+
+		/**
+		 * Locates the headers in data[start,end).
+		 * @param data The message, kept by the headers: it must not be modified afterwards
+		 * @param end The end of the headers, after the empty line
+		 * @throws IllegalStateException If a header is malformed
+		 */
+		public static Headers parse(byte[] data, int start, int end) throws IllegalStateException {
+			Headers headers = new Headers();
+			headers.mData = data;
+			int eol;
+			while (start<end && (eol = lineEnd(data, start, end))>start) {
+				int colon = indexOf(data, ':', start, eol);
+				if (colon<=start) throw new IllegalStateException("Malformed header");
+				int value = colon+1;
+				while (value<eol && data[value]==' ') value++;
+				int last = eol;
+				while (last>value && data[last-1]==' ') last--;
+				headers.add(start, colon, value, last);
+				start = eol+2;
+			}
+			return headers;
+		}
+
+		private void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+			if (4*mCount == mFields.length) {
+				int[] fields = new int[2*mFields.length];
+				System.arraycopy(mFields, 0, fields, 0, mFields.length);
+				mFields = fields;
+			}
+			int i = 4*mCount++;
+			mFields[i] = nameStart;
+			mFields[i+1] = nameEnd;
+			mFields[i+2] = valueStart;
+			mFields[i+3] = valueEnd;
+		}
+
+		private int find(String name) {
+			for (int i=0;i<4*mCount;i+=4) {
+				if (equalsIgnoreCase(mData, mFields[i], mFields[i+1], name)) return i;
+			}
+			return -1;
+		}
+
+		public boolean contains(String name) {
+			return find(name)>=0;
+		}
+
+		/** Returns the value of the first header with that name, or null. */
+		public String get(String name) {
+			int i = find(name);
+			return i<0 ? null : ascii(mData, mFields[i+2], mFields[i+3]);
+		}
+
+		/** Returns the value of the header as an integer, or the default value if absent or not a number. */
+		public int getInt(String name, int defaultValue) {
+			int i = find(name);
+			if (i<0) return defaultValue;
+			long value = parseLong(mData, mFields[i+2], mFields[i+3], 10);
+			return value<0 || value>Integer.MAX_VALUE ? defaultValue : (int) value;
+		}
+
+		public int size() {
+			return mCount;
+		}
+
+	}
+
+	/** The Transport header. */
+	static final class Transport {
+
+		/** The profile and the lower transport, e.g. "RTP/AVP" or "RTP/AVP/TCP". */
+		public String protocol = "RTP/AVP/UDP";
+		public boolean multicast = false;
+		public String destination = null;
+		public String source = null;
+		public int[] clientPort = null;
+		public int[] serverPort = null;
+		public int[] interleaved = null;
+		public int[] port = null;
+		public int ttl = -1;
+		public int ssrc = 0;
+		public boolean hasSsrc = false;
+		public String mode = null;
+
+		public boolean isTcp() {
+			return protocol.regionMatches(true, protocol.length()-3, "TCP", 0, 3);
+		}
+
+		/**
+		 * Parses the first transport of a Transport header.
+		 * @return The transport or null if there is no header
+		 * @throws IllegalStateException If a parameter is malformed
+		 */
+		public static Transport parse(String header) throws IllegalStateException {
+			if (header == null) return null;
+			Transport transport = new Transport();
+			int end = header.indexOf(',');
+			if (end<0) end = header.length();
+			int start = 0, i = 0;
+			while (start<=end) {
+				int next = header.indexOf(';', start);
+				if (next<0 || next>end) next = end;
+				int eq = header.indexOf('=', start);
+				String name = (eq<0 || eq>next ? header.substring(start, next) : header.substring(start, eq)).trim();
+				String value = eq<0 || eq>next ? null : header.substring(eq+1, next).trim();
+				if (i++ == 0) {
+					transport.protocol = name;
+				} else if (value == null) {
+					if (name.equalsIgnoreCase("multicast")) transport.multicast = true;
+					else if (name.equalsIgnoreCase("unicast")) transport.multicast = false;
+				} else if (name.equalsIgnoreCase("destination")) {
+					transport.destination = value;
+				} else if (name.equalsIgnoreCase("source")) {
+					transport.source = value;
+				} else if (name.equalsIgnoreCase("client_port")) {
+					transport.clientPort = parsePorts(value);
+				} else if (name.equalsIgnoreCase("server_port")) {
+					transport.serverPort = parsePorts(value);
+				} else if (name.equalsIgnoreCase("interleaved")) {
+					transport.interleaved = parsePorts(value);
+				} else if (name.equalsIgnoreCase("port")) {
+					transport.port = parsePorts(value);
+				} else if (name.equalsIgnoreCase("ttl")) {
+					transport.ttl = parseInt(value, 10);
+				} else if (name.equalsIgnoreCase("ssrc")) {
+					transport.ssrc = (int) parseLong(value, 16);
+					transport.hasSsrc = true;
+				} else if (name.equalsIgnoreCase("mode")) {
+					transport.mode = value.replace("\"", "");
+				}
+				start = next+1;
+			}
+			return transport;
+		}
+
+		/** A port "p", or a range of ports "p1-p2". */
+		private static int[] parsePorts(String value) {
+			int dash = value.indexOf('-');
+			if (dash<0) {
+				int p = parseInt(value, 10);
+				return new int[] {p, p+1};
+			}
+			return new int[] {parseInt(value.substring(0, dash), 10), parseInt(value.substring(dash+1), 10)};
+		}
+
+		private static int parseInt(String value, int radix) {
+			long v = parseLong(value, radix);
+			if (v>Integer.MAX_VALUE) throw new IllegalStateException("Malformed number: "+value);
+			return (int) v;
+		}
+
+		private static long parseLong(String value, int radix) {
+			long v = 0;
+			int n = value.length();
+			if (n == 0 || n>(radix==16?8:10)) throw new IllegalStateException("Malformed number: "+value);
+			for (int i=0;i<n;i++) {
+				int d = Character.digit(value.charAt(i), radix);
+				if (d<0) throw new IllegalStateException("Malformed number: "+value);
+				v = v*radix+d;
+			}
+			return v;
+		}
+
+		/** Writes the transport as the value of a header. */
+		public void write(Writer writer) {
+			writer.append(protocol).append(multicast ? ";multicast" : ";unicast");
+			if (destination != null) writer.append(";destination=").append(destination);
+			if (source != null) writer.append(";source=").append(source);
+			writePorts(writer, ";client_port=", clientPort);
+			writePorts(writer, ";server_port=", serverPort);
+			writePorts(writer, ";interleaved=", interleaved);
+			writePorts(writer, ";port=", port);
+			if (ttl>=0) writer.append(";ttl=").append(ttl);
+			if (hasSsrc) writer.append(";ssrc=").appendHex(ssrc);
+			if (mode != null) writer.append(";mode=").append(mode);
+		}
+
+		private static void writePorts(Writer writer, String name, int[] ports) {
+			if (ports != null) writer.append(name).append(ports[0]).append('-').append(ports[1]);
+		}
+
+		@Override
+		public String toString() {
+			Writer writer = new Writer();
+			write(writer);
+			return writer.toString();
+		}
+
+	}
+
+	/** Writes messages in a buffer reused from one message to the next. */
+	static final class Writer {
+
+		private byte[] mBuffer = new byte[1024];
+		private ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+		private int mLength = 0;
+
+		/** Starts a request. */
+		public Writer request(Method method, String uri, int cseq) {
+			mLength = 0;
+			append(method.name()).append(' ').append(uri).append(" RTSP/1.0\r\n");
+			return header("CSeq", cseq);
+		}
+
+		/**
+		 * Starts a response.
+		 * @param status The status code and reason, see {@link RtspServer.Response}
+		 * @param cseq The CSeq of the request, or -1
+		 */
+		public Writer response(String status, int cseq) {
+			mLength = 0;
+			append("RTSP/1.0 ").append(status).append("\r\n");
+			header("Server", RtspServer.SERVER_NAME);
+			return cseq>=0 ? header("Cseq", cseq) : this;
+		}
+
+		public Writer header(String name, String value) {
+			return append(name).append(": ").append(value).append("\r\n");
+		}
+
+		public Writer header(String name, long value) {
+			return append(name).append(": ").append(value).append("\r\n");
+		}
+
+		/** Starts a header whose value is then written with the append methods, and ended with {@link #endHeader()}. */
+		public Writer startHeader(String name) {
+			return append(name).append(": ");
+		}
+
+		public Writer endHeader() {
+			return append("\r\n");
+		}
+
+		/** Ends the message with its content. */
+		public Writer end(byte[] content) {
+			int length = content == null ? 0 : content.length;
+			header("Content-Length", length).append("\r\n");
+			if (length>0) {
+				ensure(length);
+				System.arraycopy(content, 0, mBuffer, mLength, length);
+				mLength += length;
+			}
+			return this;
+		}
+
+		/** Ends the message, without any content. */
+		public Writer end() {
+			return end(null);
+		}
+
+		public Writer append(String s) {
+			int n = s.length();
+			ensure(n);
+			for (int i=0;i<n;i++) {
+				char c = s.charAt(i);
+				if (c>0x7F) {
+					// Rare enough, not worth the trouble
+					mLength -= i;
+					return append(utf8(s));
+				}
+				mBuffer[mLength++] = (byte) c;
+			}
+			return this;
+		}
+
+		public Writer append(char c) {
+			ensure(1);
+			mBuffer[mLength++] = (byte) c;
+			return this;
+		}
+
+		public Writer append(long value) {
+			if (value<0) {
+				append('-');
+				value = -value;
+			}
+			ensure(20);
+			int start = mLength;
+			do {
+				mBuffer[mLength++] = (byte) ('0'+value%10);
+				value /= 10;
+			} while (value>0);
+			reverse(start);
+			return this;
+		}
+
+		public Writer appendHex(int value) {
+			ensure(8);
+			int start = mLength;
+			do {
+				mBuffer[mLength++] = (byte) "0123456789abcdef".charAt(value&0x0F);
+				value >>>= 4;
+			} while (value != 0);
+			reverse(start);
+			return this;
+		}
+
+		private Writer append(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+			mLength += bytes.length;
+			return this;
+		}
+
+		private void reverse(int start) {
+			for (int i=start, j=mLength-1;i<j;i++,j--) {
+				byte b = mBuffer[i];
+				mBuffer[i] = mBuffer[j];
+				mBuffer[j] = b;
+			}
+		}
+
+		private void ensure(int n) {
+			if (mLength+n>mBuffer.length) {
+				byte[] buffer = new byte[Math.max(2*mBuffer.length, mLength+n)];
+				System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+				mBuffer = buffer;
+				mByteBuffer = ByteBuffer.wrap(mBuffer);
+			}
+		}
+
+		public int length() {
+			return mLength;
+		}
+
+		/** Returns the message in a buffer ready to be written, it is valid until the next message. */
+		public ByteBuffer buffer() {
+			mByteBuffer.limit(mLength).position(0);
+			return mByteBuffer;
+		}
+
+		public void writeTo(OutputStream output) throws IOException {
+			output.write(mBuffer, 0, mLength);
+		}
+
+		@Override
+		public String toString() {
+			return ascii(mBuffer, 0, mLength);
+		}
+
+	}
+
+	/** Reads the head of messages from a stream, in a buffer reused from one message to the next. */
+	static final class Reader {
+
+		private final InputStream mInput;
+		private byte[] mBuffer = new byte[1024];
+
+		/** The stream should be buffered, it is read one byte at a time. */
+		public Reader(InputStream input) {
+			mInput = input;
+		}
+
+		/**
+		 * Reads the start line and the headers of a message, up to the empty line.
+		 * @return The length of the head in {@link #array()}
+		 */
+		public int readHead(int maxLength) throws IOException {
+			int length = 0;
+			while (length<4 || mBuffer[length-1]!='\n' || mBuffer[length-2]!='\r' || mBuffer[length-3]!='\n' || mBuffer[length-4]!='\r') {
+				int b = mInput.read();
+				if (b<0) throw new SocketException("Connection lost");
+				if (length == mBuffer.length) {
+					if (length>=maxLength) throw new IOException("Message too large");
+					byte[] buffer = new byte[2*length];
+					System.arraycopy(mBuffer, 0, buffer, 0, length);
+					mBuffer = buffer;
+				}
+				mBuffer[length++] = (byte) b;
+			}
+			return length;
+		}
+
+		/** Reads the content of a message. */
+		public byte[] readContent(int length) throws IOException {
+			byte[] content = new byte[length];
+			for (int read = 0, n; read<length; read += n) {
+				n = mInput.read(content, read, length-read);
+				if (n<0) throw new SocketException("Connection lost");
+			}
+			return content;
+		}
+
+		public byte[] array() {
+			return mBuffer;
+		}
+
+	}
+
+	/**
+	 * Parses the status line of a response, e.g. "RTSP/1.0 200 OK".
+	 * @return The status code
+	 * @throws IllegalStateException If the line is malformed
+	 */
+	static int parseStatus(byte[] data, int start, int end) throws IllegalStateException {
+		if (end-start<12 || !equalsIgnoreCase(data, start, start+5, "RTSP/") || data[start+8]!=' ') {
+			throw new IllegalStateException("Malformed status line");
+		}
+		long status = parseLong(data, start+9, start+12, 10);
+		if (status<0) throw new IllegalStateException("Malformed status line");
+		return (int) status;
+	}
+
+	/**
+	 * Returns the index of the end of the line starting at start, before its CRLF.
+	 * @throws IllegalStateException If the line does not end before end
+	 */
+	static int lineEnd(byte[] data, int start, int end) throws IllegalStateException {
+		for (int i=start;i+1<end;i++) {
+			if (data[i]=='\r' && data[i+1]=='\n') return i;
+		}
+		throw new IllegalStateException("Unterminated line");
+	}
+
+	static int indexOf(byte[] data, char c, int start, int end) {
+		for (int i=start;i<end;i++) {
+			if (data[i]==c) return i;
+		}
+		return -1;
+	}
+
+	/** Compares data[start,end) with an ASCII string, case is ignored. */
+	static boolean equalsIgnoreCase(byte[] data, int start, int end, String s) {
+		if (end-start != s.length()) return false;
+		for (int i=start;i<end;i++) {
+			int a = data[i], b = s.charAt(i-start);
+			if (a>='A' && a<='Z') a += 'a'-'A';
+			if (b>='A' && b<='Z') b += 'a'-'A';
+			if (a != b) return false;
+		}
+		return true;
+	}
+
+	/** Parses a positive number, or returns -1. */
+	static long parseLong(byte[] data, int start, int end, int radix) {
+		if (start>=end || end-start>18) return -1;
+		long value = 0;
+		for (int i=start;i<end;i++) {
+			int d = Character.digit((char) (data[i]&0xFF), radix);
+			if (d<0) return -1;
+			value = value*radix+d;
+		}
+		return value;
+	}
+
+	static String ascii(byte[] data, int start, int end) {
+		char[] chars = new char[end-start];
+		for (int i=start;i<end;i++) chars[i-start] = (char) (data[i]&0xFF);
+		return new String(chars);
+	}
+
+	/**
+	 * Returns the track requested by a SETUP, e.g. 1 for "rtsp://host:port/trackID=1".
+	 * @return The track or -1 if the uri does not name one
+	 */
+	static int parseTrackId(String uri) {
+		int n = uri.length()-8;
+		for (int i=0;i<=n;i++) {
+			if (uri.regionMatches(true, i, "trackID=", 0, 8)) {
+				int track = 0, j = i+8;
+				for (;j<uri.length() && j<i+17 && uri.charAt(j)>='0' && uri.charAt(j)<='9';j++) {
+					track = 10*track+(uri.charAt(j)-'0');
+				}
+				return j>i+8 ? track : -1;
+			}
+		}
+		return -1;
+	}
+
+	/** Returns the id in a Session header, without the timeout that may follow. */
+	static String parseSessionId(String header) {
+		if (header == null) return null;
+		int end = header.indexOf(';');
+		return (end<0 ? header : header.substring(0, end)).trim();
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return s.getBytes();
+		}
+	}
+
+}
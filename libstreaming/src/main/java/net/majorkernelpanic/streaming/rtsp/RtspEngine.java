@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Writer;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Response;
+import android.util.Log;
+
+/**
+ * The network side of the {@link RtspServer}.
+ *
+ * One thread waits on a Selector for all the control connections, the requests are parsed as the
+ * bytes come in a buffer owned by each connection, and handled by a small pool of workers: setting up
+ * a stream may take a while. A connection has at most one request handled at a time, it is not read
+ * in the meantime. Connections that take too long to send a request, or that stay idle, are closed,
+ * and the number of connections is capped.
+ */
+class RtspEngine implements Runnable {
+
+	public final static String TAG = "RtspEngine";
+
+	/** Maximum number of control connections by default. */
+	public final static int DEFAULT_MAX_CONNECTIONS = 64;
+
+	/** A request must be received completely within that time, in ms. */
+	public final static long DEFAULT_REQUEST_TIMEOUT = 10000;
+
+	/** Connections with nothing to keep them alive are closed after that time, in ms. */
+	public final static long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	/** Requests can't be larger than that. */
+	public final static int MAX_REQUEST_SIZE = 16384;
+
+	private final static int BUFFER_SIZE = 2048;
+	private final static int WORKERS = 4;
+	private final static byte[] BUSY = ("RTSP/1.0 503 Service Unavailable\r\nServer: "+RtspServer.SERVER_NAME+"\r\nContent-Length: 0\r\n\r\n").getBytes();
+
+	/** What the engine does with the requests, called by the workers. */
+	interface Handler {
+
+		/** Handles a request of a connection, the requests of a connection are handled one at a time. */
+		Response onRequest(Connection connection, Request request);
+
+		/** Called once when a connection is closed, after its last request was handled. */
+		void onClosed(Connection connection);
+
+		/** Whether an idle connection should be kept, if it controls a stream for instance. */
+		boolean isActive(Connection connection);
+
+	}
+
+	/** A control connection. */
+	static class Connection {
+
+		final SocketChannel channel;
+		final Socket socket;
+
+		/** Whatever the handler needs to keep with the connection. */
+		volatile Object attachment;
+
+		// Only used by the thread of the selector
+		private SelectionKey mKey;
+		private ByteBuffer mInput = ByteBuffer.allocate(BUFFER_SIZE);
+		private int mScanned = 0, mHeaderEnd = 0;
+		private Request mPending = null;
+		private long mLastActivity, mRequestStart = 0;
+
+		// Shared with the workers
+		private ByteBuffer mWriting = null;
+		private boolean mLast = false;
+
+		// Shared with the workers, the responses are written in a buffer reused for the whole connection
+		private final Writer mWriter = new Writer();
+		private boolean mBusy = false, mClosed = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.socket = channel.socket();
+		}
+
+	}
+
+	private final Handler mHandler;
+	private final Selector mSelector;
+	private final ServerSocketChannel mServer;
+	private final ThreadPoolExecutor mWorkers;
+	private final Thread mThread;
+	private final HashSet<Connection> mConnections = new HashSet<Connection>();
+	private final ConcurrentLinkedQueue<Connection> mReady = new ConcurrentLinkedQueue<Connection>();
+
+	private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+	private volatile long mRequestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	private volatile long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile boolean mRunning = true;
+
+	/**
+	 * Binds the server and starts the thread of the selector.
+	 * @param port The port, 0 for any free port
+	 */
+	public RtspEngine(Handler handler, int port) throws IOException {
+		mHandler = handler;
+		mSelector = Selector.open();
+		mServer = ServerSocketChannel.open();
+		try {
+			mServer.socket().setReuseAddress(true);
+			mServer.socket().bind(new InetSocketAddress(port));
+			mServer.configureBlocking(false);
+			mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			mServer.close();
+			mSelector.close();
+			throw e;
+		}
+		mWorkers = new ThreadPoolExecutor(WORKERS, WORKERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int mCount = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "RtspWorker-"+(mCount++));
+			}
+		});
+		mWorkers.allowCoreThreadTimeOut(true);
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	public int getPort() {
+		return mServer.socket().getLocalPort();
+	}
+
+	public void setMaxConnections(int max) {
+		mMaxConnections = max;
+	}
+
+	/** Sets how long a client has to send a request once it started, in ms. */
+	public void setRequestTimeout(long ms) {
+		mRequestTimeout = ms;
+	}
+
+	/** Sets how long a connection that does not control anything may stay idle, in ms. */
+	public void setIdleTimeout(long ms) {
+		mIdleTimeout = ms;
+	}
+
+	/** Stops the server and closes all the connections. */
+	public void stop() {
+		mRunning = false;
+		mSelector.wakeup();
+		try {
+			mThread.join();
+		} catch (InterruptedException ignore) {
+			Thread.currentThread().interrupt();
+		}
+		mWorkers.shutdown();
+	}
+
+	public void run() {
+		Log.i(TAG,"RTSP server listening on port "+getPort());
+		long lastSweep = System.currentTimeMillis();
+		try {
+			while (mRunning) {
+				mSelector.select(1000);
+				long now = System.currentTimeMillis();
+
+				Connection ready;
+				while ((ready = mReady.poll()) != null) {
+					resume(ready, now);
+				}
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept(now);
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) read(connection, now);
+						if (key.isValid() && key.isWritable()) write(connection);
+					} catch (IOException e) {
+						close(connection);
+					}
+				}
+
+				if (now-lastSweep>=1000) {
+					lastSweep = now;
+					sweep(now);
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// The server was stopped
+		} catch (IOException e) {
+			Log.e(TAG, "Selector failed: "+e.getMessage());
+		} finally {
+			for (Connection connection : new ArrayList<Connection>(mConnections)) close(connection);
+			try {
+				mServer.close();
+			} catch (IOException ignore) {}
+			try {
+				mSelector.close();
+			} catch (IOException ignore) {}
+			Log.i(TAG,"RTSP server stopped !");
+		}
+	}
+
+	private void accept(long now) throws IOException {
+		SocketChannel channel;
+		while ((channel = mServer.accept()) != null) {
+			channel.configureBlocking(false);
+			if (mConnections.size()>=mMaxConnections) {
+				Log.w(TAG, "Too many connections, "+channel.socket().getInetAddress().getHostAddress()+" rejected");
+				try {
+					channel.write(ByteBuffer.wrap(BUSY));
+				} catch (IOException ignore) {}
+				channel.close();
+				continue;
+			}
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(channel);
+			connection.mLastActivity = now;
+			connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+			mConnections.add(connection);
+			Log.i(TAG, "Connection from "+channel.socket().getInetAddress().getHostAddress());
+		}
+	}
+
+	private void read(Connection connection, long now) throws IOException {
+		ByteBuffer input = connection.mInput;
+		if (!input.hasRemaining()) {
+			if (input.capacity()>=MAX_REQUEST_SIZE) {
+				reject(connection);
+				return;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity()*2, MAX_REQUEST_SIZE));
+			input.flip();
+			larger.put(input);
+			connection.mInput = input = larger;
+		}
+		int read = connection.channel.read(input);
+		if (read<0) {
+			close(connection);
+			return;
+		}
+		if (read>0) {
+			connection.mLastActivity = now;
+			if (connection.mRequestStart == 0) connection.mRequestStart = now;
+			parse(connection);
+		}
+	}
+
+	/** Looks for a complete request in the buffer of the connection and hands it to a worker. */
+	private void parse(Connection connection) {
+		// One request at a time, and its response must be sent first
+		if (connection.mBusy || connection.mWriting != null || connection.mLast) return;
+
+		ByteBuffer input = connection.mInput;
+		byte[] data = input.array();
+		int length = input.position();
+
+		// The headers may have been parsed already, the content was not there yet
+		Request request = connection.mPending;
+		int end = connection.mHeaderEnd;
+		if (request == null) {
+			// Looks for the empty line at the end of the headers, only through the new bytes
+			end = -1;
+			for (int i=Math.max(connection.mScanned-3, 0);i+3<length;i++) {
+				if (data[i+3]=='\n' && data[i+2]=='\r' && data[i+1]=='\n' && data[i]=='\r') {
+					end = i+4;
+					break;
+				}
+			}
+			if (end<0) {
+				connection.mScanned = length;
+				return;
+			}
+			try {
+				request = Request.parse(data, end);
+			} catch (IllegalStateException e) {
+				reject(connection);
+				return;
+			}
+		}
+		int total = end+request.contentLength;
+		if (total>MAX_REQUEST_SIZE || request.contentLength<0) {
+			reject(connection);
+			return;
+		}
+		if (total>length) {
+			connection.mPending = request;
+			connection.mHeaderEnd = end;
+			if (total>input.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(total);
+				input.flip();
+				larger.put(input);
+				connection.mInput = larger;
+			}
+			return;
+		}
+		request.content = new String(data, end, request.contentLength);
+
+		// What follows the request stays in the buffer
+		System.arraycopy(data, total, data, 0, length-total);
+		input.position(length-total);
+		connection.mScanned = 0;
+		connection.mPending = null;
+		connection.mRequestStart = length>total ? connection.mLastActivity : 0;
+
+		// The connection is not read while the request is handled
+		connection.mBusy = true;
+		connection.mKey.interestOps(connection.mKey.interestOps()&~SelectionKey.OP_READ);
+		final Connection c = connection;
+		final Request r = request;
+		mWorkers.execute(new Runnable() {
+			@Override
+			public void run() {
+				handle(c, r);
+			}
+		});
+	}
+
+	/** On a worker. */
+	private void handle(Connection connection, Request request) {
+		Response response;
+		try {
+			response = mHandler.onRequest(connection, request);
+		} catch (Exception e) {
+			Log.e(TAG, "Request not handled: "+e.getMessage());
+			response = new Response(request);
+		}
+		response.write(connection.mWriter);
+		boolean closed;
+		synchronized (connection) {
+			connection.mBusy = false;
+			closed = connection.mClosed;
+		}
+		if (closed) {
+			// The client left while the request was handled
+			mHandler.onClosed(connection);
+			return;
+		}
+		mReady.add(connection);
+		mSelector.wakeup();
+	}
+
+	/** Sends what the workers produced and reads the connection again. */
+	private void resume(Connection connection, long now) {
+		if (!connection.mKey.isValid()) return;
+		connection.mLastActivity = now;
+		connection.mWriting = connection.mWriter.buffer();
+		connection.mKey.interestOps(connection.mKey.interestOps()|SelectionKey.OP_READ);
+		try {
+			write(connection);
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void write(Connection connection) throws IOException {
+		if (connection.mWriting != null) {
+			connection.channel.write(connection.mWriting);
+			if (connection.mWriting.hasRemaining()) {
+				connection.mKey.interestOps(connection.mKey.interestOps()|SelectionKey.OP_WRITE);
+				return;
+			}
+			connection.mWriting = null;
+		}
+		connection.mKey.interestOps(connection.mKey.interestOps()&~SelectionKey.OP_WRITE);
+		if (connection.mLast) {
+			close(connection);
+		} else if (connection.mInput.position()>0) {
+			// Requests may already be waiting in the buffer
+			parse(connection);
+		}
+	}
+
+	/** Answers 400 to a request we can't parse and closes the connection once the answer is sent. */
+	private void reject(Connection connection) {
+		Response response = new Response();
+		response.status = Response.STATUS_BAD_REQUEST;
+		response.write(connection.mWriter);
+		connection.mWriting = connection.mWriter.buffer();
+		connection.mLast = true;
+		connection.mInput.clear();
+		connection.mKey.interestOps(connection.mKey.interestOps()&~SelectionKey.OP_READ);
+		try {
+			write(connection);
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	/** Closes the connections too slow to send a request, and those idle for too long. */
+	private void sweep(long now) {
+		for (Connection connection : new ArrayList<Connection>(mConnections)) {
+			boolean busy;
+			synchronized (connection) {
+				busy = connection.mBusy;
+			}
+			if (busy) continue;
+			if (connection.mRequestStart>0 && now-connection.mRequestStart>mRequestTimeout) {
+				Log.i(TAG, "Request timeout: "+connection.socket.getInetAddress().getHostAddress());
+				close(connection);
+			} else if (now-connection.mLastActivity>mIdleTimeout && !mHandler.isActive(connection)) {
+				Log.i(TAG, "Idle timeout: "+connection.socket.getInetAddress().getHostAddress());
+				close(connection);
+			}
+		}
+	}
+
+	private void close(final Connection connection) {
+		if (!mConnections.remove(connection)) return;
+		connection.mKey.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException ignore) {}
+		boolean busy;
+		synchronized (connection) {
+			connection.mClosed = true;
+			busy = connection.mBusy;
+		}
+		// Otherwise the worker handling the request will do it
+		if (!busy) {
+			try {
+				mWorkers.execute(new Runnable() {
+					@Override
+					public void run() {
+						mHandler.onClosed(connection);
+					}
+				});
+			} catch (RuntimeException e) {
+				// The engine is stopping
+				mHandler.onClosed(connection);
+			}
+		}
+	}
+
+}
@@ -18,23 +18,21 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Locale;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.Subscriber;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Headers;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Method;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Transport;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Writer;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -87,11 +85,19 @@ public class RtspServer extends Service {
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
 	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<Session,Object>(2);
+	protected boolean mLiveSources = true;
 	
 	private RequestListener mListenerThread;
 	private final IBinder mBinder = new LocalBinder();
 	private boolean mRestart = false;
 	private final LinkedList<CallbackListener> mListeners = new LinkedList<CallbackListener>();
+	private final RtspSessionManager mSessionManager = new RtspSessionManager();
+	private final LiveSourceRegistry mRegistry = new LiveSourceRegistry(new LiveSourceRegistry.Factory() {
+		@Override
+		public Session create(String uri) throws IllegalStateException, IOException {
+			return createLiveSource(uri);
+		}
+	});
 
     /** Credentials for Basic Auth */
     private String mUsername;
@@ -152,6 +158,27 @@ public class RtspServer extends Service {
 		editor.commit();
 	}
 
+	/**
+	 * Whether the clients requesting the same URI share the same session, true by default.
+	 * Otherwise each client gets its own session, built by {@link #handleRequest(String, Socket)}.
+	 */
+	public void setLiveSourcesEnabled(boolean enabled) {
+		mLiveSources = enabled;
+	}
+
+	/** Returns the live sources of the server. */
+	public LiveSourceRegistry getLiveSources() {
+		return mRegistry;
+	}
+
+	/**
+	 * Sets how long the RTSP session of a client lasts without keep-alive: a request,
+	 * or a RTCP receiver report. 60 seconds by default.
+	 */
+	public void setSessionTimeout(int seconds) {
+		mSessionManager.setTimeout(seconds);
+	}
+
     /**
      * Set Basic authorization to access RTSP Stream
      * @param username username
@@ -187,6 +214,8 @@ public class RtspServer extends Service {
 		if (mListenerThread != null) {
 			try {
 				mListenerThread.kill();
+				mSessionManager.clear();
+				mRegistry.clear();
 				for ( Session session : mSessions.keySet() ) {
 				    if ( session != null && session.isStreaming() ) {
 						session.stop();
@@ -303,6 +332,8 @@ public class RtspServer extends Service {
 	/** 
 	 * By default the RTSP uses {@link UriParser} to parse the URI requested by the client
 	 * but you can change that behavior by override this method.
+	 * Only used for the URIs that can't be shared, or if live sources are disabled, 
+	 * see {@link #createLiveSource(String)}.
 	 * @param uri The uri that the client has requested
 	 * @param client The socket associated to the client
 	 * @return A proper session
@@ -315,19 +346,28 @@ public class RtspServer extends Service {
 		}
 		return session;
 	}
+
+	/** 
+	 * Builds the session of a live source, shared by all the clients that request the same URI.
+	 * By default the RTSP uses {@link UriParser} to parse the URI, override this method to change that.
+	 * @param uri The uri that the first client has requested
+	 * @return A session, not configured yet
+	 */
+	protected Session createLiveSource(String uri) throws IllegalStateException, IOException {
+		return UriParser.parse(uri);
+	}
 	
-	class RequestListener extends Thread implements Runnable {
+	class RequestListener implements RtspEngine.Handler {
 
-		private final ServerSocket mServer;
+		private final RtspEngine mEngine;
 
 		public RequestListener() throws IOException {
 			try {
-				mServer = new ServerSocket(0);
-                mPort = mServer.getLocalPort();
-				start();
-                for(CallbackListener cb: mListeners){
-                    cb.onServerStarted(mPort);
-                }
+				mEngine = new RtspEngine(this, 0);
+				mPort = mEngine.getPort();
+				for(CallbackListener cb: mListeners){
+					cb.onServerStarted(mPort);
+				}
 			} catch (BindException e) {
 				Log.e(TAG,"Port already in use !");
 				postError(e, ERROR_BIND_FAILED);
@@ -335,141 +375,221 @@ public class RtspServer extends Service {
 			}
 		}
 
-		public void run() {
-			Log.i(TAG,"RTSP server listening on port "+mServer.getLocalPort());
-			while (!Thread.interrupted()) {
-				try {
-					new WorkerThread(mServer.accept()).start();
-				} catch (SocketException e) {
-					break;
-				} catch (IOException e) {
-					Log.e(TAG,e.getMessage());
-					continue;
-				}
+		@Override
+		public Response onRequest(RtspEngine.Connection connection, Request request) {
+			Client client = (Client) connection.attachment;
+			if (client == null) {
+				client = new Client(connection);
+				connection.attachment = client;
+			}
+			try {
+				return client.processRequest(request);
+			} catch (Exception e) {
+				// This alerts the main thread that something has gone wrong in this thread
+				postError(e, ERROR_START_FAILED);
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+				e.printStackTrace();
+				// The client will receive an "INTERNAL SERVER ERROR"
+				return new Response(request);
 			}
-			Log.i(TAG,"RTSP server stopped !");
+		}
+
+		@Override
+		public void onClosed(RtspEngine.Connection connection) {
+			Client client = (Client) connection.attachment;
+			if (client != null) client.close();
+			InterleavedWriter.release(connection.channel);
+			Log.i(TAG, "Client disconnected");
+		}
+
+		@Override
+		public boolean isActive(RtspEngine.Connection connection) {
+			Client client = (Client) connection.attachment;
+			return client != null && (client.hasSession() || client.isStreaming());
 		}
 
 		public void kill() {
-			try {
-				mServer.close();
-			} catch (IOException e) {}
-			try {
-				this.join();
-			} catch (InterruptedException ignore) {}
+			mEngine.stop();
 		}
 
 	}
 
-	// One thread per client
-	class WorkerThread extends Thread implements Runnable {
+	/** 
+	 * The state of a client, its requests are handled one at a time 
+	 * by the workers of the {@link RtspEngine}. 
+	 */
+	class Client {
 
 		private final Socket mClient;
-		private final OutputStream mOutput;
-		private final BufferedReader mInput;
 
-		// Each client has an associated session
+		// Each client has an associated session, created by DESCRIBE, or the session of a live source
 		private Session mSession;
+		private LiveSourceRegistry.LiveSource mSource;
+		private final Subscriber[] mSubscribers = new Subscriber[2];
+		private final boolean[] mAttached = new boolean[2];
+		private final boolean[] mJoined = new boolean[2];
+
+		// The RTSP session, opened by the first SETUP
+		private final RtspSessionManager.RtspSession mRtspSession = new RtspSessionManager.RtspSession() {
+			@Override
+			protected long getLastReport() {
+				return Client.this.getLastReport();
+			}
+			@Override
+			protected void onExpired(String id) {
+				synchronized (Client.this) {
+					// A SETUP may have opened a new session since this one expired
+					if (id.equals(mRtspSession.getId())) teardown();
+				}
+			}
+		};
 
-		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
-			mClient = client;
-			mSession = new Session();
+		public Client(RtspEngine.Connection connection) {
+			mClient = connection.socket;
 		}
 
-		public void run() {
-			Request request;
-			Response response;
-
-			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		/** Returns true if the client is sent a stream. */
+		public boolean isStreaming() {
+			if (mSource != null) return mAttached[0] || mAttached[1];
+			return mSession != null && mSession.isStreaming();
+		}
 
-			while (!Thread.interrupted()) {
+		/** Returns true while the client has a RTSP session, which expires without keep-alive. */
+		public boolean hasSession() {
+			return mRtspSession.getState() != RtspSessionManager.STATE_INIT;
+		}
 
-				request = null;
-				response = null;
+		/** Streaming stops when client disconnects. */
+		public synchronized void close() {
+			if (mSession == null) return;
+			teardown();
+			if (mSource != null) {
+				mRegistry.release(mSource);
+				mSource = null;
+			} else {
+				mSession.release();
+			}
+			mSession = null;
+		}
 
-				// Parse the request
-				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
-					// Client has left
-					break;
-				} catch (Exception e) {
-					// We don't understand the request :/
-					response = new Response();
-					response.status = Response.STATUS_BAD_REQUEST;
+		/** Ends the RTSP session, the tracks are not sent to the client anymore. */
+		private void teardown() {
+			mSessionManager.close(mRtspSession);
+			if (mSession == null) return;
+			boolean streaming = RtspServer.this.isStreaming();
+			if (mSource != null) {
+				for (int i=0;i<2;i++) {
+					if (mAttached[i]) release(i, mSubscribers[i], mJoined[i]);
+					mSubscribers[i] = null;
+					mJoined[i] = false;
 				}
+			} else {
+				mSession.syncStop();
+			}
+			mAttached[0] = mAttached[1] = false;
+			if (streaming && !RtspServer.this.isStreaming()) {
+				postMessage(MESSAGE_STREAMING_STOPPED);
+			}
+		}
 
-				// Do something accordingly like starting the streams, sending a session description
-				if (request != null) {
-					try {
-						response = processRequest(request);
-					}
-					catch (Exception e) {
-						// This alerts the main thread that something has gone wrong in this thread
-						postError(e, ERROR_START_FAILED);
-						Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-						e.printStackTrace();
-						response = new Response(request);
-					}
-				}
+		/** Stops sending a track of the live source to the client. */
+		private void release(int trackId, Subscriber subscriber, boolean joined) {
+			if (joined) mSource.leave(trackId);
+			else mSource.detach(trackId, subscriber);
+		}
 
-				// We always send a response
-				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-				try {
-					response.send(mOutput);
-				} catch (IOException e) {
-					Log.e(TAG,"Response was not sent properly");
-					break;
+		/** Sends the tracks set up to the client, or stops sending them. Multicast groups are not paused. */
+		private void play(boolean play) throws IllegalStateException, IOException {
+			boolean streaming = RtspServer.this.isStreaming();
+			if (mSource != null) {
+				for (int i=0;i<2;i++) {
+					if (mSubscribers[i] != null) mSubscribers[i].setPaused(!play);
 				}
-
+			} else if (play) {
+				for (int i=0;i<2;i++) {
+					if (mAttached[i]) mSession.syncStart(i);
+				}
+			} else {
+				mSession.syncStop();
 			}
-
-			// Streaming stops when client disconnects
-			boolean streaming = isStreaming();
-			mSession.syncStop();
-			if (streaming && !isStreaming()) {
+			if (!streaming && RtspServer.this.isStreaming()) {
+				postMessage(MESSAGE_STREAMING_STARTED);
+			} else if (streaming && !RtspServer.this.isStreaming()) {
 				postMessage(MESSAGE_STREAMING_STOPPED);
 			}
-			mSession.release();
-
-			try {
-				mClient.close();
-			} catch (IOException ignore) {}
-
-			Log.i(TAG, "Client disconnected");
+		}
 
+		/** The last RTCP receiver report of the client, those sent to a multicast group can't tell who is there. */
+		private long getLastReport() {
+			long last = 0;
+			Session session = mSession;
+			for (int i=0;i<2;i++) {
+				Subscriber subscriber = mSubscribers[i];
+				if (subscriber != null) {
+					last = Math.max(last, subscriber.getReceptionStats().getLastReport());
+				} else if (mSource == null && session != null && session.getTrack(i) instanceof MediaStream) {
+					last = Math.max(last, ((MediaStream) session.getTrack(i)).getReceptionStats().getLastReport());
+				}
+			}
+			return last;
 		}
 
-		public Response processRequest(Request request) throws IllegalStateException, IOException {
+		public synchronized Response processRequest(Request request) throws IllegalStateException, IOException {
 			Response response = new Response(request);
+			String id = RtspCodec.parseSessionId(request.headers.get("session"));
+			int state = mRtspSession.getState();
+
+			// Any request is a keep-alive
+			mRtspSession.touch();
 
             //Ask for authorization unless this is an OPTIONS request
-            if(!isAuthorized(request) && !request.method.equalsIgnoreCase("OPTIONS"))
+            if(!isAuthorized(request) && request.method != Method.OPTIONS)
             {
-                response.attributes = "WWW-Authenticate: Basic realm=\""+SERVER_NAME+"\"\r\n";
+                response.addHeader("WWW-Authenticate", "Basic realm=\""+SERVER_NAME+"\"");
                 response.status = Response.STATUS_UNAUTHORIZED;
             }
+            else if (id != null && mSessionManager.get(id) != mRtspSession)
+            {
+                // Unknown, expired or torn down
+                response.status = Response.STATUS_SESSION_NOT_FOUND;
+            }
+            else if (mSession == null && (request.method == Method.SETUP || request.method == Method.PLAY || request.method == Method.PAUSE))
+            {
+                // DESCRIBE must come first
+                response.status = Response.STATUS_SESSION_NOT_FOUND;
+            }
+            else if (state == RtspSessionManager.STATE_INIT && (request.method == Method.PLAY || request.method == Method.PAUSE))
+            {
+                // SETUP must come first
+                response.status = Response.STATUS_METHOD_NOT_VALID;
+            }
             else
             {
 			    /* ********************************************************************************** */
 			    /* ********************************* Method DESCRIBE ******************************** */
 			    /* ********************************************************************************** */
-                if (request.method.equalsIgnoreCase("DESCRIBE")) {
+                if (request.method == Method.DESCRIBE) {
+
+                    close();
+                    String origin = mClient.getLocalAddress().getHostAddress();
 
-                    // Parse the requested URI and configure the session
-                    mSession = handleRequest(request.uri, mClient);
-                    mSessions.put(mSession, null);
-                    mSession.syncConfigure();
+                    // The clients requesting the same source share its session, configured once
+                    mSource = mLiveSources ? mRegistry.acquire(request.uri, origin) : null;
 
-                    String requestContent = mSession.getSessionDescription();
-                    String requestAttributes =
-                            "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
-                                    "Content-Type: application/sdp\r\n";
+                    if (mSource != null) {
+                        mSession = mSource.getSession();
+                        mSessions.put(mSession, null);
+                        response.content = mSource.getSessionDescription();
+                    } else {
+                        // Parse the requested URI and configure the session
+                        mSession = handleRequest(request.uri, mClient);
+                        mSessions.put(mSession, null);
+                        mSession.syncConfigure();
+                        response.content = mSession.getSessionDescription();
+                    }
 
-                    response.attributes = requestAttributes;
-                    response.content = requestContent;
+                    response.addHeader("Content-Base", origin + ":" + mClient.getLocalPort() + "/");
+                    response.addHeader("Content-Type", "application/sdp");
 
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
@@ -479,69 +599,116 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 /* ********************************* Method OPTIONS ********************************* */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("OPTIONS")) {
-                    response.status = Response.STATUS_OK;
-                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                else if (request.method == Method.OPTIONS) {
+                    response.addHeader("Public", "DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER");
                     response.status = Response.STATUS_OK;
                 }
 
                 /* ********************************************************************************** */
                 /* ********************************** Method SETUP ********************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
-                    Matcher m;
-                    int p2, p1, ssrc, trackId, src[];
+                else if (request.method == Method.SETUP) {
+                    int p2, p1, trackId;
                     String destination;
 
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
+                    trackId = RtspCodec.parseTrackId(request.uri);
 
-                    if (!m.find()) {
+                    if (trackId<0) {
                         response.status = Response.STATUS_BAD_REQUEST;
                         return response;
                     }
 
-                    trackId = Integer.parseInt(m.group(1));
-
                     if (!mSession.trackExists(trackId)) {
                         response.status = Response.STATUS_NOT_FOUND;
                         return response;
                     }
 
-                    p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
+                    Transport transport = Transport.parse(request.headers.get("transport"));
 
-                    if (!m.find()) {
+                    if (transport == null || transport.clientPort == null) {
                         int[] ports = mSession.getTrack(trackId).getDestinationPorts();
                         p1 = ports[0];
                         p2 = ports[1];
                     } else {
-                        p1 = Integer.parseInt(m.group(1));
-                        p2 = Integer.parseInt(m.group(2));
+                        p1 = transport.clientPort[0];
+                        p2 = transport.clientPort[1];
                     }
 
-                    ssrc = mSession.getTrack(trackId).getSSRC();
-                    src = mSession.getTrack(trackId).getLocalPorts();
-                    destination = mSession.getDestination();
-
-                    mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+                    Transport reply = new Transport();
+                    boolean streaming = RtspServer.this.isStreaming();
+                    boolean playing = state == RtspSessionManager.STATE_PLAYING;
+
+                    if (mSource != null) {
+                        boolean join = transport != null && transport.multicast && !mSource.isMulticast();
+
+                        // Only UDP to the ports of the client, the connection can't carry the packets of the stream
+                        if (!mSource.isMulticast() && !join && (transport == null || transport.isTcp() || transport.clientPort == null)) {
+                            response.status = Response.STATUS_UNSUPPORTED_TRANSPORT;
+                            return response;
+                        }
+
+                        // The client is added to the running stream, nothing is sent to it before PLAY
+                        Subscriber previous = mSubscribers[trackId];
+                        boolean attached = mAttached[trackId], joined = mJoined[trackId];
+                        Subscriber subscriber = join ? null : mSource.attach(trackId, mClient.getInetAddress(), p1, p2);
+                        Subscriber group = join ? mSource.join(trackId) : null;
+                        if (subscriber != null) subscriber.setPaused(!playing);
+                        if (attached) release(trackId, previous, joined);
+                        mSubscribers[trackId] = subscriber;
+                        mAttached[trackId] = true;
+                        mJoined[trackId] = join;
+
+                        if (group != null) {
+                            // The group of the source, shared by all the clients that asked for multicast
+                            reply.multicast = true;
+                            reply.destination = group.getDestination().getHostAddress();
+                            reply.source = mClient.getLocalAddress().getHostAddress();
+                            reply.port = group.getDestinationPorts();
+                            reply.ttl = mSource.getMulticastTimeToLive();
+                            reply.serverPort = group.getLocalPorts();
+                            reply.ssrc = group.getSSRC();
+                        } else if (subscriber != null) {
+                            reply.destination = mClient.getInetAddress().getHostAddress();
+                            reply.clientPort = new int[] {p1, p2};
+                            reply.serverPort = subscriber.getLocalPorts();
+                            reply.ssrc = subscriber.getSSRC();
+                        } else {
+                            reply.multicast = true;
+                            reply.destination = mSession.getDestination();
+                            reply.port = mSession.getTrack(trackId).getDestinationPorts();
+                            reply.serverPort = mSession.getTrack(trackId).getLocalPorts();
+                            reply.ssrc = mSession.getTrack(trackId).getSSRC();
+                        }
+                    } else {
+                        destination = mSession.getDestination();
+
+                        // The track starts with PLAY
+                        mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+                        mAttached[trackId] = true;
+                        if (playing) mSession.syncStart(trackId);
+
+                        reply.multicast = InetAddress.getByName(destination).isMulticastAddress();
+                        reply.destination = destination;
+                        reply.clientPort = new int[] {p1, p2};
+                        reply.serverPort = mSession.getTrack(trackId).getLocalPorts();
+                        reply.ssrc = mSession.getTrack(trackId).getSSRC();
+                    }
 
-                    boolean streaming = isStreaming();
-                    mSession.syncStart(trackId);
-                    if (!streaming && isStreaming()) {
+                    if (!streaming && RtspServer.this.isStreaming()) {
                         postMessage(MESSAGE_STREAMING_STARTED);
                     }
 
-                    response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-                            ";destination=" + mSession.getDestination() +
-                            ";client_port=" + p1 + "-" + p2 +
-                            ";server_port=" + src[0] + "-" + src[1] +
-                            ";ssrc=" + Integer.toHexString(ssrc) +
-                            ";mode=play\r\n" +
-                            "Session: " + "1185d20035702ca" + "\r\n" +
-                            "Cache-Control: no-cache\r\n";
-                    response.status = Response.STATUS_OK;
+                    if (state == RtspSessionManager.STATE_INIT) {
+                        mSessionManager.open(mRtspSession);
+                        mRtspSession.setState(RtspSessionManager.STATE_READY);
+                    }
+
+                    reply.hasSsrc = true;
+                    reply.mode = "play";
+
+                    response.transport = reply;
+                    response.addHeader("Session", mRtspSession.getId() + ";timeout=" + mSessionManager.getTimeout());
+                    response.addHeader("Cache-Control", "no-cache");
 
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
@@ -551,15 +718,23 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 /* ********************************** Method PLAY *********************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("PLAY")) {
-                    String requestAttributes = "RTP-Info: ";
+                else if (request.method == Method.PLAY) {
+                    String rtpInfo = "";
                     if (mSession.trackExists(0))
-                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
+                        rtpInfo += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
                     if (mSession.trackExists(1))
-                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
-                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
+                        rtpInfo += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
 
-                    response.attributes = requestAttributes;
+                    play(true);
+                    mRtspSession.setState(RtspSessionManager.STATE_PLAYING);
+
+                    response.addHeader("RTP-Info", rtpInfo.substring(0, Math.max(rtpInfo.length() - 1, 0)));
+                    response.addHeader("Session", mRtspSession.getId());
+
+                    // The client should not wait for the next scheduled key frame to display something
+                    if (mSession.getVideoTrack() != null) {
+                        mSession.getVideoTrack().requestKeyFrame();
+                    }
 
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
@@ -569,14 +744,29 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 /* ********************************** Method PAUSE ********************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("PAUSE")) {
+                else if (request.method == Method.PAUSE) {
+                    if (state == RtspSessionManager.STATE_PLAYING) {
+                        play(false);
+                        mRtspSession.setState(RtspSessionManager.STATE_READY);
+                    }
+                    response.addHeader("Session", mRtspSession.getId());
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ******************************* Method GET_PARAMETER ***************************** */
+                /* ********************************************************************************** */
+                else if (request.method == Method.GET_PARAMETER) {
+                    // No parameter, only used as a keep-alive
+                    if (state != RtspSessionManager.STATE_INIT) response.addHeader("Session", mRtspSession.getId());
                     response.status = Response.STATUS_OK;
                 }
 
                 /* ********************************************************************************** */
                 /* ********************************* Method TEARDOWN ******************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                else if (request.method == Method.TEARDOWN) {
+                    teardown();
                     response.status = Response.STATUS_OK;
                 }
 
@@ -584,7 +774,7 @@ public class RtspServer extends Service {
                 /* ********************************* Unknown method ? ******************************* */
                 /* ********************************************************************************** */
                 else {
-                    Log.e(TAG, "Command unknown: " + request);
+                    Log.e(TAG, "Command unknown: " + request.uri);
                     response.status = Response.STATUS_BAD_REQUEST;
                 }
             }
@@ -618,41 +808,45 @@ public class RtspServer extends Service {
 
 	static class Request {
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
-
-		public String method;
+		public Method method;
 		public String uri;
-		public HashMap<String,String> headers = new HashMap<String,String>();
-
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		public Headers headers;
+		public String content = "";
+		public int contentLength = 0;
+
+		/** 
+		 * Parses the method, uri & headers of a RTSP request, straight from the bytes received.
+		 * @param data The request
+		 * @param length The length of the request up to the empty line ending the headers
+		 * @throws IllegalStateException If the request is malformed
+		 */
+		public static Request parse(byte[] data, int length) throws IllegalStateException {
 			Request request = new Request();
-			String line;
-			Matcher matcher;
+
+			// The headers keep the bytes, which will be overwritten by the next request
+			byte[] head = new byte[length];
+			System.arraycopy(data, 0, head, 0, length);
 
 			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
+			int end = RtspCodec.lineEnd(head, 0, length);
+			int sp1 = RtspCodec.indexOf(head, ' ', 0, end);
+			int sp2 = RtspCodec.indexOf(head, ' ', sp1+1, end);
+			if (sp1<=0 || sp2<=sp1+1 || !RtspCodec.equalsIgnoreCase(head, sp2+1, Math.min(sp2+5, end), "RTSP")) {
+				throw new IllegalStateException("Malformed request line");
+			}
+			request.method = Method.parse(head, 0, sp1);
+			request.uri = RtspCodec.ascii(head, sp1+1, sp2);
 
 			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-			}
-			if (line==null) throw new SocketException("Client disconnected");
+			request.headers = Headers.parse(head, end+2, length);
+			request.contentLength = request.headers.getInt("content-length", request.headers.contains("content-length") ? -1 : 0);
 
 			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
 			Log.e(TAG,request.method+" "+request.uri);
 
 			return request;
 		}
+
 	}
 
 	static class Response {
@@ -662,43 +856,57 @@ public class RtspServer extends Service {
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+		public static final String STATUS_METHOD_NOT_VALID = "455 Method Not Valid in This State";
+		public static final String STATUS_UNSUPPORTED_TRANSPORT = "461 Unsupported Transport";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
 		public String content = "";
-		public String attributes = "";
+		public Transport transport = null;
 
 		private final Request mRequest;
+		private String[] mHeaders = new String[8];
+		private int mCount = 0;
 
 		public Response(Request request) {
 			this.mRequest = request;
 		}
 
 		public Response() {
-			// Be carefull if you modify the send() method because request might be null !
+			// Be carefull if you modify the write() method because request might be null !
 			mRequest = null;
 		}
 
-		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
-
-			try {
-				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
+		public void addHeader(String name, String value) {
+			if (mCount+2>mHeaders.length) {
+				String[] headers = new String[2*mHeaders.length];
+				System.arraycopy(mHeaders, 0, headers, 0, mCount);
+				mHeaders = headers;
 			}
+			mHeaders[mCount++] = name;
+			mHeaders[mCount++] = value;
+		}
 
-			String response = 	"RTSP/1.0 "+status+"\r\n" +
-					"Server: "+SERVER_NAME+"\r\n" +
-					(seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
-					"Content-Length: " + content.length() + "\r\n" +
-					attributes +
-					"\r\n" + 
-					content;
+		/** Writes the response in the buffer of the connection. */
+		public void write(Writer writer) {
+			int seqid = mRequest != null && mRequest.headers != null ? mRequest.headers.getInt("cseq", -1) : -1;
+			if (mRequest != null && seqid<0) {
+				Log.e(TAG,"Error parsing CSeq");
+			}
 
-			Log.d(TAG,response.replace("\r", ""));
+			writer.response(status, seqid);
+			for (int i=0;i<mCount;i+=2) {
+				writer.header(mHeaders[i], mHeaders[i+1]);
+			}
+			if (transport != null) {
+				writer.startHeader("Transport");
+				transport.write(writer);
+				writer.endHeader();
+			}
+			writer.end(content.length()>0 ? content.getBytes() : null);
 
-			output.write(response.getBytes());
+			Log.d(TAG,"RTSP/1.0 "+status);
 		}
 	}
 
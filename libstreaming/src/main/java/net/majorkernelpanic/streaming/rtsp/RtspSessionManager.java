@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The RTSP sessions of the {@link RtspServer} (RFC 2326, section 3.4 and appendix A.2).
+ *
+ * A session is created by the first SETUP of a client, and gets a random identifier that the
+ * client sends back with each request. It expires when the client shows no sign of life for longer
+ * than the timeout announced in the Session header: no request and no RTCP receiver report.
+ *
+ * Each session has a timeout in a {@link TimerWheel}. Keep-alives only note the time, the timeout
+ * checks it when it expires and is rescheduled if the client was heard from in the meantime.
+ */
+class RtspSessionManager {
+
+	public final static String TAG = "RtspSessionManager";
+
+	/** Sessions expire after that time without keep-alive, in seconds. */
+	public final static int DEFAULT_TIMEOUT = 60;
+
+	/** Neither set up nor torn down. */
+	public final static int STATE_INIT = 0;
+
+	/** Set up, no packet is sent to the client. */
+	public final static int STATE_READY = 1;
+
+	/** The client is sent the stream. */
+	public final static int STATE_PLAYING = 2;
+
+	/** A session of a client. */
+	static abstract class RtspSession implements Runnable {
+
+		private String mId;
+		private volatile RtspSessionManager mManager;
+		private TimerWheel.Timeout mTimeout;
+		private volatile long mLastActivity;
+		private volatile int mState = STATE_INIT;
+
+		/** Returns the identifier of the session, null before it's opened. */
+		public String getId() {
+			return mId;
+		}
+
+		public int getState() {
+			return mState;
+		}
+
+		public void setState(int state) {
+			mState = state;
+		}
+
+		/** The client was heard from. */
+		public void touch() {
+			mLastActivity = SystemClock.elapsedRealtime();
+		}
+
+		/**
+		 * Returns the time of the last sign of life of the client other than its requests, as given by
+		 * {@link SystemClock#elapsedRealtime()}, RTCP receiver reports for instance. 0 if none.
+		 */
+		protected long getLastReport() {
+			return 0;
+		}
+
+		/**
+		 * Called on the thread of the timer wheel when the session has expired.
+		 * @param id The identifier of the session that expired. The client may have opened a new
+		 * session in the meantime, with another identifier: it must not be torn down.
+		 */
+		protected abstract void onExpired(String id);
+
+		@Override
+		public void run() {
+			RtspSessionManager manager = mManager;
+			String id = manager != null ? manager.expire(this) : null;
+			if (id != null) {
+				Log.i(TAG, "Session "+id+" expired");
+				onExpired(id);
+			}
+		}
+
+	}
+
+	private final HashMap<String, RtspSession> mSessions = new HashMap<String, RtspSession>();
+	private final SecureRandom mRandom = new SecureRandom();
+	private TimerWheel mWheel = null;
+	private int mTimeout = DEFAULT_TIMEOUT;
+
+	/** Sets how long a session lasts without keep-alive, in seconds. */
+	public synchronized void setTimeout(int seconds) {
+		mTimeout = seconds;
+	}
+
+	/** Returns the timeout of the sessions, in seconds. */
+	public synchronized int getTimeout() {
+		return mTimeout;
+	}
+
+	/** Gives a new identifier to the session and starts its timeout. */
+	public synchronized void open(RtspSession session) {
+		if (session.mManager != null) return;
+		String id;
+		do {
+			id = Long.toHexString(mRandom.nextLong() | 1L<<63);
+		} while (mSessions.containsKey(id));
+		if (mWheel == null) mWheel = new TimerWheel(1000, 64);
+		session.mId = id;
+		session.mManager = this;
+		session.touch();
+		session.mTimeout = mWheel.schedule(session, mTimeout*1000L);
+		mSessions.put(id, session);
+	}
+
+	/** Returns the session with that identifier, or null if it does not exist or has expired. */
+	public synchronized RtspSession get(String id) {
+		return id == null ? null : mSessions.get(id);
+	}
+
+	/** The session ends, it won't expire. */
+	public void close(RtspSession session) {
+		remove(session);
+	}
+
+	/** Forgets all the sessions and stops the timer wheel. */
+	public synchronized void clear() {
+		for (RtspSession session : mSessions.values()) {
+			session.mManager = null;
+		}
+		mSessions.clear();
+		if (mWheel != null) {
+			mWheel.stop();
+			mWheel = null;
+		}
+	}
+
+	public synchronized int size() {
+		return mSessions.size();
+	}
+
+	/** 
+	 * Ends the session if its client was not heard from, or reschedules its timeout.
+	 * @return The identifier of the session if it expired, null otherwise
+	 */
+	private synchronized String expire(RtspSession session) {
+		if (session.mManager != this) return null;
+		long last = Math.max(session.mLastActivity, session.getLastReport());
+		long left = last + mTimeout*1000L - SystemClock.elapsedRealtime();
+		if (left>0) {
+			mWheel.reschedule(session.mTimeout, left);
+			return null;
+		}
+		return remove(session) ? session.mId : null;
+	}
+
+	private synchronized boolean remove(RtspSession session) {
+		if (session.mManager != this) return false;
+		mSessions.remove(session.mId);
+		mWheel.cancel(session.mTimeout);
+		session.mManager = null;
+		session.mState = STATE_INIT;
+		return true;
+	}
+
+}
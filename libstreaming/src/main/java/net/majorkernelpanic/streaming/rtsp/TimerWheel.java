@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import android.util.Log;
+
+/**
+ * A hashed timer wheel (Varghese & Lauck), for many timeouts that are rescheduled far more often
+ * than they expire.
+ *
+ * Time is divided in ticks, a timeout goes in the slot of the tick it expires at, with the number of
+ * turns of the wheel left before that. Scheduling and cancelling are O(1), and the thread of the wheel
+ * only looks at one slot per tick. Timeouts expire up to one tick late.
+ */
+class TimerWheel implements Runnable {
+
+	public final static String TAG = "TimerWheel";
+
+	/** A scheduled task. */
+	static final class Timeout {
+
+		private final Runnable mTask;
+		private Timeout mPrev, mNext;
+		private int mSlot = -1;
+		private long mRounds;
+
+		private Timeout(Runnable task) {
+			mTask = task;
+		}
+
+	}
+
+	private final long mTick;
+	private final Timeout[] mSlots;
+	private final Thread mThread;
+	private int mCursor = 0;
+	private volatile boolean mRunning = true;
+
+	/**
+	 * Starts the thread of the wheel.
+	 * @param tick The duration of a tick in ms
+	 * @param slots The number of slots, timeouts further than slots*tick cost one check per turn
+	 */
+	public TimerWheel(long tick, int slots) {
+		mTick = tick;
+		mSlots = new Timeout[slots];
+		mThread = new Thread(this, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/** Runs a task on the thread of the wheel after the delay, in ms. */
+	public synchronized Timeout schedule(Runnable task, long delay) {
+		Timeout timeout = new Timeout(task);
+		add(timeout, delay);
+		return timeout;
+	}
+
+	/** Runs the task of the timeout after the delay instead, even if it already expired. */
+	public synchronized void reschedule(Timeout timeout, long delay) {
+		remove(timeout);
+		add(timeout, delay);
+	}
+
+	public synchronized void cancel(Timeout timeout) {
+		remove(timeout);
+	}
+
+	/** Stops the thread, the timeouts left never expire. */
+	public void stop() {
+		mRunning = false;
+		mThread.interrupt();
+	}
+
+	private void add(Timeout timeout, long delay) {
+		long ticks = Math.max(1, (delay+mTick-1)/mTick);
+		int slot = (int) ((mCursor+ticks)%mSlots.length);
+		timeout.mRounds = (ticks-1)/mSlots.length;
+		timeout.mSlot = slot;
+		timeout.mPrev = null;
+		timeout.mNext = mSlots[slot];
+		if (mSlots[slot] != null) mSlots[slot].mPrev = timeout;
+		mSlots[slot] = timeout;
+	}
+
+	private void remove(Timeout timeout) {
+		if (timeout.mSlot<0) return;
+		if (timeout.mPrev != null) timeout.mPrev.mNext = timeout.mNext;
+		else mSlots[timeout.mSlot] = timeout.mNext;
+		if (timeout.mNext != null) timeout.mNext.mPrev = timeout.mPrev;
+		timeout.mPrev = timeout.mNext = null;
+		timeout.mSlot = -1;
+	}
+
+	@Override
+	public void run() {
+		long next = System.nanoTime();
+		while (mRunning) {
+			next += mTick*1000000L;
+			long wait = (next-System.nanoTime())/1000000L;
+			if (wait>0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+
+			// The expired timeouts are taken out of the wheel before their tasks are run
+			Timeout expired = null;
+			synchronized (this) {
+				mCursor = (mCursor+1)%mSlots.length;
+				Timeout timeout = mSlots[mCursor];
+				while (timeout != null) {
+					Timeout following = timeout.mNext;
+					if (timeout.mRounds-- <= 0) {
+						remove(timeout);
+						timeout.mNext = expired;
+						expired = timeout;
+					}
+					timeout = following;
+				}
+			}
+			while (expired != null) {
+				Timeout following = expired.mNext;
+				expired.mNext = null;
+				try {
+					expired.mTask.run();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Task failed: "+e.getMessage());
+				}
+				expired = following;
+			}
+		}
+	}
+
+}
@@ -20,9 +20,9 @@ package net.majorkernelpanic.streaming.video;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import net.majorkernelpanic.streaming.hw.CodecManager.Codec;
 import android.annotation.SuppressLint;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.os.Build;
 import android.util.Log;
 import android.util.SparseArray;
@@ -134,7 +134,6 @@ public class CodecManager {
 		 * Returns an associative array of the supported color formats and the names of the encoders for a given mime type
 		 * This can take up to sec on certain phones the first time you run it...
 		 **/
-		@SuppressLint("NewApi")
 		static private void findSupportedColorFormats(String mimeType) {
 			SparseArray<ArrayList<String>> softwareCodecs = new SparseArray<ArrayList<String>>();
 			SparseArray<ArrayList<String>> hardwareCodecs = new SparseArray<ArrayList<String>>();
@@ -145,35 +144,24 @@ public class CodecManager {
 
 			Log.v(TAG,"Searching supported color formats for mime type \""+mimeType+"\"...");
 
-			// We loop through the encoders, apparently this can take up to a sec (testes on a GS3)
-			for(int j = MediaCodecList.getCodecCount() - 1; j >= 0; j--){
-				MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
-				if (!codecInfo.isEncoder()) continue;
-
-				String[] types = codecInfo.getSupportedTypes();
-				for (int i = 0; i < types.length; i++) {
-					if (types[i].equalsIgnoreCase(mimeType)) {
-						MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-
-						boolean software = false;
-						for (int k=0;k<SOFTWARE_ENCODERS.length;k++) {
-							if (codecInfo.getName().equalsIgnoreCase(SOFTWARE_ENCODERS[i])) {
-								software = true;
-							}
-						}
-
-						// And through the color formats supported
-						for (int k = 0; k < capabilities.colorFormats.length; k++) {
-							int format = capabilities.colorFormats[k];
-							if (software) {
-								if (softwareCodecs.get(format) == null) softwareCodecs.put(format, new ArrayList<String>());
-								softwareCodecs.get(format).add(codecInfo.getName());
-							} else {
-								if (hardwareCodecs.get(format) == null) hardwareCodecs.put(format, new ArrayList<String>());
-								hardwareCodecs.get(format).add(codecInfo.getName());
-							}
-						}
+			// The codecs come from the database shared with the EncoderDebugger, the MediaCodecList is scanned once
+			for (Codec codec : net.majorkernelpanic.streaming.hw.CodecManager.listCodecs(mimeType, true)) {
+				boolean software = false;
+				for (int k=0;k<SOFTWARE_ENCODERS.length;k++) {
+					if (codec.name.equalsIgnoreCase(SOFTWARE_ENCODERS[k])) {
+						software = true;
+					}
+				}
 
+				// And through the color formats supported
+				for (int k = 0; k < codec.formats.length; k++) {
+					int format = codec.formats[k];
+					if (software) {
+						if (softwareCodecs.get(format) == null) softwareCodecs.put(format, new ArrayList<String>());
+						softwareCodecs.get(format).add(codec.name);
+					} else {
+						if (hardwareCodecs.get(format) == null) hardwareCodecs.put(format, new ArrayList<String>());
+						hardwareCodecs.get(format).add(codec.name);
 					}
 				}
 			}
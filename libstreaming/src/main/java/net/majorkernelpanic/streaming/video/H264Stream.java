@@ -83,14 +83,24 @@ public class H264Stream extends VideoStream {
 		mPacketizer = new H264Packetizer();
 	}
 
+	/**
+	 * Packs the small NAL units produced by the encoder in STAP-A packets, fewer packets are sent.
+	 * Only used with the MediaCodec API. Disabled by default.
+	 */
+	public void setAggregation(boolean aggregate) {
+		((H264Packetizer)mPacketizer).setAggregation(aggregate);
+	}
+
 	/**
 	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
 	 */
 	public synchronized String getSessionDescription() throws IllegalStateException {
 		if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
-		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96"+getRtxPayloadType()+getFecPayloadType()+"\r\n" +
 		"a=rtpmap:96 H264/90000\r\n" +
-		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n";
+		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n" +
+		getRtxDescription(96, 90000) +
+		getFecDescription(96, 90000);
 	}	
 
 	/**
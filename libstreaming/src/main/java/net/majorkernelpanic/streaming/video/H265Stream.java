@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+
+import net.majorkernelpanic.streaming.CameraDelegate;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.hw.EncoderDebugger;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A class for streaming H.265 from the camera of an android device using RTP (RFC 7798).
+ * Only the MediaCodec API can be used, and the phone must have an H.265 encoder (usually Lollipop and above).
+ * You should use a {@link net.majorkernelpanic.streaming.Session} instantiated with
+ * {@link net.majorkernelpanic.streaming.SessionBuilder} instead of using this class directly.
+ */
+public class H265Stream extends VideoStream {
+
+	public final static String TAG = "H265Stream";
+
+	private String mB64VPS, mB64SPS, mB64PPS;
+
+	/**
+	 * Constructs the H.265 stream.
+	 * Uses CAMERA_FACING_BACK by default.
+	 */
+	public H265Stream() {
+		this(CameraInfo.CAMERA_FACING_BACK);
+	}
+
+	/**
+	 * Constructs the H.265 stream.
+	 * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public H265Stream(int cameraId) {
+		super(cameraId);
+		mMimeType = EncoderDebugger.MIME_TYPE_HEVC;
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new H265Packetizer();
+	}
+
+	public H265Stream(CameraDelegate delegate) {
+		super(delegate);
+		mMimeType = EncoderDebugger.MIME_TYPE_HEVC;
+		mCameraImageFormat = ImageFormat.NV21;
+		mPacketizer = new H265Packetizer();
+	}
+
+	/**
+	 * Packs the small NAL units produced by the encoder in aggregation packets. Enabled by default,
+	 * unlike {@link H264Stream#setAggregation(boolean)}: RFC 7798 has no packetization modes and
+	 * every HEVC receiver must handle aggregation packets, whereas some H.264 receivers only
+	 * expect single NAL units and FU-A packets.
+	 */
+	public void setAggregation(boolean aggregate) {
+		((H265Packetizer)mPacketizer).setAggregation(aggregate);
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mB64SPS == null) throw new IllegalStateException("You need to call configure() first !");
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96"+getRtxPayloadType()+getFecPayloadType()+"\r\n" +
+		"a=rtpmap:96 H265/90000\r\n" +
+		"a=fmtp:96 sprop-vps="+mB64VPS+";sprop-sps="+mB64SPS+";sprop-pps="+mB64PPS+"\r\n" +
+		getRtxDescription(96, 90000) +
+		getFecDescription(96, 90000);
+	}
+
+	/**
+	 * Starts the stream.
+	 * This will also open the camera and display the preview if {@link #startPreview()} has not already been called.
+	 */
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			byte[] vps = Base64.decode(mB64VPS, Base64.NO_WRAP);
+			byte[] sps = Base64.decode(mB64SPS, Base64.NO_WRAP);
+			byte[] pps = Base64.decode(mB64PPS, Base64.NO_WRAP);
+			((H265Packetizer)mPacketizer).setStreamParameters(vps, sps, pps);
+			super.start();
+		}
+	}
+
+	/**
+	 * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+	 * your configuration of the stream.
+	 */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		mMode = mRequestedMode;
+		if (mMode == MODE_MEDIARECORDER_API) {
+			// The MediaRecorder API can't be used, we don't know how to find the parameter sets of its output
+			Log.w(TAG,"H.265 can only be streamed with the MediaCodec API");
+			mMode = MODE_MEDIACODEC_API;
+		}
+		mQuality = mRequestedQuality.clone();
+		testMediaCodecAPI();
+	}
+
+	/**
+	 * Finds an H.265 encoder usable with the configuration and determines the VPS, SPS and PPS.
+	 * Should not be called by the UI thread.
+	 */
+	private void testMediaCodecAPI() {
+		if (Build.VERSION.SDK_INT<Build.VERSION_CODES.LOLLIPOP) {
+			throw new ConfNotSupportedException("H.265 requires Android 5.0");
+		}
+		try {
+			mQuality = cameraDelegate.getQuality();
+			EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY, mMimeType);
+			mB64VPS = debugger.getB64VPS();
+			mB64SPS = debugger.getB64SPS();
+			mB64PPS = debugger.getB64PPS();
+		} catch (Exception e) {
+			// No fallback on the MediaRecorder API here
+			Log.e(TAG,"No H.265 encoder usable with this configuration: "+e.getMessage());
+			throw new ConfNotSupportedException(e.getMessage());
+		}
+	}
+
+}
@@ -22,6 +22,8 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -33,8 +35,15 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
+import net.majorkernelpanic.streaming.hw.EncoderPool;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.rtcp.BitrateController;
+import net.majorkernelpanic.streaming.rtcp.ReceptionStats;
+import net.majorkernelpanic.streaming.rtcp.RtcpListener;
+import net.majorkernelpanic.streaming.rtp.AsyncMediaCodecInputStream;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.Subscriber;
 
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
@@ -46,8 +55,11 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -83,6 +95,20 @@ public abstract class VideoStream extends MediaStream {
     protected int mEncoderColorFormat;
     protected int mCameraImageFormat;
     protected int mMaxFps = 0;
+
+    protected boolean mAdaptiveBitrate = false;
+    protected int mMinBitrate = 0, mMaxBitrate = 0;
+    protected BitrateController mBitrateController = null;
+    protected volatile int mEncoderBitrate = 0;
+    protected volatile AsyncMediaCodecInputStream mAsyncEncoder = null;
+    protected int mMaxFramesInEncoder = 4;
+    private final Feedback mFeedback = new Feedback();
+
+    protected long mKeyFrameInterval = 500;
+    private final Object mKeyFrameLock = new Object();
+    private long mLastKeyFrameRequest = 0;
+    private boolean mKeyFramePending = false;
+    private static Timer sKeyFrameTimer = null;
     CameraDelegate cameraDelegate;
     CameraDelegate.FrameListener callback;
 
@@ -274,6 +300,61 @@ public abstract class VideoStream extends MediaStream {
         return mRequestedQuality;
     }
 
+    /**
+     * Lets the bitrate of the encoder follow what the network can carry, estimated from the RTCP
+     * receiver reports. Only works with the MediaCodec API on Android 4.4 or later.
+     * Changes will take effect next time you start the stream.
+     *
+     * @param enabled Whether the bitrate should be adapted
+     */
+    public void setAdaptiveBitrate(boolean enabled) {
+        mAdaptiveBitrate = enabled;
+    }
+
+    /**
+     * Sets the range in which the bitrate is adapted, see {@link #setAdaptiveBitrate(boolean)}.
+     * By default the bitrate of the {@link VideoQuality} is the maximum and a quarter of it the minimum.
+     *
+     * @param min The minimum bitrate in bps
+     * @param max The maximum bitrate in bps
+     */
+    public void setBitrateBounds(int min, int max) {
+        if (min<=0 || max<min) throw new IllegalArgumentException("Invalid bounds: " + min + "-" + max);
+        mMinBitrate = min;
+        mMaxBitrate = max;
+        if (mBitrateController != null) mBitrateController.setBounds(min, max);
+    }
+
+    /**
+     * Returns the bitrate currently requested to the encoder in bps.
+     */
+    public int getEncoderBitrate() {
+        return mEncoderBitrate;
+    }
+
+    /**
+     * Changes the bitrate of the running encoder.
+     * Only works with the MediaCodec API on Android 4.4 or later.
+     *
+     * @param bitrate The bitrate in bps
+     * @return false if the bitrate could not be changed
+     */
+    @SuppressLint("NewApi")
+    public boolean setEncoderBitrate(int bitrate) {
+        MediaCodec codec = mMediaCodec;
+        if (codec == null || mMode == MODE_MEDIARECORDER_API || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            codec.setParameters(params);
+            mEncoderBitrate = bitrate;
+            return true;
+        } catch (IllegalStateException e) {
+            // The codec was released in the meantime
+            return false;
+        }
+    }
+
     /**
      * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called
      *
@@ -314,6 +395,7 @@ public abstract class VideoStream extends MediaStream {
             if (mMode == MODE_MEDIACODEC_API_2) {
                 ((SurfaceView) mSurfaceView).removeMediaCodecSurface();
             }
+            mAsyncEncoder = null;
             super.stop();
             // We need to restart the preview
 //			if (!mCameraOpenedManually) {
@@ -475,17 +557,17 @@ public abstract class VideoStream extends MediaStream {
 //			}
 //		}
 
-        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY, mMimeType);
         final NV21Convertor convertor = debugger.getNV21Convertor();
 
-        mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, debugger.getEncoderColorFormat());
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-        mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        mMediaCodec = EncoderPool.get().acquire(debugger.getEncoderName(), mediaFormat, false, mAsyncEncoding);
+        mAsyncEncoder = EncoderPool.get().getAsyncStream(mMediaCodec);
+        if (mAsyncEncoder != null) mAsyncEncoder.setMaxInFlight(mMaxFramesInEncoder);
 
 //        Camera.PreviewCallback previewCallback = new Camera.PreviewCallback() {
         if (callback == null)
@@ -493,6 +575,26 @@ public abstract class VideoStream extends MediaStream {
                 @Override
                 public void onPreviewFrame(byte[] data, int width, int height, int rotation) {
                     long now = System.nanoTime() / 1000, oldnow = now, i = 0;
+                    AsyncMediaCodecInputStream encoder = mAsyncEncoder;
+                    if (encoder != null) {
+                        try {
+                            // The camera is never blocked, the frame is dropped if the encoder is late
+                            int bufferIndex = encoder.dequeueInputBuffer(0);
+                            if (bufferIndex >= 0) {
+                                ByteBuffer input = encoder.getInputBuffer(bufferIndex);
+                                input.clear();
+                                if (data == null)
+                                    Log.e(TAG, "Symptom of the \"Callback buffer was to small\" problem...");
+                                else convertor.convert(data, input);
+                                encoder.queueInputBuffer(bufferIndex, 0, input.position(), now, 0);
+                            }
+                        } catch (IllegalStateException e) {
+                            // The encoder was stopped in the meantime
+                        } finally {
+                            cameraDelegate.getCamera().addCallbackBuffer(data);
+                        }
+                        return;
+                    }
                     ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
                     oldnow = now;
                     now = System.nanoTime() / 1000;
@@ -531,8 +633,10 @@ public abstract class VideoStream extends MediaStream {
             cameraDelegate.getCamera().addCallbackBuffer(new byte[convertor.getBufferSize()]);
         cameraDelegate.addListener(callback);
 //        cameraDelegate.getCamera().setPreviewCallbackWithBuffer(previewCallback);
+        startBitrateControl();
+
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+        mPacketizer.setInputStream(mAsyncEncoder != null ? mAsyncEncoder : new MediaCodecInputStream(mMediaCodec));
         mPacketizer.start();
 
         mStreaming = true;
@@ -555,27 +659,124 @@ public abstract class VideoStream extends MediaStream {
         // Estimates the frame rate of the camera
         measureFramerate();
 
-        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY, mMimeType);
 
-        mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-        mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        Surface surface = mMediaCodec.createInputSurface();
+        mMediaCodec = EncoderPool.get().acquire(debugger.getEncoderName(), mediaFormat, true, mAsyncEncoding);
+        mAsyncEncoder = EncoderPool.get().getAsyncStream(mMediaCodec);
+        Surface surface = EncoderPool.get().getInputSurface(mMediaCodec);
         ((SurfaceView) mSurfaceView).addMediaCodecSurface(surface);
-        mMediaCodec.start();
+
+        startBitrateControl();
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+        mPacketizer.setInputStream(mAsyncEncoder != null ? mAsyncEncoder : new MediaCodecInputStream(mMediaCodec));
         mPacketizer.start();
 
         mStreaming = true;
 
     }
 
+    /**
+     * Sets how many camera frames can wait in the encoder when it is used in asynchronous mode,
+     * see {@link #setAsyncEncoding(boolean)}. The frames that come when the bound is reached are dropped
+     * instead of being delayed. 4 by default.
+     */
+    public void setMaxFramesInEncoder(int frames) {
+        mMaxFramesInEncoder = frames;
+    }
+
+    /**
+     * Sets the minimum time between two key frames requested with {@link #requestKeyFrame()}.
+     * Requests received in the meantime are merged in one request sent when the delay expires,
+     * so that a storm of requests does not blow up the bitrate. Default is 500 ms.
+     *
+     * @param interval The interval in ms
+     */
+    public void setKeyFrameRequestInterval(long interval) {
+        mKeyFrameInterval = interval;
+    }
+
+    /**
+     * Asks the encoder to produce a key frame as soon as possible, so that a new receiver, or one that
+     * lost packets, can decode the stream without waiting for the next scheduled key frame.
+     * Called when a PLI or a FIR is received, when a subscriber is added, when an RTSP client sends PLAY
+     * and when the RTP socket drops frames because the network can't keep up.
+     * Only works with the MediaCodec API on Android 4.4 or later.
+     *
+     * @return false if the request was delayed or could not be sent to the encoder
+     */
+    public boolean requestKeyFrame() {
+        synchronized (mKeyFrameLock) {
+            long now = SystemClock.elapsedRealtime();
+            long wait = mLastKeyFrameRequest + mKeyFrameInterval - now;
+            if (wait > 0) {
+                if (!mKeyFramePending) {
+                    mKeyFramePending = true;
+                    getKeyFrameTimer().schedule(new TimerTask() {
+                        @Override
+                        public void run() {
+                            synchronized (mKeyFrameLock) {
+                                mKeyFramePending = false;
+                            }
+                            requestKeyFrame();
+                        }
+                    }, wait);
+                }
+                return false;
+            }
+            mLastKeyFrameRequest = now;
+        }
+        return requestSyncFrame();
+    }
+
+    @SuppressLint("NewApi")
+    private boolean requestSyncFrame() {
+        MediaCodec codec = mMediaCodec;
+        if (codec == null || !mStreaming || mMode == MODE_MEDIARECORDER_API || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            codec.setParameters(params);
+            return true;
+        } catch (IllegalStateException e) {
+            // The codec was released in the meantime
+            return false;
+        }
+    }
+
+    private static synchronized Timer getKeyFrameTimer() {
+        if (sKeyFrameTimer == null) sKeyFrameTimer = new Timer("KeyFrameRequests", true);
+        return sKeyFrameTimer;
+    }
+
+    @Override
+    protected void onSubscriberAdded(Subscriber subscriber) {
+        // The new viewer can't decode anything before the next key frame
+        requestKeyFrame();
+    }
+
+    /**
+     * Creates the controller that adapts the bitrate of the encoder, if enabled,
+     * and starts listening to the RTCP feedback of the receivers.
+     */
+    protected void startBitrateControl() {
+        mEncoderBitrate = mQuality.bitrate;
+        if (mAdaptiveBitrate) {
+            int max = mMaxBitrate > 0 ? mMaxBitrate : mQuality.bitrate;
+            int min = mMinBitrate > 0 ? mMinBitrate : Math.max(max / 4, 1);
+            mBitrateController = new BitrateController(min, max, Math.min(Math.max(mQuality.bitrate, min), max));
+        } else {
+            mBitrateController = null;
+        }
+        mPacketizer.getRtpSocket().addRtcpListener(mFeedback);
+        mPacketizer.getRtpSocket().setKeyframeListener(mFeedback);
+    }
+
     /**
      * Returns a description of the stream using SDP.
      * This method can only be called after {@link Stream#configure()}.
@@ -584,6 +785,46 @@ public abstract class VideoStream extends MediaStream {
      */
     public abstract String getSessionDescription() throws IllegalStateException;
 
+    /**
+     * Reacts to the RTCP feedback sent by the receivers of the stream,
+     * and to the frames dropped by the RTP socket when the network can't keep up.
+     */
+    private class Feedback implements RtcpListener, RtpSocket.KeyframeListener {
+
+        @Override
+        public void onReceiverReport(ReceptionStats stats) {
+            BitrateController controller = mBitrateController;
+            if (controller == null || !mStreaming) return;
+            // With several receivers, the one with the worst link drives the encoder
+            int target = controller.update(stats.getSSRC(), stats.getFractionLost(), stats.getRtt(),
+                    mPacketizer.getRtpSocket().getBitrate(), SystemClock.elapsedRealtime());
+            // Small changes are not worth a call to the encoder
+            if (Math.abs(target - mEncoderBitrate) > mEncoderBitrate / 20) {
+                Log.d(TAG, "Encoder bitrate: " + target + " (" + stats + ")");
+                setEncoderBitrate(target);
+            }
+        }
+
+        @Override
+        public void onNack(int ssrc, int pid, int blp) {}
+
+        @Override
+        public void onPli(int ssrc) {
+            requestKeyFrame();
+        }
+
+        @Override
+        public void onFir(int ssrc) {
+            requestKeyFrame();
+        }
+
+        @Override
+        public void onKeyframeNeeded() {
+            requestKeyFrame();
+        }
+
+    }
+
     /**
      * Opens the camera in a new Looper thread so that the preview callback is not called from the main thread
      * If an exception is thrown in this Looper thread, we bring it back into the main thread.
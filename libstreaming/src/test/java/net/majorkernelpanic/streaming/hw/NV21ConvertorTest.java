@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.hw;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the frames of {@link NV21Convertor} with a conversion done one pixel at a time, as the
+ * convertor used to do it, for every layout an encoder may ask for.
+ */
+public class NV21ConvertorTest {
+
+	private final Random mRandom = new Random(3);
+
+	@Test
+	public void semiPlanar() {
+		check(176, 144, 176, 144, 0, false, false);
+		check(176, 144, 176, 144, 0, false, true);
+		check(320, 240, 320, 240, 0, false, false);
+	}
+
+	@Test
+	public void planar() {
+		check(176, 144, 176, 144, 0, true, false);
+		check(176, 144, 176, 144, 0, true, true);
+		check(320, 240, 320, 240, 0, true, false);
+	}
+
+	@Test
+	public void widthsThatAreNotMultiplesOfTheWords() {
+		// The last bytes of the rows go through the byte by byte loops
+		for (int width : new int[] {2, 6, 10, 200, 202, 358}) {
+			check(width, 32, width, 32, 0, false, false);
+			check(width, 32, width, 32, 0, true, false);
+			check(width, 32, width, 32, 0, true, true);
+		}
+	}
+
+	@Test
+	public void strideSliceHeightAndPadding() {
+		for (boolean planar : new boolean[] {false, true}) {
+			check(176, 144, 192, 144, 0, planar, false);
+			check(176, 144, 176, 160, 0, planar, false);
+			check(176, 144, 176, 144, 1024, planar, false);
+			check(176, 144, 192, 160, 2048, planar, true);
+		}
+	}
+
+	@Test
+	public void severalThreads() {
+		NV21Convertor convertor = convertor(1280, 720, 1280, 720, 0, true, false);
+		convertor.setThreadCount(4);
+		byte[] frame = frame(1280, 720);
+		byte[] expected = reference(frame, 1280, 720, 1280, 720, 0, true, false);
+		for (int i=0;i<3;i++) assertFrame(expected, convertor.convert(frame), 1280, 720, 1280, 720, 0, true);
+	}
+
+	@Test
+	public void directEncoderBuffer() {
+		NV21Convertor convertor = convertor(320, 240, 336, 256, 512, false, false);
+		byte[] frame = frame(320, 240);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(convertor.getFrameSize());
+		convertor.convert(frame, buffer);
+		assertEquals(convertor.getFrameSize(), buffer.position());
+		byte[] converted = new byte[buffer.capacity()];
+		buffer.position(0);
+		buffer.get(converted);
+		assertFrame(reference(frame, 320, 240, 336, 256, 512, false, false), converted, 320, 240, 336, 256, 512, false);
+	}
+
+	private void check(int width, int height, int stride, int sliceHeight, int padding, boolean planar, boolean reversed) {
+		NV21Convertor convertor = convertor(width, height, stride, sliceHeight, padding, planar, reversed);
+		byte[] frame = frame(width, height);
+		byte[] copy = frame.clone();
+		byte[] converted = convertor.convert(frame);
+		assertEquals(convertor.getFrameSize(), converted.length);
+		assertFrame(reference(frame, width, height, stride, sliceHeight, padding, planar, reversed), converted, width, height, stride, sliceHeight, padding, planar);
+		// The frame of the camera is left as it is
+		for (int i=0;i<frame.length;i++) assertEquals(copy[i], frame[i]);
+	}
+
+	private static NV21Convertor convertor(int width, int height, int stride, int sliceHeight, int padding, boolean planar, boolean reversed) {
+		NV21Convertor convertor = new NV21Convertor();
+		convertor.setSize(width, height);
+		convertor.setStride(stride);
+		convertor.setSliceHeigth(sliceHeight);
+		convertor.setYPadding(padding);
+		convertor.setPlanar(planar);
+		convertor.setColorPanesReversed(reversed);
+		return convertor;
+	}
+
+	private byte[] frame(int width, int height) {
+		byte[] frame = new byte[3*width*height/2];
+		mRandom.nextBytes(frame);
+		return frame;
+	}
+
+	/** The loops of the old convertor, one pixel at a time, with the stride, the slice height and the padding. */
+	private static byte[] reference(byte[] data, int width, int height, int stride, int sliceHeight, int padding, boolean planar, boolean reversed) {
+		int size = width*height, offset = stride*sliceHeight+padding;
+		byte[] result = new byte[offset+3*stride*sliceHeight/2];
+		for (int r=0;r<height;r++) System.arraycopy(data, r*width, result, r*stride, width);
+		for (int r=0;r<height/2;r++) {
+			for (int c=0;c<width/2;c++) {
+				byte v = data[size+r*width+2*c], u = data[size+r*width+2*c+1];
+				if (!planar) {
+					// Swaps U and V
+					result[offset+r*stride+2*c] = reversed ? v : u;
+					result[offset+r*stride+2*c+1] = reversed ? u : v;
+				} else {
+					// De-interleaves U and V
+					int second = offset+(stride/2)*(sliceHeight/2);
+					result[offset+r*(stride/2)+c] = reversed ? v : u;
+					result[second+r*(stride/2)+c] = reversed ? u : v;
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Compares the pixels, the bytes of the stride, the slice height and the padding are left out. */
+	private static void assertFrame(byte[] expected, byte[] actual, int width, int height, int stride, int sliceHeight, int padding, boolean planar) {
+		for (int r=0;r<height;r++) {
+			for (int c=0;c<width;c++) {
+				assertEquals("Y "+c+","+r, expected[r*stride+c], actual[r*stride+c]);
+			}
+		}
+		int offset = stride*sliceHeight+padding;
+		for (int r=0;r<height/2;r++) {
+			if (!planar) {
+				for (int c=0;c<width;c++) {
+					int i = offset+r*stride+c;
+					assertEquals("UV "+c+","+r, expected[i], actual[i]);
+				}
+			} else {
+				int second = offset+(stride/2)*(sliceHeight/2);
+				for (int c=0;c<width/2;c++) {
+					int i = offset+r*(stride/2)+c, j = second+r*(stride/2)+c;
+					assertEquals("U "+c+","+r, expected[i], actual[i]);
+					assertEquals("V "+c+","+r, expected[j], actual[j]);
+				}
+			}
+		}
+	}
+
+}
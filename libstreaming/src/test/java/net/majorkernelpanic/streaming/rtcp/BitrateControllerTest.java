@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Replays traces of receiver reports, the encoder is assumed to follow the estimate. */
+public class BitrateControllerTest {
+
+	private final static int MIN = 50000, MAX = 2000000, START = 500000;
+
+	@Test
+	public void increasesOnAGoodLink() {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = START;
+		for (long t=0;t<60000;t+=1000) {
+			target = controller.update(0, 50, target, t);
+		}
+		assertEquals(MAX, target);
+		assertEquals(BitrateController.STATE_INCREASE, controller.getState());
+	}
+
+	@Test
+	public void decreasesWhenTheRttGrows() {
+		assertBacksOff(1000);
+		assertBacksOff(3000);
+	}
+
+	@Test
+	public void decreasesOnLoss() {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = START;
+		for (long t=0;t<10000;t+=1000) {
+			target = controller.update(0.3f, 50, target, t);
+		}
+		assertTrue("Target: "+target, target<START/4);
+	}
+
+	@Test
+	public void ignoresAShortSpike() {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = START;
+		for (long t=0;t<20000;t+=1000) {
+			// A single late report, the queues are empty the next time
+			target = controller.update(0, t == 10000 ? 400 : 50, target, t);
+		}
+		assertEquals(BitrateController.STATE_INCREASE, controller.getState());
+		assertTrue("Target: "+target, target>START);
+	}
+
+	@Test
+	public void followsTheWorstReceiverDelay() {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = START, lowest = START;
+		for (long t=0;t<30000;t+=1000) {
+			// A good viewer and a congested one, their reports are interleaved
+			target = controller.update(1, 0, 40, target, t);
+			target = controller.update(2, 0, congestedRtt(t), target, t+500);
+			lowest = Math.min(lowest, target);
+		}
+		assertEquals(2, controller.getReceiverCount());
+		assertTrue("Lowest target: "+lowest, lowest<START/2);
+	}
+
+	@Test
+	public void followsTheWorstReceiverLoss() {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = START;
+		for (long t=0;t<10000;t+=1000) {
+			target = controller.update(1, 0, 40, target, t);
+			target = controller.update(2, 0.3f, 40, target, t+500);
+		}
+		assertTrue("Target: "+target, target<START/4);
+	}
+
+	@Test
+	public void forgetsSilentReceivers() {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = controller.update(2, 0.5f, 40, START, 0);
+		for (long t=1000;t<60000;t+=1000) {
+			target = controller.update(1, 0, 40, target, t);
+		}
+		assertEquals(1, controller.getReceiverCount());
+		assertEquals(MAX, target);
+	}
+
+	/** The RTT grows from 50 to 500 ms over 30 seconds. */
+	private static long congestedRtt(long t) {
+		return 50+Math.min(t, 30000)*450/30000;
+	}
+
+	private static void assertBacksOff(long interval) {
+		BitrateController controller = new BitrateController(MIN, MAX, START);
+		int target = START, lowest = START;
+		boolean decreased = false;
+		for (long t=0;t<40000;t+=interval) {
+			target = controller.update(0, congestedRtt(t), target, t);
+			lowest = Math.min(lowest, target);
+			decreased |= controller.getState() == BitrateController.STATE_DECREASE;
+		}
+		assertTrue("Never left STATE_INCREASE with reports every "+interval+" ms", decreased);
+		assertTrue("Lowest target: "+lowest+" with reports every "+interval+" ms", lowest<START/2);
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+
+/**
+ * Counting of the frames in the encoder of an {@link AsyncMediaCodecInputStream}, driven through
+ * its callback as an encoder would.
+ */
+public class AsyncMediaCodecInputStreamTest {
+
+	private final static long FRAME = 33333;
+
+	private AsyncMediaCodecInputStream mStream;
+	private MediaCodec.Callback mCallback;
+	private int mIndex = 0;
+
+	@Before
+	public void setUp() {
+		mStream = new AsyncMediaCodecInputStream();
+		mCallback = mStream.getCallback();
+		mStream.setMaxInFlight(4);
+	}
+
+	@Test
+	public void moreInputsThanOutputs() {
+		// The encoder merges every other frame with the next one
+		for (int i=0;i<60;i++) {
+			assertTrue("Frame "+i, feed(i*FRAME));
+			if (i%2 == 1) output(i*FRAME, 0);
+		}
+		assertEquals(0, mStream.getInFlight());
+		assertTrue(feed(60*FRAME));
+	}
+
+	@Test
+	public void framesAreBounded() {
+		for (int i=0;i<4;i++) assertTrue(feed(i*FRAME));
+		assertEquals(4, mStream.getInFlight());
+		mCallback.onInputBufferAvailable(null, mIndex++);
+		assertEquals(-1, mStream.dequeueInputBuffer(0));
+
+		// The parameter sets don't retire any frame
+		output(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		assertEquals(4, mStream.getInFlight());
+		output(2*FRAME, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+		assertEquals(1, mStream.getInFlight());
+		assertTrue(mStream.dequeueInputBuffer(0) != -1);
+	}
+
+	@Test
+	public void shiftedTimestamps() {
+		// The outputs come earlier than the inputs, each one still retires a frame
+		for (int i=0;i<4;i++) assertTrue(feed(10*FRAME+i*FRAME));
+		output(0, 0);
+		output(FRAME, 0);
+		assertEquals(2, mStream.getInFlight());
+	}
+
+	@Test
+	public void flushedForgetsTheFrames() {
+		for (int i=0;i<3;i++) assertTrue(feed(i*FRAME));
+		mStream.close();
+		mStream.flushed();
+		mStream.open();
+		assertEquals(0, mStream.getInFlight());
+		for (int i=0;i<4;i++) assertTrue(feed(i*FRAME));
+	}
+
+	@Test
+	public void unbounded() {
+		mStream.setMaxInFlight(0);
+		// More frames than the stream can count, the oldest ones are forgotten
+		for (int i=0;i<200;i++) assertTrue(feed(i*FRAME));
+		assertEquals(64, mStream.getInFlight());
+		output(199*FRAME, 0);
+		assertEquals(0, mStream.getInFlight());
+	}
+
+	/** The encoder gives an input buffer, and a frame is queued if the stream lets it in. */
+	private boolean feed(long presentationTimeUs) {
+		mCallback.onInputBufferAvailable(null, mIndex++);
+		if (mStream.dequeueInputBuffer(0) == -1) return false;
+		mStream.queued(presentationTimeUs);
+		return true;
+	}
+
+	private void output(long presentationTimeUs, int flags) {
+		BufferInfo info = new BufferInfo();
+		info.set(0, 100, presentationTimeUs, flags);
+		mCallback.onOutputBufferAvailable(null, mIndex++, info);
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Protects packets with a {@link FecEncoder}, receives the FEC packets on the loopback,
+ * drops some media packets and recovers them as a receiver would (RFC 5109, section 8).
+ */
+public class FecEncoderTest {
+
+	private final static int SSRC = 0x12345678;
+
+	private DatagramSocket mReceiver;
+	private FecEncoder mEncoder;
+	private final Random mRandom = new Random(42);
+
+	@Before
+	public void setUp() throws Exception {
+		mReceiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		mReceiver.setSoTimeout(2000);
+		mEncoder = new FecEncoder(90000);
+		mEncoder.getRtpSocket().setDestination(InetAddress.getByName("127.0.0.1"), mReceiver.getLocalPort(), mReceiver.getLocalPort()+1);
+	}
+
+	@After
+	public void tearDown() {
+		mEncoder.getRtpSocket().close();
+		mReceiver.close();
+	}
+
+	@Test
+	public void xorKernelMatchesBytewiseXor() {
+		for (int length=0;length<40;length++) {
+			byte[] a = randomBytes(length), b = randomBytes(length);
+			long[] words = new long[(length+7)/8+1];
+			FecEncoder.xor(words, a, 0, length);
+			FecEncoder.xor(words, b, 0, length);
+			byte[] out = new byte[length];
+			FecEncoder.putWords(words, out, 0, length);
+			for (int i=0;i<length;i++) assertEquals((byte) (a[i]^b[i]), out[i]);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void recoversOneLossPerRow() throws Exception {
+		mEncoder.setParameters(5, 1, FecEncoder.PROTECT_ROWS);
+		List<byte[]> media = protect(20, 1000);
+		List<byte[]> fec = receive(4);
+		boolean[] lost = new boolean[20];
+		for (int i=0;i<20;i+=5) lost[i+mRandom.nextInt(5)] = true;
+		assertRecovered(media, fec, lost);
+	}
+
+	@Test(timeout = 20000)
+	public void recoversABurstWithTheColumns() throws Exception {
+		mEncoder.setParameters(4, 4, FecEncoder.PROTECT_ROWS|FecEncoder.PROTECT_COLUMNS);
+		List<byte[]> media = protect(16, 1000);
+		List<byte[]> fec = receive(8);
+		boolean[] lost = new boolean[16];
+		// A whole row and one more packet
+		for (int i=4;i<8;i++) lost[i] = true;
+		lost[13] = true;
+		assertRecovered(media, fec, lost);
+	}
+
+	@Test(timeout = 20000)
+	public void protectsPacketsOfDifferentLengths() throws Exception {
+		mEncoder.setParameters(3, 1, FecEncoder.PROTECT_ROWS);
+		List<byte[]> media = protect(30, 0);
+		List<byte[]> fec = receive(10);
+		for (int k=0;k<3;k++) {
+			boolean[] lost = new boolean[30];
+			for (int i=0;i<30;i+=3) lost[i+k] = true;
+			assertRecovered(media, fec, lost);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void sendsTheFirstFecPackets() throws Exception {
+		// The warm-up of the media sockets must not swallow the first FEC packets
+		mEncoder.setParameters(1, 1, FecEncoder.PROTECT_ROWS);
+		protect(40, 100);
+		assertEquals(40, receive(40).size());
+	}
+
+	/** Sends count media packets of random lengths to the encoder, at least min bytes of payload. */
+	private List<byte[]> protect(int count, int min) throws Exception {
+		List<byte[]> packets = new ArrayList<byte[]>();
+		for (int i=0;i<count;i++) {
+			int seq = (65530+i)&0xFFFF;
+			byte[] packet = new byte[12+min+mRandom.nextInt(200)];
+			mRandom.nextBytes(packet);
+			packet[0] = (byte) 0x80;
+			packet[1] = (byte) ((i%7 == 0 ? 0x80 : 0x00) | 96);
+			packet[2] = (byte) (seq>>8);
+			packet[3] = (byte) seq;
+			int ts = 1000*(i/3);
+			for (int k=0;k<4;k++) {
+				packet[4+k] = (byte) (ts>>(24-8*k));
+				packet[8+k] = (byte) (SSRC>>(24-8*k));
+			}
+			mEncoder.protect(packet, packet.length, seq, i*1000000L);
+			packets.add(packet);
+		}
+		return packets;
+	}
+
+	private List<byte[]> receive(int count) throws Exception {
+		List<byte[]> packets = new ArrayList<byte[]>();
+		byte[] buffer = new byte[RtpSocket.MTU+100];
+		for (int i=0;i<count;i++) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			mReceiver.receive(packet);
+			assertEquals(FecEncoder.PAYLOAD_TYPE, buffer[1]&0x7F);
+			packets.add(Arrays.copyOf(buffer, packet.getLength()));
+		}
+		return packets;
+	}
+
+	/** Recovers the lost packets with the FEC packets, until no more can be recovered. */
+	private static void assertRecovered(List<byte[]> media, List<byte[]> fec, boolean[] lost) {
+		int base = ((media.get(0)[2]&0xFF)<<8) | (media.get(0)[3]&0xFF);
+		byte[][] received = new byte[media.size()][];
+		for (int i=0;i<media.size();i++) received[i] = lost[i] ? null : media.get(i);
+
+		boolean progress = true;
+		while (progress) {
+			progress = false;
+			for (byte[] packet : fec) {
+				int[] members = members(packet, base, media.size());
+				int missing = -1, count = 0;
+				for (int m : members) {
+					if (received[m] == null) {
+						missing = m;
+						count++;
+					}
+				}
+				if (count == 1) {
+					received[missing] = recover(packet, members, received, base+missing);
+					progress = true;
+				}
+			}
+		}
+		for (int i=0;i<media.size();i++) {
+			assertTrue("Packet "+i+" not recovered", received[i] != null);
+			assertArrayEquals("Packet "+i, media.get(i), received[i]);
+		}
+	}
+
+	/** Indexes of the media packets protected by a FEC packet. */
+	private static int[] members(byte[] fec, int base, int count) {
+		int h = 12;
+		boolean longMask = (fec[h]&0x40) != 0;
+		int snBase = ((fec[h+2]&0xFF)<<8) | (fec[h+3]&0xFF);
+		int maskLength = longMask ? 6 : 2;
+		List<Integer> members = new ArrayList<Integer>();
+		for (int i=0;i<8*maskLength;i++) {
+			if ((fec[h+12+i/8]&(0x80>>(i%8))) != 0) {
+				int index = (snBase+i-base)&0xFFFF;
+				assertTrue(index<count);
+				members.add(index);
+			}
+		}
+		int[] result = new int[members.size()];
+		for (int i=0;i<result.length;i++) result[i] = members.get(i);
+		return result;
+	}
+
+	private static byte[] recover(byte[] fec, int[] members, byte[][] received, int seq) {
+		int h = 12;
+		boolean longMask = (fec[h]&0x40) != 0;
+		int payload = h+10+2+(longMask ? 6 : 2);
+		int byte0 = fec[h]&0x3F, byte1 = fec[h+1]&0xFF;
+		int ts = getInt(fec, h+4);
+		int length = ((fec[h+8]&0xFF)<<8) | (fec[h+9]&0xFF);
+		int protection = ((fec[h+10]&0xFF)<<8) | (fec[h+11]&0xFF);
+		byte[] bits = Arrays.copyOfRange(fec, payload, payload+protection);
+		for (int m : members) {
+			byte[] packet = received[m];
+			if (packet == null) continue;
+			byte0 ^= packet[0]&0x3F;
+			byte1 ^= packet[1]&0xFF;
+			ts ^= getInt(packet, 4);
+			length ^= packet.length-12;
+			for (int i=0;i<packet.length-12;i++) bits[i] ^= packet[12+i];
+		}
+		byte[] packet = new byte[12+length];
+		packet[0] = (byte) (0x80|byte0);
+		packet[1] = (byte) byte1;
+		packet[2] = (byte) (seq>>8);
+		packet[3] = (byte) seq;
+		for (int k=0;k<4;k++) {
+			packet[4+k] = (byte) (ts>>(24-8*k));
+			packet[8+k] = (byte) (SSRC>>(24-8*k));
+		}
+		System.arraycopy(bits, 0, packet, 12, length);
+		return packet;
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		mRandom.nextBytes(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Picture headers given to {@link H263Packetizer#isIntraPicture(byte[], int)}, the two zero bytes
+ * of the start code excluded.
+ */
+public class H263PacketizerTest {
+
+	@Test
+	public void baselinePictureCodingType() {
+		// PSC, TR = 5, PTYPE = 10 000 010 0 0000 (QCIF, INTRA)
+		byte[] intra = header(0x80, 0x16, 0x08, 0x00, 0x00, 0x00);
+		// Same with the picture coding type bit set (INTER)
+		byte[] inter = header(0x80, 0x16, 0x0A, 0x00, 0x00, 0x00);
+		assertTrue(H263Packetizer.isIntraPicture(intra, intra.length));
+		assertFalse(H263Packetizer.isIntraPicture(inter, inter.length));
+	}
+
+	@Test
+	public void plusPictureType() {
+		// PTYPE = 10 000 111, UFEP = 001, OPPTYPE, MPPTYPE = 000 (I)
+		byte[] intra = header(0x80, 0x02, 0x1C, 0x80, 0x00, 0x00);
+		// MPPTYPE = 001 (P)
+		byte[] inter = header(0x80, 0x02, 0x1C, 0x80, 0x00, 0x04);
+		assertTrue(H263Packetizer.isIntraPicture(intra, intra.length));
+		assertFalse(H263Packetizer.isIntraPicture(inter, inter.length));
+		// UFEP = 000, MPPTYPE comes right after it
+		byte[] update = header(0x80, 0x02, 0x1C, 0x00, 0x00, 0x00);
+		byte[] updateInter = header(0x80, 0x02, 0x1C, 0x10, 0x00, 0x00);
+		assertTrue(H263Packetizer.isIntraPicture(update, update.length));
+		assertFalse(H263Packetizer.isIntraPicture(updateInter, updateInter.length));
+	}
+
+	@Test
+	public void notAPictureHeader() {
+		byte[] slice = header(0x00, 0x00, 0x08, 0x00, 0x00, 0x00);
+		byte[] intra = header(0x80, 0x16, 0x08, 0x00, 0x00, 0x00);
+		assertFalse(H263Packetizer.isIntraPicture(slice, slice.length));
+		// Too short to tell
+		assertFalse(H263Packetizer.isIntraPicture(intra, 5));
+	}
+
+	private static byte[] header(int... bytes) {
+		byte[] header = new byte[bytes.length];
+		for (int i=0;i<bytes.length;i++) header[i] = (byte) bytes[i];
+		return header;
+	}
+
+}
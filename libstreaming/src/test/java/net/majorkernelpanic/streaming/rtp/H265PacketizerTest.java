@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+
+/**
+ * Feeds access units to a {@link H265Packetizer}, receives its packets on the loopback and
+ * splits them back into NAL units as a receiver would (RFC 7798): single NAL units, AP and FU.
+ */
+public class H265PacketizerTest {
+
+	private final static int MAX_PAYLOAD = AbstractPacketizer.MAXPACKETSIZE-RtpSocket.RTP_HEADER_LENGTH;
+	private final static int AP = 48, FU = 49;
+
+	private DatagramSocket mReceiver;
+	private H265Packetizer mPacketizer;
+	private final Random mRandom = new Random(5);
+
+	@Before
+	public void setUp() throws Exception {
+		mReceiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		mReceiver.setReceiveBufferSize(1<<20);
+		mReceiver.setSoTimeout(1000);
+		mPacketizer = new H265Packetizer();
+		mPacketizer.getRtpSocket().setWarmup(0);
+		mPacketizer.setDestination(InetAddress.getByName("127.0.0.1"), mReceiver.getLocalPort(), mReceiver.getLocalPort()+1);
+	}
+
+	@After
+	public void tearDown() {
+		mPacketizer.stop();
+		mPacketizer.getRtpSocket().close();
+		mReceiver.close();
+	}
+
+	@Test(timeout = 20000)
+	public void aggregatedNalUnitsComeBackInOrder() throws Exception {
+		List<List<byte[]>> units = accessUnits(30);
+		List<Packet> packets = packetize(units, true);
+		assertNalUnits(flatten(units), depacketize(packets));
+		assertMarkers(units, packets);
+
+		int aps = 0;
+		for (Packet packet : packets) {
+			assertTrue(packet.payload.length<=MAX_PAYLOAD);
+			// The F bit is never set
+			assertEquals(0, packet.payload[0]&0x80);
+			if (type(packet.payload) != AP) continue;
+			aps++;
+			// An AP holds at least two NAL units, its LayerId and TID are the lowest of theirs
+			List<byte[]> nals = new ArrayList<byte[]>();
+			split(packet.payload, nals);
+			assertTrue(nals.size()>=2);
+			int layer = 63, tid = 7;
+			for (byte[] nal : nals) {
+				layer = Math.min(layer, layer(nal));
+				tid = Math.min(tid, nal[1]&0x07);
+			}
+			assertEquals(layer, layer(packet.payload));
+			assertEquals(tid, packet.payload[1]&0x07);
+		}
+		assertTrue(aps>0);
+	}
+
+	@Test(timeout = 20000)
+	public void withoutAggregation() throws Exception {
+		List<List<byte[]>> units = accessUnits(30);
+		List<Packet> single = packetize(units, false);
+		tearDown();
+		setUp();
+		List<Packet> aggregated = packetize(units, true);
+		assertNalUnits(flatten(units), depacketize(single));
+		assertNalUnits(flatten(units), depacketize(aggregated));
+		assertMarkers(units, single);
+		assertTrue(aggregated.size()<single.size());
+		for (Packet packet : single) assertTrue(type(packet.payload) != AP);
+	}
+
+	@Test(timeout = 20000)
+	public void fragmentationUnitsKeepTheHeader() throws Exception {
+		List<List<byte[]>> units = new ArrayList<List<byte[]>>();
+		List<byte[]> unit = new ArrayList<byte[]>();
+		// A large IDR picture of the layer 33 with a TID of 3
+		byte[] idr = nal(19, 33, 3, 5000);
+		unit.add(idr);
+		units.add(unit);
+		List<Packet> packets = packetize(units, true);
+		assertTrue(packets.size()>=4);
+		for (int i=0;i<packets.size();i++) {
+			byte[] payload = packets.get(i).payload;
+			assertEquals(FU, type(payload));
+			assertEquals(33, layer(payload));
+			assertEquals(3, payload[1]&0x07);
+			// Start and end bits, then the type of the NAL unit
+			assertEquals(i == 0, (payload[2]&0x80) != 0);
+			assertEquals(i == packets.size()-1, (payload[2]&0x40) != 0);
+			assertEquals(19, payload[2]&0x3F);
+		}
+		assertNalUnits(flatten(units), depacketize(packets));
+	}
+
+	@Test(timeout = 20000)
+	public void parameterSetsBeforeIrapPictures() throws Exception {
+		byte[] vps = nal(32, 0, 1, 24), sps = nal(33, 0, 1, 40), pps = nal(34, 0, 1, 8);
+		mPacketizer.setStreamParameters(vps, sps, pps);
+		List<List<byte[]>> units = accessUnits(21);
+		List<Packet> packets = packetize(units, true);
+
+		List<byte[]> expected = new ArrayList<byte[]>();
+		for (List<byte[]> unit : units) {
+			for (byte[] nal : unit) {
+				int type = (nal[0]>>1)&0x3F;
+				if (type>=16 && type<=21) {
+					expected.add(vps);
+					expected.add(sps);
+					expected.add(pps);
+				}
+				expected.add(nal);
+			}
+		}
+		assertNalUnits(expected, depacketize(packets));
+		assertMarkers(units, packets);
+	}
+
+	@Test(timeout = 20000)
+	public void aLoneSmallNalUnitIsNotAggregated() throws Exception {
+		List<List<byte[]>> units = new ArrayList<List<byte[]>>();
+		for (int i=0;i<5;i++) {
+			List<byte[]> unit = new ArrayList<byte[]>();
+			unit.add(nal(1, 0, 1, 100));
+			units.add(unit);
+		}
+		List<Packet> packets = packetize(units, true);
+		assertEquals(5, packets.size());
+		for (Packet packet : packets) {
+			assertEquals(1, type(packet.payload));
+			assertTrue(packet.marker);
+		}
+		assertNalUnits(flatten(units), depacketize(packets));
+	}
+
+	/** A received RTP packet. */
+	private static class Packet {
+		int seq;
+		long ts;
+		boolean marker;
+		byte[] payload;
+	}
+
+	/** Access units of an encoder: AUD and SEI, small and large slices, an IDR picture every ten. */
+	private List<List<byte[]>> accessUnits(int count) {
+		List<List<byte[]>> units = new ArrayList<List<byte[]>>();
+		for (int i=0;i<count;i++) {
+			List<byte[]> unit = new ArrayList<byte[]>();
+			unit.add(nal(35, 0, 1, 3));
+			if (i%3 == 0) unit.add(nal(39, 0, 1, 10+mRandom.nextInt(50)));
+			if (i%10 == 0) unit.add(nal(19, 0, 1, 2000+mRandom.nextInt(3000)));
+			int slices = 1+mRandom.nextInt(6);
+			for (int k=0;k<slices;k++) {
+				// TRAIL_R or TRAIL_N, in the temporal sub-layers 1 to 3
+				int type = mRandom.nextBoolean() ? 1 : 0;
+				int length = mRandom.nextInt(4) == 0 ? 600+mRandom.nextInt(1000) : 3+mRandom.nextInt(300);
+				unit.add(nal(type, 0, 1+mRandom.nextInt(3), length));
+			}
+			units.add(unit);
+		}
+		return units;
+	}
+
+	/** A NAL unit without zero bytes after its header, so that it contains no start code. */
+	private byte[] nal(int type, int layer, int tid, int length) {
+		byte[] nal = new byte[length];
+		nal[0] = (byte) (type<<1 | layer>>5);
+		nal[1] = (byte) ((layer&0x1F)<<3 | tid);
+		for (int i=2;i<length;i++) nal[i] = (byte) (1+mRandom.nextInt(255));
+		return nal;
+	}
+
+	private static int type(byte[] header) {
+		return (header[0]>>1)&0x3F;
+	}
+
+	private static int layer(byte[] header) {
+		return (header[0]&0x01)<<5 | (header[1]>>3)&0x1F;
+	}
+
+	private static List<byte[]> flatten(List<List<byte[]>> units) {
+		List<byte[]> nals = new ArrayList<byte[]>();
+		for (List<byte[]> unit : units) nals.addAll(unit);
+		return nals;
+	}
+
+	/** Sends the access units through the packetizer and returns what comes out on the loopback. */
+	private List<Packet> packetize(List<List<byte[]>> units, boolean aggregate) throws Exception {
+		Source source = new Source(units);
+		mPacketizer.setAggregation(aggregate);
+		mPacketizer.setInputStream(source);
+		mPacketizer.start();
+		assertTrue(source.mDone.await(10, TimeUnit.SECONDS));
+
+		List<Packet> packets = new ArrayList<Packet>();
+		byte[] buffer = new byte[RtpSocket.MTU+100];
+		while (true) {
+			DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+			try {
+				mReceiver.receive(datagram);
+			} catch (SocketTimeoutException e) {
+				break;
+			}
+			Packet packet = new Packet();
+			packet.marker = (buffer[1]&0x80) != 0;
+			packet.seq = (buffer[2]&0xFF)<<8 | (buffer[3]&0xFF);
+			packet.ts = ((long) (buffer[4]&0xFF)<<24 | (buffer[5]&0xFF)<<16 | (buffer[6]&0xFF)<<8 | (buffer[7]&0xFF));
+			packet.payload = Arrays.copyOfRange(buffer, RtpSocket.RTP_HEADER_LENGTH, datagram.getLength());
+			if (!packets.isEmpty()) assertEquals((packets.get(packets.size()-1).seq+1)&0xFFFF, packet.seq);
+			packets.add(packet);
+		}
+		return packets;
+	}
+
+	/** Gives back the NAL units carried by the packets, in order. */
+	private static List<byte[]> depacketize(List<Packet> packets) {
+		List<byte[]> nals = new ArrayList<byte[]>();
+		ByteArrayOutputStream fu = null;
+		for (Packet packet : packets) {
+			byte[] payload = packet.payload;
+			int type = type(payload);
+			if (type == AP) {
+				split(payload, nals);
+			} else if (type == FU) {
+				boolean start = (payload[2]&0x80) != 0, end = (payload[2]&0x40) != 0;
+				if (start) {
+					// The header of the NAL unit: its type is in the FU header
+					fu = new ByteArrayOutputStream();
+					fu.write((payload[0]&0x81) | (payload[2]&0x3F)<<1);
+					fu.write(payload[1]);
+				}
+				fu.write(payload, 3, payload.length-3);
+				if (end) {
+					nals.add(fu.toByteArray());
+					fu = null;
+				}
+			} else {
+				nals.add(payload);
+			}
+		}
+		return nals;
+	}
+
+	/** Splits an aggregation packet in its NAL units. */
+	private static void split(byte[] payload, List<byte[]> nals) {
+		int offset = 2;
+		while (offset<payload.length) {
+			int length = (payload[offset]&0xFF)<<8 | (payload[offset+1]&0xFF);
+			assertTrue(offset+2+length<=payload.length);
+			nals.add(Arrays.copyOfRange(payload, offset+2, offset+2+length));
+			offset += 2+length;
+		}
+	}
+
+	/** Each access unit has its own timestamp, and only its last packet has the marker. */
+	private static void assertMarkers(List<List<byte[]>> units, List<Packet> packets) {
+		int markers = 0;
+		for (int i=0;i<packets.size();i++) {
+			Packet packet = packets.get(i);
+			boolean last = i == packets.size()-1 || packets.get(i+1).ts != packet.ts;
+			assertEquals("Packet "+i, last, packet.marker);
+			if (packet.marker) markers++;
+		}
+		assertEquals(units.size(), markers);
+	}
+
+	private static void assertNalUnits(List<byte[]> expected, List<byte[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i=0;i<expected.size();i++) {
+			assertArrayEquals("NAL unit "+i, expected.get(i), actual.get(i));
+		}
+	}
+
+	/** The output buffers of an encoder, the access units are separated by start codes of 3 or 4 bytes. */
+	private static class Source extends InputStream implements AccessUnitSource {
+
+		private final List<ByteBuffer> mUnits = new ArrayList<ByteBuffer>();
+		private final BufferInfo mInfo = new BufferInfo();
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private int mIndex = 0;
+
+		Source(List<List<byte[]>> units) {
+			for (List<byte[]> unit : units) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				for (int i=0;i<unit.size();i++) {
+					if (i%2 == 0) out.write(0);
+					out.write(0);
+					out.write(0);
+					out.write(1);
+					out.write(unit.get(i), 0, unit.get(i).length);
+				}
+				mUnits.add(ByteBuffer.wrap(out.toByteArray()));
+			}
+		}
+
+		@Override
+		public ByteBuffer take() throws IOException {
+			if (mIndex>=mUnits.size()) {
+				mDone.countDown();
+				throw new IOException("End of stream");
+			}
+			mInfo.presentationTimeUs = 40000L*mIndex;
+			mInfo.flags = mIndex%10 == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+			return mUnits.get(mIndex++);
+		}
+
+		@Override
+		public BufferInfo getLastBufferInfo() {
+			return mInfo;
+		}
+
+		@Override
+		public void release() {}
+
+		@Override
+		public int read() throws IOException {
+			return -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class InterleavedWriterTest {
+
+	@Test(timeout = 10000)
+	public void framesThePackets() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InterleavedWriter writer = InterleavedWriter.get(output);
+		writer.write(0, new byte[] {1, 2, 3}, 0, 3);
+		writer.write(1, new byte[] {9, 4, 5}, 1, 2);
+		InterleavedWriter.release(output);
+		waitForThread();
+
+		byte[] expected = new byte[] {'$', 0, 0, 3, 1, 2, 3, '$', 1, 0, 2, 4, 5};
+		assertArrayEquals(expected, output.toByteArray());
+	}
+
+	@Test(timeout = 10000)
+	public void releaseUnregistersTheWriter() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InterleavedWriter writer = InterleavedWriter.get(output);
+		assertSame(writer, InterleavedWriter.get(output));
+		InterleavedWriter.release(output);
+		try {
+			writer.write(0, new byte[4], 0, 4);
+			throw new AssertionError("A closed writer accepted a packet");
+		} catch (IOException expected) {}
+		assertNotSame(writer, InterleavedWriter.get(output));
+		InterleavedWriter.release(output);
+	}
+
+	@Test(timeout = 10000)
+	public void threadStopsWithTheConnection() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InterleavedWriter writer = InterleavedWriter.get(output);
+		writer.write(0, new byte[8], 0, 8);
+		assertEquals(1, countThreads());
+		InterleavedWriter.release(output);
+		waitForThread();
+		assertEquals(0, countThreads());
+	}
+
+	private static void waitForThread() throws InterruptedException {
+		while (countThreads()>0) Thread.sleep(10);
+	}
+
+	private static int countThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(InterleavedWriter.TAG) && thread.isAlive()) {
+				if (!thread.isDaemon()) throw new AssertionError("The writing thread would keep the process alive");
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
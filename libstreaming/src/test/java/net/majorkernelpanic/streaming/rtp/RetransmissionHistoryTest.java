@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Stores packets in a {@link RetransmissionHistory} with gaps in their sequence numbers, as when the
+ * socket drops packets or the pool runs out of buffers, and looks them up again.
+ */
+public class RetransmissionHistoryTest {
+
+	private final static int SIZE = 100;
+	private final static long SECOND = 1000000000L;
+
+	private final BufferPool mPool = new BufferPool(SIZE, 1024*SIZE);
+	// The smallest history, 16 packets
+	private final RetransmissionHistory mHistory = new RetransmissionHistory(SECOND, 0, mPool);
+	private final byte[][] mPackets = new byte[65536][];
+
+	@Test
+	public void keepsOlderPacketsAcrossAGap() {
+		store(0, 10);
+		// 10 and 11 were dropped by the socket
+		store(12, 16);
+		for (int seq=0;seq<16;seq++) {
+			if (seq == 10 || seq == 11) assertEquals(-1, mHistory.find(seq, 0));
+			else assertFound(seq);
+		}
+	}
+
+	@Test
+	public void theGapEvictsTheSlotsItOverwrites() {
+		assertEquals(16, mHistory.getCapacity());
+		store(0, 10);
+		store(20, 21);
+		// The window is now [5,20]
+		for (int seq=0;seq<5;seq++) assertEquals(-1, mHistory.find(seq, 0));
+		for (int seq=5;seq<10;seq++) assertFound(seq);
+		assertFound(20);
+	}
+
+	@Test
+	public void gapAcrossTheWrap() {
+		store(65530, 65536);
+		store(65537, 65540);
+		for (int seq=65530;seq<65536;seq++) assertFound(seq);
+		assertEquals(-1, mHistory.find(0, 0));
+		for (int seq=1;seq<4;seq++) assertFound(seq);
+	}
+
+	@Test
+	public void jumpPastTheCapacityClears() {
+		store(0, 10);
+		store(9+17, 9+18);
+		for (int seq=0;seq<10;seq++) assertEquals(-1, mHistory.find(seq, 0));
+		assertFound(26);
+	}
+
+	@Test
+	public void goingBackClears() {
+		store(100, 110);
+		store(50, 51);
+		for (int seq=100;seq<110;seq++) assertEquals(-1, mHistory.find(seq, 0));
+		assertFound(50);
+		// The same sequence number again
+		store(50, 51);
+		assertFound(50);
+	}
+
+	@Test
+	public void packetsNotStoredLeaveAHole() {
+		BufferPool pool = new BufferPool(SIZE, 3*SIZE);
+		RetransmissionHistory history = new RetransmissionHistory(SECOND, 0, pool);
+		byte[][] spares = new byte[3][];
+		for (int seq=0;seq<3;seq++) spares[seq] = history.store(packet(seq), SIZE, 0);
+		// The pool is empty, the packet is not stored
+		assertNull(history.store(packet(3), SIZE, 0));
+		pool.release(spares[0]);
+		assertNotNull(history.store(packet(4), SIZE, 0));
+		for (int seq : new int[] {0, 1, 2, 4}) assertEquals(seq, seqOf(history.getBuffer(history.find(seq, 0))));
+		assertEquals(-1, history.find(3, 0));
+	}
+
+	@Test
+	public void oldPacketsExpire() {
+		for (int seq=0;seq<5;seq++) mHistory.store(packet(seq), SIZE, seq*SECOND/4);
+		mHistory.store(packet(7), SIZE, 3*SECOND);
+		for (int seq=0;seq<5;seq++) assertEquals(-1, mHistory.find(seq, 3*SECOND));
+		assertEquals(7, seqOf(mHistory.getBuffer(mHistory.find(7, 3*SECOND))));
+	}
+
+	/** Stores the packets [from,to[, the sequence numbers wrap. */
+	private void store(int from, int to) {
+		for (int seq=from;seq<to;seq++) {
+			byte[] packet = packet(seq&0xFFFF);
+			mPackets[seq&0xFFFF] = packet;
+			assertNotNull(mHistory.store(packet, SIZE, 0));
+		}
+	}
+
+	private void assertFound(int seq) {
+		int i = mHistory.find(seq&0xFFFF, 0);
+		assertSame("Packet "+seq, mPackets[seq&0xFFFF], i<0 ? null : mHistory.getBuffer(i));
+		assertEquals(SIZE, mHistory.getLength(i));
+	}
+
+	private static byte[] packet(int seq) {
+		byte[] packet = new byte[SIZE];
+		packet[2] = (byte) (seq>>8);
+		packet[3] = (byte) seq;
+		return packet;
+	}
+
+	private static int seqOf(byte[] packet) {
+		return (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void wrapsAround() throws InterruptedException {
+		RingBuffer ring = new RingBuffer(3);
+		int[] slots = new int[3];
+		int next = 0;
+		for (int i=0;i<1000;i++) {
+			// Fill the ring, empty it, with a different offset every time
+			int count = 1+i%3;
+			for (int j=0;j<count;j++) {
+				assertTrue(ring.tryClaim());
+				slots[(next+j)%3] = next+j;
+				ring.publish();
+			}
+			assertEquals(count, ring.size());
+			for (int j=0;j<count;j++) {
+				assertTrue(ring.poll(0));
+				assertEquals(next, slots[next%3]);
+				ring.release();
+				next++;
+			}
+			assertEquals(0, ring.size());
+			assertFalse(ring.poll(0));
+		}
+	}
+
+	@Test
+	public void refusesWhenFull() {
+		RingBuffer ring = new RingBuffer(2);
+		assertTrue(ring.tryClaim());
+		ring.publish();
+		assertTrue(ring.tryClaim());
+		ring.publish();
+		assertFalse(ring.tryClaim());
+		assertEquals(2, ring.available());
+	}
+
+	@Test
+	public void resetEmptiesTheRing() throws InterruptedException {
+		RingBuffer ring = new RingBuffer(4);
+		for (int i=0;i<3;i++) {
+			ring.claim();
+			ring.publish();
+		}
+		ring.reset();
+		assertEquals(0, ring.size());
+		assertFalse(ring.poll(0));
+		for (int i=0;i<4;i++) assertTrue(ring.tryClaim() && publish(ring));
+		assertFalse(ring.tryClaim());
+	}
+
+	@Test(timeout = 30000)
+	public void keepsOrderBetweenTwoThreads() throws Exception {
+		runProducerConsumer(RingBuffer.WAIT_PARK, 200000);
+		runProducerConsumer(RingBuffer.WAIT_YIELD, 200000);
+		// Each side only gets the core when the other one's time slice ends on a single core machine
+		runProducerConsumer(RingBuffer.WAIT_BUSY_SPIN, 2000);
+	}
+
+	private static boolean publish(RingBuffer ring) {
+		ring.publish();
+		return true;
+	}
+
+	private static void runProducerConsumer(int strategy, final int count) throws Exception {
+		final RingBuffer ring = new RingBuffer(16);
+		final long[] slots = new long[16];
+		final Throwable[] failure = new Throwable[1];
+		ring.setWaitStrategy(strategy);
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i=0;i<count;i++) {
+						ring.claim();
+						slots[i%16] = i;
+						ring.publish();
+					}
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		};
+		producer.start();
+
+		for (int i=0;i<count;i++) {
+			assertTrue("Nothing published after "+i, ring.poll(5000000000L));
+			assertEquals(i, slots[i%16]);
+			ring.release();
+		}
+		producer.join();
+		if (failure[0] != null) throw new AssertionError(failure[0]);
+		assertEquals(0, ring.size());
+	}
+
+}
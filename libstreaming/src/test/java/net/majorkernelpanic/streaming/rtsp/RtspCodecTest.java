@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Headers;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Method;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Transport;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Writer;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+
+import org.junit.Test;
+
+/**
+ * Writes messages with {@link RtspCodec.Writer} and parses them back, then feeds the parsers
+ * malformed input: they may only fail with an IllegalStateException.
+ */
+public class RtspCodecTest {
+
+	private final Random mRandom = new Random(11);
+
+	@Test
+	public void requestRoundTrip() {
+		Writer writer = new Writer();
+		writer.request(Method.SETUP, "rtsp://192.168.0.1:8086/trackID=1", 42)
+		.header("Session", "1234abcd;timeout=60")
+		.header("Transport", "RTP/AVP/TCP;unicast;interleaved=2-3")
+		.end("v=0\r\n".getBytes());
+		byte[] data = writer.toString().getBytes();
+		int head = writer.length()-5;
+
+		Request request = Request.parse(data, head);
+		assertEquals(Method.SETUP, request.method);
+		assertEquals("rtsp://192.168.0.1:8086/trackID=1", request.uri);
+		assertEquals(42, request.headers.getInt("cseq", -1));
+		assertEquals("1234abcd;timeout=60", request.headers.get("SESSION"));
+		assertEquals("1234abcd", RtspCodec.parseSessionId(request.headers.get("session")));
+		assertEquals(5, request.contentLength);
+		assertEquals(1, RtspCodec.parseTrackId(request.uri));
+
+		Transport transport = Transport.parse(request.headers.get("transport"));
+		assertTrue(transport.isTcp());
+		assertArrayEquals(new int[] {2, 3}, transport.interleaved);
+	}
+
+	@Test
+	public void responseRoundTrip() {
+		Transport transport = new Transport();
+		transport.protocol = "RTP/AVP/UDP";
+		transport.destination = "10.0.0.2";
+		transport.source = "10.0.0.1";
+		transport.clientPort = new int[] {5000, 5001};
+		transport.serverPort = new int[] {6970, 6971};
+		transport.ssrc = 0x8badf00d;
+		transport.hasSsrc = true;
+		transport.mode = "PLAY";
+
+		Writer writer = new Writer();
+		writer.response(RtspServer.Response.STATUS_OK, 7).header("Session", "abc").startHeader("Transport");
+		transport.write(writer);
+		writer.endHeader().end();
+		byte[] data = writer.toString().getBytes();
+
+		int end = RtspCodec.lineEnd(data, 0, data.length);
+		assertEquals(200, RtspCodec.parseStatus(data, 0, end));
+		Headers headers = Headers.parse(data, end+2, data.length);
+		assertEquals(7, headers.getInt("CSeq", -1));
+		assertEquals(0, headers.getInt("Content-Length", -1));
+		assertEquals("abc", headers.get("session"));
+		assertTransport(transport, Transport.parse(headers.get("Transport")));
+	}
+
+	@Test
+	public void transportRoundTrip() {
+		Transport multicast = new Transport();
+		multicast.protocol = "RTP/AVP";
+		multicast.multicast = true;
+		multicast.destination = "232.0.1.2";
+		multicast.port = new int[] {5004, 5005};
+		multicast.ttl = 16;
+		assertTransport(multicast, Transport.parse(multicast.toString()));
+
+		Transport tcp = new Transport();
+		tcp.protocol = "RTP/AVP/TCP";
+		tcp.interleaved = new int[] {0, 1};
+		tcp.ssrc = 1;
+		tcp.hasSsrc = true;
+		assertTransport(tcp, Transport.parse(tcp.toString()));
+	}
+
+	@Test
+	public void transportAsClientsWriteIt() {
+		Transport transport = Transport.parse(" RTP/AVP ; unicast ; client_port = 8000 ; mode=\"PLAY\",RTP/AVP/TCP;interleaved=0-1");
+		assertEquals("RTP/AVP", transport.protocol);
+		assertFalse(transport.isTcp());
+		assertFalse(transport.multicast);
+		// A single port stands for the pair
+		assertArrayEquals(new int[] {8000, 8001}, transport.clientPort);
+		assertEquals("PLAY", transport.mode);
+		// Only the first transport is used
+		assertNull(transport.interleaved);
+		assertNull(Transport.parse(null));
+	}
+
+	@Test
+	public void headers() {
+		byte[] data = ("Content-Type:  application/sdp  \r\ncseq: 3\r\nCSeq: 4\r\nX-Empty:\r\nX-Big: 99999999999\r\n"
+				+"X-Neg: -1\r\nRange: npt=0.000-\r\n\r\n").getBytes();
+		Headers headers = Headers.parse(data, 0, data.length);
+		assertEquals(7, headers.size());
+		assertEquals("application/sdp", headers.get("content-type"));
+		// The first one wins
+		assertEquals(3, headers.getInt("CSEQ", -1));
+		assertEquals("", headers.get("x-empty"));
+		assertEquals(-1, headers.getInt("x-empty", -1));
+		assertEquals(-1, headers.getInt("x-big", -1));
+		assertEquals(-1, headers.getInt("x-neg", -1));
+		assertEquals("npt=0.000-", headers.get("Range"));
+		assertNull(headers.get("Session"));
+		assertFalse(headers.contains("Session"));
+	}
+
+	@Test
+	public void methods() {
+		for (Method method : Method.values()) {
+			byte[] name = method.name().toLowerCase().getBytes();
+			assertEquals(method, Method.parse(name, 0, name.length));
+		}
+		byte[] unknown = "OPTIONSX".getBytes();
+		assertEquals(Method.UNKNOWN, Method.parse(unknown, 0, unknown.length));
+		assertEquals(Method.OPTIONS, Method.parse(unknown, 0, 7));
+	}
+
+	@Test
+	public void writerNumbersAndText() {
+		Writer writer = new Writer();
+		writer.append(0).append(' ').append(-1234567890123L).append(' ').appendHex(0).append(' ').appendHex(-1);
+		writer.append(" caf\u00e9");
+		assertEquals("0 -1234567890123 0 ffffffff caf\u00c3\u00a9", writer.toString());
+		// The buffer grows with the message
+		StringBuilder large = new StringBuilder();
+		for (int i=0;i<1000;i++) large.append("0123456789");
+		writer.request(Method.OPTIONS, "*", 1).header("X-Large", large.toString()).end();
+		byte[] data = writer.toString().getBytes();
+		assertEquals(writer.length(), data.length);
+		Headers headers = Headers.parse(data, RtspCodec.lineEnd(data, 0, data.length)+2, data.length);
+		assertEquals(large.toString(), headers.get("x-large"));
+	}
+
+	@Test
+	public void statusLines() {
+		assertEquals(200, status("RTSP/1.0 200 OK"));
+		assertEquals(454, status("rtsp/1.0 454 Session Not Found"));
+		assertEquals(503, status("RTSP/1.0 503"));
+	}
+
+	@Test
+	public void malformedStatusLines() {
+		String[] corpus = {
+				"", "RTSP/1.0", "RTSP/1.0 20", "HTTP/1.1 200 OK", "RTSP/1.0  200 OK", "RTSP/1.0 2x0 OK",
+				"RTSP/1.0 -20 OK", "RTSP/1.0200 OK", "RTSP/1.0\t200 OK", "RTSP/ 1.0 200 OK",
+		};
+		for (String line : corpus) {
+			try {
+				status(line);
+				fail(line);
+			} catch (IllegalStateException expected) {}
+		}
+	}
+
+	@Test
+	public void malformedTransports() {
+		String[] corpus = {
+				"RTP/AVP;client_port=", "RTP/AVP;client_port=abc", "RTP/AVP;client_port=5000-", "RTP/AVP;client_port=-5000",
+				"RTP/AVP;client_port=5000-x", "RTP/AVP;server_port=99999999999", "RTP/AVP;interleaved=0-4294967296",
+				"RTP/AVP;port=1e3", "RTP/AVP;ttl=", "RTP/AVP;ttl=-1", "RTP/AVP;ssrc=", "RTP/AVP;ssrc=123456789",
+				"RTP/AVP;ssrc=xyz", "RTP/AVP;ssrc=-1",
+		};
+		for (String header : corpus) {
+			try {
+				Transport.parse(header);
+				fail(header);
+			} catch (IllegalStateException expected) {}
+		}
+	}
+
+	@Test
+	public void malformedHeaders() {
+		String[] corpus = {
+				": value\r\n\r\n", "NoColon\r\n\r\n", "Name: value", "Name: value\r\nOther\r\n\r\n",
+		};
+		for (String headers : corpus) {
+			byte[] data = headers.getBytes();
+			try {
+				Headers.parse(data, 0, data.length);
+				fail(headers);
+			} catch (IllegalStateException expected) {}
+		}
+	}
+
+	@Test
+	public void malformedRequestLines() {
+		String[] corpus = {
+				"\r\n\r\n", "OPTIONS\r\n\r\n", "OPTIONS rtsp://host/\r\n\r\n", " rtsp://host/ RTSP/1.0\r\n\r\n",
+				"OPTIONS  RTSP/1.0\r\n\r\n", "OPTIONS rtsp://host/ HTTP/1.1\r\n\r\n", "OPTIONS rtsp://host/ RTSP/1.0",
+				"OPTIONS rtsp://host/ RTSP/1.0\r\nCSeq 1\r\n\r\n",
+		};
+		for (String request : corpus) {
+			byte[] data = request.getBytes();
+			try {
+				Request.parse(data, data.length);
+				fail(request);
+			} catch (IllegalStateException expected) {}
+		}
+	}
+
+	/** Random bytes made of the characters that matter to the parsers. */
+	@Test
+	public void randomInput() {
+		String alphabet = "RTSP/1.0 :;=-,\r\n0123456789aZ\"\u00ff";
+		for (int n=0;n<20000;n++) {
+			byte[] data = new byte[mRandom.nextInt(48)];
+			for (int i=0;i<data.length;i++) data[i] = (byte) alphabet.charAt(mRandom.nextInt(alphabet.length()));
+			String text = RtspCodec.ascii(data, 0, data.length);
+			try {
+				Transport.parse(text);
+			} catch (IllegalStateException ignore) {}
+			try {
+				Headers headers = Headers.parse(data, 0, data.length);
+				headers.get("R");
+				headers.getInt("0", -1);
+			} catch (IllegalStateException ignore) {}
+			try {
+				RtspCodec.parseStatus(data, 0, data.length);
+			} catch (IllegalStateException ignore) {}
+			try {
+				Request.parse(data, data.length);
+			} catch (IllegalStateException ignore) {}
+			RtspCodec.parseTrackId(text);
+		}
+	}
+
+	private static int status(String line) {
+		byte[] data = line.getBytes();
+		return RtspCodec.parseStatus(data, 0, data.length);
+	}
+
+	private static void assertTransport(Transport expected, Transport actual) {
+		assertEquals(expected.protocol, actual.protocol);
+		assertEquals(expected.multicast, actual.multicast);
+		assertEquals(expected.destination, actual.destination);
+		assertEquals(expected.source, actual.source);
+		assertArrayEquals(expected.clientPort, actual.clientPort);
+		assertArrayEquals(expected.serverPort, actual.serverPort);
+		assertArrayEquals(expected.interleaved, actual.interleaved);
+		assertArrayEquals(expected.port, actual.port);
+		assertEquals(expected.ttl, actual.ttl);
+		assertEquals(expected.hasSsrc, actual.hasSsrc);
+		assertEquals(expected.ssrc, actual.ssrc);
+		assertEquals(expected.mode, actual.mode);
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Headers;
+import net.majorkernelpanic.streaming.rtsp.RtspCodec.Reader;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Many clients talking to a {@link RtspEngine} on the loopback at the same time, the handler
+ * answers each request with its uri and its content.
+ */
+public class RtspEngineTest {
+
+	private final static int CONNECTIONS = 200;
+
+	private final AtomicInteger mRequests = new AtomicInteger();
+	private CountDownLatch mClosed = new CountDownLatch(CONNECTIONS);
+	private RtspEngine mEngine;
+
+	private final RtspEngine.Handler mHandler = new RtspEngine.Handler() {
+
+		@Override
+		public Response onRequest(RtspEngine.Connection connection, Request request) {
+			mRequests.incrementAndGet();
+			Response response = new Response(request);
+			response.status = Response.STATUS_OK;
+			response.content = request.uri+request.content;
+			return response;
+		}
+
+		@Override
+		public void onClosed(RtspEngine.Connection connection) {
+			mClosed.countDown();
+		}
+
+		@Override
+		public boolean isActive(RtspEngine.Connection connection) {
+			return false;
+		}
+
+	};
+
+	/** A response received by a client. */
+	private static class Received {
+		int status;
+		int cseq;
+		String content;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mEngine = new RtspEngine(mHandler, 0);
+	}
+
+	@After
+	public void tearDown() {
+		mEngine.stop();
+	}
+
+	@Test(timeout = 60000)
+	public void manyConnectionsWithPipelinedRequests() throws Exception {
+		mEngine.setMaxConnections(CONNECTIONS);
+		List<Socket> clients = new ArrayList<Socket>();
+		for (int i=0;i<CONNECTIONS;i++) clients.add(connect());
+
+		// Three requests in a row on every connection, cut in two writes somewhere
+		for (int i=0;i<CONNECTIONS;i++) {
+			byte[] requests = (request("OPTIONS", "rtsp://host/"+i+"/1", 1, "")
+					+request("SET_PARAMETER", "rtsp://host/"+i+"/2", 2, "hello")
+					+request("OPTIONS", "rtsp://host/"+i+"/3", 3, "")).getBytes();
+			int cut = 1+(i*37)%(requests.length-1);
+			OutputStream output = clients.get(i).getOutputStream();
+			output.write(requests, 0, cut);
+			output.flush();
+			output.write(requests, cut, requests.length-cut);
+			output.flush();
+		}
+
+		for (int i=0;i<CONNECTIONS;i++) {
+			Reader reader = new Reader(new BufferedInputStream(clients.get(i).getInputStream()));
+			for (int k=1;k<=3;k++) {
+				Received response = receive(reader);
+				assertEquals(200, response.status);
+				assertEquals(k, response.cseq);
+				assertEquals("rtsp://host/"+i+"/"+k+(k == 2 ? "hello" : ""), response.content);
+			}
+		}
+		assertEquals(3*CONNECTIONS, mRequests.get());
+
+		for (Socket client : clients) client.close();
+		assertTrue(mClosed.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test(timeout = 20000)
+	public void connectionsOverTheLimitAreTurnedAway() throws Exception {
+		mEngine.setMaxConnections(2);
+		List<Socket> clients = new ArrayList<Socket>();
+		for (int i=0;i<2;i++) {
+			Socket client = connect();
+			client.getOutputStream().write(request("OPTIONS", "rtsp://host/", 1, "").getBytes());
+			assertEquals(200, receive(new Reader(new BufferedInputStream(client.getInputStream()))).status);
+			clients.add(client);
+		}
+		Socket extra = connect();
+		InputStream input = new BufferedInputStream(extra.getInputStream());
+		assertEquals(503, receive(new Reader(input)).status);
+		assertEquals(-1, input.read());
+		extra.close();
+		for (Socket client : clients) client.close();
+	}
+
+	@Test(timeout = 20000)
+	public void malformedRequestsAreRejected() throws Exception {
+		String[] requests = {
+				"GARBAGE\r\n\r\n",
+				"OPTIONS rtsp://host/ HTTP/1.1\r\nCSeq: 1\r\n\r\n",
+				"OPTIONS rtsp://host/ RTSP/1.0\r\nNo colon here\r\n\r\n",
+				"SET_PARAMETER rtsp://host/ RTSP/1.0\r\nCSeq: 1\r\nContent-Length: x\r\n\r\n",
+				"SET_PARAMETER rtsp://host/ RTSP/1.0\r\nCSeq: 1\r\nContent-Length: 100000\r\n\r\n",
+		};
+		mClosed = new CountDownLatch(requests.length);
+		for (String request : requests) {
+			Socket client = connect();
+			client.getOutputStream().write(request.getBytes());
+			InputStream input = new BufferedInputStream(client.getInputStream());
+			assertEquals(request, 400, receive(new Reader(input)).status);
+			assertEquals(request, -1, input.read());
+			client.close();
+		}
+		assertTrue(mClosed.await(10, TimeUnit.SECONDS));
+		assertEquals(0, mRequests.get());
+	}
+
+	@Test(timeout = 20000)
+	public void oversizedHeadersAreRejected() throws Exception {
+		StringBuilder request = new StringBuilder("OPTIONS rtsp://host/ RTSP/1.0\r\n");
+		while (request.length()<=RtspEngine.MAX_REQUEST_SIZE) request.append("X-Padding: 0123456789\r\n");
+		Socket client = connect();
+		client.getOutputStream().write(request.toString().getBytes());
+		assertEquals(400, receive(new Reader(new BufferedInputStream(client.getInputStream()))).status);
+		client.close();
+	}
+
+	@Test(timeout = 20000)
+	public void slowClientsAreClosed() throws Exception {
+		mClosed = new CountDownLatch(1);
+		mEngine.setRequestTimeout(200);
+		Socket client = connect();
+		client.getOutputStream().write("OPTIONS rtsp://host/ RTSP/1.0\r\n".getBytes());
+		// The engine looks for slow connections every second
+		assertEquals(-1, client.getInputStream().read());
+		assertTrue(mClosed.await(5, TimeUnit.SECONDS));
+		client.close();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), mEngine.getPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static String request(String method, String uri, int cseq, String content) {
+		String request = method+" "+uri+" RTSP/1.0\r\nCSeq: "+cseq+"\r\n";
+		if (content.length()>0) request += "Content-Length: "+content.length()+"\r\n";
+		return request+"\r\n"+content;
+	}
+
+	private static Received receive(Reader reader) throws IOException {
+		int length = reader.readHead(RtspEngine.MAX_REQUEST_SIZE);
+		byte[] head = new byte[length];
+		System.arraycopy(reader.array(), 0, head, 0, length);
+		int end = RtspCodec.lineEnd(head, 0, length);
+		Headers headers = Headers.parse(head, end+2, length);
+		Received received = new Received();
+		received.status = RtspCodec.parseStatus(head, 0, end);
+		received.cseq = headers.getInt("cseq", -1);
+		received.content = new String(reader.readContent(headers.getInt("content-length", 0)));
+		return received;
+	}
+
+}